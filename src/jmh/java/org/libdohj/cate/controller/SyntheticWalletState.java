@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import com.google.common.util.concurrent.Service;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.Wallet;
+import org.libdohj.cate.Network;
+import org.libdohj.cate.NetworkListener;
+import org.libdohj.cate.util.UiUpdateDispatcher;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Benchmark state holding a wallet of synthetic transactions, built in memory
+ * against {@link UnitTestParams} so no network or disk access is needed.
+ * Roughly one in four transactions spends a previously received output back
+ * out of the wallet, with change, so both incoming and outgoing paths are
+ * exercised.
+ *
+ * @author Ross Nicoll
+ */
+@State(Scope.Benchmark)
+public class SyntheticWalletState {
+    private static final long START_TIME_MILLIS = 1609459200000L; // 2021-01-01
+    private static final long TRANSACTION_INTERVAL_MILLIS = 60000L;
+    private static final long RANDOM_SEED = 20210101L;
+
+    @Param({"1000", "10000", "100000"})
+    public int transactionCount;
+
+    public NetworkParameters params;
+    public Network network;
+    public Wallet wallet;
+    /** Raw wallet transactions, in no particular order. */
+    public List<Transaction> rawTransactions;
+    /** Indexed transactions, newest first as displayed. */
+    public List<WalletTransaction> transactions;
+
+    private File directory;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        directory = Files.createTempDirectory("cate-jmh").toFile();
+        executor = Executors.newSingleThreadExecutor();
+        wallet = buildWallet(params, transactionCount);
+        network = new SyntheticNetwork(params, directory, executor, wallet);
+        rawTransactions = new ArrayList<>(wallet.getTransactions(false));
+
+        final TransactionIndex index = new TransactionIndex(network);
+        index.rebuild(wallet);
+        transactions = index.snapshot();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        directory.delete();
+    }
+
+    private static Wallet buildWallet(final NetworkParameters params, final int count) {
+        final Random random = new Random(RANDOM_SEED);
+        final Wallet wallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+        final Address ours = wallet.freshReceiveAddress();
+        final Address theirs = LegacyAddress.fromKey(params, new ECKey());
+        Transaction lastReceived = null;
+        long updateTime = START_TIME_MILLIS;
+
+        for (int i = 0; i < count; i++) {
+            final Transaction tx;
+            if (lastReceived != null && i % 4 == 3) {
+                final TransactionOutput spent = lastReceived.getOutput(0);
+                tx = new Transaction(params);
+                tx.addInput(spent);
+                tx.addOutput(spent.getValue().divide(2), theirs);
+                tx.addOutput(spent.getValue().divide(4), ours);
+                lastReceived = null;
+            } else {
+                final Coin value = Coin.valueOf(Coin.CENT.value + random.nextInt((int) Coin.COIN.value));
+                tx = new Transaction(params);
+                // Funded from an output the wallet knows nothing about
+                tx.addInput(new TransactionInput(params, tx, new byte[0],
+                        new TransactionOutPoint(params, 0, Sha256Hash.of(Integer.toString(i).getBytes()))));
+                tx.addOutput(value, ours);
+                lastReceived = tx;
+            }
+            tx.setUpdateTime(new Date(updateTime));
+            updateTime += TRANSACTION_INTERVAL_MILLIS;
+            wallet.addWalletTransaction(new org.bitcoinj.wallet.WalletTransaction(
+                    org.bitcoinj.wallet.WalletTransaction.Pool.UNSPENT, tx));
+        }
+        return wallet;
+    }
+
+    /**
+     * Network which is never started, and instead returns a wallet provided
+     * up front.
+     */
+    private static class SyntheticNetwork extends Network {
+        private final Wallet syntheticWallet;
+
+        private SyntheticNetwork(final NetworkParameters params, final File directory,
+                final ExecutorService executor, final Wallet wallet) {
+            super(params, directory, executor, new UiUpdateDispatcher(Runnable::run).newQueue(params.getId()),
+                    NO_OP_LISTENER);
+            this.syntheticWallet = wallet;
+        }
+
+        @Override
+        public Wallet wallet() {
+            return syntheticWallet;
+        }
+    }
+
+    private static final NetworkListener NO_OP_LISTENER = new NetworkListener() {
+        @Override
+        public void onWalletRegistered(Network network, Wallet wallet) {
+        }
+
+        @Override
+        public void onTransactionsChanged(Network network, TransactionIndex.Changes changes) {
+        }
+
+        @Override
+        public void onSearchIndexComplete(Network network) {
+        }
+
+        @Override
+        public void onNetworkFailed(Network network, Service.State from, Throwable failure) {
+        }
+    };
+}
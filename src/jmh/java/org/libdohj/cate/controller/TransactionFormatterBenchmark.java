@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import org.libdohj.cate.util.TransactionFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TransactionFormatter#getRelevantOutputs(WalletTransaction)}
+ * across every transaction in a wallet, as the transaction table does when
+ * rendering tooltips and the details dialog. Relevant outputs are cached when
+ * transactions are indexed, so working them out from scratch is measured
+ * separately.
+ *
+ * @author Ross Nicoll
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransactionFormatterBenchmark {
+    @Benchmark
+    public void getRelevantOutputs(final SyntheticWalletState state, final Blackhole blackhole) {
+        for (WalletTransaction wtx : state.transactions) {
+            blackhole.consume(TransactionFormatter.getRelevantOutputs(wtx));
+        }
+    }
+
+    @Benchmark
+    public void computeRelevantOutputs(final SyntheticWalletState state, final Blackhole blackhole) {
+        for (WalletTransaction wtx : state.transactions) {
+            blackhole.consume(RelevantOutputs.of(state.wallet.getTransaction(wtx.getTxId()), state.wallet,
+                    wtx.getBalanceChangeValue() > 0));
+        }
+    }
+}
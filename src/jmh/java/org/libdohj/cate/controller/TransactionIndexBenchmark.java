@@ -0,0 +1,53 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rebuilding the transaction list from a wallet, as done when a
+ * wallet is first loaded (formerly MainController.rebuildTransactions).
+ *
+ * @author Ross Nicoll
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransactionIndexBenchmark {
+    @Benchmark
+    public TransactionIndex rebuild(final SyntheticWalletState state) {
+        final TransactionIndex index = new TransactionIndex(state.network);
+        index.rebuild(state.wallet);
+        return index;
+    }
+
+    @Benchmark
+    public TransactionIndex.Changes reconcileUnchanged(final SyntheticWalletState state) {
+        final TransactionIndex index = new TransactionIndex(state.network);
+        index.reset(state.transactions);
+        return index.reconcile(state.wallet);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures constructing {@link WalletTransaction} rows for every transaction
+ * in a wallet, with and without the display properties a visible table row
+ * would create.
+ *
+ * @author Ross Nicoll
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WalletTransactionBenchmark {
+    @Benchmark
+    public void construct(final SyntheticWalletState state, final Blackhole blackhole) {
+        for (Transaction tx : state.rawTransactions) {
+            blackhole.consume(new WalletTransaction(state.network, tx, Coin.CENT));
+        }
+    }
+
+    @Benchmark
+    public void constructWithProperties(final SyntheticWalletState state, final Blackhole blackhole) {
+        for (Transaction tx : state.rawTransactions) {
+            final WalletTransaction wtx = new WalletTransaction(state.network, tx, Coin.CENT);
+            blackhole.consume(wtx.networkNameProperty().get());
+            blackhole.consume(wtx.dateProperty().get());
+            blackhole.consume(wtx.amountProperty().get());
+            blackhole.consume(wtx.memoProperty().get());
+        }
+    }
+}
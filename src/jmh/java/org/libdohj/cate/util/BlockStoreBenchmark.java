@@ -0,0 +1,153 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.SPVBlockStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares header ingest throughput, and lookup by height, between bitcoinj's
+ * SPVBlockStore and {@link MappedBlockStore}. Headers are a synthetic chain
+ * built against {@link UnitTestParams}, and each invocation writes the whole
+ * chain into a freshly created store.
+ *
+ * @author Ross Nicoll
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BlockStoreBenchmark {
+    private static final int HEADER_COUNT = 2016;
+
+    @Param({"spv", "mapped"})
+    public String storeType;
+
+    private NetworkParameters params;
+    private StoredBlock[] headers;
+    private File directory;
+    private File file;
+    private BlockStore store;
+
+    @Setup(Level.Trial)
+    public void buildChain() throws IOException, BlockStoreException {
+        params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        directory = Files.createTempDirectory("cate-jmh").toFile();
+        file = new File(directory, "bench.spvchain");
+
+        final Address address = LegacyAddress.fromKey(params, new ECKey());
+        final Block genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock prev = new StoredBlock(genesis, genesis.getWork(), 0);
+        headers = new StoredBlock[HEADER_COUNT];
+        for (int i = 0; i < HEADER_COUNT; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(address).cloneAsHeader());
+            headers[i] = prev;
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void openStore() throws BlockStoreException {
+        file.delete();
+        store = "mapped".equals(storeType)
+                ? new MappedBlockStore(params, file, MappedBlockStore.MINIMUM_DEFAULT_CAPACITY)
+                : new SPVBlockStore(params, file, MappedBlockStore.MINIMUM_DEFAULT_CAPACITY, true);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeStore() throws BlockStoreException {
+        store.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() {
+        file.delete();
+        directory.delete();
+    }
+
+    /**
+     * Store each header and advance the chain head to it, as the block chain
+     * does while syncing.
+     */
+    @Benchmark
+    @OperationsPerInvocation(HEADER_COUNT)
+    public StoredBlock ingestHeaders() throws BlockStoreException {
+        for (StoredBlock header : headers) {
+            store.put(header);
+            store.setChainHead(header);
+        }
+        return store.getChainHead();
+    }
+
+    /**
+     * Ingest the chain, then fetch every block by height. For SPVBlockStore
+     * this means walking back from the chain head.
+     */
+    @Benchmark
+    public int ingestThenLookUpByHeight() throws BlockStoreException {
+        ingestHeaders();
+        int found = 0;
+        if (store instanceof MappedBlockStore) {
+            final MappedBlockStore mapped = (MappedBlockStore) store;
+            for (int height = 1; height <= HEADER_COUNT; height++) {
+                if (mapped.getByHeight(height) != null) {
+                    found++;
+                }
+            }
+        } else {
+            for (int height = 1; height <= HEADER_COUNT; height++) {
+                StoredBlock cursor = store.getChainHead();
+                while (cursor != null && cursor.getHeight() > height) {
+                    cursor = cursor.getPrev(store);
+                }
+                if (cursor != null) {
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+}
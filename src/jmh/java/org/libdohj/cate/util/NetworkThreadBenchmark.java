@@ -0,0 +1,140 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.UnitTestParams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares platform and virtual network threads as the number of networks
+ * grows. Each network gets its own {@link NetworkExecutor}, as under
+ * {@link org.libdohj.cate.NetworkManager}, and runs a series of tasks which
+ * block briefly, standing in for wallet and block store I/O.
+ *
+ * The time to complete all tasks is the benchmark score. Peak platform thread
+ * count and growth in resident memory are printed at the end of each trial;
+ * virtual threads are not included in the platform thread count. Virtual
+ * threads need Java 21 or later; on older JVMs both modes use platform
+ * threads.
+ *
+ * @author Ross Nicoll
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NetworkThreadBenchmark {
+    private static final int TASKS_PER_NETWORK = 20;
+    private static final long BLOCKING_MILLIS = 1;
+
+    @Param({"10", "100", "1000"})
+    public int networkCount;
+
+    @Param({"false", "true"})
+    public boolean virtual;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private NetworkParameters params;
+    private List<NetworkExecutor> executors;
+    private long baselineResidentBytes;
+    private int peakPlatformThreads;
+    private long peakResidentGrowthBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        params = UnitTestParams.get();
+    }
+
+    @Setup(Level.Invocation)
+    public void startNetworks() {
+        baselineResidentBytes = ProcessStats.getResidentMemory();
+        executors = new ArrayList<>(networkCount);
+        for (int i = 0; i < networkCount; i++) {
+            executors.add(new NetworkExecutor(new NetworkThreadFactory(new Context(params), virtual)));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopNetworks() throws InterruptedException {
+        for (NetworkExecutor executor : executors) {
+            executor.shutdown();
+        }
+        for (NetworkExecutor executor : executors) {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        System.out.println();
+        System.out.println(networkCount + " networks, " + (virtual ? "virtual" : "platform")
+                + " threads: peak " + peakPlatformThreads + " platform threads, "
+                + (baselineResidentBytes < 0 ? "resident memory unavailable"
+                        : "peak resident memory growth " + (peakResidentGrowthBytes / 1024) + " KiB"));
+    }
+
+    /**
+     * Queue the tasks for every network, then wait for them all to complete.
+     */
+    @Benchmark
+    public long runBlockingTasks() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(networkCount * TASKS_PER_NETWORK);
+        for (NetworkExecutor executor : executors) {
+            for (int task = 0; task < TASKS_PER_NETWORK; task++) {
+                executor.execute(() -> {
+                    try {
+                        Thread.sleep(BLOCKING_MILLIS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                });
+            }
+        }
+
+        // Every network's thread has started by now, so sample while they run
+        peakPlatformThreads = Math.max(peakPlatformThreads, threads.getThreadCount());
+        if (baselineResidentBytes >= 0) {
+            peakResidentGrowthBytes = Math.max(peakResidentGrowthBytes,
+                    ProcessStats.getResidentMemory() - baselineResidentBytes);
+        }
+        done.await();
+        return done.getCount();
+    }
+}
@@ -16,6 +16,7 @@
 package org.libdohj.cate;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.ResourceBundle;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -32,6 +33,7 @@ import org.controlsfx.control.NotificationPane;
 import org.libdohj.cate.controller.MainController;
 import org.libdohj.cate.util.DataDirFactory;
 import org.libdohj.cate.util.NetworkResolver;
+import org.libdohj.cate.util.ProcessStats;
 
 /**
  * CATE: Cross-chain Atomic Trading Engine
@@ -68,9 +70,10 @@ public class CATE extends Application {
 
         root.getStylesheets().add(DEFAULT_STYLESHEET);
         MainController controller = loader.getController();
-        controller.connectTo(NetworkResolver.getParameter("Bitcoin"), dataDir);
-        controller.connectTo(NetworkResolver.getParameter("Litecoin"), dataDir);
-        controller.connectTo(NetworkResolver.getParameter("Dogecoin"), dataDir);
+        controller.connectTo(Arrays.asList(
+                NetworkResolver.getParameter("Bitcoin"),
+                NetworkResolver.getParameter("Litecoin"),
+                NetworkResolver.getParameter("Dogecoin")), dataDir);
 
         NotificationPane notificationPane = new NotificationPane(root);
         controller.setNotificationPane(notificationPane);
@@ -81,6 +84,7 @@ public class CATE extends Application {
         primaryStage.setTitle(resources.getString("application.title"));
         primaryStage.setScene(new Scene(notificationPane, 800, 500));
         primaryStage.show();
+        logger.info("CATE window shown: " + ProcessStats.describe());
     }
 
     @Override
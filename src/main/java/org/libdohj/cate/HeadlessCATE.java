@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import com.google.common.util.concurrent.Service;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.wallet.Wallet;
+import org.libdohj.cate.controller.TransactionIndex;
+import org.libdohj.cate.util.DataDirFactory;
+import org.libdohj.cate.util.NetworkResolver;
+import org.libdohj.cate.util.ProcessStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the CATE networks without a user interface, and without loading the
+ * JavaFX toolkit. Networks to start are given by name on the command line
+ * (i.e. "Bitcoin" "Dogecoin test"), defaulting to the same networks as the
+ * desktop application.
+ *
+ * @author Ross Nicoll
+ */
+public class HeadlessCATE implements NetworkListener {
+    private static final String APPLICATION_NAME_FOLDER = "CATE";
+    private static final String[] DEFAULT_NETWORKS = {"Bitcoin", "Litecoin", "Dogecoin"};
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 3;
+
+    private static final Logger logger = LoggerFactory.getLogger(HeadlessCATE.class);
+
+    /**
+     * Stands in for the UI thread, so property updates from every network are
+     * applied one at a time, in order, as they would be on the JavaFX thread.
+     */
+    private final ExecutorService updateExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "Headless CATE updates");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final NetworkManager networkManager = new NetworkManager(updateExecutor);
+    private final CountDownLatch walletsRegistered;
+
+    public HeadlessCATE(final int networkCount) {
+        this.walletsRegistered = new CountDownLatch(networkCount);
+        networkManager.addListener(this);
+    }
+
+    public NetworkManager getNetworkManager() {
+        return networkManager;
+    }
+
+    @Override
+    public void onWalletRegistered(final Network network, final Wallet wallet) {
+        logger.info("Network " + network + " wallet loaded with "
+                + network.getTransactionIndex().size() + " transactions");
+        walletsRegistered.countDown();
+    }
+
+    @Override
+    public void onTransactionsChanged(final Network network, final TransactionIndex.Changes changes) {
+        logger.debug("Network " + network + " transactions changed: " + changes.getAdded().size()
+                + " added, " + changes.getUpdatedTo().size() + " updated, "
+                + changes.getRemoved().size() + " removed");
+    }
+
+    @Override
+    public void onSearchIndexComplete(final Network network) {
+        logger.debug("Network " + network + " search index complete");
+    }
+
+    @Override
+    public void onNetworkFailed(final Network network, final Service.State from, final Throwable failure) {
+        logger.error("Network " + network + " failed", failure);
+        walletsRegistered.countDown();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final File dataDir;
+        try {
+            dataDir = new DataDirFactory(APPLICATION_NAME_FOLDER).get();
+        } catch (DataDirFactory.UnableToDetermineDataDirException ex) {
+            logger.error("Unable to determine path to data directory", ex);
+            System.exit(1);
+            return;
+        }
+
+        final List<NetworkParameters> params = new ArrayList<>();
+        for (String name : args.length > 0 ? args : DEFAULT_NETWORKS) {
+            final NetworkParameters networkParams = NetworkResolver.getParameter(name);
+            if (networkParams == null) {
+                logger.error("Unknown network \"" + name + "\", expected one of " + NetworkResolver.getNames());
+                System.exit(1);
+                return;
+            }
+            params.add(networkParams);
+        }
+
+        final HeadlessCATE cate = new HeadlessCATE(params.size());
+        final NetworkManager networkManager = cate.getNetworkManager();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            networkManager.stopAsync();
+            networkManager.awaitTerminated(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            cate.updateExecutor.shutdown();
+        }, "Headless CATE shutdown"));
+
+        networkManager.connectTo(params, dataDir);
+        cate.walletsRegistered.await();
+        logger.info("Headless CATE started without JavaFX toolkit: " + ProcessStats.describe());
+
+        // Networks run on their own threads; wait until we're told to shut down.
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import com.google.common.util.concurrent.Service;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.libdohj.cate.util.PrometheusFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Embedded HTTP server exposing network metrics for monitoring, primarily for
+ * headless instances. Serves:
+ *
+ * <ul>
+ * <li>"/metrics" - each network's service state and metrics, in Prometheus
+ * text format.</li>
+ * <li>"/health" - a JSON summary of each network's service state, with status
+ * 200 if all networks are running, or 503 otherwise.</li>
+ * </ul>
+ *
+ * Requests are served on the server's own thread, from values which are safe
+ * to read from any thread, so a scrape never queues work on, or waits for,
+ * the network executors.
+ *
+ * @author Ross Nicoll
+ */
+public class MetricsEndpoint {
+    /**
+     * Port to serve metrics on. Zero (the default) disables the endpoint. Set
+     * with the "cate.metricsPort" system property.
+     */
+    public static final int PORT = Integer.getInteger("cate.metricsPort", 0);
+    /**
+     * Address to bind to, defaulting to the loopback address so metrics are
+     * not exposed beyond the local machine. Set with the
+     * "cate.metricsAddress" system property.
+     */
+    public static final String ADDRESS = System.getProperty("cate.metricsAddress", "127.0.0.1");
+
+    private static final String PREFIX = "cate_";
+
+    private final Logger logger = LoggerFactory.getLogger(MetricsEndpoint.class);
+    private final Supplier<List<Network>> networks;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Create the endpoint, binding to the given address. Call
+     * {@link #start()} to begin serving requests.
+     *
+     * @param networks supplier of the networks to report on.
+     * @param address address to bind to.
+     * @throws IOException if the server cannot bind to the address.
+     */
+    public MetricsEndpoint(final Supplier<List<Network>> networks, final InetSocketAddress address)
+            throws IOException {
+        this.networks = networks;
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "Metrics endpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", exchange -> respond(exchange, HttpURLConnection.HTTP_OK,
+                PrometheusFormat.CONTENT_TYPE, formatMetrics()));
+        server.createContext("/health", this::handleHealth);
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Serving metrics on http://" + getAddress().getHostString() + ":"
+                + getAddress().getPort() + "/metrics");
+    }
+
+    /**
+     * Stop the server, allowing up to a second for requests in progress to
+     * complete.
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /**
+     * @return the address the server is bound to, including the actual port
+     * if it was bound to port zero.
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Build the metrics page.
+     */
+    String formatMetrics() {
+        final PrometheusFormat page = new PrometheusFormat(PREFIX);
+        for (Network network : networks.get()) {
+            final String id = network.getParams().getId();
+            final Service.State current = network.state();
+            for (Service.State state : Service.State.values()) {
+                final Map<String, String> labels = new LinkedHashMap<>();
+                labels.put(PrometheusFormat.NETWORK_LABEL, id);
+                labels.put("state", state.name());
+                page.add("network_state", labels, state == current ? 1 : 0);
+            }
+            page.addAll(id, network.getMetrics().snapshot());
+        }
+        return page.toString();
+    }
+
+    private void handleHealth(final HttpExchange exchange) throws IOException {
+        final List<Network> current = networks.get();
+        final StringBuilder json = new StringBuilder("{\"networks\":{");
+        boolean healthy = !current.isEmpty();
+        boolean first = true;
+        for (Network network : current) {
+            final Service.State state = network.state();
+            healthy &= state == Service.State.RUNNING;
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(network.getParams().getId()).append("\":\"")
+                    .append(state.name()).append('"');
+        }
+        json.append("},\"status\":\"").append(healthy ? "UP" : "DOWN").append("\"}\n");
+        respond(exchange, healthy ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_UNAVAILABLE,
+                "application/json", json.toString());
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String contentType,
+            final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().put("Content-Type", Collections.singletonList(contentType));
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        exchange.close();
+    }
+}
@@ -18,28 +18,46 @@ package org.libdohj.cate;
 import com.google.common.util.concurrent.Service;
 import javafx.beans.property.*;
 import org.bitcoinj.core.*;
+import org.bitcoinj.core.listeners.DownloadProgressTracker;
 import org.bitcoinj.crypto.KeyCrypter;
 import org.bitcoinj.crypto.KeyCrypterException;
 import org.bitcoinj.crypto.KeyCrypterScrypt;
 import org.bitcoinj.kits.WalletAppKit;
+import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.bitcoinj.wallet.SendRequest;
 import org.bitcoinj.wallet.Wallet;
 import org.bouncycastle.crypto.params.KeyParameter;
-import org.libdohj.cate.controller.MainController;
+import org.libdohj.cate.controller.TransactionDetails;
+import org.libdohj.cate.controller.TransactionIndex;
+import org.libdohj.cate.controller.TransactionIndexFile;
+import org.libdohj.cate.controller.WalletTransaction;
+import org.libdohj.cate.util.CheckpointResources;
+import org.libdohj.cate.util.FilteredBlockStats;
+import org.libdohj.cate.util.MappedBlockStore;
+import org.libdohj.cate.util.NetworkExecutor;
+import org.libdohj.cate.util.NetworkMetrics;
+import org.libdohj.cate.util.RateLimitedTask;
+import org.libdohj.cate.util.Sha256HashSet;
+import org.libdohj.cate.util.StartupTimeline;
+import org.libdohj.cate.util.UiUpdateQueue;
+import org.libdohj.cate.util.UnlockSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
-import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * Class which manages incoming events and knows which network they apply to. In
  * a conventional software wallet, this would be part of the main UI, however
@@ -53,9 +71,49 @@ import java.util.function.Consumer;
  * once work is completed.
  */
 public class Network extends WalletAppKit {
+    /**
+     * Default minimum time between recalculations of the estimated balance.
+     * Can be overridden with the "cate.balanceUpdateIntervalMillis" system
+     * property.
+     */
+    public static final long DEFAULT_BALANCE_UPDATE_INTERVAL_MILLIS
+            = Long.getLong("cate.balanceUpdateIntervalMillis", 250);
+    /**
+     * Default time a wallet stays unlocked for after the user enters their
+     * password. Can be overridden with the "cate.unlockTimeoutMillis" system
+     * property; zero disables caching the key entirely, so the password is
+     * asked for on every send.
+     */
+    public static final long DEFAULT_UNLOCK_TIMEOUT_MILLIS
+            = Long.getLong("cate.unlockTimeoutMillis", TimeUnit.MINUTES.toMillis(5));
+    /**
+     * Maximum number of recipients in a single batch payout transaction, to
+     * keep transactions well within standard size limits. Can be overridden
+     * with the "cate.maxPayoutsPerTransaction" system property.
+     */
+    public static final int MAX_PAYOUTS_PER_TRANSACTION
+            = Integer.getInteger("cate.maxPayoutsPerTransaction", 250);
+    /**
+     * Block store to use for SPV headers, either "spv" for bitcoinj's default
+     * SPVBlockStore, or "mapped" for {@link MappedBlockStore}. Set with the
+     * "cate.blockStore" system property.
+     */
+    public static final String BLOCK_STORE_TYPE = System.getProperty("cate.blockStore", "spv");
+    /**
+     * Number of headers held by a mapped block store. Set with the
+     * "cate.blockStoreCapacity" system property; zero (the default) sizes the
+     * store for each network's block interval, see
+     * {@link MappedBlockStore#defaultCapacity(NetworkParameters)}.
+     */
+    public static final int MAPPED_BLOCK_STORE_CAPACITY
+            = Integer.getInteger("cate.blockStoreCapacity", 0);
+    /**
+     * Number of transactions added to the search index per task after the
+     * transaction index is restored or rebuilt.
+     */
+    private static final int SEARCH_INDEX_BATCH_SIZE = 1000;
 
-    private final MainController controller;
-    private final BiConsumer<Network, Wallet> registerWalletHook;
+    private final NetworkListener listener;
     private final Logger logger = LoggerFactory.getLogger(Network.class);
 
     private final SimpleStringProperty estimatedBalance = new SimpleStringProperty("");
@@ -68,118 +126,572 @@ public class Network extends WalletAppKit {
     private final SimpleIntegerProperty peerCount = new SimpleIntegerProperty(0);
 
     /**
-     * Transactions we've been notified of, either via onCoinsSent() or
+     * IDs of transactions we've been notified of, either via onCoinsSent() or
      * onCoinsReceived(). Used so we can filter out transactions that fire both
      * events (i.e. a transaction that pays out, but also has change paying back
-     * to us).
+     * to us). Only the hashes are held, so the transactions themselves are not
+     * kept alive by this. Guarded by itself.
+     */
+    private final Sha256HashSet seenTransactions = new Sha256HashSet();
+    /**
+     * Time ordered store of the transactions in this network's wallet, from
+     * which the UI's combined transaction list is merged.
      */
-    private final Set<Transaction> seenTransactions = new HashSet<>();
+    private final TransactionIndex transactionIndex = new TransactionIndex(this);
+    /**
+     * Derived AES key for an encrypted wallet, held for a short time after the
+     * user unlocks it so repeated sends don't each need scrypt run again.
+     */
+    private final UnlockSession unlockSession = new UnlockSession(DEFAULT_UNLOCK_TIMEOUT_MILLIS);
 
     private final Executor networkExecutor;
+    /**
+     * Queues changes to the wallet the user is waiting on ahead of other
+     * work, where the network executor supports priorities.
+     */
+    private final Executor walletExecutor;
+    /**
+     * Queues refreshes of derived state behind other work, where the network
+     * executor supports priorities.
+     */
+    private final Executor refreshExecutor;
+    /**
+     * Queues wallet listener events and broadcast completions, without ever
+     * blocking bitcoinj while it holds the wallet lock, or its broadcast
+     * thread.
+     */
+    private final Executor eventExecutor;
+    /**
+     * Queue through which all changes to the JavaFX properties above are made,
+     * so they are applied on the UI thread.
+     */
+    private final UiUpdateQueue uiUpdates;
     private final MonetaryFormat monetaryFormatter;
+    /**
+     * Recalculates the estimated balance on the network executor, coalescing
+     * bursts of wallet events into a single recalculation.
+     */
+    private final RateLimitedTask balanceUpdater;
+    /**
+     * Reconciles the transaction index against the wallet on the network
+     * executor, coalescing bursts of wallet change events.
+     */
+    private final RateLimitedTask transactionRefresher;
+    private final StartupTimeline startupTimeline = new StartupTimeline();
+    private final FilteredBlockStats filteredBlockStats = new FilteredBlockStats();
+    /**
+     * Rates, latencies and queue depths for this network, readable from any
+     * thread.
+     */
+    private final NetworkMetrics metrics = new NetworkMetrics();
+    /*
+     * Copies of the values behind the JavaFX properties, which may only be
+     * read on the UI thread, for metrics to read from any thread.
+     */
+    private volatile int chainHeight;
+    private volatile int blocksLeftValue;
+    private volatile int peerCountValue;
+    private volatile long balanceValue;
+    private SyncProfile syncProfile = SyncProfile.fromSystemProperties();
+    /**
+     * Signs, commits and broadcasts payments, without holding the network
+     * executor while broadcasts propagate.
+     */
+    private final SendPipeline sendPipeline;
+    private final PayoutBatcher payoutBatcher;
+    /**
+     * Further wallets sharing this network's chain and peer group.
+     */
+    private final WalletPool walletPool;
 
     /**
      * @param params the network parameters for this network.
-     * @param controller the controller to push events back to.
      * @param directory the data directory to store the wallet and SPV chain in.
      * @param networkExecutor executor for tasks belonging to this network.
      * Must exist after the lifecycle of network (so that service status listeners
      * can be attached to it).
+     * @param uiUpdates queue for updates to be applied on the UI thread.
+     * @param listener listener to push events back to.
      */
-    public Network(final NetworkParameters params, final MainController controller,
-            final File directory, final Executor networkExecutor,
-            final BiConsumer<Network, Wallet> registerWalletHook) {
+    public Network(final NetworkParameters params, final File directory,
+            final Executor networkExecutor, final UiUpdateQueue uiUpdates,
+            final NetworkListener listener) {
         super(params, directory, "cate_" + params.getId());
-        this.controller = controller;
+        this.listener = listener;
         this.networkExecutor = networkExecutor;
+        this.walletExecutor = NetworkExecutor.withPriority(networkExecutor, NetworkExecutor.Priority.HIGH);
+        this.refreshExecutor = NetworkExecutor.withPriority(networkExecutor, NetworkExecutor.Priority.LOW);
+        this.eventExecutor = NetworkExecutor.forEvents(networkExecutor, NetworkExecutor.Priority.NORMAL);
+        this.uiUpdates = uiUpdates;
         autoStop = false;
-        blockingStartup = true;
-        this.registerWalletHook = registerWalletHook;
+        // Don't hold the service in the starting state until the chain has
+        // synced; the wallet is usable (and shown) as soon as it is loaded,
+        // and sync progress is tracked separately.
+        blockingStartup = false;
+
+        final File chainFile = new File(directory, filePrefix + ".spvchain");
+        discardOtherBlockStore(chainFile);
+        if (!chainFile.exists()) {
+            // New chain, so start from the latest bundled checkpoint before
+            // the wallet's creation, rather than from genesis. Where we have
+            // none, bitcoinj falls back to its own (Bitcoin only).
+            final InputStream checkpoints = CheckpointResources.open(params);
+            if (checkpoints != null) {
+                logger.info("Network " + params.getId() + " syncing from bundled checkpoints");
+                setCheckpoints(checkpoints);
+            }
+        }
+        setDownloadListener(new DownloadProgressTracker() {
+            @Override
+            protected void doneDownload() {
+                if (startupTimeline.mark(StartupTimeline.Phase.SYNCED)) {
+                    logger.info("Network " + params.getId() + " startup timeline: " + startupTimeline);
+                }
+            }
+        });
 
         monetaryFormatter = params.getMonetaryFormat();
+        balanceUpdater = new RateLimitedTask(this::updateEstimatedBalance, refreshExecutor,
+                DEFAULT_BALANCE_UPDATE_INTERVAL_MILLIS);
+        sendPipeline = new SendPipeline(walletExecutor, this::wallet, this::peerGroup, unlockSession::getKey);
+        payoutBatcher = new PayoutBatcher(params, walletExecutor, eventExecutor, sendPipeline,
+                MAX_PAYOUTS_PER_TRANSACTION);
+        transactionRefresher = new RateLimitedTask(this::refreshTransactions, refreshExecutor,
+                DEFAULT_BALANCE_UPDATE_INTERVAL_MILLIS);
+        metrics.gauge(NetworkMetrics.CHAIN_HEIGHT, () -> chainHeight);
+        metrics.gauge(NetworkMetrics.BLOCKS_LEFT, () -> blocksLeftValue);
+        metrics.gauge(NetworkMetrics.PEERS, () -> peerCountValue);
+        metrics.gauge(NetworkMetrics.BALANCE, () -> balanceValue);
+        // The pool outlives the running state, so reads the kit's fields
+        // rather than chain() and friends, which only work while running
+        walletPool = new WalletPool(params, directory, filePrefix, walletExecutor,
+                () -> vChain, () -> vPeerGroup, () -> vWallet, WalletPool.DEFAULT_IDLE_MILLIS);
+        metrics.gauge(NetworkMetrics.LOADED_WALLETS, walletPool::getLoadedCount);
         addListener(new Service.Listener() {
             @Override
             public void running() {
-                estimatedBalance.set(monetaryFormatter.format(wallet().getBalance(Wallet.BalanceType.ESTIMATED)).toString());
+                updateEstimatedBalance();
                 try {
-                    blocks.set(store().getChainHead().getHeight());
+                    chainHeight = store().getChainHead().getHeight();
+                    uiUpdates.set(blocks, chainHeight);
                 } catch (BlockStoreException ex) {
                     logger.error("Error getting current chain head while starting wallet "
                             + params.getId(), ex);
                 }
-                encrypted.set(wallet().isEncrypted());
+                uiUpdates.set(encrypted, wallet().isEncrypted());
             }
 
             @Override
             public void failed(Service.State from, Throwable failure) {
-                controller.onNetworkFailed(Network.this, from, failure);
+                dispatch(() -> listener.onNetworkFailed(Network.this, from, failure));
             }
         }, networkExecutor);
     }
 
     protected void onBlocksDownloadedEventListener(Peer peer, Block block, FilteredBlock filteredBlock, int blocksLeft) {
-        this.blocksLeft.set(blocksLeft);
+        blocksLeftValue = blocksLeft;
+        uiUpdates.set(this.blocksLeft, blocksLeft);
+        metrics.meter(NetworkMetrics.BLOCKS).mark();
+        if (filteredBlock != null) {
+            recordFilteredBlock(filteredBlock);
+        } else {
+            // Header only, from before the fast catch-up time
+            metrics.meter(NetworkMetrics.HEADER_BYTES).mark(Block.HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Record bandwidth and false positives for a filtered block, and have the
+     * sync profile recalculate the filter if false positives are too high.
+     */
+    private void recordFilteredBlock(final FilteredBlock filteredBlock) {
+        final Wallet wallet = wallet();
+        long size = filteredBlock.getMessageSize();
+        int falsePositives = 0;
+        for (Transaction tx : filteredBlock.getAssociatedTransactions().values()) {
+            size += tx.getMessageSize();
+            if (!wallet.isTransactionRelevant(tx)) {
+                falsePositives++;
+            }
+        }
+        filteredBlockStats.recordBlock(size, filteredBlock.getTransactionHashes().size(), falsePositives);
+        metrics.meter(NetworkMetrics.FILTERED_BLOCK_BYTES).mark(size);
+        syncProfile.checkFalsePositiveRate(peerGroup(), chain(), filteredBlockStats);
     }
 
     protected void onChainDownloadStarted(Peer peer, int blocksLeft) {
-        this.blocksLeft.set(blocksLeft);
+        blocksLeftValue = blocksLeft;
+        uiUpdates.set(this.blocksLeft, blocksLeft);
     }
 
     protected void onNewBestBlock(StoredBlock block) throws VerificationException {
-        this.blocks.set(block.getHeight());
+        chainHeight = block.getHeight();
+        uiUpdates.set(this.blocks, block.getHeight());
     }
 
     protected void onPeerConnected(Peer peer, int peerCount) {
-        this.peerCount.set(peerCount);
+        startupTimeline.mark(StartupTimeline.Phase.FIRST_PEER);
+        peerCountValue = peerCount;
+        uiUpdates.set(this.peerCount, peerCount);
     }
 
     protected void onPeerDisconnected(Peer peer, int peerCount) {
-        this.peerCount.set(peerCount);
+        peerCountValue = peerCount;
+        uiUpdates.set(this.peerCount, peerCount);
     }
 
     protected void onCoinsReceived(Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
-        if (seenTransactions.add(tx)) {
-            controller.addTransaction(Network.this, tx, prevBalance, newBalance);
+        if (markSeen(tx)) {
+            addTransaction(wallet, tx);
         }
-        estimatedBalance.set(monetaryFormatter.format(wallet().getBalance(Wallet.BalanceType.ESTIMATED)).toString());
+        balanceUpdater.request();
     }
 
     protected void onCoinsSent(Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
-        if (seenTransactions.add(tx)) {
-            controller.addTransaction(Network.this, tx, prevBalance, newBalance);
+        if (markSeen(tx)) {
+            addTransaction(wallet, tx);
         }
-        estimatedBalance.set(monetaryFormatter.format(wallet().getBalance(Wallet.BalanceType.ESTIMATED)).toString());
+        balanceUpdater.request();
         // TODO: Update the displayed receive address
     }
 
     protected void onReorganize(Wallet wallet) {
-        estimatedBalance.set(monetaryFormatter.format(wallet().getBalance(Wallet.BalanceType.ESTIMATED)).toString());
-        controller.refreshTransactions(Network.this, wallet);
+        balanceUpdater.request();
+        transactionRefresher.request();
     }
 
     protected void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
-        estimatedBalance.set(monetaryFormatter.format(wallet().getBalance(Wallet.BalanceType.ESTIMATED)).toString());
+        if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD) {
+            // Forget transactions which have been double spent or reorganised
+            // out, so that if they are seen again they are treated as new.
+            synchronized (seenTransactions) {
+                seenTransactions.remove(tx.getTxId());
+            }
+            // Take it out of the list now, rather than on the next reconcile
+            addTransaction(wallet, tx);
+        }
+        balanceUpdater.request();
+    }
+
+    /**
+     * Record that we've been notified of a transaction.
+     *
+     * @return true if this is the first notification for the transaction.
+     */
+    private boolean markSeen(final Transaction tx) {
+        synchronized (seenTransactions) {
+            return seenTransactions.add(tx.getTxId());
+        }
     }
 
     protected void onWalletChanged(Wallet wallet) {
-        estimatedBalance.set(monetaryFormatter.format(wallet().getBalance(Wallet.BalanceType.ESTIMATED)).toString());
-        controller.refreshTransactions(Network.this, wallet);
+        balanceUpdater.request();
+        transactionRefresher.request();
+    }
+
+    /**
+     * Update the transaction index with a transaction we've been told about,
+     * adding, updating or removing it as {@link TransactionIndex#isListed}
+     * requires, and pass on any resulting changes.
+     */
+    private void addTransaction(final Wallet wallet, final Transaction tx) {
+        final TransactionIndex.Changes changes = transactionIndex.apply(wallet, Collections.singleton(tx));
+        if (!changes.isEmpty()) {
+            dispatch(() -> listener.onTransactionsChanged(this, changes));
+        }
+    }
+
+    /**
+     * Add a batch of restored or rebuilt transactions to the search index,
+     * queueing another batch behind any other work if more remain, or
+     * telling the listener once the search index is complete.
+     */
+    private void indexPendingTransactions() {
+        if (transactionIndex.indexPending(SEARCH_INDEX_BATCH_SIZE)) {
+            refreshExecutor.execute(this::indexPendingTransactions);
+        } else {
+            dispatch(() -> listener.onSearchIndexComplete(this));
+        }
+    }
+
+    /**
+     * Bring the transaction index back in line with the wallet, for example
+     * after a reorganisation, and pass on any resulting changes.
+     */
+    private void refreshTransactions() {
+        final TransactionIndex.Changes changes = transactionIndex.reconcile(wallet());
+        if (!changes.isEmpty()) {
+            dispatch(() -> listener.onTransactionsChanged(this, changes));
+        }
+    }
+
+    private File getTransactionIndexFile() {
+        return new File(directory, filePrefix + ".txindex");
+    }
+
+    /**
+     * Fill the transaction index from the file saved at last shutdown.
+     *
+     * @return true if the index was restored, false if there is no valid
+     * index file and the index must be rebuilt.
+     */
+    private boolean restoreTransactionIndex(final Wallet wallet) {
+        final File file = getTransactionIndexFile();
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            final TransactionIndexFile saved = TransactionIndexFile.read(file);
+            if (transactionIndex.restore(wallet, store(), saved)) {
+                logger.info("Network " + params.getId() + " restored " + transactionIndex.size()
+                        + " transactions from " + file);
+                return true;
+            }
+            logger.info("Network " + params.getId() + " wallet has gone back or reorganised since " + file
+                    + " was written, rebuilding transaction index");
+        } catch (IOException ex) {
+            logger.warn("Could not read transaction index " + file + ", rebuilding", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Write the transaction index to disk, recording the wallet's last seen
+     * block so the file can be validated when next read.
+     */
+    private void saveTransactionIndex(final Wallet wallet) {
+        final File file = getTransactionIndexFile();
+        try {
+            TransactionIndexFile.of(wallet.getLastBlockSeenHash(), wallet.getLastBlockSeenHeight(),
+                    transactionIndex.snapshot()).write(file);
+        } catch (IOException ex) {
+            logger.warn("Could not write transaction index " + file, ex);
+        }
+    }
+
+    /**
+     * Pass an event on to the network listener, timing how long it takes.
+     */
+    private void dispatch(final Runnable event) {
+        metrics.timer(NetworkMetrics.LISTENER_DISPATCH).time(event);
+    }
+
+    /**
+     * @return mean ping time across connected peers, in milliseconds, or -1
+     * if no connected peer has yet responded to a ping.
+     */
+    private long getMeanPeerPingMillis() {
+        // Read from other threads in any state, so uses the field directly
+        // rather than peerGroup(), which only works while running
+        final PeerGroup peerGroup = vPeerGroup;
+        if (peerGroup == null) {
+            return -1;
+        }
+        long total = 0;
+        int count = 0;
+        for (Peer peer : peerGroup.getConnectedPeers()) {
+            final long ping = peer.getPingTime();
+            // Peers which have never responded report the maximum value
+            if (ping != Long.MAX_VALUE) {
+                total += ping;
+                count++;
+            }
+        }
+        return count == 0 ? -1 : total / count;
+    }
+
+    /**
+     * Recalculate the estimated balance of the wallet. This walks the wallet's
+     * unspent outputs, so is called via {@link #balanceUpdater} rather than
+     * directly from wallet events.
+     */
+    private void updateEstimatedBalance() {
+        final Coin balance = wallet().getBalance(Wallet.BalanceType.ESTIMATED);
+        balanceValue = balance.value;
+        uiUpdates.set(estimatedBalance, monetaryFormatter.format(balance).toString());
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        startupTimeline.mark(StartupTimeline.Phase.STARTING);
+        super.startUp();
+    }
+
+    /**
+     * If the chain file was written by a different type of block store to the
+     * one configured, or a mapped store of a different capacity, delete it.
+     * The headers are then downloaded again, and the wallet replayed, exactly
+     * as if the chain file had been lost.
+     */
+    private void discardOtherBlockStore(final File chainFile) {
+        if (!chainFile.exists()) {
+            return;
+        }
+        final boolean isMapped = MappedBlockStore.isMappedBlockStore(chainFile);
+        if (isMapped != useMappedBlockStore()) {
+            logger.info("Network " + params.getId() + " block store type changed to "
+                    + BLOCK_STORE_TYPE + ", discarding " + chainFile);
+        } else if (isMapped && MappedBlockStore.readCapacity(chainFile) != mappedBlockStoreCapacity()) {
+            logger.info("Network " + params.getId() + " block store capacity changed to "
+                    + mappedBlockStoreCapacity() + ", discarding " + chainFile);
+        } else {
+            return;
+        }
+        if (!chainFile.delete()) {
+            logger.warn("Could not delete " + chainFile);
+        }
+    }
+
+    private int mappedBlockStoreCapacity() {
+        return MAPPED_BLOCK_STORE_CAPACITY > 0
+                ? MAPPED_BLOCK_STORE_CAPACITY
+                : MappedBlockStore.defaultCapacity(params);
+    }
+
+    private static boolean useMappedBlockStore() {
+        return "mapped".equals(BLOCK_STORE_TYPE);
+    }
+
+    /**
+     * The block store is opened immediately after the wallet is loaded, so we
+     * use this to time both phases.
+     */
+    @Override
+    protected BlockStore provideBlockStore(File file) throws BlockStoreException {
+        startupTimeline.mark(StartupTimeline.Phase.WALLET_LOADED);
+        final BlockStore store = useMappedBlockStore()
+                ? new MappedBlockStore(params, file, mappedBlockStoreCapacity())
+                : super.provideBlockStore(file);
+        startupTimeline.mark(StartupTimeline.Phase.STORE_OPENED);
+        return store;
     }
 
     @Override
     protected void onSetupCompleted() {
         peerGroup().setConnectTimeoutMillis(1000);
+        syncProfile.apply(peerGroup(), wallet());
+        metrics.gauge(NetworkMetrics.PEER_PING_MILLIS, this::getMeanPeerPingMillis);
         peerGroup().addBlocksDownloadedEventListener(this::onBlocksDownloadedEventListener);
         peerGroup().addChainDownloadStartedEventListener(this::onChainDownloadStarted);
         peerGroup().addConnectedEventListener(this::onPeerConnected);
         peerGroup().addDisconnectedEventListener(this::onPeerDisconnected);
         chain().addNewBestBlockListener(this::onNewBestBlock);
-        wallet().addChangeEventListener(this::onWalletChanged);
-        wallet().addCoinsReceivedEventListener(this::onCoinsReceived);
-        wallet().addCoinsSentEventListener(this::onCoinsSent);
-        wallet().addReorganizeEventListener(this::onReorganize);
-        wallet().addTransactionConfidenceEventListener(this::onTransactionConfidenceChanged);
-        registerWalletHook.accept(this, this.wallet());
+        // Wallet events update the transaction index, so are handled on the
+        // network thread alongside the index's other work. Peer and chain
+        // events only record progress, so stay on bitcoinj's user thread
+        // rather than queue a task per block during sync.
+        wallet().addChangeEventListener(eventExecutor, this::onWalletChanged);
+        wallet().addCoinsReceivedEventListener(eventExecutor, this::onCoinsReceived);
+        wallet().addCoinsSentEventListener(eventExecutor, this::onCoinsSent);
+        wallet().addReorganizeEventListener(eventExecutor, this::onReorganize);
+        wallet().addTransactionConfidenceEventListener(eventExecutor, this::onTransactionConfidenceChanged);
+        // Where the index saved at last shutdown is still valid, fill the
+        // transaction list from it and reconcile against the wallet afterwards.
+        // Otherwise rebuilding the index is a long running task, so is done
+        // here on the startup thread rather than holding up either the UI or
+        // network thread.
+        final boolean restored = restoreTransactionIndex(wallet());
+        if (!restored) {
+            transactionIndex.rebuild(wallet());
+        }
+        // Searching the list is not needed to show it, so the search index
+        // is filled in the background, behind other work on the network
+        refreshExecutor.execute(this::indexPendingTransactions);
+        walletPool.start();
+        dispatch(() -> listener.onWalletRegistered(this, wallet()));
+        if (restored) {
+            transactionRefresher.request();
+        } else {
+            saveTransactionIndex(wallet());
+        }
+        startupTimeline.mark(StartupTimeline.Phase.SETUP_COMPLETE);
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        unlockSession.lock();
+        walletPool.close();
+        if (vWallet != null) {
+            // Any outstanding changes would only be shown in the UI, which is
+            // going away, so are dropped once applied to the index
+            transactionIndex.reconcile(vWallet);
+            saveTransactionIndex(vWallet);
+        }
+        super.shutDown();
+        logger.info("Network " + params.getId() + " recalculated balance "
+                + balanceUpdater.getRunCount() + " times for "
+                + balanceUpdater.getRequestCount() + " wallet events ("
+                + balanceUpdater.getCoalescedCount() + " coalesced)");
+        logger.info("Network " + params.getId() + " tracked " + getSeenTransactionCount()
+                + " seen transactions in " + getSeenTransactionsFootprint() + " bytes");
+        logger.info("Network " + params.getId() + " received " + filteredBlockStats);
+        logger.info("Network " + params.getId() + " metrics: " + metrics);
+        logger.info("Network " + params.getId() + " sent " + sendPipeline.getAcknowledgedCount()
+                + " of " + sendPipeline.getSubmittedCount() + " payments ("
+                + sendPipeline.getFailedCount() + " failed, "
+                + sendPipeline.getInFlightCount() + " still in flight)");
+    }
+
+    /**
+     * Set the profile used to tune chain sync. Must be called before the
+     * network is started.
+     *
+     * @param syncProfile the profile to use.
+     */
+    public void setSyncProfile(final SyncProfile syncProfile) {
+        checkState(state() == Service.State.NEW, "Cannot call after startup");
+        this.syncProfile = syncProfile;
+    }
+
+    public SyncProfile getSyncProfile() {
+        return syncProfile;
+    }
+
+    /**
+     * @return statistics on filtered blocks received while syncing.
+     */
+    public FilteredBlockStats getFilteredBlockStats() {
+        return filteredBlockStats;
+    }
+
+    /**
+     * @return the metrics registry for this network.
+     */
+    public NetworkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of transactions held for de-duplicating wallet events.
+     */
+    public int getSeenTransactionCount() {
+        synchronized (seenTransactions) {
+            return seenTransactions.size();
+        }
+    }
+
+    /**
+     * @return approximate memory used to de-duplicate wallet events, in bytes.
+     */
+    public long getSeenTransactionsFootprint() {
+        synchronized (seenTransactions) {
+            return seenTransactions.getMemoryFootprint();
+        }
+    }
+
+    /**
+     * @return the times at which this network reached each phase of startup.
+     */
+    public StartupTimeline getStartupTimeline() {
+        return startupTimeline;
+    }
+
+    /**
+     * @return the task which recalculates the estimated balance, for access
+     * to its interval and counters.
+     */
+    public RateLimitedTask getBalanceUpdater() {
+        return balanceUpdater;
     }
 
     public StringProperty getEstimatedBalanceProperty() {
@@ -202,15 +714,66 @@ public class Network extends WalletAppKit {
         return peerCount;
     }
 
+    /**
+     * @return the queue for updates from this network to be applied on the UI
+     * thread.
+     */
+    public UiUpdateQueue getUiUpdates() {
+        return uiUpdates;
+    }
+
+    public TransactionIndex getTransactionIndex() {
+        return transactionIndex;
+    }
+
     public NetworkParameters getParams() {
         return params;
     }
 
     /**
-     * Format a coin amount.
+     * Set the memo on a transaction in the wallet, then replace its row in the
+     * transaction index with one carrying the new memo, in one task on the
+     * network thread. As wallet events run on the same thread, a row rebuilt
+     * from the wallet can never overwrite the edit with the old memo.
+     *
+     * @param txId ID of the transaction.
+     * @param memo the new memo, or null.
+     */
+    public void setMemo(final Sha256Hash txId, final String memo) {
+        this.walletExecutor.execute(() -> {
+            final Wallet wallet = wallet();
+            final Transaction tx = wallet.getTransaction(txId);
+            if (tx != null) {
+                tx.setMemo(memo);
+                final TransactionIndex.Changes changes = transactionIndex.updateMemo(wallet, tx);
+                if (!changes.isEmpty()) {
+                    dispatch(() -> listener.onTransactionsChanged(this, changes));
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue a request to read the details of a transaction from the wallet.
+     * This returns immediately; the details are read on the network thread,
+     * after any memo changes already queued, and passed to the callback on
+     * that thread.
+     *
+     * @param wtx the transaction to read the details of.
+     * @param onLoaded callback with the details.
+     */
+    public void loadTransactionDetails(final WalletTransaction wtx, final Consumer<TransactionDetails> onLoaded) {
+        this.walletExecutor.execute(() -> {
+            final Wallet wallet = wallet();
+            onLoaded.accept(TransactionDetails.of(wtx, wallet.getTransaction(wtx.getTxId()), wallet));
+        });
+    }
+
+    /**
+     * Format a coin amount. Safe to call from any thread.
      */
     public CharSequence format(Coin amount) {
-        return params.getMonetaryFormat().format(amount);
+        return monetaryFormatter.format(amount);
     }
 
     /**
@@ -229,7 +792,7 @@ public class Network extends WalletAppKit {
             Consumer<Object> onWalletNotEncrypted,
             Consumer<KeyCrypterException> onCrypterError,
             final long timeout, final TimeUnit timeUnit) {
-        this.networkExecutor.execute((Runnable) () -> {
+        this.walletExecutor.execute(() -> {
             final Wallet wallet = wallet();
             if (!wallet.isEncrypted()) {
                 onCrypterError.accept(null);
@@ -241,7 +804,8 @@ public class Network extends WalletAppKit {
                 } else {
                     try {
                         wallet().decrypt(keyCrypter.deriveKey(password));
-                        encrypted.set(false);
+                        unlockSession.lock();
+                        uiUpdates.set(encrypted, false);
                         onSuccess.accept(null);
                     } catch (KeyCrypterException ex) {
                         onCrypterError.accept(ex);
@@ -267,7 +831,7 @@ public class Network extends WalletAppKit {
             Consumer<Object> onWalletEncrypted,
             Consumer<KeyCrypterException> onCrypterError,
             final long timeout, final TimeUnit timeUnit) {
-        this.networkExecutor.execute((Runnable) () -> {
+        this.walletExecutor.execute(() -> {
             final Wallet wallet = wallet();
             if (wallet.isEncrypted()) {
                 onWalletEncrypted.accept(null);
@@ -280,7 +844,8 @@ public class Network extends WalletAppKit {
 
                 try {
                     wallet().encrypt(keyCrypter, keyCrypter.deriveKey(password));
-                    encrypted.set(true);
+                    unlockSession.lock();
+                    uiUpdates.set(encrypted, true);
                     onSuccess.accept(null);
                 } catch (KeyCrypterException ex) {
                     onCrypterError.accept(ex);
@@ -291,41 +856,80 @@ public class Network extends WalletAppKit {
 
     /**
      * Queue a request to send coins to the given address. This returns
-     * immediately, as the actual work is done on the network thread in order to
-     * ensure the thread context is correct.
+     * immediately; the transaction is signed and committed on the network
+     * thread, in order to ensure the thread context is correct, and then
+     * broadcast without holding up further work on that thread.
      *
      * @param req the send coin request to pass to the wallet
-     * @param onSuccess handler to be called on success
+     * @param onSuccess handler to be called once peers have acknowledged the
+     * transaction
      * @param onInsufficientFunds handler to be called if the user lacks
      * sufficient funds
      * @param onWalletLocked handler to be called if the wallet is locked and
-     * no suitable key is provided in the send request
+     * no suitable key is provided in the send request, nor held by an unlocked
+     * session
      * @param timeout timeout on queueing the work request
      * @param timeUnit time unit for the timeout
+     * @return the pending payment, for tracking its progress.
      */
-    public void sendCoins(final SendRequest req,
-            final Consumer<Wallet.SendResult> onSuccess,
+    public SendPipeline.PendingSend sendCoins(final SendRequest req,
+            final Consumer<Transaction> onSuccess,
             final Consumer<Coin> onInsufficientFunds,
             final Consumer<KeyCrypterException> onWalletLocked,
             final long timeout, final TimeUnit timeUnit) {
-        this.networkExecutor.execute((Runnable) () -> {
-            // TODO: Calculate fees in a network-appropriate way
-            final Wallet.SendResult result;
-            try {
-                result = Network.this.wallet().sendCoins(req);
-                onSuccess.accept(result);
-            } catch (InsufficientMoneyException ex) {
-                onInsufficientFunds.accept(ex.missing);
-            } catch (KeyCrypterException ex) {
-                onWalletLocked.accept(ex);
-            } finally {
-                // Wipe the key to ensure if it's stored in insecure memory, it's all
-                // zeroes on disk
-                if (null != req.aesKey) {
-                    Arrays.fill(req.aesKey.getKey(), (byte) 0);
-                }
+        // TODO: Calculate fees in a network-appropriate way
+        final SendPipeline.PendingSend pending = sendPipeline.submit(req);
+        pending.getBroadcast().whenCompleteAsync((tx, failure) -> {
+            if (failure == null) {
+                onSuccess.accept(tx);
+            } else if (failure instanceof InsufficientMoneyException) {
+                onInsufficientFunds.accept(((InsufficientMoneyException) failure).missing);
+            } else if (failure instanceof KeyCrypterException) {
+                onWalletLocked.accept((KeyCrypterException) failure);
+            } else {
+                // Pass anything unexpected on as it would be if thrown
+                // directly from a network task
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, failure);
             }
-        });
+        }, eventExecutor);
+        return pending;
+    }
+
+    /**
+     * Queue a batch payout to many recipients. Payouts are grouped into as few
+     * transactions as possible (up to {@link #MAX_PAYOUTS_PER_TRANSACTION}
+     * recipients each), so coin selection, fees and broadcast are paid once
+     * per transaction rather than once per recipient. This returns
+     * immediately, as the actual work is done on the network thread.
+     *
+     * If the wallet is encrypted it must already be unlocked. If a
+     * transaction cannot be built (for example due to insufficient funds),
+     * transactions already sent stand, and the remaining payouts are listed
+     * as unsent in the report.
+     *
+     * @param payouts recipients and amounts to pay.
+     * @param memo memo to attach to each transaction, may be null.
+     * @param onComplete callback with the batch report, once all transactions
+     * have finished broadcasting, or failed to.
+     */
+    public void sendPayouts(final List<Payout> payouts, final String memo,
+            final Consumer<PayoutReport> onComplete) {
+        payoutBatcher.send(payouts, memo, onComplete);
+    }
+
+    /**
+     * @return the pool of further wallets on this network's chain.
+     */
+    public WalletPool getWalletPool() {
+        return walletPool;
+    }
+
+    /**
+     * @return the pipeline payments from this network are sent through.
+     */
+    public SendPipeline getSendPipeline() {
+        return sendPipeline;
     }
 
     /**
@@ -345,6 +949,71 @@ public class Network extends WalletAppKit {
         }
     }
 
+    /**
+     * Queue a request to unlock this wallet for sending, deriving the AES key
+     * from the password on the network thread. The key is passed to the
+     * callback, to be set on the send request it was asked for, and a copy is
+     * also cached until the unlock timeout expires or {@link #lock()} is
+     * called. The cache is only a convenience; see {@link #getUnlockedKey()}.
+     *
+     * @param password password to derive the key from.
+     * @param onUnlocked callback with the derived key, which it then owns
+     * and should wipe (sending does so once the transaction is signed).
+     * @param onCrypterError callback if the password is incorrect, or the key
+     * cannot be derived.
+     */
+    public void unlock(final String password, final Consumer<KeyParameter> onUnlocked,
+            final Consumer<KeyCrypterException> onCrypterError) {
+        this.walletExecutor.execute(() -> {
+            final KeyParameter aesKey;
+            try {
+                aesKey = getKeyFromPassword(password);
+            } catch (KeyCrypterException ex) {
+                onCrypterError.accept(ex);
+                return;
+            } catch (IllegalStateException ex) {
+                // Wallet has never been encrypted, so there's no key to derive
+                onCrypterError.accept(new KeyCrypterException(ex.getMessage(), ex));
+                return;
+            }
+            if (!wallet().checkAESKey(aesKey)) {
+                Arrays.fill(aesKey.getKey(), (byte) 0);
+                onCrypterError.accept(new KeyCrypterException("Password is incorrect."));
+                return;
+            }
+            unlockSession.unlock(aesKey);
+            onUnlocked.accept(aesKey);
+        });
+    }
+
+    /**
+     * Lock the wallet, wiping any key held from a previous unlock.
+     */
+    public void lock() {
+        unlockSession.lock();
+    }
+
+    /**
+     * Get a copy of the key cached from a previous unlock, if it has not yet
+     * expired. As the cache may expire at any time, callers which get a key
+     * should set it on their send request, rather than rely on it still being
+     * cached when the request is signed.
+     *
+     * @return a new copy of the key, which the caller should wipe, or null if
+     * none is cached.
+     */
+    public KeyParameter getUnlockedKey() {
+        return unlockSession.getKey();
+    }
+
+    /**
+     * @return true if the wallet has been unlocked and the unlock has not yet
+     * expired or been locked.
+     */
+    public boolean isUnlocked() {
+        return unlockSession.isUnlocked();
+    }
+
     @Override
     public String toString() {
         return params.getId();
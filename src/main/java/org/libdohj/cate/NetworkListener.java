@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import com.google.common.util.concurrent.Service;
+import org.bitcoinj.wallet.Wallet;
+import org.libdohj.cate.controller.TransactionIndex;
+
+/**
+ * Receives events from a {@link Network} which are of interest to whatever is
+ * driving it, be that the JavaFX UI or a headless process. Events are called
+ * on network threads, so implementations must hand off to their own thread
+ * where needed.
+ *
+ * @author Ross Nicoll
+ */
+public interface NetworkListener {
+    /**
+     * Called once a network's wallet has loaded and its transaction index has
+     * been built. Called on the network's startup thread.
+     *
+     * @param network the network the wallet belongs to.
+     * @param wallet the wallet which has loaded.
+     */
+    void onWalletRegistered(Network network, Wallet wallet);
+
+    /**
+     * Called when transactions in a network's index have been added, updated
+     * or removed.
+     *
+     * @param network the network the transactions belong to.
+     * @param changes the changes made to the network's transaction index.
+     */
+    void onTransactionsChanged(Network network, TransactionIndex.Changes changes);
+
+    /**
+     * Called once the background pass filling a network's search index after
+     * startup has finished, so searches made before then can be repeated to
+     * find every match.
+     *
+     * @param network the network whose search index is complete.
+     */
+    void onSearchIndexComplete(Network network);
+
+    /**
+     * Called when a network service fails.
+     *
+     * @param network the network which failed.
+     * @param from the state the service was in before it failed.
+     * @param failure the cause of the failure.
+     */
+    void onNetworkFailed(Network network, Service.State from, Throwable failure);
+}
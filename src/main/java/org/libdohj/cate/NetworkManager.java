@@ -0,0 +1,295 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import com.google.common.util.concurrent.Service;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.wallet.Wallet;
+import org.libdohj.cate.controller.TransactionIndex;
+import org.libdohj.cate.util.NetworkExecutor;
+import org.libdohj.cate.util.NetworkThreadFactory;
+import org.libdohj.cate.util.UiUpdateDispatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Core of CATE which creates, runs and stops the individual networks, without
+ * starting the JavaFX toolkit. The JavaFX UI and the headless entry point are
+ * both clients of this, registering a {@link NetworkListener} for the events
+ * they care about.
+ *
+ * This is not free of JavaFX entirely; networks still expose their state as
+ * javafx.beans properties, so javafx-base must be on the classpath. Nothing
+ * here needs javafx-graphics or a display, and property updates are applied
+ * through the executor given to the constructor rather than the FX thread.
+ *
+ * @author Ross Nicoll
+ */
+public class NetworkManager {
+    /**
+     * Interval at which to log each network's metrics, in seconds. Zero (the
+     * default) disables periodic logging; metrics are still logged when each
+     * network shuts down. Set with the "cate.metricsLogIntervalSeconds"
+     * system property.
+     */
+    public static final long METRICS_LOG_INTERVAL_SECONDS = Long.getLong("cate.metricsLogIntervalSeconds", 0);
+
+    private final Logger logger = LoggerFactory.getLogger(NetworkManager.class);
+
+    private final List<Network> networks = new CopyOnWriteArrayList<>();
+    private final Map<Network, ExecutorService> executors = new ConcurrentHashMap<>();
+    private final List<NetworkListener> listeners = new CopyOnWriteArrayList<>();
+    private final NetworkListener dispatcher = new ListenerDispatcher();
+    private final UiUpdateDispatcher uiUpdateDispatcher;
+    private final BooleanSupplier onUiThread;
+    private final ScheduledExecutorService metricsLogger;
+    private final MetricsEndpoint metricsEndpoint;
+    private Function<Network, Thread.UncaughtExceptionHandler> uncaughtExceptionHandlerFactory
+            = network -> (thread, thrwbl) -> logger.error("Internal error from network "
+                    + network.getParams().getId(), thrwbl);
+
+    /**
+     * @param uiExecutor executor to apply updates to network properties on.
+     * For JavaFX this is a {@link org.libdohj.cate.util.PulseExecutor}, which
+     * applies them once per frame; where there is no UI thread, use a single
+     * threaded executor, so updates from different networks are never
+     * applied at the same time.
+     */
+    public NetworkManager(final Executor uiExecutor) {
+        this(uiExecutor, () -> false);
+    }
+
+    /**
+     * @param uiExecutor executor to apply updates to network properties on.
+     * @param onUiThread true if called on the UI thread, which network
+     * executors then never block when their queue is full. For JavaFX this is
+     * <code>Platform::isFxApplicationThread</code>.
+     */
+    public NetworkManager(final Executor uiExecutor, final BooleanSupplier onUiThread) {
+        this.uiUpdateDispatcher = new UiUpdateDispatcher(uiExecutor);
+        this.onUiThread = onUiThread;
+        if (METRICS_LOG_INTERVAL_SECONDS > 0) {
+            metricsLogger = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "Network metrics logger");
+                thread.setDaemon(true);
+                return thread;
+            });
+            metricsLogger.scheduleAtFixedRate(this::logMetrics, METRICS_LOG_INTERVAL_SECONDS,
+                    METRICS_LOG_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        } else {
+            metricsLogger = null;
+        }
+        metricsEndpoint = MetricsEndpoint.PORT > 0 ? startMetricsEndpoint() : null;
+    }
+
+    /**
+     * Start serving metrics. Failure to do so is logged, but otherwise does
+     * not stop the networks running.
+     *
+     * @return the started endpoint, or null if it could not be started.
+     */
+    private MetricsEndpoint startMetricsEndpoint() {
+        try {
+            final MetricsEndpoint endpoint = new MetricsEndpoint(this::getNetworks,
+                    new InetSocketAddress(MetricsEndpoint.ADDRESS, MetricsEndpoint.PORT));
+            endpoint.start();
+            return endpoint;
+        } catch (IOException ex) {
+            logger.error("Unable to serve metrics on " + MetricsEndpoint.ADDRESS + ":" + MetricsEndpoint.PORT, ex);
+            return null;
+        }
+    }
+
+    private void logMetrics() {
+        networks.forEach(network -> logger.info("Network " + network + " metrics: " + network.getMetrics()));
+    }
+
+    /**
+     * Create a network and its executor, without starting it. This allows
+     * service listeners to be attached before the network starts.
+     *
+     * @param params  network parameters for the network to create.
+     * @param dataDir directory to store data files in.
+     * @return the new network.
+     */
+    public Network createNetwork(final NetworkParameters params, final File dataDir) {
+        final Context context = new Context(params);
+        final NetworkThreadFactory threadFactory = new NetworkThreadFactory(context);
+        final NetworkExecutor executor = new NetworkExecutor(threadFactory, onUiThread);
+        final Network network = new Network(params, dataDir, executor,
+                uiUpdateDispatcher.newQueue(params.getId()), dispatcher);
+        executor.registerMetrics(network.getMetrics());
+
+        threadFactory.setUncaughtExceptionHandler(uncaughtExceptionHandlerFactory.apply(network));
+        executors.put(network, executor);
+        networks.add(network);
+        network.addListener(new Service.Listener() {
+            @Override
+            public void terminated(Service.State from) {
+                uiUpdateDispatcher.removeQueue(network.getUiUpdates());
+            }
+
+            @Override
+            public void failed(Service.State from, Throwable failure) {
+                networks.remove(network);
+                uiUpdateDispatcher.removeQueue(network.getUiUpdates());
+            }
+        }, executor);
+
+        return network;
+    }
+
+    /**
+     * Create and start a network.
+     *
+     * @param params  network parameters for the network to connect to.
+     * @param dataDir directory to store data files in.
+     * @return the network, which will be starting.
+     */
+    public Network connectTo(final NetworkParameters params, final File dataDir) {
+        final Network network = createNetwork(params, dataDir);
+        network.startAsync();
+        return network;
+    }
+
+    /**
+     * Create and start each of the given networks. Networks start concurrently,
+     * each service on its own thread.
+     *
+     * @param params  network parameters for each network to connect to.
+     * @param dataDir directory to store data files in.
+     * @return the networks, in the same order as the parameters.
+     */
+    public List<Network> connectTo(final Collection<NetworkParameters> params, final File dataDir) {
+        final List<Network> started = new ArrayList<>(params.size());
+        for (NetworkParameters networkParams : params) {
+            started.add(connectTo(networkParams, dataDir));
+        }
+        return started;
+    }
+
+    /**
+     * Request all networks stop. Returns immediately.
+     */
+    public void stopAsync() {
+        networks.forEach(network -> {
+            logger.info("Shutting down " + network);
+            network.stopAsync();
+        });
+    }
+
+    /**
+     * Wait for all networks to stop, then shut down their executors.
+     *
+     * @param timeout maximum time to wait for each network.
+     * @param unit    unit of the timeout.
+     */
+    public void awaitTerminated(final long timeout, final TimeUnit unit) {
+        networks.forEach(network -> {
+            try {
+                network.awaitTerminated(timeout, unit);
+            } catch (TimeoutException | IllegalStateException e) {
+                logger.error("Network " + network.getParams().getId() + " failed to shut down");
+            }
+        });
+        executors.values().forEach(ExecutorService::shutdown);
+        if (metricsLogger != null) {
+            metricsLogger.shutdown();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+    }
+
+    public void addListener(final NetworkListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final NetworkListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return all networks which have been created and not failed.
+     */
+    public List<Network> getNetworks() {
+        return Collections.unmodifiableList(networks);
+    }
+
+    /**
+     * @param network the network to get the executor for.
+     * @return the executor for tasks belonging to the network.
+     */
+    public ExecutorService getExecutor(final Network network) {
+        return executors.get(network);
+    }
+
+    /**
+     * Set the factory for uncaught exception handlers for network threads.
+     * Only affects networks created after this is called.
+     *
+     * @param factory function returning a handler for a given network.
+     */
+    public void setUncaughtExceptionHandlerFactory(
+            final Function<Network, Thread.UncaughtExceptionHandler> factory) {
+        this.uncaughtExceptionHandlerFactory = factory;
+    }
+
+    /**
+     * Passes events from networks on to all registered listeners.
+     */
+    private class ListenerDispatcher implements NetworkListener {
+        @Override
+        public void onWalletRegistered(final Network network, final Wallet wallet) {
+            listeners.forEach(listener -> listener.onWalletRegistered(network, wallet));
+        }
+
+        @Override
+        public void onTransactionsChanged(final Network network, final TransactionIndex.Changes changes) {
+            listeners.forEach(listener -> listener.onTransactionsChanged(network, changes));
+        }
+
+        @Override
+        public void onSearchIndexComplete(final Network network) {
+            listeners.forEach(listener -> listener.onSearchIndexComplete(network));
+        }
+
+        @Override
+        public void onNetworkFailed(final Network network, final Service.State from, final Throwable failure) {
+            listeners.forEach(listener -> listener.onNetworkFailed(network, from, failure));
+        }
+    }
+}
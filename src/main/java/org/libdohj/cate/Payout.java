@@ -0,0 +1,47 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+
+/**
+ * A single recipient and amount within a batch payout.
+ *
+ * @author Ross Nicoll
+ */
+public class Payout {
+    private final Address address;
+    private final Coin amount;
+
+    public Payout(final Address address, final Coin amount) {
+        this.address = address;
+        this.amount = amount;
+    }
+
+    public Address getAddress() {
+        return address;
+    }
+
+    public Coin getAmount() {
+        return amount;
+    }
+
+    @Override
+    public String toString() {
+        return address + " " + amount.toPlainString();
+    }
+}
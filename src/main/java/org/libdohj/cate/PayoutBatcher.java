@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.wallet.SendRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Sends batch payouts through a {@link SendPipeline}, grouping them into as
+ * few transactions as possible so coin selection, fees and broadcast are paid
+ * once per transaction rather than once per recipient. See
+ * {@link Network#sendPayouts(List, String, Consumer)}.
+ *
+ * @author Ross Nicoll
+ */
+class PayoutBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(PayoutBatcher.class);
+
+    private final NetworkParameters params;
+    private final Executor walletExecutor;
+    private final Executor callbackExecutor;
+    private final SendPipeline sendPipeline;
+    private final int maxPayoutsPerTransaction;
+
+    /**
+     * @param params network the payouts are sent on.
+     * @param walletExecutor executor all wallet changes are made on.
+     * @param callbackExecutor executor to report completed batches on. This
+     * is handed the report from bitcoinj's broadcast thread, so must not block.
+     * @param sendPipeline pipeline to sign, commit and broadcast through.
+     * @param maxPayoutsPerTransaction maximum recipients in one transaction.
+     */
+    PayoutBatcher(final NetworkParameters params, final Executor walletExecutor,
+            final Executor callbackExecutor, final SendPipeline sendPipeline,
+            final int maxPayoutsPerTransaction) {
+        this.params = params;
+        this.walletExecutor = walletExecutor;
+        this.callbackExecutor = callbackExecutor;
+        this.sendPipeline = sendPipeline;
+        this.maxPayoutsPerTransaction = maxPayoutsPerTransaction;
+    }
+
+    /**
+     * Queue a batch payout. Returns immediately.
+     *
+     * @param payouts recipients and amounts to pay.
+     * @param memo memo to attach to each transaction, may be null.
+     * @param onComplete callback with the batch report, once all transactions
+     * have finished broadcasting, or failed to.
+     */
+    void send(final List<Payout> payouts, final String memo, final Consumer<PayoutReport> onComplete) {
+        walletExecutor.execute(() -> {
+            final PayoutReport report = new PayoutReport(payouts.size(), Context.get().getFeePerKb());
+            final List<CompletableFuture<Transaction>> broadcasts = new ArrayList<>();
+
+            for (int start = 0; start < payouts.size(); start += maxPayoutsPerTransaction) {
+                final List<Payout> batch = payouts.subList(start,
+                        Math.min(payouts.size(), start + maxPayoutsPerTransaction));
+                final Transaction tx = new Transaction(params);
+                batch.forEach(payout -> tx.addOutput(payout.getAmount(), payout.getAddress()));
+
+                final SendRequest req = SendRequest.forTx(tx);
+                req.memo = memo;
+
+                // Build each transaction in turn on this thread, so we stop at
+                // the first which cannot be built
+                final SendPipeline.PendingSend pending = sendPipeline.sendOnWalletThread(req);
+                if (pending.getFailure() != null) {
+                    logger.warn("Network " + params.getId() + " could not build payout transaction for "
+                            + batch.size() + " recipients", pending.getFailure());
+                    report.setFailure(pending.getFailure(), payouts.subList(start, payouts.size()));
+                    break;
+                }
+
+                final Coin fee = req.tx.getFee();
+                final PayoutReport.SentTransaction sent = new PayoutReport.SentTransaction(req.tx.getTxId(),
+                        batch.size(), fee == null ? Coin.ZERO : fee, pending.getBuildMillis());
+                report.addTransaction(sent);
+                broadcasts.add(pending.getBroadcast().whenComplete((result, failure) -> {
+                    if (failure == null) {
+                        sent.setBroadcastMillis(pending.getBroadcastMillis());
+                    } else {
+                        logger.error("Network " + params.getId() + " failed to broadcast payout transaction "
+                                + sent.getTxId(), failure);
+                    }
+                }));
+            }
+
+            CompletableFuture.allOf(broadcasts.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((v, t) -> {
+                logger.info("Network " + params.getId() + " batch payout: " + report);
+                onComplete.accept(report);
+            }, callbackExecutor);
+        });
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a batch payout: the transactions sent, their fees and timings,
+ * and any payouts which could not be sent.
+ *
+ * Fee savings are an estimate, comparing the fees actually paid against
+ * sending each payout as its own transaction with one input and a change
+ * output, at the same fee rate.
+ *
+ * @author Ross Nicoll
+ */
+public class PayoutReport {
+    /**
+     * Approximate size in bytes of a transaction paying a single recipient:
+     * one P2PKH input, a payment and a change output, plus version, counts
+     * and lock time.
+     */
+    public static final int SINGLE_PAYOUT_TX_SIZE = 10 + 148 + 2 * 34;
+
+    private final List<SentTransaction> transactions = new ArrayList<>();
+    private final List<Payout> unsent = new ArrayList<>();
+    private final int payoutCount;
+    private final Coin feePerKb;
+    private Throwable failure;
+
+    PayoutReport(final int payoutCount, final Coin feePerKb) {
+        this.payoutCount = payoutCount;
+        this.feePerKb = feePerKb;
+    }
+
+    synchronized void addTransaction(final SentTransaction tx) {
+        transactions.add(tx);
+    }
+
+    synchronized void setFailure(final Throwable failure, final List<Payout> unsent) {
+        this.failure = failure;
+        this.unsent.addAll(unsent);
+    }
+
+    /**
+     * @return the transactions sent, in the order they were built.
+     */
+    public synchronized List<SentTransaction> getTransactions() {
+        return Collections.unmodifiableList(new ArrayList<>(transactions));
+    }
+
+    /**
+     * @return payouts which were not sent because of an earlier failure.
+     */
+    public synchronized List<Payout> getUnsent() {
+        return Collections.unmodifiableList(new ArrayList<>(unsent));
+    }
+
+    /**
+     * @return the error which stopped the batch, or null if all payouts were
+     * sent.
+     */
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return total number of payouts requested.
+     */
+    public int getPayoutCount() {
+        return payoutCount;
+    }
+
+    /**
+     * @return the total fees paid across all transactions sent.
+     */
+    public synchronized Coin getTotalFee() {
+        Coin total = Coin.ZERO;
+        for (SentTransaction tx : transactions) {
+            total = total.add(tx.getFee());
+        }
+        return total;
+    }
+
+    /**
+     * @return estimated fees which would have been paid sending each of the
+     * sent payouts as a separate transaction.
+     */
+    public synchronized Coin getEstimatedUnbatchedFee() {
+        int sent = 0;
+        for (SentTransaction tx : transactions) {
+            sent += tx.getPayoutCount();
+        }
+        return feePerKb.multiply((long) sent * SINGLE_PAYOUT_TX_SIZE).divide(1000);
+    }
+
+    /**
+     * @return estimated fee saved by batching, which may be negative for
+     * very small batches.
+     */
+    public Coin getEstimatedFeeSaving() {
+        return getEstimatedUnbatchedFee().subtract(getTotalFee());
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(payoutCount).append(" payouts in ")
+                .append(transactions.size()).append(" transactions, fee ")
+                .append(getTotalFee().toPlainString()).append(" (estimated saving ")
+                .append(getEstimatedFeeSaving().toPlainString()).append(")");
+        for (SentTransaction tx : transactions) {
+            builder.append("; ").append(tx);
+        }
+        if (failure != null) {
+            builder.append("; failed with ").append(unsent.size())
+                    .append(" unsent: ").append(failure);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A single transaction sent as part of a batch.
+     */
+    public static class SentTransaction {
+        private final Sha256Hash txId;
+        private final int payoutCount;
+        private final Coin fee;
+        private final long buildMillis;
+        private volatile long broadcastMillis = -1;
+
+        SentTransaction(final Sha256Hash txId, final int payoutCount, final Coin fee,
+                final long buildMillis) {
+            this.txId = txId;
+            this.payoutCount = payoutCount;
+            this.fee = fee;
+            this.buildMillis = buildMillis;
+        }
+
+        void setBroadcastMillis(final long broadcastMillis) {
+            this.broadcastMillis = broadcastMillis;
+        }
+
+        public Sha256Hash getTxId() {
+            return txId;
+        }
+
+        public int getPayoutCount() {
+            return payoutCount;
+        }
+
+        public Coin getFee() {
+            return fee;
+        }
+
+        /**
+         * @return time taken to select coins, sign and commit the transaction,
+         * in milliseconds.
+         */
+        public long getBuildMillis() {
+            return buildMillis;
+        }
+
+        /**
+         * @return time from handing the transaction to the peer group until
+         * the broadcast completed, in milliseconds, or -1 if it did not
+         * complete.
+         */
+        public long getBroadcastMillis() {
+            return broadcastMillis;
+        }
+
+        @Override
+        public String toString() {
+            return txId + ": " + payoutCount + " payouts, fee " + fee.toPlainString()
+                    + ", built in " + buildMillis + "ms, broadcast in "
+                    + (broadcastMillis < 0 ? "-" : broadcastMillis + "ms");
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcaster;
+import org.bitcoinj.crypto.KeyCrypterException;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends payments in stages: signing and committing to the wallet on the
+ * wallet's executor, then broadcasting to peers without holding that
+ * executor. Many payments can therefore be awaiting peer acknowledgement at
+ * once, while wallet work (confidence and balance updates) carries on.
+ *
+ * Signing and commit run back to back within a single task, so a second
+ * payment cannot select coins already chosen for the first before they are
+ * marked spent.
+ *
+ * @author Ross Nicoll
+ */
+public class SendPipeline {
+    private final Executor walletExecutor;
+    private final Supplier<Wallet> wallet;
+    private final Supplier<TransactionBroadcaster> broadcaster;
+    private final Supplier<KeyParameter> keySource;
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong submitted = new AtomicLong(0);
+    private final AtomicLong acknowledged = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+
+    /**
+     * @param walletExecutor executor all wallet changes are made on.
+     * @param wallet source of the wallet to send from.
+     * @param broadcaster source of the broadcaster to announce transactions
+     * with.
+     * @param keySource fallback source of the AES key for encrypted wallets,
+     * where the send request does not include one. Callers should set the key
+     * on the request where they can, as this may have nothing to give by the
+     * time the request is signed. Must return a copy, as the key is wiped once
+     * signing is complete.
+     */
+    public SendPipeline(final Executor walletExecutor, final Supplier<Wallet> wallet,
+            final Supplier<TransactionBroadcaster> broadcaster, final Supplier<KeyParameter> keySource) {
+        this.walletExecutor = walletExecutor;
+        this.wallet = wallet;
+        this.broadcaster = broadcaster;
+        this.keySource = keySource;
+    }
+
+    /**
+     * Queue a payment to be signed, committed and broadcast. Returns
+     * immediately.
+     *
+     * @param req the send request to complete.
+     * @return the pending payment, with futures for each stage.
+     */
+    public PendingSend submit(final SendRequest req) {
+        final PendingSend pending = new PendingSend(req);
+        submitted.incrementAndGet();
+        inFlight.incrementAndGet();
+        walletExecutor.execute(() -> send(pending));
+        return pending;
+    }
+
+    /**
+     * Sign, commit and start broadcasting a payment immediately. Must be
+     * called on the wallet executor. Returns once the transaction is committed
+     * (or has failed), without waiting for the broadcast.
+     *
+     * @param req the send request to complete.
+     * @return the pending payment, with futures for each stage.
+     */
+    public PendingSend sendOnWalletThread(final SendRequest req) {
+        final PendingSend pending = new PendingSend(req);
+        submitted.incrementAndGet();
+        inFlight.incrementAndGet();
+        send(pending);
+        return pending;
+    }
+
+    private void send(final PendingSend pending) {
+        final SendRequest req = pending.request;
+        final Wallet wallet = this.wallet.get();
+
+        pending.buildStartNanos = System.nanoTime();
+        try {
+            if (req.aesKey == null && wallet.isEncrypted()) {
+                req.aesKey = keySource.get();
+                if (req.aesKey == null) {
+                    throw new KeyCrypterException("Wallet is locked.");
+                }
+            }
+            wallet.completeTx(req);
+            pending.signed.complete(req.tx);
+            wallet.commitTx(req.tx);
+        } catch (InsufficientMoneyException | RuntimeException ex) {
+            fail(pending, ex);
+            return;
+        } finally {
+            // Wipe the key to ensure if it's stored in insecure memory, it's all
+            // zeroes on disk
+            if (null != req.aesKey) {
+                Arrays.fill(req.aesKey.getKey(), (byte) 0);
+            }
+        }
+        pending.committedNanos = System.nanoTime();
+        pending.committed.complete(req.tx);
+
+        final ListenableFuture<Transaction> broadcast;
+        try {
+            broadcast = broadcaster.get().broadcastTransaction(req.tx).future();
+        } catch (RuntimeException ex) {
+            // The transaction is committed, but never reached peers
+            fail(pending, ex);
+            return;
+        }
+        Futures.addCallback(broadcast, new FutureCallback<Transaction>() {
+            @Override
+            public void onSuccess(Transaction result) {
+                pending.acknowledgedNanos = System.nanoTime();
+                acknowledged.incrementAndGet();
+                inFlight.decrementAndGet();
+                pending.broadcast.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                fail(pending, t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void fail(final PendingSend pending, final Throwable cause) {
+        pending.failure = cause;
+        failed.incrementAndGet();
+        inFlight.decrementAndGet();
+        pending.signed.completeExceptionally(cause);
+        pending.committed.completeExceptionally(cause);
+        pending.broadcast.completeExceptionally(cause);
+    }
+
+    /**
+     * @return number of payments submitted which have neither been
+     * acknowledged by peers nor failed.
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getAcknowledgedCount() {
+        return acknowledged.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * A payment passing through the pipeline. Each stage's future completes
+     * with the transaction once that stage is done, or exceptionally (along
+     * with all later stages) if it fails.
+     */
+    public static class PendingSend {
+        private final SendRequest request;
+        private final CompletableFuture<Transaction> signed = new CompletableFuture<>();
+        private final CompletableFuture<Transaction> committed = new CompletableFuture<>();
+        private final CompletableFuture<Transaction> broadcast = new CompletableFuture<>();
+        private volatile long buildStartNanos;
+        private volatile long committedNanos;
+        private volatile long acknowledgedNanos;
+        private volatile Throwable failure;
+
+        private PendingSend(final SendRequest request) {
+            this.request = request;
+        }
+
+        public SendRequest getRequest() {
+            return request;
+        }
+
+        /**
+         * @return future which completes once coins are selected and the
+         * transaction is signed.
+         */
+        public CompletableFuture<Transaction> getSigned() {
+            return signed;
+        }
+
+        /**
+         * @return future which completes once the transaction is committed to
+         * the wallet.
+         */
+        public CompletableFuture<Transaction> getCommitted() {
+            return committed;
+        }
+
+        /**
+         * @return future which completes once peers have acknowledged the
+         * transaction.
+         */
+        public CompletableFuture<Transaction> getBroadcast() {
+            return broadcast;
+        }
+
+        /**
+         * @return the error which stopped this payment, or null if it has not
+         * failed.
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return time taken to sign and commit the transaction, in
+         * milliseconds, or -1 if not yet committed.
+         */
+        public long getBuildMillis() {
+            return committed.isDone() && !committed.isCompletedExceptionally()
+                    ? TimeUnit.NANOSECONDS.toMillis(committedNanos - buildStartNanos)
+                    : -1;
+        }
+
+        /**
+         * @return time from commit until peers acknowledged the transaction,
+         * in milliseconds, or -1 if not yet acknowledged.
+         */
+        public long getBroadcastMillis() {
+            return broadcast.isDone() && !broadcast.isCompletedExceptionally()
+                    ? TimeUnit.NANOSECONDS.toMillis(acknowledgedNanos - committedNanos)
+                    : -1;
+        }
+    }
+}
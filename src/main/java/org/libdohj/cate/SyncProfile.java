@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.wallet.Wallet;
+import org.libdohj.cate.util.FilteredBlockStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings for how a network syncs the chain: how far back to download full
+ * (filtered) blocks from, the bloom filter false positive rate to request
+ * from peers, and when to recalculate the filter as its observed false
+ * positive rate drifts upwards.
+ *
+ * Defaults come from system properties, so they can be tuned without a
+ * rebuild:
+ * <ul>
+ * <li>"cate.bloomFalsePositiveRate" - target false positive rate.</li>
+ * <li>"cate.bloomRecalculateFactor" - recalculate the filter once the observed
+ * rate exceeds the target by this factor.</li>
+ * <li>"cate.bloomRecalculateMinBlocks" - minimum filtered blocks between
+ * recalculations.</li>
+ * <li>"cate.catchupSlackSeconds" - how long before the wallet's earliest key
+ * to start downloading filtered blocks.</li>
+ * </ul>
+ *
+ * A profile holds settings only; the state of filter recalculation is kept
+ * in each network's {@link FilteredBlockStats}, so one profile can be shared.
+ *
+ * @author Ross Nicoll
+ */
+public class SyncProfile {
+    /** Same as bitcoinj's PeerGroup default. */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.00001;
+    /** Half of bitcoinj's own threshold, so we refresh the filter first. */
+    public static final double DEFAULT_RECALCULATE_FACTOR = 5.0;
+    public static final int DEFAULT_RECALCULATE_MIN_BLOCKS = 100;
+    /**
+     * Slack bitcoinj's PeerGroup always allows for clock drift. Slack can be
+     * widened beyond this, but not narrowed.
+     */
+    public static final long BITCOINJ_CATCHUP_SLACK_SECONDS = TimeUnit.DAYS.toSeconds(7);
+    public static final long DEFAULT_CATCHUP_SLACK_SECONDS = BITCOINJ_CATCHUP_SLACK_SECONDS;
+
+    private final Logger logger = LoggerFactory.getLogger(SyncProfile.class);
+
+    private final double falsePositiveRate;
+    private final double recalculateFactor;
+    private final int recalculateMinBlocks;
+    private final long catchupSlackSeconds;
+
+    public SyncProfile(final double falsePositiveRate, final double recalculateFactor,
+            final int recalculateMinBlocks, final long catchupSlackSeconds) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.recalculateFactor = recalculateFactor;
+        this.recalculateMinBlocks = recalculateMinBlocks;
+        this.catchupSlackSeconds = catchupSlackSeconds;
+    }
+
+    /**
+     * @return a profile using the system property overrides described above,
+     * or defaults where they are not set.
+     */
+    public static SyncProfile fromSystemProperties() {
+        return new SyncProfile(
+                getDouble("cate.bloomFalsePositiveRate", DEFAULT_FALSE_POSITIVE_RATE),
+                getDouble("cate.bloomRecalculateFactor", DEFAULT_RECALCULATE_FACTOR),
+                Integer.getInteger("cate.bloomRecalculateMinBlocks", DEFAULT_RECALCULATE_MIN_BLOCKS),
+                Long.getLong("cate.catchupSlackSeconds", DEFAULT_CATCHUP_SLACK_SECONDS));
+    }
+
+    private static double getDouble(final String property, final double defaultValue) {
+        final String value = System.getProperty(property);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Apply the profile to a peer group, once the wallet has been added to
+     * it.
+     *
+     * PeerGroup recalculates the fast catch-up time from its filter providers
+     * whenever the filter changes, overwriting any time set directly. The
+     * slack is therefore applied through a filter provider of its own, which
+     * adds no elements to the filter but reports an earliest key time early
+     * enough to widen bitcoinj's slack to ours.
+     *
+     * @param peerGroup the peer group to configure.
+     * @param wallet the wallet being synced.
+     */
+    public void apply(final PeerGroup peerGroup, final Wallet wallet) {
+        peerGroup.setBloomFilterFalsePositiveRate(falsePositiveRate);
+        if (catchupSlackSeconds > BITCOINJ_CATCHUP_SLACK_SECONDS) {
+            peerGroup.addPeerFilterProvider(new CatchupSlackProvider(wallet,
+                    catchupSlackSeconds - BITCOINJ_CATCHUP_SLACK_SECONDS));
+        } else if (catchupSlackSeconds < BITCOINJ_CATCHUP_SLACK_SECONDS) {
+            logger.warn("Catch-up slack of " + catchupSlackSeconds + "s is below bitcoinj's fixed "
+                    + BITCOINJ_CATCHUP_SLACK_SECONDS + "s, which applies instead");
+        }
+        logger.info("Sync profile applied: wallet birthday " + wallet.getEarliestKeyCreationTime()
+                + ", " + this);
+    }
+
+    /**
+     * Check the chain's observed false positive rate after a filtered block,
+     * and recalculate the filter if it has drifted too far above the target.
+     *
+     * @param peerGroup the peer group to recalculate filters on.
+     * @param chain the chain tracking false positives.
+     * @param stats filtered block statistics, updated with any recalculation.
+     * @return true if the filter is being recalculated.
+     */
+    public boolean checkFalsePositiveRate(final PeerGroup peerGroup,
+            final AbstractBlockChain chain, final FilteredBlockStats stats) {
+        final long blocksAtLast = stats.getBlocksAtLastRecalculation();
+        if (stats.getBlockCount() - blocksAtLast < recalculateMinBlocks) {
+            return false;
+        }
+        final double observed = chain.getFalsePositiveRate();
+        if (observed <= falsePositiveRate * recalculateFactor) {
+            return false;
+        }
+        if (!stats.recordRecalculation(blocksAtLast)) {
+            // Another block got there first
+            return false;
+        }
+        logger.info("Observed false positive rate " + observed + " exceeds target "
+                + falsePositiveRate + ", recalculating bloom filter");
+        chain.resetFalsePositiveEstimate();
+        peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+        return true;
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    public double getRecalculateFactor() {
+        return recalculateFactor;
+    }
+
+    public int getRecalculateMinBlocks() {
+        return recalculateMinBlocks;
+    }
+
+    public long getCatchupSlackSeconds() {
+        return catchupSlackSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "false positive rate " + falsePositiveRate + ", recalculate at "
+                + recalculateFactor + "x after " + recalculateMinBlocks + " blocks, catch-up slack "
+                + catchupSlackSeconds + "s";
+    }
+
+    /**
+     * Filter provider which matches nothing, but reports the wallet's
+     * earliest key time less extra slack, so PeerGroup starts downloading
+     * filtered blocks that much earlier.
+     */
+    static class CatchupSlackProvider implements PeerFilterProvider {
+        private final Wallet wallet;
+        private final long extraSlackSeconds;
+
+        CatchupSlackProvider(final Wallet wallet, final long extraSlackSeconds) {
+            this.wallet = wallet;
+            this.extraSlackSeconds = extraSlackSeconds;
+        }
+
+        @Override
+        public long getEarliestKeyCreationTime() {
+            final long birthday = wallet.getEarliestKeyCreationTime();
+            return birthday > 0
+                    ? Math.max(0, birthday - extraSlackSeconds)
+                    : Long.MAX_VALUE;
+        }
+
+        @Override
+        public void beginBloomFilterCalculation() {
+        }
+
+        @Override
+        public int getBloomFilterElementCount() {
+            return 0;
+        }
+
+        @Override
+        public BloomFilter getBloomFilter(final int size, final double falsePositiveRate, final long nTweak) {
+            // Must match the other providers' filters to be merged with them
+            return new BloomFilter(size, falsePositiveRate, nTweak);
+        }
+
+        @Override
+        public boolean isRequiringUpdateAllBloomFilter() {
+            return false;
+        }
+
+        @Override
+        public void endBloomFilterCalculation() {
+        }
+    }
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Set of additional wallets sharing a network's block chain and peer group,
+ * so many wallets (i.e. one per customer) can be run on one chain without a
+ * WalletAppKit each. Wallets are loaded from disk when first opened, and
+ * unloaded again once idle, so memory use and bloom filter size grow with the
+ * wallets in use rather than all wallets on disk.
+ *
+ * An unloaded wallet does not see new blocks. When it is loaded again behind
+ * the chain head, bitcoinj rolls the chain back to the wallet's last seen
+ * block and the blocks since are downloaded again. Wallets already past that
+ * point are detached from the chain for the replay, and reattached as it
+ * reaches the last block they saw, so they never see a block twice. A wallet
+ * further behind than the block store reaches is refused, as the blocks it
+ * missed cannot be replayed to it.
+ *
+ * Wallet files are named "&lt;prefix&gt;_&lt;name&gt;.wallet" in the network's
+ * data directory. All methods are thread safe.
+ *
+ * @author Ross Nicoll
+ */
+public class WalletPool {
+    /**
+     * Default time a wallet may go unopened before it is unloaded. Can be
+     * overridden with the "cate.walletIdleMillis" system property; zero
+     * disables unloading.
+     */
+    public static final long DEFAULT_IDLE_MILLIS
+            = Long.getLong("cate.walletIdleMillis", TimeUnit.MINUTES.toMillis(10));
+
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final String WALLET_SUFFIX = ".wallet";
+    private static final long AUTOSAVE_DELAY_MILLIS = 5000;
+
+    private static final ScheduledExecutorService SHARED_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "Wallet pool idle timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Logger logger = LoggerFactory.getLogger(WalletPool.class);
+    private final NetworkParameters params;
+    private final File directory;
+    private final String filePrefix;
+    private final Executor walletExecutor;
+    private final Supplier<AbstractBlockChain> chain;
+    private final Supplier<PeerGroup> peerGroup;
+    private final Supplier<Wallet> mainWallet;
+    private final long idleMillis;
+    private final NewBestBlockListener replayListener = this::onNewBestBlock;
+
+    /** Loaded wallets by name. Guarded by this. */
+    private final Map<String, PooledWallet> loaded = new HashMap<>();
+    /**
+     * Wallets (including the network's own wallet) taken off the chain while
+     * it replays blocks they have already seen. Guarded by this.
+     */
+    private final List<Wallet> detached = new ArrayList<>();
+    /**
+     * True between detaching wallets for a replay and the chain being rolled
+     * back, during which new blocks must not reattach them. Guarded by this.
+     */
+    private boolean rollbackPending;
+    private ScheduledFuture<?> idleSweep;
+
+    /**
+     * @param params network parameters for the wallets.
+     * @param directory directory wallet files are kept in.
+     * @param filePrefix prefix of the network's files, wallet files are
+     * named after this.
+     * @param walletExecutor executor to load and unload wallets on.
+     * @param chain supplier of the network's block chain.
+     * @param peerGroup supplier of the network's peer group.
+     * @param mainWallet supplier of the network's own wallet, which is never
+     * unloaded but may be detached from the chain during a replay.
+     * @param idleMillis time a wallet may go unopened before it is unloaded,
+     * or zero to never unload wallets.
+     */
+    public WalletPool(final NetworkParameters params, final File directory, final String filePrefix,
+            final Executor walletExecutor, final Supplier<AbstractBlockChain> chain,
+            final Supplier<PeerGroup> peerGroup, final Supplier<Wallet> mainWallet, final long idleMillis) {
+        this.params = params;
+        this.directory = directory;
+        this.filePrefix = filePrefix;
+        this.walletExecutor = walletExecutor;
+        this.chain = chain;
+        this.peerGroup = peerGroup;
+        this.mainWallet = mainWallet;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Start watching the chain, and unloading idle wallets. Called once the
+     * network's chain and peer group are set up.
+     */
+    public synchronized void start() {
+        final AbstractBlockChain blockChain = chain.get();
+        blockChain.addNewBestBlockListener(Threading.SAME_THREAD, replayListener);
+        // The network's own wallet is ahead of the chain if it was saved
+        // while waiting on a replay, so waits for the chain to catch up
+        final Wallet main = mainWallet.get();
+        if (isAhead(blockChain, main)) {
+            blockChain.removeWallet(main);
+            detached.add(main);
+            logger.info("Network " + params.getId() + " wallet is ahead of chain at "
+                    + blockChain.getBestChainHeight() + ", waiting for it to reach "
+                    + main.getLastBlockSeenHeight());
+        }
+        if (idleMillis > 0) {
+            final long interval = Math.max(1000, idleMillis / 4);
+            idleSweep = SHARED_TIMER.scheduleWithFixedDelay(
+                    () -> walletExecutor.execute(this::unloadIdle), interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get a wallet, loading it from disk if it is not already loaded. The
+     * wallet stays loaded until it has not been opened for the idle time.
+     *
+     * @param name name of the wallet.
+     * @return a future for the loaded wallet, which fails if the wallet does
+     * not exist, cannot be read or has missed blocks which can no longer be
+     * replayed to it.
+     */
+    public CompletableFuture<Wallet> open(final String name) {
+        checkName(name);
+        final PooledWallet pooled = touch(name);
+        if (pooled != null) {
+            return CompletableFuture.completedFuture(pooled.wallet);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            final PooledWallet existing = touch(name);
+            if (existing != null) {
+                return existing.wallet;
+            }
+            final File file = getFile(name);
+            if (!file.exists()) {
+                throw new IllegalArgumentException("No wallet named \"" + name + "\"");
+            }
+            try {
+                return attach(name, Wallet.loadFromFile(file)).wallet;
+            } catch (UnreadableWalletException ex) {
+                throw new IllegalStateException("Unable to read wallet \"" + name + "\"", ex);
+            }
+        }, walletExecutor);
+    }
+
+    /**
+     * Create and load a new, empty wallet.
+     *
+     * @param name name of the wallet.
+     * @return a future for the new wallet, which fails if a wallet of that
+     * name already exists.
+     */
+    public CompletableFuture<Wallet> create(final String name) {
+        checkName(name);
+        return CompletableFuture.supplyAsync(() -> {
+            final File file = getFile(name);
+            if (file.exists()) {
+                throw new IllegalArgumentException("Wallet \"" + name + "\" already exists");
+            }
+            final Wallet wallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+            try {
+                wallet.saveToFile(file);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Unable to save wallet \"" + name + "\"", ex);
+            }
+            return attach(name, wallet).wallet;
+        }, walletExecutor);
+    }
+
+    /**
+     * @return names of all wallets on disk, whether loaded or not, sorted.
+     */
+    public List<String> list() {
+        final TreeSet<String> names = new TreeSet<>();
+        final String start = filePrefix + "_";
+        final File[] files = directory.listFiles((dir, file) -> file.startsWith(start)
+                && file.endsWith(WALLET_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                names.add(name.substring(start.length(), name.length() - WALLET_SUFFIX.length()));
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    public synchronized boolean isLoaded(final String name) {
+        return loaded.containsKey(name);
+    }
+
+    public synchronized int getLoadedCount() {
+        return loaded.size();
+    }
+
+    /**
+     * @return the number of wallets waiting for the chain to replay up to
+     * the last block they saw.
+     */
+    public synchronized int getDetachedCount() {
+        return detached.size();
+    }
+
+    /**
+     * Unload a wallet, saving it to disk. Does nothing if the wallet is not
+     * loaded.
+     *
+     * @param name name of the wallet.
+     * @return a future which completes once the wallet is unloaded.
+     */
+    public CompletableFuture<Void> unload(final String name) {
+        return CompletableFuture.runAsync(() -> {
+            final PooledWallet pooled;
+            synchronized (this) {
+                pooled = loaded.remove(name);
+            }
+            if (pooled != null) {
+                detach(pooled);
+            }
+        }, walletExecutor);
+    }
+
+    /**
+     * Unload every wallet, and stop watching the chain. Called from the
+     * network's shutdown, while the chain and peer group are still running.
+     */
+    public void close() {
+        final List<PooledWallet> all;
+        synchronized (this) {
+            if (idleSweep != null) {
+                idleSweep.cancel(false);
+                idleSweep = null;
+            }
+            chain.get().removeNewBestBlockListener(replayListener);
+            all = new ArrayList<>(loaded.values());
+            loaded.clear();
+            // If the network's own wallet was waiting on a replay, it has
+            // seen blocks the chain has not yet replayed, so is saved ahead
+            // of the chain; start() holds it back again on next startup
+            detached.remove(mainWallet.get());
+        }
+        all.forEach(this::detach);
+    }
+
+    /**
+     * Unload wallets which have not been opened for the idle time. Runs on
+     * the wallet executor.
+     */
+    void unloadIdle() {
+        final long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        final List<PooledWallet> idle = new ArrayList<>();
+        synchronized (this) {
+            loaded.values().removeIf(pooled -> {
+                if (pooled.lastOpenedNanos - cutoff < 0) {
+                    idle.add(pooled);
+                    return true;
+                }
+                return false;
+            });
+        }
+        for (PooledWallet pooled : idle) {
+            logger.info("Network " + params.getId() + " unloading idle wallet " + pooled.name);
+            detach(pooled);
+        }
+    }
+
+    /**
+     * Mark a loaded wallet as opened now.
+     *
+     * @return the wallet, or null if it is not loaded.
+     */
+    private synchronized PooledWallet touch(final String name) {
+        final PooledWallet pooled = loaded.get(name);
+        if (pooled != null) {
+            pooled.lastOpenedNanos = System.nanoTime();
+        }
+        return pooled;
+    }
+
+    /**
+     * Add a wallet to the peer group and chain. If the wallet is behind the
+     * chain, the chain is rolled back so the wallet can catch up, detaching
+     * any wallets which have already seen those blocks. If the wallet is ahead
+     * of the chain, because the chain is replaying for another wallet, it is
+     * detached until the chain reaches it.
+     *
+     * @throws IllegalStateException if the wallet is behind the chain and the
+     * blocks it missed are no longer in the block store.
+     */
+    private PooledWallet attach(final String name, final Wallet wallet) {
+        final AbstractBlockChain blockChain = chain.get();
+        final PooledWallet pooled = new PooledWallet(name, wallet);
+        final int walletHeight = wallet.getLastBlockSeenHeight();
+        final boolean replay;
+        final boolean waiting;
+
+        synchronized (this) {
+            // Read under our lock, so if the chain reaches a waiting wallet's
+            // last block after this, onNewBestBlock() finds it detached
+            final int chainHeight = blockChain.getBestChainHeight();
+            replay = walletHeight > 0 && walletHeight < chainHeight;
+            waiting = isAhead(blockChain, wallet);
+            if (replay) {
+                if (!canRollBackTo(blockChain.getBlockStore(), walletHeight, wallet.getLastBlockSeenHash())) {
+                    // Moving the wallet up to the chain head would silently
+                    // lose any transactions in the blocks it missed
+                    throw new IllegalStateException("Wallet \"" + name + "\" last saw block " + walletHeight
+                            + ", which is no longer in the block store; it must be restored from its seed");
+                }
+                final List<Wallet> ahead = new ArrayList<>();
+                ahead.add(mainWallet.get());
+                loaded.values().forEach(other -> ahead.add(other.wallet));
+                for (Wallet other : ahead) {
+                    if (!detached.contains(other) && other.getLastBlockSeenHeight() > walletHeight) {
+                        blockChain.removeWallet(other);
+                        detached.add(other);
+                    }
+                }
+                rollbackPending = true;
+                logger.info("Network " + params.getId() + " replaying chain from " + walletHeight
+                        + " for wallet " + name + ", " + detached.size() + " wallets waiting");
+            } else if (waiting) {
+                detached.add(wallet);
+                logger.info("Network " + params.getId() + " wallet " + name + " waiting for replay to reach "
+                        + walletHeight);
+            }
+            loaded.put(name, pooled);
+        }
+
+        wallet.autosaveToFile(getFile(name), AUTOSAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS, null);
+        peerGroup.get().addWallet(wallet);
+        if (!waiting) {
+            // bitcoinj rolls the chain back when adding a wallet behind it.
+            // This takes the chain's lock, so must be done without holding
+            // ours, as the chain holds its lock while calling onNewBestBlock().
+            try {
+                blockChain.addWallet(wallet);
+            } finally {
+                synchronized (this) {
+                    rollbackPending = false;
+                }
+            }
+        }
+
+        if (replay) {
+            final Peer downloadPeer = peerGroup.get().getDownloadPeer();
+            if (downloadPeer != null) {
+                downloadPeer.startBlockChainDownload();
+            }
+        }
+        return pooled;
+    }
+
+    /**
+     * @return true if the wallet has seen blocks past the chain head, and so
+     * must not be given blocks until the chain reaches the last it saw.
+     */
+    private static boolean isAhead(final AbstractBlockChain blockChain, final Wallet wallet) {
+        return wallet.getLastBlockSeenHeight() > blockChain.getBestChainHeight();
+    }
+
+    /**
+     * Check the block store still holds the best chain back to the given
+     * height, and that the block there is the one the wallet last saw.
+     */
+    private boolean canRollBackTo(final BlockStore store, final int height, final Sha256Hash expected) {
+        try {
+            StoredBlock cursor = store.getChainHead();
+            while (cursor != null && cursor.getHeight() > height) {
+                cursor = cursor.getPrev(store);
+            }
+            return cursor != null && cursor.getHeader().getHash().equals(expected);
+        } catch (BlockStoreException ex) {
+            logger.warn("Network " + params.getId() + " error walking back block store", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Remove a wallet from the chain and peer group, and save it.
+     */
+    private void detach(final PooledWallet pooled) {
+        final Wallet wallet = pooled.wallet;
+        synchronized (this) {
+            if (!detached.remove(wallet)) {
+                chain.get().removeWallet(wallet);
+            }
+        }
+        peerGroup.get().removeWallet(wallet);
+        wallet.shutdownAutosaveAndWait();
+        try {
+            wallet.saveToFile(getFile(pooled.name));
+        } catch (IOException ex) {
+            logger.error("Network " + params.getId() + " unable to save wallet " + pooled.name, ex);
+        }
+    }
+
+    /**
+     * Called on the chain's thread as each block becomes the best block,
+     * before the next is processed. Reattaches detached wallets once the
+     * chain reaches the last block they saw.
+     */
+    private synchronized void onNewBestBlock(final StoredBlock block) {
+        if (detached.isEmpty() || rollbackPending) {
+            return;
+        }
+        final Sha256Hash hash = block.getHeader().getHash();
+        detached.removeIf(wallet -> {
+            final boolean caughtUp = hash.equals(wallet.getLastBlockSeenHash());
+            if (!caughtUp && block.getHeight() < wallet.getLastBlockSeenHeight()) {
+                return false;
+            }
+            if (!caughtUp) {
+                // The block the wallet last saw has been reorganised away
+                logger.warn("Network " + params.getId() + " reattaching wallet at height "
+                        + block.getHeight() + " after its last seen block was reorganised away");
+            }
+            chain.get().addWallet(wallet);
+            return true;
+        });
+        if (detached.isEmpty()) {
+            logger.info("Network " + params.getId() + " chain replay complete at " + block.getHeight());
+        }
+    }
+
+    private File getFile(final String name) {
+        return new File(directory, filePrefix + "_" + name + WALLET_SUFFIX);
+    }
+
+    private static void checkName(final String name) {
+        if (!NAME_PATTERN.matcher(name).matches()) {
+            throw new IllegalArgumentException("Wallet names must be 1-64 letters, digits, '-' or '_'");
+        }
+    }
+
+    /**
+     * A loaded wallet and when it was last opened.
+     */
+    private static class PooledWallet {
+        private final String name;
+        private final Wallet wallet;
+        private volatile long lastOpenedNanos = System.nanoTime();
+
+        private PooledWallet(final String name, final Wallet wallet) {
+            this.name = name;
+            this.wallet = wallet;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import org.libdohj.cate.util.NetworkResolver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Filtered and sorted view over the combined transaction list, as shown in the
+ * transaction table. Sorting compares the update time and balance change held
+ * on each {@link WalletTransaction}, rather than the formatted strings shown.
+ *
+ * The combined list is already in time order, and an index by balance change
+ * is kept alongside it, so sorting by either is a single filtered pass rather
+ * than a sort. After that, transactions added to or removed from the combined
+ * list are placed in or taken out of the view by binary search, and checked
+ * against any search individually, so the view is only rebuilt when the
+ * query, search or sort order changes.
+ *
+ * All methods MUST be called on the UI thread.
+ *
+ * @author Ross Nicoll
+ */
+class FilteredTransactionList {
+    /**
+     * Above this many additions and removals in one change, rebuilding the
+     * view is cheaper than placing each transaction individually.
+     */
+    private static final int BULK_REBUILD_THRESHOLD = 64;
+
+    /**
+     * Largest balance change first, with ties broken by time so the order is
+     * total.
+     */
+    static final Comparator<WalletTransaction> LARGEST_FIRST = (a, b) -> {
+        final int result = Long.compare(b.getBalanceChangeValue(), a.getBalanceChangeValue());
+        return result != 0
+                ? result
+                : TransactionIndex.NEWEST_FIRST.compare(a, b);
+    };
+
+    /**
+     * Columns the view can be sorted by.
+     */
+    enum SortKey {
+        DATE(TransactionIndex.NEWEST_FIRST),
+        AMOUNT(LARGEST_FIRST),
+        NETWORK(Comparator.comparing((WalletTransaction wtx) -> NetworkResolver.getName(wtx.getParams()))
+                .thenComparing(TransactionIndex.NEWEST_FIRST)),
+        MEMO(Comparator.comparing(WalletTransaction::getMemo,
+                Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER))
+                .thenComparing(TransactionIndex.NEWEST_FIRST));
+
+        private final Comparator<WalletTransaction> descending;
+
+        SortKey(final Comparator<WalletTransaction> descending) {
+            this.descending = descending;
+        }
+
+        Comparator<WalletTransaction> getComparator(final boolean ascending) {
+            return ascending ? descending.reversed() : descending;
+        }
+    }
+
+    private final ObservableList<WalletTransaction> source;
+    private final NavigableSet<WalletTransaction> byAmount = new TreeSet<>(LARGEST_FIRST);
+    private final ObservableList<WalletTransaction> visible = FXCollections.observableArrayList();
+    private TransactionQuery query = TransactionQuery.ALL;
+    /**
+     * Transactions found by the search field, or null if there is no search.
+     */
+    private Set<WalletTransaction> searchResults = null;
+    /**
+     * Checks whether transactions added to the source match the search.
+     */
+    private Predicate<WalletTransaction> searchMatcher = null;
+    private SortKey sortKey = SortKey.DATE;
+    private boolean ascending = false;
+    private Comparator<WalletTransaction> order = SortKey.DATE.getComparator(false);
+
+    /**
+     * @param source the combined transaction list, in
+     * {@link TransactionIndex#NEWEST_FIRST} order.
+     */
+    FilteredTransactionList(final ObservableList<WalletTransaction> source) {
+        this.source = source;
+        byAmount.addAll(source);
+        source.addListener(this::onSourceChanged);
+        rebuild();
+    }
+
+    /**
+     * @return the transactions to display.
+     */
+    ObservableList<WalletTransaction> getVisible() {
+        return visible;
+    }
+
+    TransactionQuery getQuery() {
+        return query;
+    }
+
+    void setQuery(final TransactionQuery query) {
+        this.query = query;
+        rebuild();
+    }
+
+    /**
+     * Restrict the view to the given transactions, as found by a search, or
+     * remove the restriction. Transactions later added to the source are
+     * checked against the search as they arrive, so the search does not need
+     * repeating as the source changes.
+     *
+     * @param searchResults transactions to restrict to, or null for none.
+     * @param searchMatcher checks whether a transaction added to the source
+     * matches the search. Ignored if there are no search results.
+     */
+    void setSearch(final Collection<WalletTransaction> searchResults,
+            final Predicate<WalletTransaction> searchMatcher) {
+        if (searchResults == null) {
+            this.searchResults = null;
+            this.searchMatcher = null;
+        } else {
+            this.searchResults = new HashSet<>(searchResults);
+            this.searchMatcher = searchMatcher;
+        }
+        rebuild();
+    }
+
+    /**
+     * Change the sort order of the view.
+     *
+     * @param sortKey column to sort by.
+     * @param ascending true to sort smallest (or oldest) first.
+     */
+    void sortBy(final SortKey sortKey, final boolean ascending) {
+        if (this.sortKey == sortKey && this.ascending == ascending) {
+            return;
+        }
+        this.sortKey = sortKey;
+        this.ascending = ascending;
+        this.order = sortKey.getComparator(ascending);
+        rebuild();
+    }
+
+    private boolean matches(final WalletTransaction wtx) {
+        return query.matches(wtx)
+                && (searchResults == null || searchResults.contains(wtx));
+    }
+
+    /**
+     * Rebuild the view from scratch, walking a pre-sorted list where one
+     * exists for the sort order.
+     */
+    private void rebuild() {
+        final List<WalletTransaction> result = new ArrayList<>();
+        final Iterator<WalletTransaction> ordered;
+        switch (sortKey) {
+            case DATE:
+                ordered = ascending ? reverse(source) : source.iterator();
+                break;
+            case AMOUNT:
+                ordered = ascending ? byAmount.descendingIterator() : byAmount.iterator();
+                break;
+            default:
+                ordered = null;
+                break;
+        }
+
+        if (ordered != null) {
+            ordered.forEachRemaining(wtx -> {
+                if (matches(wtx)) {
+                    result.add(wtx);
+                }
+            });
+        } else {
+            for (WalletTransaction wtx : source) {
+                if (matches(wtx)) {
+                    result.add(wtx);
+                }
+            }
+            result.sort(order);
+        }
+        visible.setAll(result);
+    }
+
+    private static Iterator<WalletTransaction> reverse(final List<WalletTransaction> list) {
+        final ListIterator<WalletTransaction> it = list.listIterator(list.size());
+        return new Iterator<WalletTransaction>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasPrevious();
+            }
+
+            @Override
+            public WalletTransaction next() {
+                return it.previous();
+            }
+        };
+    }
+
+    private void onSourceChanged(final ListChangeListener.Change<? extends WalletTransaction> change) {
+        // A merge arrives as many small additions, so count across the whole
+        // change rather than each part of it
+        int changed = 0;
+        while (change.next()) {
+            changed += change.getAddedSize() + change.getRemovedSize();
+        }
+        final boolean bulk = changed > BULK_REBUILD_THRESHOLD;
+        change.reset();
+        while (change.next()) {
+            if (change.wasPermutated()) {
+                continue;
+            }
+            for (WalletTransaction wtx : change.getRemoved()) {
+                byAmount.remove(wtx);
+                if (searchResults != null) {
+                    searchResults.remove(wtx);
+                }
+                if (!bulk) {
+                    remove(wtx);
+                }
+            }
+            for (WalletTransaction wtx : change.getAddedSubList()) {
+                byAmount.add(wtx);
+                if (searchResults != null && searchMatcher.test(wtx)) {
+                    searchResults.add(wtx);
+                }
+                if (!bulk && matches(wtx)) {
+                    insert(wtx);
+                }
+            }
+        }
+        if (bulk) {
+            rebuild();
+        }
+    }
+
+    private void insert(final WalletTransaction wtx) {
+        final int idx = Collections.binarySearch(visible, wtx, order);
+        if (idx < 0) {
+            visible.add(-idx - 1, wtx);
+        }
+    }
+
+    private void remove(final WalletTransaction wtx) {
+        final int idx = Collections.binarySearch(visible, wtx, order);
+        if (idx >= 0 && visible.get(idx) == wtx) {
+            visible.remove(idx);
+        } else if (sortKey == SortKey.MEMO || query.getMemoText() != null) {
+            // Memos can be edited in place, so the view may be out of order
+            // or hold transactions which no longer match; fall back to a scan
+            visible.remove(wtx);
+        }
+    }
+}
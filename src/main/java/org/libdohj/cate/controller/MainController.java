@@ -16,18 +16,23 @@
 package org.libdohj.cate.controller;
 
 import com.google.common.util.concurrent.Service;
+import javafx.animation.PauseTransition;
 import javafx.application.HostServices;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.Node;
 import javafx.scene.control.*;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
+import javafx.util.Callback;
+import javafx.util.Duration;
 import javafx.util.StringConverter;
 import org.bitcoinj.core.*;
 import org.bitcoinj.crypto.KeyCrypterException;
@@ -38,18 +43,30 @@ import org.bouncycastle.crypto.params.KeyParameter;
 import org.controlsfx.control.NotificationPane;
 import org.libdohj.cate.CATE;
 import org.libdohj.cate.Network;
+import org.libdohj.cate.NetworkListener;
+import org.libdohj.cate.NetworkManager;
+import org.libdohj.cate.Payout;
+import org.libdohj.cate.PayoutReport;
+import org.libdohj.cate.SendPipeline;
 import org.libdohj.cate.util.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * Base window from which the rest of CATE is launched. Lists any active
@@ -57,7 +74,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *
  * @author Ross Nicoll
  */
-public class MainController {
+public class MainController implements NetworkListener {
 
     private static final int BANNER_DISPLAY_MILLIS = 3000;
     private static final int NETWORK_PUSH_TIMEOUT_MILLIS = 500;
@@ -65,6 +82,10 @@ public class MainController {
     @FXML // ResourceBundle that was given to the FXMLLoader
     private ResourceBundle resources;
 
+    @FXML
+    private MenuItem menuExport;
+    @FXML
+    private MenuItem menuPayouts;
     @FXML
     private MenuItem menuExit;
 
@@ -75,6 +96,20 @@ public class MainController {
     @FXML
     private TableView txList;
     @FXML
+    private TextField txSearch;
+    @FXML
+    private ComboBox<Network> txFilterNetwork;
+    @FXML
+    private DatePicker txFilterFrom;
+    @FXML
+    private DatePicker txFilterTo;
+    @FXML
+    private TextField txFilterMinAmount;
+    @FXML
+    private TextField txFilterMaxAmount;
+    @FXML
+    private TextField txFilterMemo;
+    @FXML
     private TableColumn<WalletTransaction, String> txNetworkColumn;
     @FXML
     private TableColumn<WalletTransaction, String> txDateColumn;
@@ -100,20 +135,38 @@ public class MainController {
     private TableColumn<Network, String> networkStatus;
 
     private NotificationPane notificationPane;
-
     /**
-     * All networks this controller is aware of
+     * Hides the top banner once it has been shown for long enough. Restarted
+     * each time a banner is shown, so a new banner gets its full time.
      */
-    private final ObservableList<Network> networks = FXCollections.observableArrayList();
+    private final PauseTransition bannerTimeout = new PauseTransition(Duration.millis(BANNER_DISPLAY_MILLIS));
+
     /**
      * All networks which are in starting or running state
      */
     private final ObservableList<Network> activeNetworks = FXCollections.observableArrayList();
-    private final ObservableList<WalletTransaction> transactions = FXCollections.observableArrayList();
+    private final MergedTransactionList mergedTransactions = new MergedTransactionList();
+    private final ObservableList<WalletTransaction> transactions = mergedTransactions.getTransactions();
+    /**
+     * Transactions shown in the transaction table, after filtering and sorting.
+     */
+    private final FilteredTransactionList filteredTransactions = new FilteredTransactionList(transactions);
     private final Map<Network, NetworkDetail> networkDetails = new HashMap<>();
     private KeyCrypterScrypt keyCrypter;
     private MainAlertHelper alertHelper;
-    private final ExecutorService networkStatusExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * Runs the networks themselves; this controller is a client of it.
+     */
+    private final NetworkManager networkManager = new NetworkManager(new PulseExecutor(), Platform::isFxApplicationThread);
+    /**
+     * Runs exports, one at a time, off both the UI thread and the network
+     * threads, so no network's wallet work waits behind a long export.
+     */
+    private final ExecutorService exportExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "Transaction export");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final Logger logger = LoggerFactory.getLogger(MainController.class);
     private CATE cate;
@@ -122,6 +175,8 @@ public class MainController {
     @FXML
     public void initialize() {
         this.alertHelper = new MainAlertHelper(resources);
+        networkManager.addListener(this);
+        networkManager.setUncaughtExceptionHandlerFactory(this::buildUncaughtExceptionHandler);
 
         receiveSelector.setItems(activeNetworks);
         sendSelector.setItems(activeNetworks);
@@ -155,6 +210,8 @@ public class MainController {
         });
 
         sendButton.setOnAction(this::sendCoinsOnUIThread);
+        menuExport.setOnAction(this::exportTransactionsOnUIThread);
+        menuPayouts.setOnAction(this::sendPayoutsOnUIThread);
         menuExit.setOnAction(this::stop);
     }
 
@@ -167,13 +224,10 @@ public class MainController {
      * completes successfully.
      */
     public Service connectTo(final NetworkParameters params, final File dataDir) {
-        final Context context = new Context(params);
-        final NetworkThreadFactory threadFactory = new NetworkThreadFactory(context);
-        final ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory);
-        final Network network = new Network(params, this, dataDir, executor, this::registerWallet);
+        final Network network = networkManager.createNetwork(params, dataDir);
+        final ExecutorService executor = networkManager.getExecutor(network);
 
-        threadFactory.setUncaughtExceptionHandler(buildUncaughtExceptionHandler(network));
-        networks.add(network);
+        walletList.getItems().setAll(networkManager.getNetworks());
 
         // Add a listener to shut down the executor service once the network service
         // it's responsible for terminates.
@@ -185,8 +239,34 @@ public class MainController {
         return network.startAsync();
     }
 
+    /**
+     * Connect to each of the specified networks. Networks start concurrently,
+     * each service starting on its own thread, and each wallet is shown as
+     * soon as it has loaded rather than waiting for the others or for the
+     * chain to sync. See {@link Network#getStartupTimeline()} for how long
+     * each phase took.
+     *
+     * @param params  network parameters for each network to connect to.
+     * @param dataDir directory to store data files in.
+     * @return the services that have been started, in the same order as the
+     * parameters.
+     */
+    public List<Service> connectTo(final Collection<NetworkParameters> params, final File dataDir) {
+        final List<Service> services = new ArrayList<>(params.size());
+        for (NetworkParameters networkParams : params) {
+            services.add(connectTo(networkParams, dataDir));
+        }
+        return services;
+    }
+
     private void initializeTransactionList() {
-        txList.setItems(transactions);
+        txList.setItems(filteredTransactions.getVisible());
+        txList.setSortPolicy(table -> {
+            sortTransactions();
+            return true;
+        });
+        txSearch.textProperty().addListener((observable, oldValue, newValue) -> searchTransactions());
+        initializeTransactionFilter();
         txList.setRowFactory(value -> {
             final TableRow<WalletTransaction> row = new TableRow<>();
             final ContextMenu rowMenu = new ContextMenu();
@@ -195,13 +275,20 @@ public class MainController {
             final MenuItem detailsItem = new MenuItem(resources.getString("menuItem.txDetails"));
             final MenuItem receivingAddressItem = new MenuItem(resources.getString("menuItem.receivingAddress"));
 
-            transactionIdItem.setOnAction(action -> GenericUtils.copyToClipboard(row.getItem().getTransaction().getHashAsString()));
+            transactionIdItem.setOnAction(action -> GenericUtils.copyToClipboard(row.getItem().getTxId().toString()));
             explorerItem.setOnAction(action -> openBlockExplorer(row.getItem()));
             detailsItem.setOnAction(action -> showTxDetailsDialog(row.getItem()));
 
-            receivingAddressItem.setOnAction(action -> GenericUtils.copyToClipboard(
-                    TransactionFormatter.getRelevantOutputs(row.getItem()).get(0).getScriptPubKey().getToAddress(
-                            row.getItem().getParams()).toString()));
+            receivingAddressItem.setOnAction(action -> {
+                final String address = getFirstAddress(row.getItem());
+                if (address != null) {
+                    GenericUtils.copyToClipboard(address);
+                }
+            });
+            // Nothing to copy if no relevant output pays an address, or they
+            // have not been worked out yet
+            rowMenu.setOnShowing(event -> receivingAddressItem.setDisable(row.getItem() == null
+                    || getFirstAddress(row.getItem()) == null));
 
             rowMenu.getItems().addAll(transactionIdItem, receivingAddressItem, detailsItem, explorerItem);
 
@@ -221,14 +308,120 @@ public class MainController {
         txMemoColumn.setCellValueFactory(dataFeatures -> dataFeatures.getValue().memoProperty());
     }
 
+    /**
+     * Set up the filter controls above the transaction table. The network
+     * selector lists every active network, plus null for all networks.
+     */
+    private void initializeTransactionFilter() {
+        final ObservableList<Network> filterNetworks = FXCollections.observableArrayList((Network) null);
+        activeNetworks.addListener((ListChangeListener<Network>) change -> {
+            final Network selected = txFilterNetwork.getValue();
+            filterNetworks.setAll(activeNetworks);
+            filterNetworks.add(0, null);
+            txFilterNetwork.setValue(activeNetworks.contains(selected) ? selected : null);
+        });
+        final String allNetworks = resources.getString("txlist.filter.allNetworks");
+        final StringConverter<Network> networkConverter = new WalletToNetworkNameConvertor();
+        final Callback<ListView<Network>, ListCell<Network>> cellFactory = list -> new ListCell<Network>() {
+            @Override
+            protected void updateItem(final Network item, final boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty ? null : item == null ? allNetworks : networkConverter.toString(item));
+            }
+        };
+        txFilterNetwork.setItems(filterNetworks);
+        txFilterNetwork.setCellFactory(cellFactory);
+        txFilterNetwork.setButtonCell(cellFactory.call(null));
+        txFilterNetwork.setPromptText(allNetworks);
+
+        txFilterNetwork.valueProperty().addListener((observable, oldValue, newValue) -> applyTransactionFilter());
+        txFilterFrom.valueProperty().addListener((observable, oldValue, newValue) -> applyTransactionFilter());
+        txFilterTo.valueProperty().addListener((observable, oldValue, newValue) -> applyTransactionFilter());
+        txFilterMinAmount.textProperty().addListener((observable, oldValue, newValue) -> applyTransactionFilter());
+        txFilterMaxAmount.textProperty().addListener((observable, oldValue, newValue) -> applyTransactionFilter());
+        txFilterMemo.textProperty().addListener((observable, oldValue, newValue) -> applyTransactionFilter());
+    }
+
+    /**
+     * Build a query from the filter controls and apply it to the transaction
+     * table. Amounts which cannot be parsed are ignored rather than reported,
+     * as they are typically part-typed.
+     */
+    private void applyTransactionFilter() {
+        final ZoneId zone = ZoneId.systemDefault();
+        final LocalDate from = txFilterFrom.getValue();
+        final LocalDate to = txFilterTo.getValue();
+        final TransactionQuery query = new TransactionQuery(txFilterNetwork.getValue(),
+                from == null ? Long.MIN_VALUE : from.atStartOfDay(zone).toInstant().toEpochMilli(),
+                to == null ? Long.MAX_VALUE : to.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1,
+                parseFilterAmount(txFilterMinAmount.getText(), Long.MIN_VALUE),
+                parseFilterAmount(txFilterMaxAmount.getText(), Long.MAX_VALUE),
+                txFilterMemo.getText());
+        filteredTransactions.setQuery(query);
+    }
+
+    private static long parseFilterAmount(final String text, final long defaultValue) {
+        if (text == null || text.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Coin.parseCoin(text.trim()).getValue();
+        } catch (IllegalArgumentException ex) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Apply the column sort chosen in the transaction table. Sorting is done
+     * by {@link FilteredTransactionList} on the underlying values, rather
+     * than by the table comparing the formatted strings shown.
+     */
+    private void sortTransactions() {
+        final ObservableList<TableColumn<WalletTransaction, ?>> sortOrder = txList.getSortOrder();
+        if (sortOrder.isEmpty()) {
+            filteredTransactions.sortBy(FilteredTransactionList.SortKey.DATE, false);
+            return;
+        }
+        final TableColumn<WalletTransaction, ?> column = sortOrder.get(0);
+        final FilteredTransactionList.SortKey sortKey;
+        if (column == txAmountColumn) {
+            sortKey = FilteredTransactionList.SortKey.AMOUNT;
+        } else if (column == txNetworkColumn) {
+            sortKey = FilteredTransactionList.SortKey.NETWORK;
+        } else if (column == txMemoColumn) {
+            sortKey = FilteredTransactionList.SortKey.MEMO;
+        } else {
+            sortKey = FilteredTransactionList.SortKey.DATE;
+        }
+        filteredTransactions.sortBy(sortKey, column.getSortType() == TableColumn.SortType.ASCENDING);
+    }
+
     private void openBlockExplorer(WalletTransaction item) {
         HostServices hostServices = cate.getHostServices();
         hostServices.showDocument(BlockExplorerResolver.getUrl(item));
     }
 
-    private boolean showTxDetailsDialog(WalletTransaction item) {
+    /**
+     * @return the first address paid by a transaction's relevant outputs, as
+     * already worked out on the network thread, or null if there is none yet.
+     */
+    private static String getFirstAddress(final WalletTransaction item) {
+        final RelevantOutputs relevant = item.getRelevantOutputs();
+        return relevant == null ? null : relevant.getFirstAddress();
+    }
+
+    /**
+     * Read the transaction's details from the wallet on the network thread,
+     * then show them in a dialog on the UI thread.
+     */
+    private void showTxDetailsDialog(final WalletTransaction item) {
+        item.getNetwork().loadTransactionDetails(item,
+                details -> Platform.runLater(() -> showTxDetailsDialogOnUIThread(item, details)));
+    }
+
+    private boolean showTxDetailsDialogOnUIThread(final WalletTransaction item, final TransactionDetails details) {
         try {
-            final Stage dialog = TransactionDetailsDialog.build(resources, item);
+            final Stage dialog = TransactionDetailsDialog.build(resources, item, details);
             dialog.showAndWait();
             return true;
         } catch (IOException e) {
@@ -242,20 +435,23 @@ public class MainController {
     }
 
     private void initializeWalletList() {
-        walletList.setItems(networks);
         walletList.setRowFactory(view -> {
             final TableRow<Network> row = new TableRow<>();
             final ContextMenu rowMenu = new ContextMenu();
             final MenuItem encryptItem = new MenuItem(resources.getString("menuItem.encrypt"));
             final MenuItem decryptItem = new MenuItem(resources.getString("menuItem.decrypt"));
+            final MenuItem lockItem = new MenuItem(resources.getString("menuItem.lock"));
+            final MenuItem statsItem = new MenuItem(resources.getString("menuItem.syncStats"));
 
             // TODO: Enable/disable options based on whether the wallet is locked.
             // Alternatively have two different context menus that display different
             // options.
             encryptItem.setOnAction(action -> encryptWalletOnUIThread(row.getItem()));
             decryptItem.setOnAction(action -> decryptWalletOnUIThread(row.getItem()));
+            lockItem.setOnAction(action -> row.getItem().lock());
+            statsItem.setOnAction(action -> showSyncStatistics(row.getItem()));
 
-            rowMenu.getItems().addAll(encryptItem, decryptItem);
+            rowMenu.getItems().addAll(encryptItem, decryptItem, lockItem, statsItem);
 
             row.contextMenuProperty().set(rowMenu);
 
@@ -276,26 +472,212 @@ public class MainController {
         });
     }
 
+    /**
+     * Show a snapshot of a network's sync metrics. Metrics are safe to read
+     * from any thread, so this does not wait on the network.
+     */
+    private void showSyncStatistics(final Network network) {
+        final StringBuilder message = new StringBuilder();
+        network.getMetrics().snapshot().forEach((name, value) -> {
+            message.append(name).append(": ");
+            if (value instanceof Double) {
+                message.append(String.format("%.2f", value.doubleValue()));
+            } else {
+                message.append(value);
+            }
+            message.append('\n');
+        });
+        final Alert alert = new Alert(Alert.AlertType.INFORMATION, message.toString());
+        alert.setTitle(resources.getString("alert.syncStats.title"));
+        alert.setHeaderText(NetworkResolver.getName(network.getParams()));
+        alert.show();
+    }
+
+    /**
+     * Prompts the user for a file, then writes the transactions of all active
+     * networks to it. The export runs on its own thread, reading a snapshot of
+     * each network's transaction index, so neither the UI nor any network's
+     * wallet work waits for it.
+     */
+    private void exportTransactionsOnUIThread(final ActionEvent event) {
+        if (activeNetworks.isEmpty()) {
+            // Nothing to export
+            return;
+        }
+        final FileChooser chooser = new FileChooser();
+        chooser.setTitle(resources.getString("alert.export.title"));
+        for (TransactionExporter.Format format : TransactionExporter.Format.values()) {
+            chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter(format.name(),
+                    "*." + format.getExtension()));
+        }
+        final File file = chooser.showSaveDialog(txList.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+
+        final TransactionExporter exporter = new TransactionExporter(
+                TransactionExporter.Format.forFileName(file.getName()));
+        final List<Network> exportNetworks = new ArrayList<>(activeNetworks);
+        exportExecutor.execute(() -> {
+            try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                final TransactionExporter.Report report = exporter.export(exportNetworks, out);
+                Platform.runLater(() -> {
+                    final Alert alert = new Alert(Alert.AlertType.INFORMATION,
+                            MessageFormat.format(resources.getString("alert.export.success"), report));
+                    alert.setTitle(resources.getString("alert.export.title"));
+                    alert.show();
+                });
+            } catch (IOException | RuntimeException ex) {
+                logger.error("Error exporting transactions to " + file, ex);
+                Platform.runLater(() -> {
+                    final Alert alert = new Alert(Alert.AlertType.ERROR,
+                            MessageFormat.format(resources.getString("alert.export.error"), ex.getMessage()));
+                    alert.setTitle(resources.getString("alert.export.title"));
+                    alert.show();
+                });
+            }
+        });
+    }
+
+    /**
+     * Prompts the user for a CSV file of payouts (see {@link PayoutCsvReader}),
+     * confirms the total, then sends them from the network selected for
+     * sending. Payouts are batched into as few transactions as possible by
+     * {@link Network#sendPayouts(List, String, Consumer)}, and the report shown
+     * once they have all been broadcast. MUST be called on the UI thread.
+     */
+    private void sendPayoutsOnUIThread(final ActionEvent event) {
+        final Network network = sendSelector.getValue();
+        if (network == null) {
+            return;
+        }
+        final FileChooser chooser = new FileChooser();
+        chooser.setTitle(resources.getString("alert.payouts.title"));
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("CSV", "*.csv"));
+        final File file = chooser.showOpenDialog(txList.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+
+        final List<Payout> payouts;
+        try (Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            payouts = new PayoutCsvReader(network.getParams()).read(in);
+        } catch (IOException | PayoutCsvReader.PayoutFormatException ex) {
+            logger.warn("Unable to read payouts from " + file, ex);
+            final Alert alert = new Alert(Alert.AlertType.ERROR,
+                    MessageFormat.format(resources.getString("alert.payouts.readError"), ex.getMessage()));
+            alert.setTitle(resources.getString("alert.payouts.title"));
+            alert.showAndWait();
+            return;
+        }
+        if (payouts.isEmpty()) {
+            return;
+        }
+
+        Coin total = Coin.ZERO;
+        for (Payout payout : payouts) {
+            total = total.add(payout.getAmount());
+        }
+        final Alert confirm = new Alert(Alert.AlertType.CONFIRMATION,
+                MessageFormat.format(resources.getString("alert.payouts.confirm"), payouts.size(),
+                        network.format(total)));
+        confirm.setTitle(resources.getString("alert.payouts.title"));
+        confirm.setHeaderText(NetworkResolver.getName(network.getParams()));
+        if (!confirm.showAndWait().filter(response -> response == ButtonType.OK).isPresent()) {
+            return;
+        }
+
+        // Each payout transaction is signed with the key cached by the
+        // unlock, as a key set on one request is wiped once it is signed
+        if (network.getEncryptedStateProperty().getValue()) {
+            final KeyParameter cached = network.getUnlockedKey();
+            if (cached == null) {
+                unlockWalletOnUIThread(network, aesKey -> {
+                    Arrays.fill(aesKey.getKey(), (byte) 0);
+                    sendUnlockedPayouts(network, payouts);
+                });
+                return;
+            }
+            Arrays.fill(cached.getKey(), (byte) 0);
+        }
+        sendUnlockedPayouts(network, payouts);
+    }
+
+    private void sendUnlockedPayouts(final Network network, final List<Payout> payouts) {
+        network.sendPayouts(payouts, null, (PayoutReport report) -> Platform.runLater(() -> {
+            final Alert alert = new Alert(report.getFailure() == null
+                    ? Alert.AlertType.INFORMATION
+                    : Alert.AlertType.WARNING,
+                    MessageFormat.format(resources.getString("alert.payouts.report"),
+                            report.getTransactions().size(), report.getUnsent().size(),
+                            network.format(report.getTotalFee())));
+            alert.setTitle(resources.getString("alert.payouts.title"));
+            alert.setHeaderText(NetworkResolver.getName(network.getParams()));
+            alert.show();
+        }));
+    }
+
     public void setNotificationPane(NotificationPane notificationPane) {
         this.notificationPane = notificationPane;
     }
 
     /**
-     * Add a transaction to those displayed by this controller.
+     * Merge changes to a network's transactions into those displayed by this
+     * controller. The changes are applied on the UI thread, batched with any
+     * other updates from the network.
+     *
+     * @param network network the transactions are from.
+     * @param changes changes made to the network's transaction index.
+     */
+    @Override
+    public void onTransactionsChanged(final Network network, final TransactionIndex.Changes changes) {
+        network.getUiUpdates().run(() -> {
+            // An active search is kept up to date as the changes arrive in
+            // the filtered list, rather than repeated
+            mergedTransactions.apply(changes);
+        });
+    }
+
+    /**
+     * Repeat any active search once a network's search index is complete, as
+     * a search made while it was being filled only found the transactions
+     * indexed by then.
      *
-     * @param network     network the transaction is from.
-     * @param tx          the underlying transaction to add.
-     * @param prevBalance previous wallet balance.
-     * @param newBalance  new wallet balance.
+     * @param network network whose search index is complete.
      */
-    public void addTransaction(Network network, Transaction tx, Coin prevBalance, Coin newBalance) {
-        // TODO: Transaction lists should be aggregated from listed held by each
-        // network.
-        // For now we do the actual modification on the UI thread to avoid
-        // race conditions
-        Platform.runLater(() ->
-            transactions.add(0, new WalletTransaction(network, tx, newBalance.subtract(prevBalance)))
-        );
+    @Override
+    public void onSearchIndexComplete(final Network network) {
+        network.getUiUpdates().run(() -> {
+            if (isSearching()) {
+                searchTransactions();
+            }
+        });
+    }
+
+    private boolean isSearching() {
+        final String query = txSearch.getText();
+        return query != null && !query.trim().isEmpty();
+    }
+
+    /**
+     * Show only the transactions matching the search field, or all
+     * transactions if it is empty. Each network's transaction index answers
+     * the search from its own lookup tables, and the results are merged.
+     * Transactions which change afterwards are checked against the search
+     * individually by the filtered list.
+     */
+    private void searchTransactions() {
+        if (!isSearching()) {
+            filteredTransactions.setSearch(null, null);
+            return;
+        }
+        final String query = txSearch.getText();
+        final List<WalletTransaction> matches = new ArrayList<>();
+        for (Network network : activeNetworks) {
+            matches.addAll(network.getTransactionIndex().search(query));
+        }
+        filteredTransactions.setSearch(matches,
+                wtx -> wtx.getNetwork().getTransactionIndex().matches(query, wtx));
     }
 
     /**
@@ -440,24 +822,34 @@ public class MainController {
      * @param req     send request to execute
      */
     private void doSendCoins(final Network network, final SendRequest req) {
-        // Prompt for password if the wallet is encrypted
-        // TODO: Should have an unlock() method we call here,
-        // and uses cached password for ~5 minutes, rather than prompting every
-        // time
+        // The key goes on the request itself, so it cannot expire between
+        // here and signing. Prompt for a password unless the network still
+        // has the key cached from a recent unlock.
         if (network.getEncryptedStateProperty().getValue()) {
-            req.aesKey = getAESKeyFromUser(network);
+            req.aesKey = network.getUnlockedKey();
             if (req.aesKey == null) {
-                // No key available, which means the user hit cancel
+                unlockWalletOnUIThread(network, aesKey -> {
+                    req.aesKey = aesKey;
+                    sendUnlockedCoins(network, req);
+                });
                 return;
             }
         }
+        sendUnlockedCoins(network, req);
+    }
 
-        network.sendCoins(req,
-                (Wallet.SendResult sendResult) -> {
+    /**
+     * Pass a send request to the network, once any password needed has been
+     * provided.
+     *
+     * @param network the network to send coins over.
+     * @param req     send request to execute
+     */
+    private void sendUnlockedCoins(final Network network, final SendRequest req) {
+        final SendPipeline.PendingSend pending = network.sendCoins(req,
+                (Transaction tx) -> {
                     Platform.runLater(() -> {
                         showTopBannerOnUIThread(resources.getString("doSendCoin.successNotification"));
-                        sendAddress.clear();
-                        sendAmount.clear();
                     });
                 }, (Coin missing) -> {
                     Platform.runLater(() -> {
@@ -485,6 +877,12 @@ public class MainController {
                         alert.showAndWait();
                     });
                 }, NETWORK_PUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        // Clear the form as soon as the payment is committed to the wallet,
+        // rather than waiting for peers to acknowledge it
+        pending.getCommitted().thenRun(() -> Platform.runLater(() -> {
+            sendAddress.clear();
+            sendAmount.clear();
+        }));
     }
 
     /**
@@ -497,49 +895,48 @@ public class MainController {
         notificationPane.setText(text);
         notificationPane.getStyleClass().add(NotificationPane.STYLE_CLASS_DARK);
         notificationPane.show();
-        // TODO: We should have a single persistent thread that does this, and
-        // handles resetting the timer if a new banner is shown before the old is
-        // hidden
-        new Thread(() -> {
-            try {
-                Thread.sleep(BANNER_DISPLAY_MILLIS);
-            } catch (InterruptedException ex) {
-                // Ignore
-            }
-            Platform.runLater(() -> {
-                notificationPane.hide();
-            });
-        }).start();
+        bannerTimeout.setOnFinished(event -> notificationPane.hide());
+        bannerTimeout.playFromStart();
     }
 
-    private KeyParameter getAESKeyFromUser(final Network network) {
-        // TODO: Cache the key for ~5 minutes
-
+    /**
+     * Prompts the user for the wallet password, and unlocks the wallet with
+     * it. Key derivation is done on the network thread, and the given callback
+     * run on the UI thread with the derived key once the wallet is unlocked.
+     * Does nothing further if the user cancels.
+     *
+     * @param network the network whose wallet to unlock.
+     * @param onUnlocked callback to run on the UI thread with the key.
+     */
+    private void unlockWalletOnUIThread(final Network network, final Consumer<KeyParameter> onUnlocked) {
         // I don't like that we have to hold the password as a string, so we
         // can't wipe the values once we're done.
         final PasswordInputDialog passwordDialog = new PasswordInputDialog();
         passwordDialog.setContentText(resources.getString("getAESKey.msg"));
 
-        // We don't use lambdas here because we're returning a value based on
-        // the evaluation
-        return passwordDialog.showAndWait()
-                .map(network::getKeyFromPassword)
-                .orElse(null);
+        passwordDialog.showAndWait().ifPresent(value -> {
+            network.unlock(value, aesKey -> Platform.runLater(() -> onUnlocked.accept(aesKey)), ex -> {
+                Platform.runLater(() -> {
+                    Alert alert = new Alert(Alert.AlertType.WARNING);
+                    alert.setTitle(resources.getString("doSendCoins.walletLocked.title"));
+                    alert.setHeaderText(resources.getString("doSendCoins.walletLocked.head"));
+                    alert.setContentText(resources.getString("doSendCoins.walletLocked.msg"));
+                    alert.showAndWait();
+                });
+            });
+        });
     }
 
     /**
-     * Register a wallet to be tracked by this controller. This recalculates
-     * wallet transactions, which is a long running task, and must be run on a
-     * background thread.
+     * Register a wallet to be tracked by this controller, once the network has
+     * built its transaction index.
      */
-    public void registerWallet(final Network network, final Wallet wallet) {
-        // We rebuild the transactions on the current thread, rather than slowing
-        // down the UI thread, and so keep a temporary copy to be pushed into the
-        // main transaction list later.
-        final List<WalletTransaction> tempTransactions = rebuildTransactions(network, wallet);
-
-        Collections.reverse(tempTransactions);
-        Platform.runLater(() -> {
+    @Override
+    public void onWalletRegistered(final Network network, final Wallet wallet) {
+        // Take a copy of the transactions on the current thread, to be merged
+        // into the main transaction list on the UI thread.
+        final List<WalletTransaction> tempTransactions = network.getTransactionIndex().snapshot();
+        network.getUiUpdates().run(() -> {
             this.activeNetworks.add(network);
             if (this.activeNetworks.size() == 1) {
                 // We've just added the first wallet, choose it
@@ -549,9 +946,7 @@ public class MainController {
                 sendSelector.setDisable(false);
             }
 
-            // TODO: Need to enforce order of transactions by time, not by
-            // network and then time as this does
-            transactions.addAll(tempTransactions);
+            mergedTransactions.merge(tempTransactions);
         });
     }
 
@@ -589,23 +984,14 @@ public class MainController {
         alert.setTitle(resources.getString("alert.shuttingDown.title"));
         alert.getButtonTypes().clear();
         Platform.runLater(alert::show);
-        networks.forEach(network -> {
-                    logger.info("Shutting down " + network);
-                    network.stopAsync();
-                });
+        networkManager.stopAsync();
+        exportExecutor.shutdownNow();
         final long timeoutSeconds = 3;
         new Thread(() -> {
-            networks.forEach(network -> {
-                        try {
-                            network.awaitTerminated(timeoutSeconds, TimeUnit.SECONDS);
-                        } catch (TimeoutException e) {
-                            logger.error("Network " + network.getParams().getId() + " failed to shut down");
-                        }
-                    });
-            alert.hide();
-            this.networkStatusExecutor.shutdown();
+            networkManager.awaitTerminated(timeoutSeconds, TimeUnit.SECONDS);
+            Platform.runLater(alert::hide);
             Platform.exit();
-        }).start();
+        }, "CATE shutdown").start();
     }
 
     /**
@@ -626,9 +1012,10 @@ public class MainController {
      * @param from    the status the service was in before it failed.
      * @param thrwbl  the exception causing the service to fail.
      */
+    @Override
     public void onNetworkFailed(Network network, Service.State from, Throwable thrwbl) {
-        networks.remove(network);
         Platform.runLater(() -> {
+            walletList.getItems().remove(network);
             Alert alert = new Alert(Alert.AlertType.ERROR);
             alert.setTitle(resources.getString("internalError.title"));
             alert.setContentText(thrwbl.getMessage());
@@ -636,53 +1023,6 @@ public class MainController {
         });
     }
 
-    public void refreshTransactions(Network network, Wallet wallet) {
-        // TODO: Clear transactions from the given wallet out of the list
-        // then re-apply them
-    }
-
-    private List<WalletTransaction> rebuildTransactions(final Network network, final Wallet wallet) {
-        // We rebuild the transactions on the current thread, rather than slowing
-        // down the UI thread, and so keep a temporary copy to be pushed into the
-        // main transaction list later.
-        final List<WalletTransaction> tempTransactions = new ArrayList<>();
-
-        // Pre-sort transactions by date
-        final SortedSet<Transaction> rawTransactions = new TreeSet<>(
-                (Transaction a, Transaction b) -> a.getUpdateTime().compareTo(b.getUpdateTime())
-        );
-        rawTransactions.addAll(wallet.getTransactions(false));
-
-        final Map<TransactionOutPoint, Coin> balances = new HashMap<>();
-        for (Transaction tx : rawTransactions) {
-            long valueChange = 0;
-            for (TransactionInput in : tx.getInputs()) {
-                Coin balance = balances.get(in.getOutpoint());
-                // Spend the value on the listed input
-                if (balance != null) {
-                    valueChange -= balance.value;
-                    balances.remove(in.getOutpoint());
-                }
-            }
-            for (TransactionOutput out : tx.getOutputs()) {
-                if (out.isMine(wallet)) {
-                    valueChange += out.getValue().value;
-                    Coin balance = balances.get(out.getOutPointFor());
-                    if (balance == null) {
-                        balance = out.getValue();
-                    } else {
-                        balance.add(out.getValue());
-                    }
-                    balances.put(out.getOutPointFor(), balance);
-                }
-            }
-            tempTransactions.add(new WalletTransaction(network, tx, Coin.valueOf(valueChange)));
-        }
-
-        Collections.reverse(tempTransactions);
-        return tempTransactions;
-    }
-
     private StringProperty getStatusProperty(Network network) {
         return networkDetails.get(network).statusProperty;
     }
@@ -731,7 +1071,7 @@ public class MainController {
         @Override
         public Network fromString(String string) {
             final NetworkParameters params = NetworkResolver.getParameter(string);
-            for (Network network : networks) {
+            for (Network network : networkManager.getNetworks()) {
                 if (network.getParams().equals(params)) {
                     return network;
                 }
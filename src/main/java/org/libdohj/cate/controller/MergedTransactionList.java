@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import javafx.collections.ObservableList;
+import javafx.collections.ObservableListBase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maintains the combined, time ordered transaction list shown in the UI from
+ * the per-network {@link TransactionIndex} stores. The combined list is never
+ * re-sorted; whole networks are merged in with a single merge pass, and
+ * individual transactions are placed by binary search.
+ *
+ * The list is a flat copy rather than a lazy merge over the per-network
+ * stores, because the table reads rows by index as it scrolls, and a k-way
+ * merge can only find the row at an index by walking to it. Placing a single
+ * transaction is therefore a binary search plus an array shift, which for
+ * the list sizes shown (a few hundred thousand rows) is a single block copy
+ * of references, and far cheaper than the table updating for the new row.
+ *
+ * Either way, listeners to the list (the table, and the filtered view over
+ * it) are told only which rows were added or removed, never that the whole
+ * list was replaced, so they can update just those rows.
+ *
+ * All methods MUST be called on the UI thread.
+ *
+ * @author Ross Nicoll
+ */
+class MergedTransactionList {
+    /**
+     * Above this many additions in one go, merging the whole list is cheaper
+     * than inserting each transaction individually.
+     */
+    private static final int BULK_MERGE_THRESHOLD = 64;
+
+    private final Rows transactions = new Rows();
+
+    /**
+     * @return the combined list, in {@link TransactionIndex#NEWEST_FIRST}
+     * order. The list is read only; it is changed through this class.
+     */
+    ObservableList<WalletTransaction> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Merge a network's transactions into the displayed list.
+     *
+     * @param sorted the transactions to add, in
+     * {@link TransactionIndex#NEWEST_FIRST} order.
+     */
+    void merge(final List<WalletTransaction> sorted) {
+        if (!sorted.isEmpty()) {
+            transactions.merge(sorted);
+        }
+    }
+
+    /**
+     * Apply changes from a network's transaction index to the displayed list.
+     *
+     * @param changes the changes to apply.
+     */
+    void apply(final TransactionIndex.Changes changes) {
+        final List<WalletTransaction> removed = new ArrayList<>(changes.getRemoved());
+        final List<WalletTransaction> added = new ArrayList<>(changes.getAdded());
+
+        removed.addAll(changes.getUpdatedFrom());
+        added.addAll(changes.getUpdatedTo());
+        if (!removed.isEmpty()) {
+            transactions.removeRows(removed);
+        }
+
+        if (added.size() > BULK_MERGE_THRESHOLD) {
+            added.sort(TransactionIndex.NEWEST_FIRST);
+            merge(added);
+        } else {
+            added.forEach(transactions::insert);
+        }
+    }
+
+    /**
+     * The combined list itself. Changes are made to a plain array list, and
+     * reported to listeners as the individual rows added and removed.
+     */
+    private static class Rows extends ObservableListBase<WalletTransaction> {
+        private ArrayList<WalletTransaction> rows = new ArrayList<>();
+
+        @Override
+        public WalletTransaction get(final int index) {
+            return rows.get(index);
+        }
+
+        @Override
+        public int size() {
+            return rows.size();
+        }
+
+        /**
+         * Merge sorted transactions into the list in a single pass, reporting
+         * each run of new rows as an addition.
+         */
+        private void merge(final List<WalletTransaction> sorted) {
+            final ArrayList<WalletTransaction> merged = new ArrayList<>(rows.size() + sorted.size());
+            int i = 0;
+            int j = 0;
+            beginChange();
+            try {
+                while (i < rows.size() || j < sorted.size()) {
+                    if (j < sorted.size()
+                            && (i == rows.size() || TransactionIndex.NEWEST_FIRST.compare(sorted.get(j), rows.get(i)) < 0)) {
+                        merged.add(sorted.get(j++));
+                        nextAdd(merged.size() - 1, merged.size());
+                    } else {
+                        merged.add(rows.get(i++));
+                    }
+                }
+                rows = merged;
+            } finally {
+                endChange();
+            }
+        }
+
+        private void insert(final WalletTransaction wtx) {
+            int idx = Collections.binarySearch(rows, wtx, TransactionIndex.NEWEST_FIRST);
+            idx = idx < 0 ? -idx - 1 : idx;
+            rows.add(idx, wtx);
+            beginChange();
+            nextAdd(idx, idx + 1);
+            endChange();
+        }
+
+        /**
+         * Remove transactions in a single pass over the list.
+         */
+        private void removeRows(final Collection<WalletTransaction> removed) {
+            // Hash set so each row is a single lookup
+            final Set<WalletTransaction> remove = new HashSet<>(removed);
+            final ArrayList<WalletTransaction> kept = new ArrayList<>(rows.size());
+            beginChange();
+            try {
+                for (WalletTransaction wtx : rows) {
+                    if (remove.contains(wtx)) {
+                        nextRemove(kept.size(), wtx);
+                    } else {
+                        kept.add(wtx);
+                    }
+                }
+                rows = kept;
+            } finally {
+                endChange();
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outputs of a transaction which matter to the user, and the addresses they
+ * pay. For a transaction which increased the wallet balance, these are the
+ * outputs paying the wallet; otherwise they are the outputs paying anyone else,
+ * leaving out change.
+ *
+ * Worked out once on the network thread, when the transaction is added to
+ * the search index, and held as output indexes and address strings so it can
+ * be read from any thread. Restoring the transaction list at startup
+ * therefore never examines outputs, and the UI never works them out. The
+ * transaction itself is not held; see {@link #getOutputs(Transaction)}. As a
+ * {@link WalletTransaction} is replaced whenever the wallet's view of its
+ * transaction changes, a cached instance never goes stale.
+ *
+ * @author Ross Nicoll
+ */
+public final class RelevantOutputs {
+    private static final int[] NO_INDEXES = new int[0];
+    private static final String[] NO_ADDRESSES = new String[0];
+
+    /**
+     * No relevant outputs.
+     */
+    public static final RelevantOutputs NONE = new RelevantOutputs(NO_INDEXES, NO_ADDRESSES);
+
+    private final int[] indexes;
+    /**
+     * Address paid by each relevant output, or null where the output does not
+     * pay an address (i.e. OP_RETURN).
+     */
+    private final String[] addresses;
+
+    private RelevantOutputs(final int[] indexes, final String[] addresses) {
+        this.indexes = indexes;
+        this.addresses = addresses;
+    }
+
+    /**
+     * Work out the relevant outputs of a transaction.
+     *
+     * @param tx the transaction.
+     * @param wallet the wallet the transaction belongs to.
+     * @param received true if the transaction increased the wallet balance.
+     * @return the relevant outputs.
+     */
+    public static RelevantOutputs of(final Transaction tx, final Wallet wallet, final boolean received) {
+        final Builder builder = new Builder();
+        final List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            final TransactionOutput output = outputs.get(i);
+            if (output.isMineOrWatched(wallet) == received) {
+                builder.add(i, toAddress(output, wallet.getParams()));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the address an output pays, or null if it does not pay to an
+     * address.
+     */
+    static String toAddress(final TransactionOutput output, final NetworkParameters params) {
+        try {
+            return output.getScriptPubKey().getToAddress(params, true).toString();
+        } catch (ScriptException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @param transaction the transaction these are the relevant outputs of.
+     * @return the relevant outputs, in the order they appear in the
+     * transaction.
+     */
+    public List<TransactionOutput> getOutputs(final Transaction transaction) {
+        return new AbstractList<TransactionOutput>() {
+            @Override
+            public TransactionOutput get(final int index) {
+                return transaction.getOutput(indexes[index]);
+            }
+
+            @Override
+            public int size() {
+                return indexes.length;
+            }
+        };
+    }
+
+    /**
+     * @return the addresses paid by the relevant outputs, skipping any
+     * outputs which do not pay an address.
+     */
+    public List<String> getAddresses() {
+        final List<String> result = new ArrayList<>(addresses.length);
+        for (String address : addresses) {
+            if (address != null) {
+                result.add(address);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * @return the address paid by the first relevant output, or null if there
+     * is none.
+     */
+    public String getFirstAddress() {
+        for (String address : addresses) {
+            if (address != null) {
+                return address;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the relevant addresses joined by the given delimiter.
+     */
+    public String join(final String delimiter) {
+        return String.join(delimiter, getAddresses());
+    }
+
+    /**
+     * Accumulates relevant outputs while a transaction is being examined.
+     */
+    static class Builder {
+        private int[] indexes = NO_INDEXES;
+        private String[] addresses = NO_ADDRESSES;
+        private int size = 0;
+
+        void add(final int index, final String address) {
+            if (size == indexes.length) {
+                final int capacity = Math.max(2, size * 2);
+                indexes = Arrays.copyOf(indexes, capacity);
+                addresses = Arrays.copyOf(addresses, capacity);
+            }
+            indexes[size] = index;
+            addresses[size] = address;
+            size++;
+        }
+
+        RelevantOutputs build() {
+            return size == 0
+                    ? NONE
+                    : new RelevantOutputs(Arrays.copyOf(indexes, size), Arrays.copyOf(addresses, size));
+        }
+    }
+}
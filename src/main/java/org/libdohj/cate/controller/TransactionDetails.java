@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.wallet.Wallet;
+
+/**
+ * What the transaction details dialog shows about a transaction beyond its
+ * row, read from the wallet on the network thread in one task and handed to
+ * the UI thread as an immutable value, so the dialog never takes the wallet
+ * lock. See {@link org.libdohj.cate.Network#loadTransactionDetails}.
+ *
+ * @author Ross Nicoll
+ */
+public final class TransactionDetails {
+    private final int depth;
+    private final Coin fee;
+    private final RelevantOutputs relevantOutputs;
+    private final String memo;
+
+    private TransactionDetails(final int depth, final Coin fee, final RelevantOutputs relevantOutputs,
+            final String memo) {
+        this.depth = depth;
+        this.fee = fee;
+        this.relevantOutputs = relevantOutputs;
+        this.memo = memo;
+    }
+
+    /**
+     * Read the details of a transaction. MUST be called on the network
+     * thread.
+     *
+     * @param wtx the row the details are for.
+     * @param tx the wallet's copy of the transaction, or null if it is no
+     * longer in the wallet.
+     * @param wallet the wallet the transaction belongs to.
+     * @return the details.
+     */
+    public static TransactionDetails of(final WalletTransaction wtx, final Transaction tx, final Wallet wallet) {
+        if (tx == null) {
+            final RelevantOutputs relevant = wtx.getRelevantOutputs();
+            return new TransactionDetails(0, null, relevant == null ? RelevantOutputs.NONE : relevant,
+                    wtx.getMemo());
+        }
+        RelevantOutputs relevant = wtx.getRelevantOutputs();
+        if (relevant == null) {
+            relevant = RelevantOutputs.of(tx, wallet, wtx.getBalanceChangeValue() > 0);
+        }
+        return new TransactionDetails(tx.getConfidence().getDepthInBlocks(), tx.getFee(), relevant, tx.getMemo());
+    }
+
+    /**
+     * @return the number of blocks the transaction is buried under.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the fee paid, or null if not known, as for received
+     * transactions.
+     */
+    public Coin getFee() {
+        return fee;
+    }
+
+    /**
+     * @return the outputs of the transaction which matter to the user.
+     */
+    public RelevantOutputs getRelevantOutputs() {
+        return relevantOutputs;
+    }
+
+    /**
+     * @return the memo on the wallet's copy of the transaction.
+     */
+    public String getMemo() {
+        return memo;
+    }
+}
@@ -13,11 +13,10 @@ import javafx.stage.Modality;
 import javafx.stage.Stage;
 import org.bitcoinj.core.Coin;
 import org.libdohj.cate.util.GenericUtils;
-import org.libdohj.cate.util.TransactionFormatter;
 
 import java.io.IOException;
-import java.text.DateFormat;
 import java.text.MessageFormat;
+import java.time.Instant;
 import java.util.ResourceBundle;
 import javafx.scene.control.TextField;
 import javafx.scene.text.Font;
@@ -74,28 +73,30 @@ public class TransactionDetailsDialog {
 
     private Stage stage;
     private WalletTransaction wtx;
+    private TransactionDetails details;
 
     @FXML
     public void initialize() {
         
     }
 
-    private void setTransaction(final WalletTransaction transaction) {
+    private void setTransaction(final WalletTransaction transaction, final TransactionDetails transactionDetails) {
         wtx = transaction;
-        valStatus.setText(MessageFormat.format(resources.getString("txDetails.conf"), wtx.getTransaction().getConfidence().getDepthInBlocks()));
+        // Read from the wallet on the network thread, see Network.loadTransactionDetails()
+        details = transactionDetails;
+        valStatus.setText(MessageFormat.format(resources.getString("txDetails.conf"), details.getDepth()));
 
-        final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
-        valTime.setText(dateFormat.format(wtx.getTransaction().getUpdateTime()));
+        valTime.setText(WalletTransaction.DATE_FORMAT.format(Instant.ofEpochMilli(wtx.getUpdateTime())));
 
+        final Coin fee = details.getFee();
         final Coin amount;
 
-        if (wtx.getBalanceChange().isPositive()) {
+        if (wtx.getBalanceChange().isPositive() || fee == null) {
             // We don't know about the fee for receiving transactions, so remove the next two lines
             hideFeeAndGross();
             amount = wtx.getBalanceChange();
         } else {
             // Here we know the fee, so show it
-            final Coin fee = wtx.getTransaction().getFee();
             valFee.setText(wtx.getNetwork().format(fee).toString());
 
             final Coin gross = wtx.getBalanceChange();
@@ -104,12 +105,14 @@ public class TransactionDetailsDialog {
             amount = gross.add(fee); // gross is negative so add the fee back to get the actual amount.
         }
 
-        valTo.setText(TransactionFormatter.getRelevantOutputsAsString(wtx, ", "));
-        valMemo.setText(wtx.getMemo());
+        valTo.setText(details.getRelevantOutputs().join(", "));
+        // Nothing to copy if no relevant output pays an address
+        btnCopyTo.setDisable(details.getRelevantOutputs().getFirstAddress() == null);
+        valMemo.setText(details.getMemo());
         wtx.memoProperty().bind(valMemo.textProperty());
         valAmount.setText(wtx.getNetwork().format(amount).toString());
 
-        valID.setText(wtx.getTransaction().getHashAsString());
+        valID.setText(wtx.getTxId().toString());
 
         // Try to adapt the button sizes to match font
         int buttonSize = (int) Math.round(Font.getDefault().getSize()) + 6;
@@ -119,9 +122,13 @@ public class TransactionDetailsDialog {
 
     /**
      * Construct and return a transaction details dialog window.
+     *
+     * @param resources resources to localise the dialog with.
+     * @param transaction the transaction to show.
+     * @param details details of the transaction read from the wallet.
      */
-    public static Stage build(final ResourceBundle resources, final WalletTransaction transaction)
-        throws IOException {
+    public static Stage build(final ResourceBundle resources, final WalletTransaction transaction,
+            final TransactionDetails details) throws IOException {
         final Stage stage = new Stage();
         final FXMLLoader loader = new FXMLLoader(TransactionDetailsDialog.class.getResource("/txDetailsDialog.fxml"), resources);
         final Scene scene = new Scene(loader.load());
@@ -131,7 +138,7 @@ public class TransactionDetailsDialog {
 
         final TransactionDetailsDialog controller = loader.getController();
 
-        controller.setTransaction(transaction);
+        controller.setTransaction(transaction, details);
         controller.stage = stage;
 
         stage.setTitle(resources.getString("txDetails.title"));
@@ -149,14 +156,15 @@ public class TransactionDetailsDialog {
 
     @FXML
     void onBtnCopyIdAction(ActionEvent event) {
-        GenericUtils.copyToClipboard(wtx.getTransaction().getHashAsString());
+        GenericUtils.copyToClipboard(wtx.getTxId().toString());
     }
 
     @FXML
     void onBtnCopyToAction(ActionEvent event) {
-        GenericUtils.copyToClipboard(
-                TransactionFormatter.getRelevantOutputs(wtx).get(0).getScriptPubKey().getToAddress(
-                        wtx.getParams()).toString());
+        final String address = details.getRelevantOutputs().getFirstAddress();
+        if (address != null) {
+            GenericUtils.copyToClipboard(address);
+        }
     }
 
     private void hideFeeAndGross() {
@@ -0,0 +1,522 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.wallet.Wallet;
+import org.libdohj.cate.Network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Sorted store of the transactions displayed for a single network, indexed by
+ * transaction hash. Rather than rebuilding the whole transaction list each
+ * time the wallet changes, the index compares the wallet against what it last
+ * saw and produces only the additions, updates and removals needed to bring
+ * the displayed list up to date.
+ *
+ * Transactions are also held in {@link #NEWEST_FIRST} order, so insertion is
+ * O(log n) and lists from several networks can be merged without re-sorting
+ * (see {@link MergedTransactionList}), and are indexed by address, transaction
+ * ID and memo so they can be searched without a scan (see {@link #search}).
+ *
+ * The index is updated from wallet event threads, while the resulting changes
+ * are applied to the displayed list on the UI thread.
+ *
+ * @author Ross Nicoll
+ */
+public class TransactionIndex {
+    /**
+     * Display order for transactions; most recently updated first, with ties
+     * broken by transaction ID so the order is total.
+     */
+    public static final Comparator<WalletTransaction> NEWEST_FIRST = (a, b) -> {
+        final int result = Long.compare(b.getUpdateTime(), a.getUpdateTime());
+        return result != 0
+                ? result
+                : WalletTransaction.compareTxIds(a, b);
+    };
+
+    private final Network network;
+    private final Map<Sha256Hash, WalletTransaction> transactions = new HashMap<>();
+    private final NavigableSet<WalletTransaction> sorted = new TreeSet<>(NEWEST_FIRST);
+    private final TransactionSearchIndex searchIndex = new TransactionSearchIndex();
+    /**
+     * Transactions added by {@link #reset(Collection)} which are not yet in
+     * the search index, and the wallet they came from. Entries replaced or
+     * removed since are skipped when their turn comes.
+     */
+    private final Deque<WalletTransaction> unindexed = new ArrayDeque<>();
+    private Wallet unindexedWallet;
+    /**
+     * Running total of the balance changes of all indexed transactions.
+     */
+    private long balance = 0;
+
+    public TransactionIndex(final Network network) {
+        this.network = network;
+    }
+
+    /**
+     * Replace the contents of the index with the given transactions, typically
+     * from a full rebuild when the wallet is first registered. Only the list
+     * order and balance are updated here; the transactions are added to the
+     * search index by {@link #indexPending(int)}, so this stays cheap on the
+     * startup path.
+     *
+     * @param initial the transactions to index.
+     */
+    public void reset(final Collection<WalletTransaction> initial) {
+        reset(initial, network.wallet());
+    }
+
+    private synchronized void reset(final Collection<WalletTransaction> initial, final Wallet wallet) {
+        transactions.clear();
+        sorted.clear();
+        searchIndex.clear();
+        unindexed.clear();
+        unindexedWallet = wallet;
+        balance = 0;
+        for (WalletTransaction wtx : initial) {
+            transactions.put(wtx.getTxId(), wtx);
+            sorted.add(wtx);
+            unindexed.add(wtx);
+            balance += wtx.getBalanceChangeValue();
+        }
+    }
+
+    /**
+     * Add a batch of the transactions from the last reset to the search
+     * index, working out their relevant outputs at the same time. Run this
+     * repeatedly in the background after a reset, until it returns false;
+     * the lock is only held for one batch at a time, so wallet events are
+     * not held up behind the whole history.
+     *
+     * @param batchSize maximum number of transactions to index.
+     * @return true if there are transactions still to index.
+     */
+    public synchronized boolean indexPending(final int batchSize) {
+        for (int i = 0; i < batchSize && !unindexed.isEmpty(); i++) {
+            indexNext();
+        }
+        return !unindexed.isEmpty();
+    }
+
+    /**
+     * Index the next transaction waiting for the search index, unless it
+     * has been replaced or removed since the reset.
+     */
+    private void indexNext() {
+        final WalletTransaction wtx = unindexed.poll();
+        if (transactions.get(wtx.getTxId()) != wtx) {
+            return;
+        }
+        final Transaction tx = unindexedWallet.getTransaction(wtx.getTxId());
+        if (tx != null) {
+            index(wtx, tx, unindexedWallet);
+        }
+        if (unindexed.isEmpty()) {
+            unindexedWallet = null;
+        }
+    }
+
+    /**
+     * Rebuild the index from scratch from the wallet's transactions. Balance
+     * changes are calculated by {@link #balanceChange(Transaction, Wallet)},
+     * exactly as for transactions added or updated later, so a transaction
+     * shows the same amount whichever path indexed it. This is a long running
+     * task for large wallets, and should be run on a background thread.
+     *
+     * @param wallet the wallet to rebuild from.
+     */
+    public void rebuild(final Wallet wallet) {
+        final List<WalletTransaction> rebuilt = new ArrayList<>();
+        for (Transaction tx : wallet.getTransactions(false)) {
+            if (isListed(tx)) {
+                rebuilt.add(new WalletTransaction(network, tx, balanceChange(tx, wallet)));
+            }
+        }
+        reset(rebuilt, wallet);
+    }
+
+    /**
+     * Replace the contents of the index with those saved to an index file, if
+     * the file is still valid for the wallet. Transactions are looked up by
+     * hash and their saved balance changes used, rather than recalculated, so
+     * this is much faster than {@link #rebuild(Wallet)}; follow it with {@link #reconcile(Wallet)} to
+     * pick up anything which has changed since the file was written.
+     *
+     * @param wallet the wallet the file was written for.
+     * @param store block store holding the wallet's chain, to check the file
+     * was written on it.
+     * @param file the saved index.
+     * @return true if the index was restored, false if the file does not
+     * match the wallet and the index should be rebuilt instead.
+     */
+    public boolean restore(final Wallet wallet, final BlockStore store, final TransactionIndexFile file) {
+        if (!file.isValidFor(wallet, store)) {
+            return false;
+        }
+        final List<WalletTransaction> restored = new ArrayList<>(file.getEntries().size());
+        for (TransactionIndexFile.Entry entry : file.getEntries()) {
+            final Transaction tx = wallet.getTransaction(entry.getTxId());
+            // Drop transactions no longer in the wallet; any which have been
+            // updated keep their old update time, so are caught on reconcile
+            if (tx != null && isListed(tx)) {
+                restored.add(new WalletTransaction(network, entry.getTxId(), entry.getUpdateTime(),
+                        entry.getBalanceChange(), tx.getMemo()));
+            }
+        }
+        reset(restored, wallet);
+        return true;
+    }
+
+    /**
+     * Update the index for a set of transactions known to have changed, for
+     * example from a coins sent/received event. Only the given transactions
+     * are examined.
+     *
+     * @param wallet the wallet the transactions belong to.
+     * @param changed the transactions which have changed.
+     * @return the changes to apply to the displayed list.
+     */
+    public synchronized Changes apply(final Wallet wallet, final Collection<Transaction> changed) {
+        final Changes changes = new Changes();
+
+        for (Transaction tx : changed) {
+            final Sha256Hash hash = tx.getTxId();
+            final WalletTransaction existing = transactions.get(hash);
+
+            if (wallet.getTransaction(hash) == null || !isListed(tx)) {
+                if (existing != null) {
+                    remove(hash, existing, changes);
+                }
+            } else if (existing == null) {
+                add(wallet, tx, changes);
+            } else if (existing.getUpdateTime() != tx.getUpdateTime().getTime()) {
+                update(wallet, tx, existing, changes);
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Reconcile the index against the full contents of the wallet, for events
+     * such as a reorganisation where we aren't told which transactions have
+     * changed. Transactions which have died since they were indexed are
+     * removed, exactly as by {@link #apply(Wallet, Collection)}. Each wallet
+     * transaction costs a hash lookup, and balance changes are only
+     * calculated for transactions which are new or have been updated.
+     *
+     * @param wallet the wallet to reconcile against.
+     * @return the changes to apply to the displayed list.
+     */
+    public synchronized Changes reconcile(final Wallet wallet) {
+        final Changes changes = new Changes();
+        final Set<Transaction> current = wallet.getTransactions(false);
+        final Set<Sha256Hash> live = new HashSet<>(current.size() * 2);
+
+        for (Transaction tx : current) {
+            if (!isListed(tx)) {
+                continue;
+            }
+            final Sha256Hash hash = tx.getTxId();
+            final WalletTransaction existing = transactions.get(hash);
+
+            live.add(hash);
+            if (existing == null) {
+                add(wallet, tx, changes);
+            } else if (existing.getUpdateTime() != tx.getUpdateTime().getTime()) {
+                update(wallet, tx, existing, changes);
+            }
+        }
+
+        final Iterator<Map.Entry<Sha256Hash, WalletTransaction>> it = transactions.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Sha256Hash, WalletTransaction> entry = it.next();
+            if (!live.contains(entry.getKey())) {
+                it.remove();
+                sorted.remove(entry.getValue());
+                searchIndex.remove(entry.getKey());
+                balance -= entry.getValue().getBalanceChangeValue();
+                changes.removed.add(entry.getValue());
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Whether a wallet transaction belongs in the index; every path which
+     * fills the index uses this, so the index holds the same transactions
+     * whichever path last ran. Dead transactions (double spent, or
+     * reorganised out and not mined again) are left out, so they neither
+     * show in the list nor count towards the balance.
+     *
+     * @param tx a transaction from the wallet.
+     * @return true if the transaction should be indexed.
+     */
+    public static boolean isListed(final Transaction tx) {
+        return tx.getConfidence().getConfidenceType() != TransactionConfidence.ConfidenceType.DEAD;
+    }
+
+    /**
+     * @return the sum of the balance changes of all indexed transactions.
+     */
+    public synchronized Coin getBalance() {
+        return Coin.valueOf(balance);
+    }
+
+    /**
+     * @return the number of transactions in the index.
+     */
+    public synchronized int size() {
+        return transactions.size();
+    }
+
+    /**
+     * @return a copy of the indexed transactions, in {@link #NEWEST_FIRST}
+     * order.
+     */
+    public synchronized List<WalletTransaction> snapshot() {
+        return new ArrayList<>(sorted);
+    }
+
+    /**
+     * Find transactions by address, transaction ID prefix or memo text. See
+     * {@link TransactionSearchIndex} for how queries are matched. This is
+     * called on the UI thread, so if the search index is still being filled
+     * after a reset only the transactions indexed so far are found; the
+     * network reports when the index is complete, so the search can be
+     * repeated then.
+     *
+     * @param query the text to search for.
+     * @return matching transactions, in {@link #NEWEST_FIRST} order.
+     */
+    public synchronized List<WalletTransaction> search(final String query) {
+        final List<WalletTransaction> results = new ArrayList<>();
+        for (Sha256Hash txId : searchIndex.search(query)) {
+            final WalletTransaction wtx = transactions.get(txId);
+            if (wtx != null) {
+                results.add(wtx);
+            }
+        }
+        results.sort(NEWEST_FIRST);
+        return results;
+    }
+
+    /**
+     * Check whether a transaction matches a search, as {@link #search(String)}
+     * would find it, so a displayed set of search results can be kept up to
+     * date as transactions change rather than searched again.
+     *
+     * @param query the text to search for.
+     * @param wtx the transaction to check.
+     * @return true if the transaction is indexed and matches the query.
+     */
+    public synchronized boolean matches(final String query, final WalletTransaction wtx) {
+        return searchIndex.matches(wtx.getTxId(), query);
+    }
+
+    /**
+     * Replace a transaction's row once its memo has been changed in the
+     * wallet, so the row and the memo text searched for it are built from the
+     * wallet's copy together. Call this on the network thread, after setting
+     * the memo.
+     *
+     * @param wallet the wallet the transaction belongs to.
+     * @param tx the transaction whose memo has changed.
+     * @return the changes to apply to the displayed list.
+     */
+    public synchronized Changes updateMemo(final Wallet wallet, final Transaction tx) {
+        final Changes changes = new Changes();
+        final WalletTransaction existing = transactions.get(tx.getTxId());
+        if (existing != null && !Objects.equals(existing.getMemo(), tx.getMemo())) {
+            update(wallet, tx, existing, changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Iterate over the indexed transactions oldest first, as they were when
+     * this is called. Only references to the transactions are copied, so the
+     * index may be updated during a long iteration without a transaction
+     * which moves being seen twice, or missed.
+     *
+     * @return an iterator over the indexed transactions.
+     */
+    public Iterator<WalletTransaction> oldestFirst() {
+        final WalletTransaction[] newestFirst;
+        synchronized (this) {
+            newestFirst = sorted.toArray(new WalletTransaction[0]);
+        }
+        return new Iterator<WalletTransaction>() {
+            private int next = newestFirst.length - 1;
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public WalletTransaction next() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                return newestFirst[next--];
+            }
+        };
+    }
+
+    /**
+     * Change in the wallet's balance from a transaction; the one calculation
+     * used by every path which indexes a transaction.
+     */
+    private static Coin balanceChange(final Transaction tx, final Wallet wallet) {
+        return tx.getValue(wallet);
+    }
+
+    private void add(final Wallet wallet, final Transaction tx, final Changes changes) {
+        final WalletTransaction wtx = new WalletTransaction(network, tx, balanceChange(tx, wallet));
+        transactions.put(tx.getTxId(), wtx);
+        sorted.add(wtx);
+        index(wtx, tx, wallet);
+        balance += wtx.getBalanceChangeValue();
+        changes.added.add(wtx);
+    }
+
+    private void update(final Wallet wallet, final Transaction tx, final WalletTransaction existing,
+            final Changes changes) {
+        final WalletTransaction wtx = new WalletTransaction(network, tx, balanceChange(tx, wallet));
+        transactions.put(tx.getTxId(), wtx);
+        sorted.remove(existing);
+        sorted.add(wtx);
+        index(wtx, tx, wallet);
+        balance += wtx.getBalanceChangeValue() - existing.getBalanceChangeValue();
+        changes.updatedFrom.add(existing);
+        changes.updatedTo.add(wtx);
+    }
+
+    private void remove(final Sha256Hash hash, final WalletTransaction existing, final Changes changes) {
+        transactions.remove(hash);
+        sorted.remove(existing);
+        searchIndex.remove(hash);
+        balance -= existing.getBalanceChangeValue();
+        changes.removed.add(existing);
+    }
+
+    /**
+     * Add a transaction to the search index, under the addresses of its
+     * outputs and of the outputs its inputs spend, where known. Its relevant
+     * outputs are worked out in the same pass, so each output's address is
+     * only decoded once.
+     */
+    private void index(final WalletTransaction wtx, final Transaction tx, final Wallet wallet) {
+        final NetworkParameters params = network.getParams();
+        final boolean received = wtx.getBalanceChangeValue() > 0;
+        final RelevantOutputs.Builder relevant = new RelevantOutputs.Builder();
+        final Set<String> addresses = new HashSet<>();
+        final List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            final TransactionOutput out = outputs.get(i);
+            final String address = RelevantOutputs.toAddress(out, params);
+            if (address != null) {
+                addresses.add(address);
+            }
+            if (out.isMineOrWatched(wallet) == received) {
+                relevant.add(i, address);
+            }
+        }
+        for (TransactionInput in : tx.getInputs()) {
+            final TransactionOutput connected = in.getConnectedOutput();
+            if (connected != null) {
+                final String address = RelevantOutputs.toAddress(connected, params);
+                if (address != null) {
+                    addresses.add(address);
+                }
+            }
+        }
+        wtx.setRelevantOutputs(relevant.build());
+        searchIndex.put(wtx.getTxId(), addresses, wtx.getMemo());
+    }
+
+    /**
+     * Minimal set of changes needed to bring a displayed transaction list in
+     * line with the index.
+     */
+    public static class Changes {
+        private final List<WalletTransaction> added = new ArrayList<>();
+        private final List<WalletTransaction> removed = new ArrayList<>();
+        private final List<WalletTransaction> updatedFrom = new ArrayList<>();
+        private final List<WalletTransaction> updatedTo = new ArrayList<>();
+
+        /**
+         * @return transactions newly added to the index.
+         */
+        public List<WalletTransaction> getAdded() {
+            return Collections.unmodifiableList(added);
+        }
+
+        /**
+         * @return transactions removed from the index.
+         */
+        public List<WalletTransaction> getRemoved() {
+            return Collections.unmodifiableList(removed);
+        }
+
+        /**
+         * @return replacements for existing transactions, in the same order
+         * as {@link #getUpdatedFrom()}.
+         */
+        public List<WalletTransaction> getUpdatedTo() {
+            return Collections.unmodifiableList(updatedTo);
+        }
+
+        /**
+         * @return the existing transactions which have been replaced.
+         */
+        public List<WalletTransaction> getUpdatedFrom() {
+            return Collections.unmodifiableList(updatedFrom);
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && updatedTo.isEmpty();
+        }
+    }
+}
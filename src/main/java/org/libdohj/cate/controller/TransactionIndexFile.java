@@ -0,0 +1,245 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.wallet.Wallet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * On-disk copy of a network's {@link TransactionIndex}, so the transaction
+ * list can be shown at startup without replaying the wallet's history. Holds
+ * the hash, update time and balance change of each transaction, along with
+ * the wallet's last seen block when the file was written. The file is only
+ * trusted if that block is still on the chain the wallet has seen. Memos are
+ * not held, as the wallet saves them as they change, so its copy is never
+ * older than the file's would be.
+ *
+ * Files are written to a temporary file and then moved into place, so a
+ * crash while writing leaves the previous file intact.
+ *
+ * @author Ross Nicoll
+ */
+public class TransactionIndexFile {
+    private static final int MAGIC = 0x43484958; // "CHIX"
+    private static final int VERSION = 2;
+
+    private final Sha256Hash lastBlockSeenHash;
+    private final int lastBlockSeenHeight;
+    private final List<Entry> entries;
+
+    /**
+     * @param lastBlockSeenHash the wallet's last seen block when the entries
+     * were taken.
+     * @param lastBlockSeenHeight height of that block.
+     * @param entries the indexed transactions.
+     */
+    public TransactionIndexFile(final Sha256Hash lastBlockSeenHash, final int lastBlockSeenHeight,
+            final List<Entry> entries) {
+        this.lastBlockSeenHash = lastBlockSeenHash;
+        this.lastBlockSeenHeight = lastBlockSeenHeight;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Build a file from transactions in the index.
+     */
+    public static TransactionIndexFile of(final Sha256Hash lastBlockSeenHash, final int lastBlockSeenHeight,
+            final Collection<WalletTransaction> transactions) {
+        final List<Entry> entries = new ArrayList<>(transactions.size());
+        for (WalletTransaction wtx : transactions) {
+            entries.add(new Entry(wtx.getTxId(), wtx.getUpdateTime(), wtx.getBalanceChangeValue()));
+        }
+        return new TransactionIndexFile(lastBlockSeenHash, lastBlockSeenHeight, entries);
+    }
+
+    /**
+     * Read an index file.
+     *
+     * @param file the file to read.
+     * @return the file contents.
+     * @throws IOException if the file cannot be read, or is not a valid index.
+     */
+    public static TransactionIndexFile read(final File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a transaction index");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+            final Sha256Hash lastBlockSeenHash = in.readBoolean() ? readHash(in) : null;
+            final int lastBlockSeenHeight = in.readInt();
+            final int count = in.readInt();
+            if (count < 0) {
+                throw new IOException(file + " has invalid transaction count " + count);
+            }
+            final List<Entry> entries = new ArrayList<>(Math.min(count, 1 << 16));
+            for (int i = 0; i < count; i++) {
+                final Sha256Hash txId = readHash(in);
+                final long updateTime = in.readLong();
+                final long balanceChange = in.readLong();
+                entries.add(new Entry(txId, updateTime, balanceChange));
+            }
+            return new TransactionIndexFile(lastBlockSeenHash, lastBlockSeenHeight, entries);
+        } catch (EOFException ex) {
+            throw new IOException(file + " is truncated", ex);
+        }
+    }
+
+    /**
+     * Write the index to a file, replacing any existing file.
+     *
+     * @param file the file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(final File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(lastBlockSeenHash != null);
+            if (lastBlockSeenHash != null) {
+                out.write(lastBlockSeenHash.getBytes());
+            }
+            out.writeInt(lastBlockSeenHeight);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.write(entry.txId.getBytes());
+                out.writeLong(entry.updateTime);
+                out.writeLong(entry.balanceChange);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Check whether the file can be used for the given wallet. The wallet
+     * must either still be at the block it had last seen when the file was
+     * written, or have moved on to a block descended from it, in which case
+     * later transactions are picked up by reconciling against the wallet. If
+     * the wallet has gone back, for example because it was reset to replay the
+     * chain, or the block has since been reorganised away, the file is stale.
+     *
+     * @param wallet the wallet to check against.
+     * @param store block store holding the wallet's chain.
+     * @return true if the file is valid for the wallet.
+     */
+    public boolean isValidFor(final Wallet wallet, final BlockStore store) {
+        final Sha256Hash walletHash = wallet.getLastBlockSeenHash();
+        if (Objects.equals(walletHash, lastBlockSeenHash)) {
+            return true;
+        }
+        return walletHash != null && lastBlockSeenHash != null
+                && wallet.getLastBlockSeenHeight() > lastBlockSeenHeight
+                && isAncestorOf(store, walletHash);
+    }
+
+    /**
+     * Walk back from the given block to the height the file was written at,
+     * and check the block there is the one recorded. If the store does not
+     * reach back that far, the file cannot be shown to be valid.
+     */
+    private boolean isAncestorOf(final BlockStore store, final Sha256Hash descendant) {
+        try {
+            StoredBlock cursor = store.get(descendant);
+            while (cursor != null && cursor.getHeight() > lastBlockSeenHeight) {
+                cursor = cursor.getPrev(store);
+            }
+            return cursor != null && cursor.getHeader().getHash().equals(lastBlockSeenHash);
+        } catch (BlockStoreException ex) {
+            return false;
+        }
+    }
+
+    private static Sha256Hash readHash(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[Sha256Hash.LENGTH];
+        in.readFully(bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+
+    /**
+     * @return the wallet's last seen block when the file was written, or null
+     * if the wallet had not yet seen a block.
+     */
+    public Sha256Hash getLastBlockSeenHash() {
+        return lastBlockSeenHash;
+    }
+
+    public int getLastBlockSeenHeight() {
+        return lastBlockSeenHeight;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Stored details of a single transaction.
+     */
+    public static class Entry {
+        private final Sha256Hash txId;
+        private final long updateTime;
+        private final long balanceChange;
+
+        public Entry(final Sha256Hash txId, final long updateTime, final long balanceChange) {
+            this.txId = txId;
+            this.updateTime = updateTime;
+            this.balanceChange = balanceChange;
+        }
+
+        public Sha256Hash getTxId() {
+            return txId;
+        }
+
+        /**
+         * @return the update time of the transaction, in milliseconds since
+         * the epoch.
+         */
+        public long getUpdateTime() {
+            return updateTime;
+        }
+
+        /**
+         * @return the balance change the transaction caused, in the smallest
+         * unit of the currency.
+         */
+        public long getBalanceChange() {
+            return balanceChange;
+        }
+    }
+}
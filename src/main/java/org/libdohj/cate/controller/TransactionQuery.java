@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import org.libdohj.cate.Network;
+
+import java.util.Locale;
+
+/**
+ * Immutable filter over displayed transactions, by network, update time,
+ * balance change and memo text. Each test works from fields held directly
+ * on {@link WalletTransaction}, so matching does not create any of its
+ * JavaFX properties.
+ *
+ * @author Ross Nicoll
+ */
+public final class TransactionQuery {
+    /**
+     * Query matching every transaction.
+     */
+    public static final TransactionQuery ALL
+            = new TransactionQuery(null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, null);
+
+    private final Network network;
+    private final long fromMillis;
+    private final long toMillis;
+    private final long minAmount;
+    private final long maxAmount;
+    private final String memoText;
+
+    /**
+     * @param network network to show transactions from, or null for all.
+     * @param fromMillis earliest update time to include, in milliseconds
+     * since the epoch.
+     * @param toMillis latest update time to include, in milliseconds since
+     * the epoch.
+     * @param minAmount smallest balance change to include, in the smallest
+     * unit of the currency.
+     * @param maxAmount largest balance change to include, in the smallest
+     * unit of the currency.
+     * @param memoText text the memo must contain, ignoring case, or null to
+     * match any memo.
+     */
+    public TransactionQuery(final Network network, final long fromMillis, final long toMillis,
+            final long minAmount, final long maxAmount, final String memoText) {
+        this.network = network;
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.minAmount = minAmount;
+        this.maxAmount = maxAmount;
+        this.memoText = memoText == null || memoText.trim().isEmpty()
+                ? null
+                : memoText.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return true if the transaction passes every part of the query.
+     */
+    public boolean matches(final WalletTransaction wtx) {
+        if (network != null && wtx.getNetwork() != network) {
+            return false;
+        }
+        final long updateTime = wtx.getUpdateTime();
+        if (updateTime < fromMillis || updateTime > toMillis) {
+            return false;
+        }
+        final long amount = wtx.getBalanceChangeValue();
+        if (amount < minAmount || amount > maxAmount) {
+            return false;
+        }
+        if (memoText != null) {
+            final String memo = wtx.getMemo();
+            return memo != null && memo.toLowerCase(Locale.ROOT).contains(memoText);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if this query matches every transaction.
+     */
+    public boolean isAll() {
+        return network == null && fromMillis == Long.MIN_VALUE && toMillis == Long.MAX_VALUE
+                && minAmount == Long.MIN_VALUE && maxAmount == Long.MAX_VALUE && memoText == null;
+    }
+
+    public Network getNetwork() {
+        return network;
+    }
+
+    public long getFromMillis() {
+        return fromMillis;
+    }
+
+    public long getToMillis() {
+        return toMillis;
+    }
+
+    public long getMinAmount() {
+        return minAmount;
+    }
+
+    public long getMaxAmount() {
+        return maxAmount;
+    }
+
+    public String getMemoText() {
+        return memoText;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index from search terms to transaction IDs, so transactions can be
+ * found by address, transaction ID prefix or memo text without scanning every
+ * transaction. Supports:
+ *
+ * <ul>
+ * <li>Exact addresses, for transactions paying to or spending from them.</li>
+ * <li>Transaction ID prefixes, in hex.</li>
+ * <li>Memo words, matching case-insensitively by prefix. Where the query has
+ * several words, each must match a word in the memo.</li>
+ * </ul>
+ *
+ * Lookups cost O(log n) plus the number of matches. Not thread safe; the
+ * owning {@link TransactionIndex} guards access.
+ *
+ * @author Ross Nicoll
+ */
+class TransactionSearchIndex {
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern HEX = Pattern.compile("[0-9a-fA-F]{1,64}");
+    private static final int HASH_HEX_LENGTH = Sha256Hash.LENGTH * 2;
+    /**
+     * Orders hashes by their displayed (hex) form, so a hex prefix is a
+     * contiguous range.
+     */
+    private static final Comparator<Sha256Hash> HEX_ORDER = (a, b) -> {
+        final byte[] aBytes = a.getBytes();
+        final byte[] bBytes = b.getBytes();
+        for (int i = 0; i < Sha256Hash.LENGTH; i++) {
+            final int result = Integer.compare(aBytes[i] & 0xff, bBytes[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    };
+
+    private final NavigableSet<Sha256Hash> txIds = new TreeSet<>(HEX_ORDER);
+    private final Map<String, Set<Sha256Hash>> addresses = new HashMap<>();
+    private final NavigableMap<String, Set<Sha256Hash>> memoWords = new TreeMap<>();
+    /**
+     * Terms indexed for each transaction, so they can be removed again.
+     */
+    private final Map<Sha256Hash, Terms> terms = new HashMap<>();
+
+    /**
+     * Index a transaction, replacing any existing entry for it.
+     *
+     * @param txId ID of the transaction.
+     * @param txAddresses addresses the transaction pays to or spends from.
+     * @param memo the transaction memo, or null.
+     */
+    void put(final Sha256Hash txId, final Collection<String> txAddresses, final String memo) {
+        remove(txId);
+        final Terms entry = new Terms(txAddresses.toArray(new String[0]), toWords(memo));
+        terms.put(txId, entry);
+        txIds.add(txId);
+        for (String address : entry.addresses) {
+            addresses.computeIfAbsent(address, key -> new HashSet<>(2)).add(txId);
+        }
+        for (String word : entry.words) {
+            memoWords.computeIfAbsent(word, key -> new HashSet<>(2)).add(txId);
+        }
+    }
+
+    /**
+     * Replace the memo indexed for a transaction.
+     *
+     * @param txId ID of the transaction.
+     * @param memo the new memo, or null.
+     */
+    void updateMemo(final Sha256Hash txId, final String memo) {
+        final Terms existing = terms.get(txId);
+        if (existing != null) {
+            put(txId, Arrays.asList(existing.addresses), memo);
+        }
+    }
+
+    void remove(final Sha256Hash txId) {
+        final Terms existing = terms.remove(txId);
+        if (existing == null) {
+            return;
+        }
+        txIds.remove(txId);
+        for (String address : existing.addresses) {
+            removeFrom(addresses, address, txId);
+        }
+        for (String word : existing.words) {
+            removeFrom(memoWords, word, txId);
+        }
+    }
+
+    void clear() {
+        terms.clear();
+        txIds.clear();
+        addresses.clear();
+        memoWords.clear();
+    }
+
+    int size() {
+        return terms.size();
+    }
+
+    /**
+     * Find transactions matching a query as an address, transaction ID prefix
+     * or memo text.
+     *
+     * @param query the text to search for.
+     * @return IDs of matching transactions, in no particular order.
+     */
+    Set<Sha256Hash> search(final String query) {
+        final String trimmed = query.trim();
+        final Set<Sha256Hash> results = new HashSet<>();
+        if (trimmed.isEmpty()) {
+            return results;
+        }
+
+        final Set<Sha256Hash> byAddress = addresses.get(trimmed);
+        if (byAddress != null) {
+            results.addAll(byAddress);
+        }
+        if (HEX.matcher(trimmed).matches()) {
+            final String prefix = trimmed.toLowerCase(Locale.ROOT);
+            results.addAll(txIds.subSet(pad(prefix, '0'), true, pad(prefix, 'f'), true));
+        }
+        results.addAll(searchMemos(trimmed));
+        return results;
+    }
+
+    /**
+     * Check whether an indexed transaction matches a query, as
+     * {@link #search(String)} would find it, without searching every
+     * transaction.
+     *
+     * @param txId ID of the transaction.
+     * @param query the text to search for.
+     * @return true if the transaction is indexed and matches the query.
+     */
+    boolean matches(final Sha256Hash txId, final String query) {
+        final String trimmed = query.trim();
+        final Terms entry = terms.get(txId);
+        if (trimmed.isEmpty() || entry == null) {
+            return false;
+        }
+
+        for (String address : entry.addresses) {
+            if (address.equals(trimmed)) {
+                return true;
+            }
+        }
+        if (HEX.matcher(trimmed).matches()
+                && txId.toString().startsWith(trimmed.toLowerCase(Locale.ROOT))) {
+            return true;
+        }
+        final String[] queryWords = toWords(trimmed);
+        for (String queryWord : queryWords) {
+            if (!startsAnyWord(entry.words, queryWord)) {
+                return false;
+            }
+        }
+        return queryWords.length > 0;
+    }
+
+    private static boolean startsAnyWord(final String[] words, final String prefix) {
+        for (String word : words) {
+            if (word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<Sha256Hash> searchMemos(final String query) {
+        Set<Sha256Hash> matches = null;
+        for (String word : toWords(query)) {
+            final Set<Sha256Hash> wordMatches = new HashSet<>();
+            for (Set<Sha256Hash> txs : memoWords.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+                wordMatches.addAll(txs);
+            }
+            if (matches == null) {
+                matches = wordMatches;
+            } else {
+                matches.retainAll(wordMatches);
+            }
+            if (matches.isEmpty()) {
+                break;
+            }
+        }
+        return matches == null ? Collections.emptySet() : matches;
+    }
+
+    private static Sha256Hash pad(final String prefix, final char fill) {
+        final StringBuilder hex = new StringBuilder(HASH_HEX_LENGTH).append(prefix);
+        while (hex.length() < HASH_HEX_LENGTH) {
+            hex.append(fill);
+        }
+        return Sha256Hash.wrap(hex.toString());
+    }
+
+    /**
+     * Split text into distinct lower case words.
+     */
+    static String[] toWords(final String text) {
+        if (text == null) {
+            return new String[0];
+        }
+        final Set<String> words = new HashSet<>();
+        for (String word : WORD_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words.toArray(new String[0]);
+    }
+
+    private static void removeFrom(final Map<String, Set<Sha256Hash>> index, final String term,
+            final Sha256Hash txId) {
+        final Set<Sha256Hash> txs = index.get(term);
+        if (txs != null) {
+            txs.remove(txId);
+            if (txs.isEmpty()) {
+                index.remove(term);
+            }
+        }
+    }
+
+    private static class Terms {
+        private final String[] addresses;
+        private final String[] words;
+
+        private Terms(final String[] addresses, final String[] words) {
+            this.addresses = addresses;
+            this.words = words;
+        }
+    }
+}
@@ -15,14 +15,17 @@
  */
 package org.libdohj.cate.controller;
 
-import java.text.DateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
 import javafx.beans.property.ReadOnlyStringProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
-import org.bitcoinj.utils.MonetaryFormat;
 import org.libdohj.cate.Network;
 import org.libdohj.cate.util.NetworkResolver;
 
@@ -30,31 +33,108 @@ import org.libdohj.cate.util.NetworkResolver;
  * Class for holding transactions with the additional parts needed to display
  * them in JavaFX.
  *
+ * This is a compact record of what is shown for each row; the transaction ID
+ * (held as four longs rather than a hash object), update time, balance change
+ * and memo, plus the network the transaction belongs to, which is shared by
+ * all its rows. The bitcoinj transaction itself is not held, so the wallet
+ * remains the only owner of its object graph; it is looked up by ID for the
+ * few uses which need it, see {@link #getTransaction()}.
+ *
+ * Everything else shown about the row, its memo and its
+ * {@link RelevantOutputs}, is worked out on the network thread and held, so
+ * the UI never needs the wallet lock to show a row. Editing the memo does not
+ * change this row; the network sets the memo on the wallet and then replaces
+ * the row with one built from it, through the usual transaction changes.
+ *
+ * The JavaFX properties are created the first time they are asked for, which
+ * for a table is when the row is first displayed. Property accessors MUST be
+ * called on the UI thread.
+ *
  * @author Ross Nicoll
  */
 public class WalletTransaction extends Object {
+    /**
+     * Date format shared by all transactions. Unlike DateFormat,
+     * DateTimeFormatter is immutable and safe to share between threads.
+     */
+    public static final DateTimeFormatter DATE_FORMAT
+            = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT).withZone(ZoneId.systemDefault());
+
     private final Network network;
-    private final Transaction transaction;
-    private final Coin balanceChange;
-    private final ReadOnlyStringProperty networkNameProperty;
-    private final ReadOnlyStringProperty dateProperty;
-    private final ReadOnlyStringProperty amountProperty;
-    private final StringProperty memoProperty;
-    private final DateFormat dateFormat;
+    /*
+     * Transaction ID, as the big-endian longs of its bytes in the order
+     * returned by Sha256Hash.getBytes().
+     */
+    private final long txId0;
+    private final long txId1;
+    private final long txId2;
+    private final long txId3;
+    /**
+     * Update time of the transaction when this was created. Held separately
+     * as the transaction's own update time may change underneath us.
+     */
+    private final long updateTime;
+    private final long balanceChange;
+    private final String memo;
+    private ReadOnlyStringProperty networkNameProperty;
+    private ReadOnlyStringProperty dateProperty;
+    private ReadOnlyStringProperty amountProperty;
+    private StringProperty memoProperty;
+    private volatile RelevantOutputs relevantOutputs;
 
     protected WalletTransaction(final Network network, final Transaction transaction, final Coin balanceChange) {
+        this(network, transaction.getTxId(), transaction.getUpdateTime().getTime(), balanceChange.value,
+                transaction.getMemo());
+    }
+
+    /**
+     * Create a transaction with a previously calculated update time and
+     * balance change, such as from a {@link TransactionIndexFile}.
+     */
+    protected WalletTransaction(final Network network, final Sha256Hash txId, final long updateTime,
+            final long balanceChange, final String memo) {
+        final byte[] bytes = txId.getBytes();
         this.network = network;
-        this.transaction = transaction;
+        this.txId0 = toLong(bytes, 0);
+        this.txId1 = toLong(bytes, 8);
+        this.txId2 = toLong(bytes, 16);
+        this.txId3 = toLong(bytes, 24);
+        this.updateTime = updateTime;
         this.balanceChange = balanceChange;
-        final MonetaryFormat monetaryFormatter = network.getParams().getMonetaryFormat();
-        dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
-        networkNameProperty = new SimpleStringProperty(NetworkResolver.getName(network.getParams()));
-        dateProperty = new SimpleStringProperty(dateFormat.format(transaction.getUpdateTime()));
-        amountProperty = new SimpleStringProperty(monetaryFormatter.format(balanceChange).toString());
-        memoProperty = new SimpleStringProperty(transaction.getMemo());
-        memoProperty.addListener(change -> {
-            transaction.setMemo(memoProperty.getValue());
-        });
+        this.memo = memo;
+    }
+
+    private static long toLong(final byte[] bytes, final int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (bytes[i] & 0xffL);
+        }
+        return result;
+    }
+
+    private static void fromLong(final long value, final byte[] bytes, final int offset) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+
+    /**
+     * Compare the IDs of two transactions, without creating hash objects for
+     * them. Gives a total order, but not the same order as
+     * {@link Sha256Hash#compareTo(Sha256Hash)}.
+     */
+    static int compareTxIds(final WalletTransaction a, final WalletTransaction b) {
+        int result = Long.compareUnsigned(a.txId0, b.txId0);
+        if (result == 0) {
+            result = Long.compareUnsigned(a.txId1, b.txId1);
+        }
+        if (result == 0) {
+            result = Long.compareUnsigned(a.txId2, b.txId2);
+        }
+        if (result == 0) {
+            result = Long.compareUnsigned(a.txId3, b.txId3);
+        }
+        return result;
     }
 
     /**
@@ -72,23 +152,90 @@ public class WalletTransaction extends Object {
     }
 
     /**
-     * @return the transaction
+     * Look up the transaction in the network's wallet. Takes the wallet lock,
+     * so avoid calling this for many transactions at a time.
+     *
+     * @return the transaction, or null if it is no longer in the wallet.
      */
     public Transaction getTransaction() {
-        return transaction;
+        return network.wallet().getTransaction(getTxId());
+    }
+
+    /**
+     * @return the ID of the transaction.
+     */
+    public Sha256Hash getTxId() {
+        final byte[] bytes = new byte[32];
+        fromLong(txId0, bytes, 0);
+        fromLong(txId1, bytes, 8);
+        fromLong(txId2, bytes, 16);
+        fromLong(txId3, bytes, 24);
+        return Sha256Hash.wrap(bytes);
     }
 
     /**
      * @return the balance change this transaction causes to the wallet.
      */
     public Coin getBalanceChange() {
+        return Coin.valueOf(balanceChange);
+    }
+
+    /**
+     * @return the balance change this transaction causes to the wallet, in
+     * the smallest unit of the currency.
+     */
+    public long getBalanceChangeValue() {
         return balanceChange;
     }
 
+    /**
+     * @return the update time of the transaction, in milliseconds since the
+     * epoch, as it was when this was created.
+     */
+    public long getUpdateTime() {
+        return updateTime;
+    }
+
+    /**
+     * @return the outputs of the transaction which matter to the user, and
+     * the addresses they pay, as worked out on the network thread when the
+     * transaction was indexed, or null if it has not been indexed yet. Never
+     * touches the wallet, so safe to call from the UI thread.
+     */
+    public RelevantOutputs getRelevantOutputs() {
+        return relevantOutputs;
+    }
+
+    /**
+     * Get the relevant outputs, working them out from the wallet if the
+     * transaction has not been indexed yet. Takes the wallet lock in that
+     * case, so MUST NOT be called on the UI thread.
+     *
+     * @return the relevant outputs, or {@link RelevantOutputs#NONE} if the
+     * transaction is no longer in the wallet.
+     */
+    public RelevantOutputs lookUpRelevantOutputs() {
+        final RelevantOutputs result = relevantOutputs;
+        if (result != null) {
+            return result;
+        }
+        final Transaction tx = getTransaction();
+        return tx == null
+                ? RelevantOutputs.NONE
+                : RelevantOutputs.of(tx, network.wallet(), balanceChange > 0);
+    }
+
+    void setRelevantOutputs(final RelevantOutputs relevantOutputs) {
+        this.relevantOutputs = relevantOutputs;
+    }
+
     /**
      * @return the property holding the transaction amount.
      */
     public ReadOnlyStringProperty amountProperty() {
+        if (amountProperty == null) {
+            amountProperty = new SimpleStringProperty(network.format(getBalanceChange()).toString());
+        }
         return amountProperty;
     }
 
@@ -96,6 +243,9 @@ public class WalletTransaction extends Object {
      * @return the property holding the transaction date.
      */
     public ReadOnlyStringProperty dateProperty() {
+        if (dateProperty == null) {
+            dateProperty = new SimpleStringProperty(DATE_FORMAT.format(Instant.ofEpochMilli(updateTime)));
+        }
         return dateProperty;
     }
 
@@ -104,6 +254,9 @@ public class WalletTransaction extends Object {
      * belongs to.
      */
     public ReadOnlyStringProperty networkNameProperty() {
+        if (networkNameProperty == null) {
+            networkNameProperty = new SimpleStringProperty(NetworkResolver.getName(network.getParams()));
+        }
         return networkNameProperty;
     }
 
@@ -111,14 +264,21 @@ public class WalletTransaction extends Object {
      * @return the property holding the transaction memo text.
      */
     public StringProperty memoProperty() {
+        if (memoProperty == null) {
+            memoProperty = new SimpleStringProperty(memo);
+            memoProperty.addListener(change -> {
+                updateMemo(memoProperty.getValue());
+            });
+        }
         return memoProperty;
     }
 
     /**
-     * Get the memo from the transaction.
+     * Get the memo of the transaction, as it was when this row was built.
+     * Safe to call from any thread.
      */
     public String getMemo() {
-        return memoProperty.get();
+        return memo;
     }
 
     /**
@@ -127,7 +287,19 @@ public class WalletTransaction extends Object {
      * @param text new memo text
      */
     public void setMemo(String text) {
-        memoProperty.set(text);
+        if (memoProperty == null) {
+            updateMemo(text);
+        } else {
+            memoProperty.set(text);
+        }
+    }
+
+    /**
+     * Have the network set the new memo on the wallet's copy of the
+     * transaction. The network then replaces this row with one carrying the
+     * new memo.
+     */
+    private void updateMemo(final String text) {
+        network.setMemo(getTxId(), text);
     }
-    
 }
@@ -27,7 +27,7 @@ public class BlockExplorerResolver {
         StringBuilder sb = new StringBuilder(CHAINSO_BASE_URL);
         sb.append(CHAINSO_PATH_TX);
         sb.append(networkCodeToPath(NetworkResolver.getCode(wtx.getParams())));
-        sb.append(wtx.getTransaction().getHashAsString());
+        sb.append(wtx.getTxId().toString());
         return sb.toString();
     }
 
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.SPVBlockStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line tool which writes a checkpoint file for a network from the
+ * headers in an existing, synced, local block store, such as the
+ * "cate_*.spvchain" files in the CATE data directory. Either block store type
+ * CATE supports can be read.
+ *
+ * Usage: CheckpointGenerator &lt;network name&gt; &lt;chain file&gt; [output file] [minimum age in days]
+ *
+ * The output defaults to the file name {@link CheckpointResources} expects,
+ * in the current directory, for copying into the resources directory.
+ * Checkpoints are taken at difficulty retarget heights only, and must be at
+ * least the minimum age (default 30 days) so they are safely buried.
+ *
+ * Only headers still in the store can be checkpointed. bitcoinj's SPV store
+ * holds the latest 5,000 headers, which for most networks does not reach
+ * back to the minimum age at all, so sync the chain into a mapped store
+ * large enough to hold the whole chain first (i.e. with
+ * "-Dcate.blockStore=mapped -Dcate.blockStoreCapacity=10000000").
+ *
+ * @author Ross Nicoll
+ */
+public class CheckpointGenerator {
+    public static final int DEFAULT_MIN_AGE_DAYS = 30;
+
+    private final NetworkParameters params;
+
+    public CheckpointGenerator(final NetworkParameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Collect checkpoints from the given store, walking back from its chain
+     * head for as long as the store holds headers.
+     *
+     * @param store the store to read headers from.
+     * @param maxTimeSeconds latest block time, in seconds since the epoch, to
+     * take a checkpoint at.
+     * @return checkpoints, oldest first.
+     * @throws BlockStoreException if there was a problem reading the store.
+     */
+    public List<StoredBlock> collect(final BlockStore store, final long maxTimeSeconds)
+            throws BlockStoreException {
+        final List<StoredBlock> checkpoints = new ArrayList<>();
+        StoredBlock cursor = store.getChainHead();
+        while (cursor != null) {
+            if (cursor.getHeight() % params.getInterval() == 0
+                    && cursor.getHeader().getTimeSeconds() <= maxTimeSeconds) {
+                checkpoints.add(cursor);
+            }
+            cursor = cursor.getPrev(store);
+        }
+        Collections.reverse(checkpoints);
+        return checkpoints;
+    }
+
+    /**
+     * Write checkpoints in the textual format read by bitcoinj's
+     * CheckpointManager.
+     *
+     * @param checkpoints checkpoints to write, oldest first.
+     * @param out writer to write to.
+     */
+    public static void write(final List<StoredBlock> checkpoints, final PrintWriter out) {
+        final ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        out.println("TXT CHECKPOINTS 1");
+        out.println("0"); // Number of signatures to read; we don't sign checkpoints
+        out.println(checkpoints.size());
+        for (StoredBlock checkpoint : checkpoints) {
+            buffer.clear();
+            checkpoint.serializeCompact(buffer);
+            out.println(Base64.getEncoder().encodeToString(buffer.array()));
+        }
+    }
+
+    private static BlockStore openStore(final NetworkParameters params, final File chainFile)
+            throws BlockStoreException {
+        if (MappedBlockStore.isMappedBlockStore(chainFile)) {
+            return new MappedBlockStore(params, chainFile, MappedBlockStore.readCapacity(chainFile));
+        }
+        return new SPVBlockStore(params, chainFile);
+    }
+
+    public static void main(String[] args) throws BlockStoreException, IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CheckpointGenerator <network name> <chain file> [output file] [minimum age in days]");
+            System.err.println("Networks: " + NetworkResolver.getNames());
+            System.exit(1);
+            return;
+        }
+        final NetworkParameters params = NetworkResolver.getParameter(args[0]);
+        if (params == null) {
+            System.err.println("Unknown network \"" + args[0] + "\", expected one of " + NetworkResolver.getNames());
+            System.exit(1);
+            return;
+        }
+        final File chainFile = new File(args[1]);
+        final String resourceName = CheckpointResources.getResourceName(NetworkResolver.getCode(params));
+        final File outputFile = new File(args.length > 2
+                ? args[2]
+                : resourceName.substring(resourceName.lastIndexOf('/') + 1));
+        final int minAgeDays = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MIN_AGE_DAYS;
+        final long maxTimeSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())
+                - TimeUnit.DAYS.toSeconds(minAgeDays);
+
+        Context.propagate(new Context(params));
+        final BlockStore store = openStore(params, chainFile);
+        final List<StoredBlock> checkpoints;
+        try {
+            checkpoints = new CheckpointGenerator(params).collect(store, maxTimeSeconds);
+        } finally {
+            store.close();
+        }
+        if (checkpoints.isEmpty()) {
+            System.err.println("No headers in " + chainFile + " are at a retarget height and old enough to checkpoint;"
+                    + " the store may not hold enough headers, see the CheckpointGenerator documentation");
+            System.exit(1);
+            return;
+        }
+        if (checkpoints.get(0).getHeight() > params.getInterval()) {
+            System.err.println("Warning: store only reaches back to height " + checkpoints.get(0).getHeight()
+                    + ", older checkpoints are missing");
+        }
+
+        try (PrintWriter out = new PrintWriter(outputFile, StandardCharsets.US_ASCII.name())) {
+            write(checkpoints, out);
+        }
+        final StoredBlock latest = checkpoints.get(checkpoints.size() - 1);
+        System.out.println("Wrote " + checkpoints.size() + " checkpoints to " + outputFile
+                + ", latest at height " + latest.getHeight() + " (" + latest.getHeader().getTime() + ")");
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import org.bitcoinj.core.NetworkParameters;
+
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Locates checkpoint files bundled with CATE for each supported network,
+ * which would let a new wallet start syncing headers from a recent block
+ * instead of from genesis. Files are generated by {@link CheckpointGenerator}
+ * and held under "/org/libdohj/cate/checkpoints/" on the classpath, named by
+ * network code, i.e. "doge.checkpoints.txt".
+ *
+ * Networks load them when creating a new chain. Where a network has no file
+ * bundled, it is simply skipped, and new wallets use bitcoinj's own
+ * checkpoints, which exist for Bitcoin only.
+ *
+ * @author Ross Nicoll
+ */
+public class CheckpointResources {
+    public static final String RESOURCE_PATH = "/org/libdohj/cate/checkpoints/";
+    public static final String RESOURCE_SUFFIX = ".checkpoints.txt";
+
+    /**
+     * @param code the network to get the checkpoint resource name for.
+     * @return the classpath resource name of the network's checkpoints.
+     */
+    public static String getResourceName(final NetworkResolver.NetworkCode code) {
+        return RESOURCE_PATH + code.name().toLowerCase(Locale.ROOT) + RESOURCE_SUFFIX;
+    }
+
+    /**
+     * Open the bundled checkpoints for a network.
+     *
+     * @param params the network to open checkpoints for.
+     * @return a stream of the checkpoints in bitcoinj's textual format, or null
+     * if the network is unknown or has no bundled checkpoints.
+     */
+    public static InputStream open(final NetworkParameters params) {
+        final NetworkResolver.NetworkCode code = NetworkResolver.getCode(params);
+        if (code == null) {
+            return null;
+        }
+        return CheckpointResources.class.getResourceAsStream(getResourceName(code));
+    }
+}
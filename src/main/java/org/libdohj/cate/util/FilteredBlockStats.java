@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts filtered blocks received from peers, the bytes they took and the
+ * transactions they matched, including false positives (matched by the bloom
+ * filter but not relevant to the wallet).
+ *
+ * @author Ross Nicoll
+ */
+public class FilteredBlockStats {
+    private final AtomicLong blocks = new AtomicLong(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final AtomicLong matchedTransactions = new AtomicLong(0);
+    private final AtomicLong falsePositives = new AtomicLong(0);
+    private final AtomicLong recalculations = new AtomicLong(0);
+    private final AtomicLong blocksAtLastRecalculation = new AtomicLong(0);
+
+    /**
+     * Record a filtered block.
+     *
+     * @param size size of the merkle block and matched transactions, in bytes.
+     * @param matched number of transactions matched by the filter.
+     * @param falsePositive number of matched transactions not relevant to the
+     * wallet.
+     */
+    public void recordBlock(final long size, final int matched, final int falsePositive) {
+        blocks.incrementAndGet();
+        bytes.addAndGet(size);
+        matchedTransactions.addAndGet(matched);
+        falsePositives.addAndGet(falsePositive);
+    }
+
+    /**
+     * Record a filter recalculation, unless another has been recorded since
+     * the caller last checked, so concurrent checks recalculate only once.
+     *
+     * @param expectedBlocksAtLast the value of
+     * {@link #getBlocksAtLastRecalculation()} the caller based its decision to
+     * recalculate on.
+     * @return true if the recalculation was recorded, false if another was
+     * recorded first.
+     */
+    public boolean recordRecalculation(final long expectedBlocksAtLast) {
+        if (!blocksAtLastRecalculation.compareAndSet(expectedBlocksAtLast, blocks.get())) {
+            return false;
+        }
+        recalculations.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return the filtered block count when the filter was last recalculated,
+     * or zero if it never has been.
+     */
+    public long getBlocksAtLastRecalculation() {
+        return blocksAtLastRecalculation.get();
+    }
+
+    public long getBlockCount() {
+        return blocks.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getMatchedTransactionCount() {
+        return matchedTransactions.get();
+    }
+
+    public long getFalsePositiveCount() {
+        return falsePositives.get();
+    }
+
+    public long getRecalculationCount() {
+        return recalculations.get();
+    }
+
+    @Override
+    public String toString() {
+        return blocks.get() + " filtered blocks, " + bytes.get() + " bytes, "
+                + matchedTransactions.get() + " matched transactions ("
+                + falsePositives.get() + " false positives), "
+                + recalculations.get() + " filter recalculations";
+    }
+}
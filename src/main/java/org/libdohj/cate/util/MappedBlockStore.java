@@ -0,0 +1,489 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SPV block store which keeps a fixed number of the most recent headers in a
+ * memory-mapped ring buffer of fixed size records. Unlike bitcoinj's
+ * SPVBlockStore it also maintains an index of the best chain by height, so
+ * {@link #getByHeight(int)} is a single lookup rather than a walk back from
+ * the chain head.
+ *
+ * Both indexes are held as primitive arrays of ring slots, compared against
+ * the hashes in the mapped file, so no objects are held per header. They are
+ * rebuilt from the mapped file on open, which for the default capacity takes
+ * a few milliseconds.
+ *
+ * File layout is a 64 byte header (magic, version, capacity, write cursor,
+ * chain head hash) followed by capacity records of block hash and compact
+ * serialized block.
+ *
+ * @author Ross Nicoll
+ */
+public class MappedBlockStore implements BlockStore {
+    /**
+     * Time covered by the headers held by default, in seconds. Long enough for
+     * a wallet opened after a month away to be replayed from the store.
+     */
+    public static final long DEFAULT_RETENTION_SECONDS = TimeUnit.DAYS.toSeconds(30);
+    /**
+     * Fewest headers held by default, whatever the block interval. A little
+     * over two months of Bitcoin blocks.
+     */
+    public static final int MINIMUM_DEFAULT_CAPACITY = 10000;
+
+    private static final byte[] MAGIC = {'C', 'M', 'B', 'S'};
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 64;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int CURSOR_OFFSET = 12;
+    private static final int CHAIN_HEAD_OFFSET = 16;
+
+    private static final int RECORD_SIZE = Sha256Hash.LENGTH + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    /**
+     * Offset of the hash index key within a hash. Proof of work makes the
+     * leading bytes of a block hash zero, so the key is the trailing bytes.
+     */
+    private static final int KEY_OFFSET = Sha256Hash.LENGTH - 8;
+    /** Offset of the height within a record, after the hash and chain work. */
+    private static final int HEIGHT_OFFSET = Sha256Hash.LENGTH + StoredBlock.CHAIN_WORK_BYTES;
+    /** Offset of the previous block hash within a record, after the height and header version. */
+    private static final int PREV_HASH_OFFSET = HEIGHT_OFFSET + 4 + 4;
+
+    private final NetworkParameters params;
+    private final int capacity;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /** Open addressing hash index of ring slot + 1, zero where empty. */
+    private final int[] hashIndex;
+    private final int hashIndexMask;
+    /** Ring slot + 1 of the best chain block at each height modulo capacity. */
+    private final int[] heightIndex;
+    /** Scratch space for reading hashes out of the mapped file. */
+    private final byte[] scratchHash = new byte[Sha256Hash.LENGTH];
+    private int cursor;
+    private StoredBlock chainHead;
+
+    /**
+     * Open a store, creating it if the file does not exist or is empty.
+     *
+     * @param params network the store belongs to.
+     * @param path file to store the headers in.
+     * @param capacity number of headers to hold. Must match the capacity of an
+     * existing store.
+     * @throws BlockStoreException if the store could not be opened.
+     */
+    public MappedBlockStore(final NetworkParameters params, final File path, final int capacity)
+            throws BlockStoreException {
+        this.params = params;
+        this.capacity = capacity;
+        this.heightIndex = new int[capacity];
+        this.hashIndex = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        this.hashIndexMask = hashIndex.length - 1;
+
+        final boolean exists = path.exists() && path.length() > 0;
+        if (exists && !isMappedBlockStore(path)) {
+            throw new BlockStoreException(path + " is not a mapped block store");
+        }
+        try {
+            file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    FILE_HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        } catch (IOException ex) {
+            throw new BlockStoreException("Could not open block store " + path, ex);
+        }
+
+        try {
+            if (exists) {
+                load();
+            } else {
+                initialise();
+            }
+        } catch (BlockStoreException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Number of headers to hold by default for a network; enough to cover
+     * {@link #DEFAULT_RETENTION_SECONDS} at the network's target block
+     * interval, and no fewer than {@link #MINIMUM_DEFAULT_CAPACITY}. For
+     * Dogecoin's one minute blocks that is 43,200 headers, or about 5.5MB.
+     *
+     * @param params the network the store is for.
+     * @return the number of headers to hold.
+     */
+    public static int defaultCapacity(final NetworkParameters params) {
+        final long spacing = Math.max(1, params.getTargetTimespan() / Math.max(1, params.getInterval()));
+        return (int) Math.max(MINIMUM_DEFAULT_CAPACITY, DEFAULT_RETENTION_SECONDS / spacing);
+    }
+
+    /**
+     * Read the capacity of an existing store, so it can be reopened without
+     * knowing the capacity it was created with.
+     *
+     * @param path file to check.
+     * @return the capacity, or -1 if the file is not a store of this type.
+     */
+    public static int readCapacity(final File path) {
+        if (!isMappedBlockStore(path)) {
+            return -1;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(path, "r")) {
+            in.seek(CAPACITY_OFFSET);
+            return in.readInt();
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Check whether the given file is a store of this type, so a store of
+     * another type can be replaced.
+     *
+     * @param path file to check.
+     * @return true if the file exists and starts with this store's magic bytes.
+     */
+    public static boolean isMappedBlockStore(final File path) {
+        if (!path.exists()) {
+            return false;
+        }
+        final byte[] magic = new byte[MAGIC.length];
+        try (RandomAccessFile in = new RandomAccessFile(path, "r")) {
+            in.readFully(magic);
+        } catch (IOException ex) {
+            return false;
+        }
+        return Arrays.equals(MAGIC, magic);
+    }
+
+    private void initialise() throws BlockStoreException {
+        buffer.position(0);
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(CURSOR_OFFSET, 0);
+        cursor = 0;
+
+        final Block genesis = params.getGenesisBlock().cloneAsHeader();
+        final StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+        put(storedGenesis);
+        setChainHead(storedGenesis);
+    }
+
+    private void load() throws BlockStoreException {
+        final int version = buffer.getInt(VERSION_OFFSET);
+        if (version != VERSION) {
+            throw new BlockStoreException("Unsupported block store version " + version);
+        }
+        final int storedCapacity = buffer.getInt(CAPACITY_OFFSET);
+        if (storedCapacity != capacity) {
+            throw new BlockStoreException("Block store capacity is " + storedCapacity
+                    + " but expected " + capacity);
+        }
+        cursor = buffer.getInt(CURSOR_OFFSET);
+
+        for (int slot = 0; slot < capacity; slot++) {
+            if (!isEmpty(slot)) {
+                indexInsert(slot);
+            }
+        }
+
+        buffer.position(CHAIN_HEAD_OFFSET);
+        buffer.get(scratchHash);
+        final int headSlot = findSlot(scratchHash);
+        if (headSlot < 0) {
+            throw new BlockStoreException("Chain head is missing from block store");
+        }
+        chainHead = read(headSlot);
+        indexBestChain(headSlot, chainHead.getHeight());
+    }
+
+    @Override
+    public synchronized void put(final StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        final byte[] hash = block.getHeader().getHash().getBytes();
+        int slot = findSlot(hash);
+
+        if (slot < 0) {
+            slot = cursor;
+            if (!isEmpty(slot)) {
+                evict(slot);
+            }
+            cursor = (cursor + 1) % capacity;
+            buffer.putInt(CURSOR_OFFSET, cursor);
+            write(slot, hash, block);
+            indexInsert(slot);
+        } else {
+            write(slot, hash, block);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        final int slot = findSlot(hash.getBytes());
+        return slot < 0 ? null : read(slot);
+    }
+
+    /**
+     * Get the block at the given height on the best chain.
+     *
+     * @param height the height of the block.
+     * @return the block, or null if the height is above the chain head, or
+     * old enough to have been dropped from the store.
+     * @throws BlockStoreException if the store is closed.
+     */
+    public synchronized StoredBlock getByHeight(final int height) throws BlockStoreException {
+        checkOpen();
+        if (height < 0 || chainHead == null || height > chainHead.getHeight()) {
+            return null;
+        }
+        final int slot = heightIndex[height % capacity] - 1;
+        if (slot < 0 || recordHeight(slot) != height) {
+            return null;
+        }
+        return read(slot);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(final StoredBlock head) throws BlockStoreException {
+        checkOpen();
+        final byte[] hash = head.getHeader().getHash().getBytes();
+        final int slot = findSlot(hash);
+        if (slot < 0) {
+            throw new BlockStoreException("New chain head " + head.getHeader().getHash()
+                    + " has not been stored");
+        }
+        buffer.position(CHAIN_HEAD_OFFSET);
+        buffer.put(hash);
+        chainHead = head;
+        indexBestChain(slot, head.getHeight());
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        try {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+            channel.close();
+            file.close();
+        } catch (IOException ex) {
+            throw new BlockStoreException(ex);
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (buffer == null) {
+            throw new BlockStoreException("Block store is closed");
+        }
+    }
+
+    /**
+     * Walk back from the given block, recording each block as the best chain
+     * block at its height, until we reach a height already pointing at the
+     * same block, or run out of stored blocks.
+     */
+    private void indexBestChain(int slot, int height) {
+        while (slot >= 0 && height >= 0) {
+            final int position = height % capacity;
+            if (heightIndex[position] == slot + 1) {
+                break;
+            }
+            heightIndex[position] = slot + 1;
+            height--;
+            slot = findPreviousSlot(slot);
+        }
+    }
+
+    private void evict(final int slot) {
+        final int position = recordHeight(slot) % capacity;
+        if (heightIndex[position] == slot + 1) {
+            heightIndex[position] = 0;
+        }
+        indexRemove(slot);
+    }
+
+    private void write(final int slot, final byte[] hash, final StoredBlock block) {
+        buffer.position(recordOffset(slot));
+        buffer.put(hash);
+        block.serializeCompact(buffer);
+    }
+
+    private StoredBlock read(final int slot) {
+        buffer.position(recordOffset(slot) + Sha256Hash.LENGTH);
+        return StoredBlock.deserializeCompact(params, buffer);
+    }
+
+    private int recordHeight(final int slot) {
+        return buffer.getInt(recordOffset(slot) + HEIGHT_OFFSET);
+    }
+
+    private boolean isEmpty(final int slot) {
+        final int offset = recordOffset(slot);
+        for (int i = 0; i < Sha256Hash.LENGTH; i += 8) {
+            if (buffer.getLong(offset + i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int recordOffset(final int slot) {
+        return FILE_HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * Find the slot of the parent of the block in the given slot. The header
+     * holds the parent's hash in wire (reversed) byte order.
+     */
+    private int findPreviousSlot(final int slot) {
+        final int offset = recordOffset(slot) + PREV_HASH_OFFSET;
+        for (int i = 0; i < Sha256Hash.LENGTH; i++) {
+            scratchHash[Sha256Hash.LENGTH - 1 - i] = buffer.get(offset + i);
+        }
+        return findSlot(scratchHash);
+    }
+
+    private int findSlot(final byte[] hash) {
+        int bucket = bucket(keyOf(hash));
+        while (hashIndex[bucket] != 0) {
+            final int slot = hashIndex[bucket] - 1;
+            if (matches(slot, hash)) {
+                return slot;
+            }
+            bucket = (bucket + 1) & hashIndexMask;
+        }
+        return -1;
+    }
+
+    private boolean matches(final int slot, final byte[] hash) {
+        final int offset = recordOffset(slot);
+        for (int i = 0; i < Sha256Hash.LENGTH; i++) {
+            if (buffer.get(offset + i) != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void indexInsert(final int slot) {
+        int bucket = bucket(storedKey(slot));
+        while (hashIndex[bucket] != 0) {
+            bucket = (bucket + 1) & hashIndexMask;
+        }
+        hashIndex[bucket] = slot + 1;
+    }
+
+    /**
+     * Remove a slot from the hash index, shifting later entries in the probe
+     * sequence back so lookups do not need tombstones.
+     */
+    private void indexRemove(final int slot) {
+        int hole = bucket(storedKey(slot));
+        while (hashIndex[hole] != slot + 1) {
+            if (hashIndex[hole] == 0) {
+                return;
+            }
+            hole = (hole + 1) & hashIndexMask;
+        }
+
+        int next = hole;
+        while (true) {
+            next = (next + 1) & hashIndexMask;
+            if (hashIndex[next] == 0) {
+                break;
+            }
+            final int home = bucket(storedKey(hashIndex[next] - 1));
+            // Leave the entry alone if its home bucket lies cyclically in (hole, next]
+            final boolean reachable = hole <= next
+                    ? (hole < home && home <= next)
+                    : (hole < home || home <= next);
+            if (!reachable) {
+                hashIndex[hole] = hashIndex[next];
+                hole = next;
+            }
+        }
+        hashIndex[hole] = 0;
+    }
+
+    /**
+     * Key from the last eight bytes of a hash, matching a big-endian
+     * {@link MappedByteBuffer#getLong(int)} of the stored hash.
+     */
+    static long keyOf(final byte[] hash) {
+        long key = 0;
+        for (int i = KEY_OFFSET; i < Sha256Hash.LENGTH; i++) {
+            key = (key << 8) | (hash[i] & 0xffL);
+        }
+        return key;
+    }
+
+    private long storedKey(final int slot) {
+        return buffer.getLong(recordOffset(slot) + KEY_OFFSET);
+    }
+
+    private int bucket(final long key) {
+        return bucket(key, hashIndexMask);
+    }
+
+    /**
+     * Bucket for a key, in a table of mask + 1 buckets. The trailing bytes of
+     * a hash are not constrained by proof of work, but the key is still mixed
+     * so every bit of it affects the bucket.
+     */
+    static int bucket(final long key, final int mask) {
+        final long mixed = key * 0x9e3779b97f4a7c15L;
+        return (int) (mixed ^ (mixed >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Iterator which lazily merges a number of individually sorted iterators into
+ * a single sorted sequence. Only the head of each source is held at any time,
+ * so a merge over k sources costs O(log k) per element and O(k) memory,
+ * regardless of how long the sources are.
+ *
+ * @param <T> the type of element being merged.
+ * @author Ross Nicoll
+ */
+public class MergingIterator<T> implements Iterator<T> {
+    private final PriorityQueue<Head<T>> heads;
+
+    /**
+     * @param sources iterators to merge, each of which must already be sorted
+     * according to the comparator.
+     * @param comparator ordering to merge in.
+     */
+    public MergingIterator(final List<? extends Iterator<? extends T>> sources,
+            final Comparator<? super T> comparator) {
+        this.heads = new PriorityQueue<>(Math.max(1, sources.size()),
+                (a, b) -> comparator.compare(a.value, b.value));
+        for (Iterator<? extends T> source : sources) {
+            if (source.hasNext()) {
+                heads.add(new Head<>(source.next(), source));
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        final Head<T> head = heads.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        final T value = head.value;
+        if (head.source.hasNext()) {
+            head.value = head.source.next();
+            heads.add(head);
+        }
+        return value;
+    }
+
+    private static class Head<T> {
+        private T value;
+        private final Iterator<? extends T> source;
+
+        private Head(final T value, final Iterator<? extends T> source) {
+            this.value = value;
+            this.source = source;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Single threaded executor for a network, with a bounded queue, task
+ * priorities and instrumentation.
+ *
+ * Tasks run one at a time in priority order, and in submission order within
+ * a priority, so wallet changes are never held up behind a backlog of UI
+ * refreshes. Once the queue is full, further submissions are handled by the
+ * {@link BackPressure} policy. Tasks submitted from the executor's own thread
+ * are always accepted, as blocking or failing those would deadlock or lose
+ * the follow-on work of a task already running. Likewise submitters which
+ * must not block (such as the JavaFX application thread), and listener
+ * events queued through {@link #forEvents(Executor, Priority)}, are accepted
+ * over capacity rather than made to wait; this is counted as an overflow.
+ *
+ * Queue depth, the time tasks wait in the queue and the time they take to
+ * run are tracked, and can be registered with a {@link NetworkMetrics}.
+ *
+ * @author Ross Nicoll
+ */
+public class NetworkExecutor extends ThreadPoolExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(NetworkExecutor.class);
+
+    /**
+     * Default maximum number of queued tasks. Can be overridden with the
+     * "cate.executorQueueCapacity" system property.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = Integer.getInteger("cate.executorQueueCapacity", 10000);
+    /**
+     * Default policy once the queue is full, set with the
+     * "cate.executorBackPressure" system property to "block" or "abort".
+     */
+    public static final BackPressure DEFAULT_BACK_PRESSURE
+            = BackPressure.parse(System.getProperty("cate.executorBackPressure"), BackPressure.BLOCK);
+
+    /** Time tasks wait in the queue before starting. */
+    public static final String WAIT_TIMER = "executor_wait";
+    /** Time tasks take to run. */
+    public static final String RUN_TIMER = "executor_run";
+    /** Tasks rejected because the queue was full. */
+    public static final String REJECTED = "executor_rejected_total";
+    /** Tasks accepted over capacity rather than block their submitter. */
+    public static final String OVERFLOWED = "executor_overflowed_total";
+
+    private final int capacity;
+    private final BackPressure backPressure;
+    private final BooleanSupplier mustNotBlock;
+    private final Semaphore space;
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong overflowed = new AtomicLong(0);
+    private final NetworkMetrics.Timer waitTimer = new NetworkMetrics.Timer();
+    private final NetworkMetrics.Timer runTimer = new NetworkMetrics.Timer();
+    private final ThreadLocal<Long> runStartNanos = new ThreadLocal<>();
+    private volatile Thread worker;
+
+    /**
+     * Create an executor with the default capacity and back pressure policy.
+     *
+     * @param threadFactory factory for the executor's thread.
+     */
+    public NetworkExecutor(final ThreadFactory threadFactory) {
+        this(threadFactory, DEFAULT_QUEUE_CAPACITY, DEFAULT_BACK_PRESSURE);
+    }
+
+    /**
+     * Create an executor with the default capacity and back pressure policy.
+     *
+     * @param threadFactory factory for the executor's thread.
+     * @param mustNotBlock true if the calling thread must not be blocked
+     * waiting for space, in which case its tasks are accepted over capacity.
+     */
+    public NetworkExecutor(final ThreadFactory threadFactory, final BooleanSupplier mustNotBlock) {
+        this(threadFactory, DEFAULT_QUEUE_CAPACITY, DEFAULT_BACK_PRESSURE, mustNotBlock);
+    }
+
+    /**
+     * Create an executor for which every submitter may block.
+     *
+     * @param threadFactory factory for the executor's thread.
+     * @param capacity maximum number of tasks to queue from other threads.
+     * @param backPressure policy for submissions once the queue is full.
+     */
+    public NetworkExecutor(final ThreadFactory threadFactory, final int capacity,
+            final BackPressure backPressure) {
+        this(threadFactory, capacity, backPressure, () -> false);
+    }
+
+    /**
+     * @param threadFactory factory for the executor's thread.
+     * @param capacity maximum number of tasks to queue from other threads.
+     * @param backPressure policy for submissions once the queue is full.
+     * @param mustNotBlock true if the calling thread must not be blocked
+     * waiting for space, in which case its tasks are accepted over capacity.
+     */
+    public NetworkExecutor(final ThreadFactory threadFactory, final int capacity,
+            final BackPressure backPressure, final BooleanSupplier mustNotBlock) {
+        super(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), threadFactory);
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least one");
+        }
+        this.capacity = capacity;
+        this.backPressure = backPressure;
+        this.mustNotBlock = mustNotBlock;
+        this.space = new Semaphore(capacity);
+    }
+
+    /**
+     * Queue a task at normal priority.
+     */
+    @Override
+    public void execute(final Runnable command) {
+        execute(command, Priority.NORMAL);
+    }
+
+    /**
+     * Queue a task at the given priority.
+     *
+     * @param command the task to run.
+     * @param priority priority of the task.
+     * @throws RejectedExecutionException if the executor has been shut down,
+     * or the queue is full and the policy is to abort.
+     */
+    public void execute(final Runnable command, final Priority priority) {
+        execute(command, priority, true);
+    }
+
+    /**
+     * Queue a listener event at the given priority. The caller is never
+     * blocked or refused because the queue is full, as libraries such as
+     * bitcoinj fire events while holding locks which tasks on this executor
+     * may be waiting for.
+     *
+     * @param command the task to run.
+     * @param priority priority of the task.
+     * @throws RejectedExecutionException if the executor has been shut down.
+     */
+    public void executeEvent(final Runnable command, final Priority priority) {
+        execute(command, priority, false);
+    }
+
+    private void execute(final Runnable command, final Priority priority, final boolean mayWait) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        final boolean reserved = Thread.currentThread() != worker
+                && reserve(mayWait);
+        final QueuedTask task = new QueuedTask(command, priority, sequence.getAndIncrement(), reserved);
+        queued.incrementAndGet();
+        try {
+            super.execute(task);
+        } catch (RejectedExecutionException ex) {
+            dequeued(task);
+            throw ex;
+        }
+    }
+
+    /**
+     * Reserve space in the queue for a task, according to the back pressure
+     * policy.
+     *
+     * @param mayWait false if the task is an event which must not wait.
+     * @return true if space was reserved, false if the task is to be accepted
+     * over capacity.
+     */
+    private boolean reserve(final boolean mayWait) {
+        if (space.tryAcquire()) {
+            return true;
+        }
+        if (isShutdown()) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        if (!mayWait || (backPressure == BackPressure.BLOCK && mustNotBlock.getAsBoolean())) {
+            overflowed.incrementAndGet();
+            return false;
+        }
+        switch (backPressure) {
+            case ABORT:
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("Network executor queue is full ("
+                        + capacity + " tasks)");
+            case BLOCK:
+            default:
+                try {
+                    space.acquire();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException("Interrupted waiting for space in network executor queue", ex);
+                }
+                return true;
+        }
+    }
+
+    private void dequeued(final QueuedTask task) {
+        queued.decrementAndGet();
+        if (task.reserved) {
+            space.release();
+        }
+    }
+
+    @Override
+    protected void beforeExecute(final Thread thread, final Runnable runnable) {
+        worker = thread;
+        final QueuedTask task = (QueuedTask) runnable;
+        dequeued(task);
+        final long now = System.nanoTime();
+        waitTimer.record(now - task.queuedNanos);
+        runStartNanos.set(now);
+        super.beforeExecute(thread, runnable);
+    }
+
+    @Override
+    protected void afterExecute(final Runnable runnable, final Throwable thrown) {
+        super.afterExecute(runnable, thrown);
+        final Long start = runStartNanos.get();
+        if (start != null) {
+            runTimer.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    protected void terminated() {
+        super.terminated();
+        // Wake anyone blocked on a full queue, so they find we're shut down
+        space.release(capacity);
+    }
+
+    /**
+     * Register this executor's queue depth, wait and run times, and
+     * rejection count with the given metrics.
+     */
+    public void registerMetrics(final NetworkMetrics metrics) {
+        metrics.gauge(NetworkMetrics.EXECUTOR_QUEUE_DEPTH, queued::get);
+        metrics.gauge(REJECTED, rejected::get);
+        metrics.gauge(OVERFLOWED, overflowed::get);
+        metrics.register(WAIT_TIMER, waitTimer);
+        metrics.register(RUN_TIMER, runTimer);
+    }
+
+    /**
+     * @return tasks queued and not yet started. Does not lock the queue.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    public BackPressure getBackPressure() {
+        return backPressure;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return tasks accepted over capacity, either listener events or from
+     * submitters which must not block.
+     */
+    public long getOverflowedCount() {
+        return overflowed.get();
+    }
+
+    public NetworkMetrics.Timer getWaitTimer() {
+        return waitTimer;
+    }
+
+    public NetworkMetrics.Timer getRunTimer() {
+        return runTimer;
+    }
+
+    /**
+     * Get an executor which queues tasks on the given executor at the given
+     * priority, if it is a network executor, or as normal otherwise.
+     *
+     * @param executor the executor to queue tasks on.
+     * @param priority priority to queue tasks at.
+     * @return an executor for tasks of the given priority.
+     */
+    public static Executor withPriority(final Executor executor, final Priority priority) {
+        if (executor instanceof NetworkExecutor) {
+            final NetworkExecutor networkExecutor = (NetworkExecutor) executor;
+            return command -> networkExecutor.execute(command, priority);
+        }
+        return executor;
+    }
+
+    /**
+     * Get an executor for listener events, which queues them on the given
+     * executor at the given priority without ever blocking the thread firing
+     * the event, if it is a network executor, or as normal otherwise.
+     *
+     * @param executor the executor to queue events on.
+     * @param priority priority to queue events at.
+     * @return an executor for listener events.
+     */
+    public static Executor forEvents(final Executor executor, final Priority priority) {
+        if (executor instanceof NetworkExecutor) {
+            final NetworkExecutor networkExecutor = (NetworkExecutor) executor;
+            return command -> networkExecutor.executeEvent(command, priority);
+        }
+        return executor;
+    }
+
+    /**
+     * Priority of a task. Higher priority tasks run first.
+     */
+    public enum Priority {
+        /** Changes to the wallet the user is waiting on, such as sends. */
+        HIGH,
+        /** Event handling and anything else not otherwise classified. */
+        NORMAL,
+        /** Refreshes of derived state for display, which can safely wait. */
+        LOW
+    }
+
+    /**
+     * Handling of submissions from other threads once the queue is full.
+     */
+    public enum BackPressure {
+        /**
+         * Block the submitting thread until there is space, unless it must
+         * not block, in which case the task is accepted over capacity.
+         */
+        BLOCK,
+        /** Reject the task with a {@link RejectedExecutionException}. */
+        ABORT;
+
+        /**
+         * Parse a policy name, ignoring case. An unknown name is logged and
+         * the default used, rather than stopping every network from starting.
+         *
+         * @param value the policy name, or null for the default.
+         * @param defaultValue policy to use if the name is missing or unknown.
+         * @return the named policy.
+         */
+        static BackPressure parse(final String value, final BackPressure defaultValue) {
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                logger.warn("Unknown executor back pressure policy \"" + value + "\", using "
+                        + defaultValue.name().toLowerCase(Locale.ROOT));
+                return defaultValue;
+            }
+        }
+    }
+
+    /**
+     * Task wrapper ordering tasks by priority, then submission order.
+     */
+    private static class QueuedTask implements Runnable, Comparable<QueuedTask> {
+        private final Runnable command;
+        private final Priority priority;
+        private final long sequence;
+        private final boolean reserved;
+        private final long queuedNanos = System.nanoTime();
+
+        private QueuedTask(final Runnable command, final Priority priority, final long sequence,
+                final boolean reserved) {
+            this.command = command;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.reserved = reserved;
+        }
+
+        @Override
+        public void run() {
+            command.run();
+        }
+
+        @Override
+        public int compareTo(final QueuedTask other) {
+            final int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the metrics for a single network: meters counting events and
+ * their recent rate (blocks, bytes), timers for latencies (listener
+ * dispatch), and gauges read on demand (peer ping, executor queue depth).
+ *
+ * All metrics can be recorded and read from any thread. Reading never blocks
+ * recording for longer than it takes to copy a handful of counters, so the
+ * UI, logs and any monitoring endpoint can poll freely.
+ *
+ * @author Ross Nicoll
+ */
+public class NetworkMetrics {
+    /** Blocks (headers or filtered blocks) accepted from peers. */
+    public static final String BLOCKS = "blocks";
+    /** Bytes of block headers downloaded ahead of the fast catch-up time. */
+    public static final String HEADER_BYTES = "header_bytes";
+    /** Bytes of filtered blocks and their matched transactions. */
+    public static final String FILTERED_BLOCK_BYTES = "filtered_block_bytes";
+    /** Time taken by network listeners to handle events from the network. */
+    public static final String LISTENER_DISPATCH = "listener_dispatch";
+    /** Mean ping time across connected peers, in milliseconds. */
+    public static final String PEER_PING_MILLIS = "peer_ping_millis";
+    /** Tasks waiting on the network executor. */
+    public static final String EXECUTOR_QUEUE_DEPTH = "executor_queue_depth";
+    /** Height of the best chain. */
+    public static final String CHAIN_HEIGHT = "chain_height";
+    /** Blocks still to download to catch up with peers. */
+    public static final String BLOCKS_LEFT = "blocks_left";
+    /** Connected peers. */
+    public static final String PEERS = "peers";
+    /** Additional wallets currently loaded from the network's wallet pool. */
+    public static final String LOADED_WALLETS = "loaded_wallets";
+    /** Estimated wallet balance, in the network's smallest unit. */
+    public static final String BALANCE = "balance_satoshis";
+
+    /**
+     * Window over which meter rates are calculated, in seconds. Can be
+     * overridden with the "cate.metricsRateWindowSeconds" system property.
+     */
+    public static final int DEFAULT_RATE_WINDOW_SECONDS
+            = Integer.getInteger("cate.metricsRateWindowSeconds", 10);
+
+    private final ConcurrentMap<String, Meter> meters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final LongSupplier nanoClock;
+    private final int rateWindowSeconds;
+
+    public NetworkMetrics() {
+        this(System::nanoTime, DEFAULT_RATE_WINDOW_SECONDS);
+    }
+
+    /**
+     * @param nanoClock source of the current time in nanoseconds, such as
+     * <code>System::nanoTime</code>.
+     * @param rateWindowSeconds window over which meter rates are calculated.
+     */
+    public NetworkMetrics(final LongSupplier nanoClock, final int rateWindowSeconds) {
+        if (rateWindowSeconds < 1) {
+            throw new IllegalArgumentException("Rate window must be at least one second");
+        }
+        this.nanoClock = nanoClock;
+        this.rateWindowSeconds = rateWindowSeconds;
+    }
+
+    /**
+     * Get the meter with the given name, creating it if needed.
+     */
+    public Meter meter(final String name) {
+        return meters.computeIfAbsent(name, n -> new Meter(nanoClock, rateWindowSeconds));
+    }
+
+    /**
+     * Get the timer with the given name, creating it if needed.
+     */
+    public Timer timer(final String name) {
+        return timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    /**
+     * Register a gauge, replacing any existing gauge of the same name. The
+     * supplier is called whenever the metrics are read, from whichever thread
+     * reads them, so must be cheap and thread safe.
+     *
+     * @param name name of the gauge.
+     * @param value supplier of the current value.
+     */
+    public void gauge(final String name, final LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Register an existing timer, such as one kept by the component being
+     * timed, replacing any timer of the same name.
+     */
+    public void register(final String name, final Timer timer) {
+        timers.put(name, timer);
+    }
+
+    public void removeGauge(final String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Read all metrics into a flat map of name to value. Meters contribute
+     * "_total" and "_per_second" entries, and timers "_count", "_mean_millis"
+     * and "_max_millis" entries. Entries are sorted by name.
+     *
+     * @return an unmodifiable snapshot of all metrics.
+     */
+    public Map<String, Number> snapshot() {
+        final Map<String, Number> values = new TreeMap<>();
+        meters.forEach((name, meter) -> {
+            values.put(name + "_total", meter.getCount());
+            values.put(name + "_per_second", meter.getRatePerSecond());
+        });
+        timers.forEach((name, timer) -> {
+            final Timer.Snapshot snapshot = timer.snapshot();
+            values.put(name + "_count", snapshot.getCount());
+            values.put(name + "_mean_millis", snapshot.getMeanMillis());
+            values.put(name + "_max_millis", snapshot.getMaxMillis());
+        });
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * @return a one line summary of all metrics, for logging.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        snapshot().forEach((name, value) -> {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(name).append('=');
+            if (value instanceof Double) {
+                builder.append(String.format(Locale.ROOT, "%.2f", value.doubleValue()));
+            } else {
+                builder.append(value);
+            }
+        });
+        return builder.toString();
+    }
+
+    /**
+     * Counts events, and tracks their rate over a sliding window of one second
+     * buckets.
+     */
+    public static class Meter {
+        private final AtomicLong count = new AtomicLong(0);
+        private final LongSupplier nanoClock;
+        private final long[] buckets;
+        private final long startSecond;
+        /** Second (relative to startSecond) the newest bucket covers. */
+        private long currentSecond;
+
+        private Meter(final LongSupplier nanoClock, final int windowSeconds) {
+            this.nanoClock = nanoClock;
+            this.buckets = new long[windowSeconds];
+            this.startSecond = toSeconds(nanoClock.getAsLong());
+        }
+
+        public void mark() {
+            mark(1);
+        }
+
+        /**
+         * Record the given number of events (or bytes) as having happened now.
+         */
+        public void mark(final long n) {
+            count.addAndGet(n);
+            synchronized (buckets) {
+                advance();
+                buckets[(int) (currentSecond % buckets.length)] += n;
+            }
+        }
+
+        /**
+         * @return total events recorded.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return events per second over the rate window, or over the time
+         * since the meter was created if shorter.
+         */
+        public double getRatePerSecond() {
+            synchronized (buckets) {
+                advance();
+                long total = 0;
+                for (long bucket : buckets) {
+                    total += bucket;
+                }
+                // Until the window has filled, only count the seconds the
+                // meter has existed for
+                final long seconds = Math.min(buckets.length, currentSecond + 1);
+                return (double) total / seconds;
+            }
+        }
+
+        /**
+         * Move the window forward to the current second, clearing buckets
+         * which have fallen out of it. Must be called holding the lock on
+         * the buckets.
+         */
+        private void advance() {
+            final long now = toSeconds(nanoClock.getAsLong()) - startSecond;
+            final long expired = Math.min(now - currentSecond, buckets.length);
+            for (long i = 1; i <= expired; i++) {
+                buckets[(int) ((currentSecond + i) % buckets.length)] = 0;
+            }
+            if (now > currentSecond) {
+                currentSecond = now;
+            }
+        }
+
+        private static long toSeconds(final long nanos) {
+            // Floor rather than truncate, as nanoTime() may be negative
+            return Math.floorDiv(nanos, TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Records durations, tracking their count, mean and maximum.
+     */
+    public static class Timer {
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        /**
+         * Record a duration.
+         *
+         * @param nanos duration in nanoseconds.
+         */
+        public synchronized void record(final long nanos) {
+            count++;
+            totalNanos += nanos;
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+        }
+
+        /**
+         * Run a task, recording how long it took whether or not it completed
+         * normally.
+         */
+        public void time(final Runnable task) {
+            final long start = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        public synchronized Snapshot snapshot() {
+            return new Snapshot(count, totalNanos, maxNanos);
+        }
+
+        /**
+         * Consistent copy of a timer's values.
+         */
+        public static class Snapshot {
+            private final long count;
+            private final long totalNanos;
+            private final long maxNanos;
+
+            private Snapshot(final long count, final long totalNanos, final long maxNanos) {
+                this.count = count;
+                this.totalNanos = totalNanos;
+                this.maxNanos = maxNanos;
+            }
+
+            public long getCount() {
+                return count;
+            }
+
+            public double getMeanMillis() {
+                return count == 0 ? 0.0 : (double) totalNanos / count / TimeUnit.MILLISECONDS.toNanos(1);
+            }
+
+            public double getMaxMillis() {
+                return (double) maxNanos / TimeUnit.MILLISECONDS.toNanos(1);
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 Ross Nicoll.
+ * Copyright 2016, 2021 Ross Nicoll.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,8 +15,12 @@
  */
 package org.libdohj.cate.util;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.concurrent.ThreadFactory;
 import org.bitcoinj.core.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Thread factory for generating threads for a single network. Handles propagating
@@ -27,12 +31,26 @@ import org.bitcoinj.core.Context;
  * takes in a context to propagate, rather than inferring it from the current
  * context.
  *
+ * Optionally produces virtual threads rather than platform threads, where the
+ * JVM supports them (Java 21 onwards). As CATE builds against Java 11, virtual
+ * threads are created reflectively; on older JVMs the factory falls back to
+ * platform threads.
+ *
  * @author Ross Nicoll
  */
 public class NetworkThreadFactory implements ThreadFactory {
+    /**
+     * Whether network threads should be virtual by default. Set with the
+     * "cate.virtualThreads" system property.
+     */
+    public static final boolean USE_VIRTUAL_THREADS = Boolean.getBoolean("cate.virtualThreads");
+
+    private static final Logger logger = LoggerFactory.getLogger(NetworkThreadFactory.class);
+    private static final VirtualThreadBuilder VIRTUAL_THREADS = VirtualThreadBuilder.find();
 
     private final Context context;
     private final ThreadGroup group;
+    private final boolean virtual;
     private int threadCount = 0;
     private Thread.UncaughtExceptionHandler uncaughtExceptionHandler;
 
@@ -40,21 +58,41 @@ public class NetworkThreadFactory implements ThreadFactory {
      * @param context context to propagate to all threads created by this factory.
      */
     public NetworkThreadFactory(final Context context) {
+        this(context, USE_VIRTUAL_THREADS);
+    }
+
+    /**
+     * @param context context to propagate to all threads created by this factory.
+     * @param virtual true to create virtual threads, if the JVM supports them.
+     */
+    public NetworkThreadFactory(final Context context, final boolean virtual) {
         assert context != null;
         this.context = context;
         this.group = new ThreadGroup(context.getParams().getId() + " threads");
         this.uncaughtExceptionHandler = null;
+        if (virtual && VIRTUAL_THREADS == null) {
+            logger.warn("Virtual threads are not supported by this JVM, using platform threads for "
+                    + context.getParams().getId());
+        }
+        this.virtual = virtual && VIRTUAL_THREADS != null;
     }
 
     @Override
     public Thread newThread(Runnable r) {
         final String name = context.getParams().getId() + " worker #"
                 + (++threadCount);
-        final Thread thread = new Thread(group, () -> {
+        final Runnable withContext = () -> {
             Context.propagate(context);
             r.run();
-        }, name);
+        };
+
+        if (virtual) {
+            // Virtual threads are always daemon threads, and cannot be given
+            // a thread group
+            return VIRTUAL_THREADS.newThread(name, withContext, uncaughtExceptionHandler);
+        }
 
+        final Thread thread = new Thread(group, withContext, name);
         if (uncaughtExceptionHandler != null) {
             thread.setUncaughtExceptionHandler(uncaughtExceptionHandler);
         }
@@ -64,12 +102,26 @@ public class NetworkThreadFactory implements ThreadFactory {
     }
 
     /**
-     * @return the group
+     * @return the group platform threads are created in.
      */
     public ThreadGroup getGroup() {
         return group;
     }
 
+    /**
+     * @return true if this factory creates virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREADS != null;
+    }
+
     public Thread.UncaughtExceptionHandler getUncaughtExceptionHandler() {
         return this.uncaughtExceptionHandler;
     }
@@ -77,4 +129,58 @@ public class NetworkThreadFactory implements ThreadFactory {
     public void setUncaughtExceptionHandler(Thread.UncaughtExceptionHandler newUncaughtExceptionHandler) {
         this.uncaughtExceptionHandler = newUncaughtExceptionHandler;
     }
+
+    /**
+     * Reflective access to <code>Thread.ofVirtual()</code> and the builder it
+     * returns.
+     */
+    private static class VirtualThreadBuilder {
+        private final Method ofVirtual;
+        private final Method name;
+        private final Method uncaughtExceptionHandler;
+        private final Method unstarted;
+
+        private VirtualThreadBuilder(final Method ofVirtual, final Method name,
+                final Method uncaughtExceptionHandler, final Method unstarted) {
+            this.ofVirtual = ofVirtual;
+            this.name = name;
+            this.uncaughtExceptionHandler = uncaughtExceptionHandler;
+            this.unstarted = unstarted;
+        }
+
+        /**
+         * @return a builder if the JVM supports virtual threads, otherwise null.
+         */
+        private static VirtualThreadBuilder find() {
+            try {
+                final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                final VirtualThreadBuilder builder = new VirtualThreadBuilder(
+                        Thread.class.getMethod("ofVirtual"),
+                        builderClass.getMethod("name", String.class),
+                        builderClass.getMethod("uncaughtExceptionHandler", Thread.UncaughtExceptionHandler.class),
+                        builderClass.getMethod("unstarted", Runnable.class));
+                // Java 19 and 20 have the API, but only as a preview feature
+                builder.ofVirtual.invoke(null);
+                return builder;
+            } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+                return null;
+            }
+        }
+
+        private Thread newThread(final String threadName, final Runnable task,
+                final Thread.UncaughtExceptionHandler handler) {
+            try {
+                Object builder = ofVirtual.invoke(null);
+                builder = name.invoke(builder, threadName);
+                if (handler != null) {
+                    builder = uncaughtExceptionHandler.invoke(builder, handler);
+                }
+                return (Thread) unstarted.invoke(builder, task);
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException("Unable to create virtual thread", ex);
+            } catch (InvocationTargetException ex) {
+                throw new IllegalStateException("Unable to create virtual thread", ex.getCause());
+            }
+        }
+    }
 }
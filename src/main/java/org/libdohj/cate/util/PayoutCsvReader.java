@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.AddressFormatException;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.libdohj.cate.Payout;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads batch payouts from CSV, one "address,amount" pair per line, with the
+ * amount in whole coins (i.e. "0.5"). Blank lines and lines starting with '#'
+ * are ignored, as is a header line starting with "address".
+ *
+ * @author Ross Nicoll
+ */
+public class PayoutCsvReader {
+    private final NetworkParameters params;
+
+    /**
+     * @param params network the payout addresses must belong to.
+     */
+    public PayoutCsvReader(final NetworkParameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Read all payouts from the given reader. The reader is not closed.
+     *
+     * @param reader source of the CSV data.
+     * @return the payouts, in the order they were read.
+     * @throws IOException if there was a problem reading the data.
+     * @throws PayoutFormatException if a line is not a valid payout.
+     */
+    public List<Payout> read(final Reader reader) throws IOException, PayoutFormatException {
+        final BufferedReader in = new BufferedReader(reader);
+        final List<Payout> payouts = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (lineNumber == 1 && line.toLowerCase(Locale.ROOT).startsWith("address")) {
+                continue;
+            }
+            payouts.add(parseLine(line, lineNumber));
+        }
+
+        return payouts;
+    }
+
+    private Payout parseLine(final String line, final int lineNumber) throws PayoutFormatException {
+        final String[] fields = line.split(",");
+        if (fields.length != 2) {
+            throw new PayoutFormatException(lineNumber, "expected address and amount");
+        }
+        final Address address;
+        final Coin amount;
+        try {
+            address = Address.fromString(params, fields[0].trim());
+        } catch (AddressFormatException ex) {
+            throw new PayoutFormatException(lineNumber, "invalid address \"" + fields[0].trim() + "\"");
+        }
+        try {
+            amount = Coin.parseCoin(fields[1].trim());
+        } catch (IllegalArgumentException ex) {
+            throw new PayoutFormatException(lineNumber, "invalid amount \"" + fields[1].trim() + "\"");
+        }
+        if (!amount.isPositive()) {
+            throw new PayoutFormatException(lineNumber, "amount must be positive");
+        }
+        return new Payout(address, amount);
+    }
+
+    public static class PayoutFormatException extends Exception {
+        private final int lineNumber;
+
+        public PayoutFormatException(final int lineNumber, final String message) {
+            super("Line " + lineNumber + ": " + message);
+            this.lineNumber = lineNumber;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+    }
+}
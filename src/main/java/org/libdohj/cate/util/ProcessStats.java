@@ -0,0 +1,77 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Reports on the resources used by the current process, so that startup cost
+ * can be compared between the JavaFX and headless entry points.
+ *
+ * @author Ross Nicoll
+ */
+public class ProcessStats {
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+
+    /**
+     * @return milliseconds since the JVM started.
+     */
+    public static long getUptimeMillis() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    /**
+     * Get the resident set size of the process. Only available where the
+     * platform provides /proc (i.e. Linux).
+     *
+     * @return resident memory in bytes, or -1 if it cannot be determined.
+     */
+    public static long getResidentMemory() {
+        if (!Files.isReadable(PROC_STATUS)) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS, StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    // Format is "VmRSS:     12345 kB"
+                    final String[] parts = line.substring(6).trim().split("\\s+");
+                    return Long.parseLong(parts[0]) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            // Fall through
+        }
+        return -1;
+    }
+
+    /**
+     * @return a one line summary of uptime, resident memory, heap and threads.
+     */
+    public static String describe() {
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        final long resident = getResidentMemory();
+        return "uptime " + getUptimeMillis() + "ms, resident "
+                + (resident < 0 ? "unknown" : (resident / (1024 * 1024)) + " MB")
+                + ", heap used " + (heap.getUsed() / (1024 * 1024)) + " MB"
+                + ", threads " + ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+}
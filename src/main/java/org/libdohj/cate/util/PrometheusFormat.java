@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds a page of metrics in the Prometheus text exposition format. Samples
+ * may be added in any order; they are grouped into families by name when the
+ * page is written, as the format requires. Names ending "_total" are typed as
+ * counters, everything else as gauges.
+ *
+ * @author Ross Nicoll
+ */
+public class PrometheusFormat {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String NETWORK_LABEL = "network";
+
+    private final String prefix;
+    private final Map<String, List<String>> families = new TreeMap<>();
+
+    /**
+     * @param prefix prefix for all metric names, i.e. "cate_".
+     */
+    public PrometheusFormat(final String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Add every metric in a network's snapshot, labelled with the network.
+     *
+     * @param network ID of the network the metrics are for.
+     * @param metrics metric names and values, as from
+     * {@link NetworkMetrics#snapshot()}.
+     */
+    public void addAll(final String network, final Map<String, Number> metrics) {
+        final Map<String, String> labels = Collections.singletonMap(NETWORK_LABEL, network);
+        metrics.forEach((name, value) -> add(name, labels, value));
+    }
+
+    /**
+     * Add a single sample.
+     *
+     * @param name metric name, without prefix. Characters not valid in a
+     * metric name are replaced with underscores.
+     * @param labels label names and values, in the order to write them.
+     * @param value the sample value.
+     */
+    public void add(final String name, final Map<String, String> labels, final Number value) {
+        final String metric = prefix + sanitise(name);
+        final StringBuilder line = new StringBuilder(metric);
+        if (!labels.isEmpty()) {
+            line.append('{');
+            boolean first = true;
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                if (!first) {
+                    line.append(',');
+                }
+                first = false;
+                line.append(sanitise(label.getKey())).append("=\"")
+                        .append(escape(label.getValue())).append('"');
+            }
+            line.append('}');
+        }
+        line.append(' ').append(formatValue(value));
+        families.computeIfAbsent(metric, m -> new ArrayList<>()).add(line.toString());
+    }
+
+    /**
+     * @return the page of metrics, ready to serve.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder page = new StringBuilder();
+        families.forEach((metric, samples) -> {
+            page.append("# TYPE ").append(metric).append(' ')
+                    .append(metric.endsWith("_total") ? "counter" : "gauge").append('\n');
+            samples.forEach(sample -> page.append(sample).append('\n'));
+        });
+        return page.toString();
+    }
+
+    private static String sanitise(final String name) {
+        final StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+                    || (i > 0 && c >= '0' && c <= '9')) {
+                builder.append(c);
+            } else {
+                builder.append('_');
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String formatValue(final Number value) {
+        if (value instanceof Double || value instanceof Float) {
+            final double d = value.doubleValue();
+            if (Double.isNaN(d)) {
+                return "NaN";
+            } else if (Double.isInfinite(d)) {
+                return d > 0 ? "+Inf" : "-Inf";
+            }
+            return Double.toString(d);
+        }
+        return Long.toString(value.longValue());
+    }
+}
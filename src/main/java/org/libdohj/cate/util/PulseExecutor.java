@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executor which runs tasks on the JavaFX application thread once per pulse
+ * (frame), rather than as individual <code>Platform.runLater()</code> events.
+ * Everything submitted between two pulses runs together at the start of the
+ * next one, before the scene is laid out and rendered.
+ *
+ * The timer driving this only runs while there is work; it is started when a
+ * task is submitted to an idle executor, and stops at the first pulse which
+ * finds nothing to do, so an idle UI is not woken every frame.
+ *
+ * @author Ross Nicoll
+ */
+public class PulseExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(final long now) {
+            runPending();
+        }
+    };
+
+    @Override
+    public void execute(final Runnable task) {
+        tasks.add(task);
+        if (running.compareAndSet(false, true)) {
+            // The timer must be started on the application thread
+            Platform.runLater(timer::start);
+        }
+    }
+
+    private void runPending() {
+        Runnable task = tasks.poll();
+        if (task == null) {
+            running.set(false);
+            // Anything submitted after the poll, but before the flag was
+            // cleared, did not start the timer; keep it running for that
+            if (tasks.isEmpty() || !running.compareAndSet(false, true)) {
+                timer.stop();
+            }
+            return;
+        }
+        do {
+            task.run();
+        } while ((task = tasks.poll()) != null);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Task which is requested by events, but run at most once per interval. Any
+ * number of requests received while a run is pending are coalesced into that
+ * single run, so expensive recalculations (such as a wallet balance) do not
+ * repeat for every event in a burst.
+ *
+ * The task always runs on the given executor; the timer is only used to delay
+ * handing it over.
+ *
+ * @author Ross Nicoll
+ */
+public class RateLimitedTask {
+    private static final ScheduledExecutorService SHARED_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "Rate limited task timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Runnable task;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final LongSupplier nanoClock;
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong runs = new AtomicLong(0);
+    private volatile long intervalMillis;
+    private volatile long lastRunNanos;
+
+    /**
+     * @param task the task to run.
+     * @param executor executor to run the task on.
+     * @param intervalMillis minimum time between runs, in milliseconds.
+     */
+    public RateLimitedTask(final Runnable task, final Executor executor, final long intervalMillis) {
+        this(task, executor, intervalMillis, SHARED_TIMER);
+    }
+
+    /**
+     * @param task the task to run.
+     * @param executor executor to run the task on.
+     * @param intervalMillis minimum time between runs, in milliseconds.
+     * @param timer timer used to delay runs until the interval has passed.
+     */
+    public RateLimitedTask(final Runnable task, final Executor executor, final long intervalMillis,
+            final ScheduledExecutorService timer) {
+        this(task, executor, intervalMillis, timer, System::nanoTime);
+    }
+
+    /**
+     * @param task the task to run.
+     * @param executor executor to run the task on.
+     * @param intervalMillis minimum time between runs, in milliseconds.
+     * @param timer timer used to delay runs until the interval has passed.
+     * @param nanoClock source of the current time in nanoseconds, as
+     * {@link System#nanoTime()}, so tests can drive the timer by hand.
+     */
+    RateLimitedTask(final Runnable task, final Executor executor, final long intervalMillis,
+            final ScheduledExecutorService timer, final LongSupplier nanoClock) {
+        this.task = task;
+        this.executor = executor;
+        this.intervalMillis = intervalMillis;
+        this.timer = timer;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Request the task be run. If a run is already pending this returns
+     * immediately, otherwise a run is scheduled for as soon as the interval
+     * since the previous run has passed.
+     */
+    public void request() {
+        requests.incrementAndGet();
+        if (!pending.compareAndSet(false, true)) {
+            return;
+        }
+
+        final long delayNanos = runs.get() == 0
+                ? 0
+                : lastRunNanos + TimeUnit.MILLISECONDS.toNanos(intervalMillis) - nanoClock.getAsLong();
+        if (delayNanos <= 0) {
+            executor.execute(this::run);
+        } else {
+            timer.schedule(() -> executor.execute(this::run), delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void run() {
+        // Clear the flag before running, so a request which arrives while the
+        // task is running is guaranteed a later run.
+        pending.set(false);
+        lastRunNanos = nanoClock.getAsLong();
+        runs.incrementAndGet();
+        task.run();
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public void setInterval(final long interval, final TimeUnit unit) {
+        this.intervalMillis = unit.toMillis(interval);
+    }
+
+    /**
+     * @return the number of times the task has been requested.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of times the task has actually run.
+     */
+    public long getRunCount() {
+        return runs.get();
+    }
+
+    /**
+     * @return the number of requests which were folded into another run,
+     * rather than causing a run of their own.
+     */
+    public long getCoalescedCount() {
+        return Math.max(0, requests.get() - runs.get() - (pending.get() ? 1 : 0));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * Set of 32 byte hashes, held as primitives in an open addressing table
+ * rather than as objects. Each entry costs 33 bytes of table space, with the
+ * table kept at most half full, and nothing else is retained; in particular
+ * the transactions the hashes came from can be garbage collected.
+ *
+ * Not thread safe.
+ *
+ * @author Ross Nicoll
+ */
+public class Sha256HashSet {
+    private static final int LONGS_PER_HASH = Sha256Hash.LENGTH / Long.BYTES;
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    /** Marker for a removed entry, which must not end a probe sequence. */
+    private static final byte REMOVED = 2;
+
+    private long[] hashes;
+    private byte[] states;
+    private int size = 0;
+    /** Number of slots either full or marked removed. */
+    private int used = 0;
+
+    public Sha256HashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expected number of hashes expected to be held, used to size the
+     * initial table.
+     */
+    public Sha256HashSet(final int expected) {
+        allocate(tableSizeFor(expected));
+    }
+
+    /**
+     * @param hash the hash to add.
+     * @return true if the hash was not already in the set.
+     */
+    public boolean add(final Sha256Hash hash) {
+        return add(hash.getBytes());
+    }
+
+    /**
+     * @param hash the 32 byte hash to add.
+     * @return true if the hash was not already in the set.
+     */
+    public boolean add(final byte[] hash) {
+        checkLength(hash);
+        if ((used + 1) * 2 > states.length) {
+            // Grow if mostly full, otherwise just clear out removed entries
+            resize(size * 4 > states.length ? states.length * 2 : states.length);
+        }
+        final long a = readLong(hash, 0);
+        final long b = readLong(hash, 8);
+        final long c = readLong(hash, 16);
+        final long d = readLong(hash, 24);
+        final int mask = states.length - 1;
+        int firstRemoved = -1;
+        int slot = spread(a) & mask;
+
+        while (states[slot] != EMPTY) {
+            if (states[slot] == FULL) {
+                if (matches(slot, a, b, c, d)) {
+                    return false;
+                }
+            } else if (firstRemoved < 0) {
+                firstRemoved = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (firstRemoved >= 0) {
+            slot = firstRemoved;
+        } else {
+            used++;
+        }
+        store(slot, a, b, c, d);
+        size++;
+        return true;
+    }
+
+    public boolean contains(final Sha256Hash hash) {
+        return contains(hash.getBytes());
+    }
+
+    public boolean contains(final byte[] hash) {
+        checkLength(hash);
+        return find(hash) >= 0;
+    }
+
+    /**
+     * @param hash the hash to remove.
+     * @return true if the hash was in the set.
+     */
+    public boolean remove(final Sha256Hash hash) {
+        return remove(hash.getBytes());
+    }
+
+    /**
+     * @param hash the 32 byte hash to remove.
+     * @return true if the hash was in the set.
+     */
+    public boolean remove(final byte[] hash) {
+        checkLength(hash);
+        final int slot = find(hash);
+        if (slot < 0) {
+            return false;
+        }
+        states[slot] = REMOVED;
+        size--;
+        return true;
+    }
+
+    public void clear() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return approximate heap used by the set's tables, in bytes.
+     */
+    public long getMemoryFootprint() {
+        return (long) hashes.length * Long.BYTES + states.length;
+    }
+
+    private int find(final byte[] hash) {
+        final long a = readLong(hash, 0);
+        final long b = readLong(hash, 8);
+        final long c = readLong(hash, 16);
+        final long d = readLong(hash, 24);
+        final int mask = states.length - 1;
+        int slot = spread(a) & mask;
+
+        while (states[slot] != EMPTY) {
+            if (states[slot] == FULL && matches(slot, a, b, c, d)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean matches(final int slot, final long a, final long b, final long c, final long d) {
+        final int base = slot * LONGS_PER_HASH;
+        return hashes[base] == a
+                && hashes[base + 1] == b
+                && hashes[base + 2] == c
+                && hashes[base + 3] == d;
+    }
+
+    private void store(final int slot, final long a, final long b, final long c, final long d) {
+        final int base = slot * LONGS_PER_HASH;
+        hashes[base] = a;
+        hashes[base + 1] = b;
+        hashes[base + 2] = c;
+        hashes[base + 3] = d;
+        states[slot] = FULL;
+    }
+
+    private void resize(final int capacity) {
+        final long[] oldHashes = hashes;
+        final byte[] oldStates = states;
+
+        allocate(capacity);
+        final int mask = states.length - 1;
+        for (int i = 0; i < oldStates.length; i++) {
+            if (oldStates[i] == FULL) {
+                final int base = i * LONGS_PER_HASH;
+                int slot = spread(oldHashes[base]) & mask;
+                while (states[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                store(slot, oldHashes[base], oldHashes[base + 1], oldHashes[base + 2], oldHashes[base + 3]);
+                size++;
+                used++;
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        hashes = new long[capacity * LONGS_PER_HASH];
+        states = new byte[capacity];
+        size = 0;
+        used = 0;
+    }
+
+    private static int tableSizeFor(final int expected) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Hashes are already uniformly distributed, but mixing the high bits in
+     * costs nothing and protects against deliberately chosen prefixes.
+     */
+    private static int spread(final long value) {
+        return (int) (value ^ (value >>> 32)) * 0x9E3779B9;
+    }
+
+    private static long readLong(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xffL);
+        }
+        return value;
+    }
+
+    private static void checkLength(final byte[] hash) {
+        if (hash.length != Sha256Hash.LENGTH) {
+            throw new IllegalArgumentException("Expected a " + Sha256Hash.LENGTH
+                    + " byte hash but got " + hash.length + " bytes");
+        }
+    }
+}
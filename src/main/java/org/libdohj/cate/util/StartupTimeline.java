@@ -0,0 +1,90 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records when a network reaches each phase of its startup, relative to when
+ * the timeline was created. Each phase is recorded the first time it is
+ * reached only, so later events (i.e. reconnecting to peers) do not move it.
+ *
+ * @author Ross Nicoll
+ */
+public class StartupTimeline {
+    public enum Phase {
+        /** Service start requested. */
+        STARTING,
+        /** Wallet file loaded (or a new wallet created). */
+        WALLET_LOADED,
+        /** SPV block store opened. */
+        STORE_OPENED,
+        /** Chain and peer group built and wallet registered with the UI. */
+        SETUP_COMPLETE,
+        /** First peer connected. */
+        FIRST_PEER,
+        /** Block chain download complete. */
+        SYNCED
+    }
+
+    private final long originNanos;
+    private final Map<Phase, Long> phases = new EnumMap<>(Phase.class);
+
+    public StartupTimeline() {
+        this.originNanos = System.nanoTime();
+    }
+
+    /**
+     * Record that a phase has been reached, if it has not been already.
+     *
+     * @param phase the phase reached.
+     * @return true if this is the first time the phase has been reached.
+     */
+    public synchronized boolean mark(final Phase phase) {
+        return phases.putIfAbsent(phase, System.nanoTime() - originNanos) == null;
+    }
+
+    /**
+     * @param phase the phase to look up.
+     * @return milliseconds from creation of the timeline to the given phase,
+     * or -1 if the phase has not been reached.
+     */
+    public synchronized long getMillis(final Phase phase) {
+        final Long nanos = phases.get(phase);
+        return nanos == null ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public synchronized boolean isReached(final Phase phase) {
+        return phases.containsKey(phase);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Phase, Long> entry : phases.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey().name().toLowerCase().replace('_', ' '))
+                    .append(" +")
+                    .append(TimeUnit.NANOSECONDS.toMillis(entry.getValue()))
+                    .append("ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import org.libdohj.cate.Network;
+import org.libdohj.cate.controller.TransactionIndex;
+import org.libdohj.cate.controller.WalletTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the transaction history of one or more networks as a single file,
+ * oldest transaction first. Each network's transaction index is read as it
+ * stood when the export started, and the networks merged as they are
+ * written, so a transaction updated during the export is written once.
+ * Beyond references to the indexed transactions, memory use does not grow
+ * with the number of transactions.
+ *
+ * Each row holds the network name, update time (ISO-8601, UTC), transaction
+ * ID, balance change in whole coins, memo and the relevant addresses as
+ * given by {@link WalletTransaction#lookUpRelevantOutputs()}.
+ *
+ * @author Ross Nicoll
+ */
+public class TransactionExporter {
+    private static final String[] COLUMNS = {"network", "date", "txid", "amount", "memo", "addresses"};
+    /**
+     * Delimiter between addresses within the CSV addresses column.
+     */
+    private static final String ADDRESS_DELIMITER = " ";
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionExporter.class);
+
+    private final Format format;
+
+    /**
+     * @param format format to write transactions in.
+     */
+    public TransactionExporter(final Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Write the transactions of the given networks. The writer is not closed,
+     * and should be buffered.
+     *
+     * @param networks networks to export, which must be starting or running.
+     * @param out destination to write to.
+     * @return a summary of the export.
+     * @throws IOException if there was a problem writing the transactions.
+     */
+    public Report export(final List<Network> networks, final Writer out) throws IOException {
+        final long start = System.nanoTime();
+        final List<Iterator<WalletTransaction>> sources = new ArrayList<>(networks.size());
+        for (Network network : networks) {
+            sources.add(network.getTransactionIndex().oldestFirst());
+        }
+        final Iterator<WalletTransaction> transactions
+                = new MergingIterator<>(sources, TransactionIndex.NEWEST_FIRST.reversed());
+        final StringBuilder row = new StringBuilder();
+        long count = 0;
+
+        if (format == Format.CSV) {
+            out.write(String.join(",", COLUMNS));
+            out.write('\n');
+        }
+        while (transactions.hasNext()) {
+            final WalletTransaction wtx = transactions.next();
+            row.setLength(0);
+            if (format == Format.CSV) {
+                appendCsv(row, wtx);
+            } else {
+                appendJson(row, wtx);
+            }
+            row.append('\n');
+            out.write(row.toString());
+            count++;
+        }
+        out.flush();
+
+        final Report report = new Report(count, (System.nanoTime() - start) / 1000000);
+        logger.info("Exported " + report);
+        return report;
+    }
+
+    private void appendCsv(final StringBuilder row, final WalletTransaction wtx) {
+        final String[] values = getValues(wtx);
+        final List<String> addresses = wtx.lookUpRelevantOutputs().getAddresses();
+        for (String value : values) {
+            appendCsvValue(row, value);
+            row.append(',');
+        }
+        appendCsvValue(row, String.join(ADDRESS_DELIMITER, addresses));
+    }
+
+    private void appendJson(final StringBuilder row, final WalletTransaction wtx) {
+        final String[] values = getValues(wtx);
+        final List<String> addresses = wtx.lookUpRelevantOutputs().getAddresses();
+        row.append('{');
+        for (int i = 0; i < values.length; i++) {
+            appendJsonString(row, COLUMNS[i]);
+            row.append(':');
+            if (values[i] == null) {
+                row.append("null");
+            } else {
+                appendJsonString(row, values[i]);
+            }
+            row.append(',');
+        }
+        appendJsonString(row, COLUMNS[values.length]);
+        row.append(":[");
+        for (int i = 0; i < addresses.size(); i++) {
+            if (i > 0) {
+                row.append(',');
+            }
+            appendJsonString(row, addresses.get(i));
+        }
+        row.append("]}");
+    }
+
+    /**
+     * @return values for every column except the addresses.
+     */
+    private static String[] getValues(final WalletTransaction wtx) {
+        return new String[] {
+            NetworkResolver.getName(wtx.getParams()),
+            Instant.ofEpochMilli(wtx.getUpdateTime()).toString(),
+            wtx.getTxId().toString(),
+            wtx.getBalanceChange().toPlainString(),
+            wtx.getMemo()
+        };
+    }
+
+    /**
+     * Append a CSV field, quoted if it contains a delimiter, quote or line
+     * break. Null values are written as empty fields.
+     */
+    static void appendCsvValue(final StringBuilder row, final String value) {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+                && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            row.append(value);
+            return;
+        }
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') {
+                row.append('"');
+            }
+            row.append(c);
+        }
+        row.append('"');
+    }
+
+    /**
+     * Append a quoted and escaped JSON string.
+     */
+    static void appendJsonString(final StringBuilder row, final String value) {
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    row.append("\\\"");
+                    break;
+                case '\\':
+                    row.append("\\\\");
+                    break;
+                case '\n':
+                    row.append("\\n");
+                    break;
+                case '\r':
+                    row.append("\\r");
+                    break;
+                case '\t':
+                    row.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        row.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        row.append(c);
+                    }
+            }
+        }
+        row.append('"');
+    }
+
+    public enum Format {
+        CSV("csv"),
+        JSON_LINES("jsonl");
+
+        private final String extension;
+
+        Format(final String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * @return the file extension for this format, without the leading
+         * dot.
+         */
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * Choose a format from a file name, defaulting to CSV.
+         */
+        public static Format forFileName(final String name) {
+            return name.toLowerCase(Locale.ROOT).endsWith("." + JSON_LINES.extension)
+                    ? JSON_LINES
+                    : CSV;
+        }
+    }
+
+    /**
+     * Summary of a completed export.
+     */
+    public static class Report {
+        private final long transactionCount;
+        private final long elapsedMillis;
+
+        Report(final long transactionCount, final long elapsedMillis) {
+            this.transactionCount = transactionCount;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getTransactionCount() {
+            return transactionCount;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return transactions written per second.
+         */
+        public double getTransactionsPerSecond() {
+            return elapsedMillis == 0
+                    ? transactionCount * 1000.0
+                    : transactionCount * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return transactionCount + " transactions in " + elapsedMillis + "ms ("
+                    + String.format(Locale.ROOT, "%.0f", getTransactionsPerSecond()) + "/s)";
+        }
+    }
+}
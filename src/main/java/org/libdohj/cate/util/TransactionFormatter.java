@@ -1,11 +1,11 @@
 package org.libdohj.cate.util;
 
+import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionOutput;
 import org.libdohj.cate.controller.MainController;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 import org.libdohj.cate.controller.WalletTransaction;
 
 /**
@@ -19,20 +19,14 @@ public class TransactionFormatter {
      * Relevant can mean: In case of an incoming transaction, all outputs paying our wallet;
      * in case of an outgoing transaction, all outputs that do NOT pay our wallet (change).
      * @param wtx The WalletTransaction to filter the outputs from
-     * @return All relevant outputs
+     * @return All relevant outputs, or an empty list if the transaction is no longer in the wallet
      */
     public static List<TransactionOutput> getRelevantOutputs(WalletTransaction wtx) {
-        List<TransactionOutput> outputs = new ArrayList<>();
-        if (wtx.getBalanceChange().isPositive()) {
-            // We received coins, so only use outputs concerning our wallet.
-            outputs.addAll(wtx.getTransaction().getWalletOutputs(wtx.getNetwork().wallet()));
-        } else {
-            // We sent coins, so use that output we actually sent to. We need to filter out a possible change output
-            outputs.addAll(wtx.getTransaction().getOutputs());
-            outputs.removeAll(wtx.getTransaction().getWalletOutputs(wtx.getNetwork().wallet()));
-        }
-
-        return outputs;
+        // Worked out once per transaction when it is indexed, see RelevantOutputs
+        final Transaction tx = wtx.getTransaction();
+        return tx == null
+                ? Collections.emptyList()
+                : wtx.lookUpRelevantOutputs().getOutputs(tx);
     }
 
     /**
@@ -43,8 +37,6 @@ public class TransactionFormatter {
      * @return a String as described above
      */
     public static String getRelevantOutputsAsString(WalletTransaction wtx, String delimiter) {
-        return getRelevantOutputs(wtx).stream()
-                .map(output -> output.getScriptPubKey().getToAddress(wtx.getParams()).toString())
-                .collect(Collectors.joining(delimiter));
+        return wtx.lookUpRelevantOutputs().join(delimiter);
     }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batches updates from network threads on to the UI thread. Each network
+ * queues its updates into its own {@link UiUpdateQueue}, and all queues are
+ * drained together in a single task on the UI thread, rather than one
+ * <code>Platform.runLater()</code> call per update.
+ *
+ * At most one drain is outstanding at a time, so however many updates arrive
+ * while the UI thread is busy (i.e. during a frame), they are applied in the
+ * next single pass.
+ *
+ * @author Ross Nicoll
+ */
+public class UiUpdateDispatcher {
+    private final Executor uiExecutor;
+    private final List<UiUpdateQueue> queues = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final AtomicLong drains = new AtomicLong(0);
+
+    /**
+     * @param uiExecutor executor which runs tasks on the UI thread, typically
+     * a {@link PulseExecutor} so queues are drained once per frame.
+     */
+    public UiUpdateDispatcher(final Executor uiExecutor) {
+        this.uiExecutor = uiExecutor;
+    }
+
+    /**
+     * Create a new queue of updates to be drained by this dispatcher.
+     *
+     * @param name name of the queue, for diagnostics.
+     * @return the new queue.
+     */
+    public UiUpdateQueue newQueue(final String name) {
+        final UiUpdateQueue queue = new UiUpdateQueue(this, name);
+        queues.add(queue);
+        return queue;
+    }
+
+    /**
+     * Stop draining a queue, for example once its network has terminated.
+     *
+     * @param queue the queue to remove.
+     */
+    public void removeQueue(final UiUpdateQueue queue) {
+        queues.remove(queue);
+    }
+
+    /**
+     * Schedule a drain of all queues on the UI thread, unless one is already
+     * pending.
+     */
+    void schedule() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            uiExecutor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        // Clear the flag first, so anything queued during the drain gets a
+        // drain of its own.
+        drainScheduled.set(false);
+        drains.incrementAndGet();
+        for (UiUpdateQueue queue : queues) {
+            queue.drain();
+        }
+    }
+
+    /**
+     * @return the number of times the queues have been drained.
+     */
+    public long getDrainCount() {
+        return drains.get();
+    }
+}
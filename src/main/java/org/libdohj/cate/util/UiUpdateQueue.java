@@ -0,0 +1,142 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import javafx.beans.value.WritableValue;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free buffer of pending UI updates from a single network, drained on the
+ * UI thread by a {@link UiUpdateDispatcher}. Two kinds of update are
+ * supported; tasks, and property values, where only the last value set before
+ * a drain is applied.
+ *
+ * Updates are applied in the order they were queued. Where a property is set
+ * more than once before a drain, its latest value is applied in place of the
+ * first, and the rest are skipped. A task therefore always sees any value set
+ * before it was queued (or a later value for the same property) applied.
+ *
+ * Safe to use from any thread.
+ *
+ * @author Ross Nicoll
+ */
+public class UiUpdateQueue {
+    private final UiUpdateDispatcher dispatcher;
+    private final String name;
+    /**
+     * Tasks and {@link PropertyUpdate}s, in the order queued.
+     */
+    private final Queue<Runnable> updates = new ConcurrentLinkedQueue<>();
+    /**
+     * The latest update queued for each property which has not yet been
+     * applied.
+     */
+    private final Map<WritableValue<?>, PropertyUpdate<?>> latest = new ConcurrentHashMap<>();
+    private final AtomicLong queued = new AtomicLong(0);
+    private final AtomicLong collapsed = new AtomicLong(0);
+
+    UiUpdateQueue(final UiUpdateDispatcher dispatcher, final String name) {
+        this.dispatcher = dispatcher;
+        this.name = name;
+    }
+
+    /**
+     * Queue a task to run on the UI thread.
+     *
+     * @param task the task to run.
+     */
+    public void run(final Runnable task) {
+        queued.incrementAndGet();
+        updates.add(task);
+        dispatcher.schedule();
+    }
+
+    /**
+     * Set a property on the UI thread. If the property is set again before the
+     * queue is drained, only the latest value is applied.
+     *
+     * @param property the property to set.
+     * @param value the value to set it to.
+     * @param <T> the type of the property.
+     */
+    public <T> void set(final WritableValue<T> property, final T value) {
+        final PropertyUpdate<T> update = new PropertyUpdate<>(property, value);
+        queued.incrementAndGet();
+        if (latest.put(property, update) != null) {
+            collapsed.incrementAndGet();
+        }
+        updates.add(update);
+        dispatcher.schedule();
+    }
+
+    /**
+     * Apply all pending updates, in the order queued. MUST be called on the
+     * UI thread.
+     */
+    void drain() {
+        Runnable update;
+        while ((update = updates.poll()) != null) {
+            update.run();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the total number of updates queued.
+     */
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of property updates which were replaced by a later
+     * value before being applied.
+     */
+    public long getCollapsedCount() {
+        return collapsed.get();
+    }
+
+    /**
+     * A value queued for a property. When run, applies the latest value queued
+     * for the property, if not already applied by an earlier update.
+     */
+    private class PropertyUpdate<T> implements Runnable {
+        private final WritableValue<T> property;
+        private final T value;
+
+        private PropertyUpdate(final WritableValue<T> property, final T value) {
+            this.property = property;
+            this.value = value;
+        }
+
+        @Override
+        public void run() {
+            @SuppressWarnings("unchecked")
+            final PropertyUpdate<T> current = (PropertyUpdate<T>) latest.remove(property);
+            if (current != null) {
+                property.setValue(current.value);
+            }
+        }
+    }
+}
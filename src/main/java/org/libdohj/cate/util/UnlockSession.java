@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds a derived wallet AES key for a limited time after the user unlocks
+ * their wallet, so repeated sends do not each need a password prompt and a
+ * full scrypt derivation.
+ *
+ * The session keeps its own copy of the key, and hands out fresh copies so
+ * callers can (and should) wipe theirs once done. The held key is wiped when
+ * the session is locked, either explicitly or when the timeout expires.
+ *
+ * This is only a cache; a key it gives out should be set on the request it is
+ * for, as the session may expire at any moment afterwards. With a timeout of
+ * zero nothing is held at all.
+ *
+ * @author Ross Nicoll
+ */
+public class UnlockSession {
+    private static final ScheduledExecutorService SHARED_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "Unlock session timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ScheduledExecutorService timer;
+    private final long timeoutMillis;
+    private byte[] key;
+    private long expiresAtNanos;
+    private ScheduledFuture<?> expiry;
+
+    /**
+     * @param timeoutMillis time the session stays unlocked for, in milliseconds.
+     */
+    public UnlockSession(final long timeoutMillis) {
+        this(timeoutMillis, SHARED_TIMER);
+    }
+
+    /**
+     * @param timeoutMillis time the session stays unlocked for, in milliseconds.
+     * @param timer timer used to lock the session once the timeout expires.
+     */
+    public UnlockSession(final long timeoutMillis, final ScheduledExecutorService timer) {
+        this.timeoutMillis = timeoutMillis;
+        this.timer = timer;
+    }
+
+    /**
+     * Unlock the session with the given key, replacing (and wiping) any key
+     * already held. The session takes a copy of the key, so the caller remains
+     * responsible for wiping the key they passed in.
+     *
+     * @param aesKey the key to hold.
+     */
+    public synchronized void unlock(final KeyParameter aesKey) {
+        lock();
+        if (timeoutMillis <= 0) {
+            return;
+        }
+        final byte[] source = aesKey.getKey();
+        key = Arrays.copyOf(source, source.length);
+        expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        expiry = timer.schedule(this::lock, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get a copy of the held key, if the session is unlocked. The caller should
+     * wipe the returned key once done with it.
+     *
+     * @return a new copy of the key, or null if the session is locked.
+     */
+    public synchronized KeyParameter getKey() {
+        if (!isUnlocked()) {
+            return null;
+        }
+        // KeyParameter copies the array it is given
+        return new KeyParameter(key);
+    }
+
+    /**
+     * @return true if the session holds a key which has not yet expired.
+     */
+    public synchronized boolean isUnlocked() {
+        if (key == null) {
+            return false;
+        }
+        if (System.nanoTime() - expiresAtNanos >= 0) {
+            // The timer may not have run yet, but the key has still expired
+            lock();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Lock the session, wiping any key held. Safe to call when already locked.
+     */
+    public synchronized void lock() {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        if (key != null) {
+            Arrays.fill(key, (byte) 0);
+            key = null;
+        }
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
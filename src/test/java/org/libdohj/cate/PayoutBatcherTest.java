@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcast;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.Wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for PayoutBatcher. Wallet tasks and callbacks run on the calling
+ * thread, and peers acknowledge every broadcast straight away.
+ *
+ * @author Ross Nicoll
+ */
+public class PayoutBatcherTest {
+    private static final int MAX_PAYOUTS = 250;
+
+    private final NetworkParameters params = UnitTestParams.get();
+    private Wallet wallet;
+    private SendPipeline pipeline;
+    private PayoutBatcher batcher;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        wallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+        wallet.setAcceptRiskyTransactions(true);
+        wallet.allowSpendingUnconfirmedTransactions();
+        pipeline = new SendPipeline(Runnable::run, () -> wallet, () -> tx -> {
+            final SettableFuture<Transaction> peers = SettableFuture.create();
+            peers.set(tx);
+            return TransactionBroadcast.createMockBroadcast(tx, peers);
+        }, () -> null);
+        batcher = new PayoutBatcher(params, Runnable::run, Runnable::run, pipeline, MAX_PAYOUTS);
+    }
+
+    private void fund(final Coin value) {
+        final Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0],
+                new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] {1}))));
+        tx.addOutput(value, wallet.currentReceiveAddress());
+        wallet.receivePending(tx, null);
+    }
+
+    private List<Payout> payouts(final int count, final Coin amount) {
+        final List<Payout> payouts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            payouts.add(new Payout(LegacyAddress.fromKey(params, new ECKey()), amount));
+        }
+        return payouts;
+    }
+
+    private PayoutReport send(final List<Payout> payouts) {
+        final AtomicReference<PayoutReport> report = new AtomicReference<>();
+        batcher.send(payouts, "Payout", report::set);
+        assertNotNull(report.get());
+        return report.get();
+    }
+
+    /**
+     * N payouts go out in ceil(N / 250) transactions, and the report totals
+     * add up across them.
+     */
+    @Test
+    public void shouldSplitPayoutsIntoTransactions() {
+        fund(Coin.COIN.multiply(10));
+        final List<Payout> payouts = payouts(2 * MAX_PAYOUTS + 1, Coin.CENT);
+
+        final PayoutReport report = send(payouts);
+
+        assertNull(report.getFailure());
+        assertEquals(501, report.getPayoutCount());
+        assertEquals(3, report.getTransactions().size());
+        assertEquals(3, pipeline.getAcknowledgedCount());
+        assertEquals(MAX_PAYOUTS, report.getTransactions().get(0).getPayoutCount());
+        assertEquals(MAX_PAYOUTS, report.getTransactions().get(1).getPayoutCount());
+        assertEquals(1, report.getTransactions().get(2).getPayoutCount());
+
+        Coin totalFee = Coin.ZERO;
+        for (PayoutReport.SentTransaction sent : report.getTransactions()) {
+            final Transaction tx = wallet.getTransaction(sent.getTxId());
+            assertEquals(tx.getFee(), sent.getFee());
+            assertEquals(sent.getPayoutCount() + 1, tx.getOutputs().size());
+            assertEquals("Payout", tx.getMemo());
+            assertTrue(sent.getBroadcastMillis() >= 0);
+            totalFee = totalFee.add(sent.getFee());
+        }
+        assertTrue(totalFee.isPositive());
+        assertEquals(totalFee, report.getTotalFee());
+        assertEquals(Context.get().getFeePerKb().multiply(501L * PayoutReport.SINGLE_PAYOUT_TX_SIZE).divide(1000),
+                report.getEstimatedUnbatchedFee());
+        assertEquals(report.getEstimatedUnbatchedFee().subtract(totalFee), report.getEstimatedFeeSaving());
+    }
+
+    @Test
+    public void shouldSendExactMultipleInFullTransactions() {
+        fund(Coin.COIN.multiply(10));
+
+        final PayoutReport report = send(payouts(2 * MAX_PAYOUTS, Coin.CENT));
+
+        assertEquals(2, report.getTransactions().size());
+        assertEquals(0, report.getUnsent().size());
+    }
+
+    /**
+     * Transactions already sent stand when a later one cannot be built, and
+     * every payout from that one on is reported unsent.
+     */
+    @Test
+    public void shouldReportUnsentPayoutsAfterFailure() {
+        fund(Coin.COIN.multiply(3));
+        final List<Payout> payouts = payouts(2 * MAX_PAYOUTS + 1, Coin.CENT);
+
+        final PayoutReport report = send(payouts);
+
+        assertTrue(report.getFailure() instanceof InsufficientMoneyException);
+        assertEquals(1, report.getTransactions().size());
+        assertEquals(MAX_PAYOUTS + 1, report.getUnsent().size());
+        assertEquals(payouts.get(MAX_PAYOUTS), report.getUnsent().get(0));
+        assertEquals(report.getTransactions().get(0).getFee(), report.getTotalFee());
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcast;
+import org.bitcoinj.core.TransactionBroadcaster;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.crypto.KeyCrypterException;
+import org.bitcoinj.crypto.KeyCrypterScrypt;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for SendPipeline. Wallet tasks run on the calling thread, and
+ * broadcasts complete when the test says so.
+ *
+ * @author Ross Nicoll
+ */
+public class SendPipelineTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private Wallet wallet;
+    private SettableFuture<Transaction> peers;
+    private TransactionBroadcaster broadcaster;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        wallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+        wallet.setAcceptRiskyTransactions(true);
+        wallet.allowSpendingUnconfirmedTransactions();
+        peers = SettableFuture.create();
+        broadcaster = tx -> TransactionBroadcast.createMockBroadcast(tx, peers);
+    }
+
+    private void fund(final Coin value) {
+        final Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0],
+                new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] {1}))));
+        tx.addOutput(value, wallet.currentReceiveAddress());
+        wallet.receivePending(tx, null);
+    }
+
+    private SendRequest payment(final Coin value) {
+        return SendRequest.to(LegacyAddress.fromKey(params, new ECKey()), value);
+    }
+
+    private SendPipeline pipeline(final TransactionBroadcaster broadcaster) {
+        return new SendPipeline(Runnable::run, () -> wallet, () -> broadcaster, () -> null);
+    }
+
+    private static Throwable failureOf(final CompletableFuture<Transaction> future) throws InterruptedException {
+        try {
+            future.get();
+            fail("Expected future to fail");
+            return null;
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        }
+    }
+
+    /**
+     * Signing and commit complete as soon as the task runs; the broadcast
+     * stage stays in flight until peers acknowledge it.
+     */
+    @Test
+    public void shouldCompleteStagesInOrder() throws Exception {
+        fund(Coin.COIN);
+        final SendPipeline pipeline = pipeline(broadcaster);
+
+        final SendPipeline.PendingSend pending = pipeline.submit(payment(Coin.CENT));
+
+        assertTrue(pending.getSigned().isDone());
+        assertTrue(pending.getCommitted().isDone());
+        assertFalse(pending.getBroadcast().isDone());
+        assertTrue(pending.getBuildMillis() >= 0);
+        assertEquals(-1, pending.getBroadcastMillis());
+        assertEquals(1, pipeline.getInFlightCount());
+        assertEquals(1, pipeline.getSubmittedCount());
+        assertTrue(wallet.getTransaction(pending.getCommitted().get().getTxId()) != null);
+
+        peers.set(pending.getCommitted().get());
+
+        assertSame(pending.getCommitted().get(), pending.getBroadcast().get());
+        assertTrue(pending.getBroadcastMillis() >= 0);
+        assertEquals(0, pipeline.getInFlightCount());
+        assertEquals(1, pipeline.getAcknowledgedCount());
+        assertEquals(0, pipeline.getFailedCount());
+    }
+
+    @Test
+    public void shouldFailAllStagesOnInsufficientMoney() throws Exception {
+        final SendPipeline pipeline = pipeline(tx -> {
+            throw new AssertionError("Nothing should be broadcast");
+        });
+
+        final SendPipeline.PendingSend pending = pipeline.submit(payment(Coin.CENT));
+
+        assertTrue(failureOf(pending.getSigned()) instanceof InsufficientMoneyException);
+        assertTrue(failureOf(pending.getCommitted()) instanceof InsufficientMoneyException);
+        assertTrue(failureOf(pending.getBroadcast()) instanceof InsufficientMoneyException);
+        assertTrue(pending.getFailure() instanceof InsufficientMoneyException);
+        assertEquals(0, pipeline.getInFlightCount());
+        assertEquals(1, pipeline.getFailedCount());
+    }
+
+    /**
+     * A broadcaster which throws rather than returning a failed broadcast must
+     * not leave the payment counted as in flight.
+     */
+    @Test
+    public void shouldFailWhenBroadcastThrows() throws Exception {
+        fund(Coin.COIN);
+        final IllegalStateException thrown = new IllegalStateException("No peers");
+        final SendPipeline pipeline = pipeline(tx -> {
+            throw thrown;
+        });
+
+        final SendPipeline.PendingSend pending = pipeline.submit(payment(Coin.CENT));
+
+        assertFalse(pending.getCommitted().isCompletedExceptionally());
+        assertSame(thrown, failureOf(pending.getBroadcast()));
+        assertEquals(0, pipeline.getInFlightCount());
+        assertEquals(1, pipeline.getFailedCount());
+        assertEquals(0, pipeline.getAcknowledgedCount());
+    }
+
+    @Test
+    public void shouldFailWhenPeersReject() throws Exception {
+        fund(Coin.COIN);
+        final SendPipeline pipeline = pipeline(broadcaster);
+        final RuntimeException rejected = new RuntimeException("Rejected");
+
+        final SendPipeline.PendingSend pending = pipeline.submit(payment(Coin.CENT));
+        peers.setException(rejected);
+
+        assertSame(rejected, failureOf(pending.getBroadcast()));
+        assertEquals(-1, pending.getBroadcastMillis());
+        assertEquals(0, pipeline.getInFlightCount());
+        assertEquals(1, pipeline.getFailedCount());
+    }
+
+    /**
+     * An encrypted wallet with no key on the request, and none cached, fails
+     * as locked rather than trying to sign.
+     */
+    @Test
+    public void shouldFailLockedWalletWithoutKey() throws Exception {
+        fund(Coin.COIN);
+        final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(2);
+        wallet.encrypt(keyCrypter, keyCrypter.deriveKey("password"));
+        final SendPipeline pipeline = pipeline(broadcaster);
+
+        final SendPipeline.PendingSend pending = pipeline.submit(payment(Coin.CENT));
+
+        assertTrue(failureOf(pending.getSigned()) instanceof KeyCrypterException);
+        assertEquals(0, pipeline.getInFlightCount());
+        assertEquals(1, pipeline.getFailedCount());
+    }
+
+    /**
+     * A key set on the request is used, and wiped once signing is done.
+     */
+    @Test
+    public void shouldSignWithRequestKeyAndWipeIt() throws Exception {
+        fund(Coin.COIN);
+        final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(2);
+        wallet.encrypt(keyCrypter, keyCrypter.deriveKey("password"));
+        final SendPipeline pipeline = pipeline(broadcaster);
+        final SendRequest req = payment(Coin.CENT);
+        req.aesKey = keyCrypter.deriveKey("password");
+
+        final SendPipeline.PendingSend pending = pipeline.submit(req);
+
+        assertTrue(pending.getCommitted().isDone());
+        assertFalse(pending.getCommitted().isCompletedExceptionally());
+        for (byte b : req.aesKey.getKey()) {
+            assertEquals(0, b);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.net.FilterMerger;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Wallet;
+import org.libdohj.cate.util.FilteredBlockStats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for SyncProfile.
+ *
+ * @author Ross Nicoll
+ */
+public class SyncProfileTest {
+    private static final long DAY_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    private final NetworkParameters params = UnitTestParams.get();
+    private Wallet wallet;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        wallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+    }
+
+    /**
+     * Apply the profile, then merge filters exactly as the peer group does
+     * each time it recalculates them, returning the resulting catch-up time.
+     */
+    private long fastCatchupAfterRecalculation(final SyncProfile profile) {
+        final RecordingPeerGroup peerGroup = new RecordingPeerGroup(params);
+        peerGroup.addWallet(wallet);
+        profile.apply(peerGroup, wallet);
+        return new FilterMerger(profile.getFalsePositiveRate())
+                .calculate(ImmutableList.copyOf(peerGroup.providers))
+                .earliestKeyTimeSecs;
+    }
+
+    /**
+     * Slack wider than bitcoinj's own survives the peer group recalculating
+     * its filter.
+     */
+    @Test
+    public void shouldKeepWiderSlackAcrossRecalculation() {
+        final SyncProfile profile = new SyncProfile(SyncProfile.DEFAULT_FALSE_POSITIVE_RATE,
+                SyncProfile.DEFAULT_RECALCULATE_FACTOR, SyncProfile.DEFAULT_RECALCULATE_MIN_BLOCKS,
+                30 * DAY_SECONDS);
+
+        assertEquals(wallet.getEarliestKeyCreationTime() - 30 * DAY_SECONDS,
+                fastCatchupAfterRecalculation(profile));
+    }
+
+    @Test
+    public void shouldLeaveDefaultSlackToBitcoinj() {
+        final SyncProfile profile = new SyncProfile(SyncProfile.DEFAULT_FALSE_POSITIVE_RATE,
+                SyncProfile.DEFAULT_RECALCULATE_FACTOR, SyncProfile.DEFAULT_RECALCULATE_MIN_BLOCKS,
+                SyncProfile.DEFAULT_CATCHUP_SLACK_SECONDS);
+
+        assertEquals(wallet.getEarliestKeyCreationTime() - SyncProfile.BITCOINJ_CATCHUP_SLACK_SECONDS,
+                fastCatchupAfterRecalculation(profile));
+    }
+
+    /**
+     * The filter is only recalculated once enough blocks have passed since
+     * the last recalculation, and the observed rate is far enough above
+     * target.
+     */
+    @Test
+    public void shouldRecalculateOnlyWhenRateDriftsAfterMinBlocks() throws BlockStoreException {
+        final SyncProfile profile = new SyncProfile(0.001, 5.0, 10, SyncProfile.DEFAULT_CATCHUP_SLACK_SECONDS);
+        final FixedRateChain chain = new FixedRateChain(params);
+        final CountingPeerGroup peerGroup = new CountingPeerGroup(params);
+        final FilteredBlockStats stats = new FilteredBlockStats();
+
+        chain.rate = 0.1;
+        recordBlocks(stats, 9);
+        assertFalse(profile.checkFalsePositiveRate(peerGroup, chain, stats));
+
+        recordBlocks(stats, 1);
+        chain.rate = 0.004;
+        assertFalse(profile.checkFalsePositiveRate(peerGroup, chain, stats));
+
+        chain.rate = 0.1;
+        assertTrue(profile.checkFalsePositiveRate(peerGroup, chain, stats));
+        assertEquals(1, peerGroup.recalculations);
+        assertEquals(1, chain.resets);
+        assertEquals(1, stats.getRecalculationCount());
+        assertEquals(10, stats.getBlocksAtLastRecalculation());
+
+        // Counting starts again from the recalculation
+        recordBlocks(stats, 9);
+        assertFalse(profile.checkFalsePositiveRate(peerGroup, chain, stats));
+        recordBlocks(stats, 1);
+        assertTrue(profile.checkFalsePositiveRate(peerGroup, chain, stats));
+        assertEquals(2, peerGroup.recalculations);
+    }
+
+    /**
+     * Profiles hold no state, so one can be shared between networks.
+     */
+    @Test
+    public void shouldTrackRecalculationPerNetwork() throws BlockStoreException {
+        final SyncProfile profile = new SyncProfile(0.001, 5.0, 10, SyncProfile.DEFAULT_CATCHUP_SLACK_SECONDS);
+        final FixedRateChain chain = new FixedRateChain(params);
+        final CountingPeerGroup peerGroup = new CountingPeerGroup(params);
+        final FilteredBlockStats first = new FilteredBlockStats();
+        final FilteredBlockStats second = new FilteredBlockStats();
+
+        chain.rate = 0.1;
+        recordBlocks(first, 10);
+        recordBlocks(second, 10);
+        assertTrue(profile.checkFalsePositiveRate(peerGroup, chain, first));
+        assertTrue(profile.checkFalsePositiveRate(peerGroup, chain, second));
+    }
+
+    private static void recordBlocks(final FilteredBlockStats stats, final int count) {
+        for (int i = 0; i < count; i++) {
+            stats.recordBlock(100, 1, 0);
+        }
+    }
+
+    private static class FixedRateChain extends BlockChain {
+        private double rate;
+        private int resets;
+
+        FixedRateChain(final NetworkParameters params) throws BlockStoreException {
+            super(params, new MemoryBlockStore(params));
+        }
+
+        @Override
+        public double getFalsePositiveRate() {
+            return rate;
+        }
+
+        @Override
+        public void resetFalsePositiveEstimate() {
+            resets++;
+        }
+    }
+
+    private static class CountingPeerGroup extends PeerGroup {
+        private int recalculations;
+
+        CountingPeerGroup(final NetworkParameters params) {
+            super(params);
+        }
+
+        @Override
+        public ListenableFuture<BloomFilter> recalculateFastCatchupAndFilter(final FilterRecalculateMode mode) {
+            recalculations++;
+            return Futures.immediateFuture(null);
+        }
+    }
+
+    /**
+     * Peer group which records filter providers, without recalculating (it is
+     * never started, so would never finish).
+     */
+    private static class RecordingPeerGroup extends PeerGroup {
+        private final List<PeerFilterProvider> providers = new ArrayList<>();
+
+        RecordingPeerGroup(final NetworkParameters params) {
+            super(params);
+        }
+
+        @Override
+        public ListenableFuture<BloomFilter> addPeerFilterProvider(final PeerFilterProvider provider) {
+            providers.add(provider);
+            return Futures.immediateFuture(null);
+        }
+    }
+}
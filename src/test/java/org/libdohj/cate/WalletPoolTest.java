@@ -0,0 +1,269 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for WalletPool, against an in-memory chain. Wallet tasks run on
+ * the calling thread, and the peer group is never started.
+ *
+ * @author Ross Nicoll
+ */
+public class WalletPoolTest {
+    private static final String PREFIX = "cate_test";
+
+    private final NetworkParameters params = UnitTestParams.get();
+    private final LegacyAddress miner = LegacyAddress.fromKey(params, new ECKey());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MemoryBlockStore store;
+    private BlockChain chain;
+    private PeerGroup peerGroup;
+    private Wallet mainWallet;
+    private WalletPool pool;
+    /** Blocks mined so far, by height, so they can be replayed. */
+    private final List<Block> blocks = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(params));
+        store = new MemoryBlockStore(params);
+        blocks.add(params.getGenesisBlock());
+        mainWallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+        chain = new BlockChain(params, mainWallet, store);
+        peerGroup = new PeerGroup(params, chain);
+        pool = newPool(0);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    private WalletPool newPool(final long idleMillis) {
+        final WalletPool newPool = new WalletPool(params, folder.getRoot(), PREFIX, Runnable::run,
+                () -> chain, () -> peerGroup, () -> mainWallet, idleMillis);
+        newPool.start();
+        return newPool;
+    }
+
+    /**
+     * Extend the best chain to the given height, mining new blocks.
+     */
+    private void mineTo(final int height) throws Exception {
+        while (blocks.size() <= height) {
+            final Block next = blocks.get(blocks.size() - 1).createNextBlock(miner);
+            blocks.add(next);
+            assertTrue(chain.add(next));
+        }
+    }
+
+    /**
+     * Feed already mined blocks back to the chain, as peers would during a
+     * replay.
+     */
+    private void replayTo(final int height) throws Exception {
+        for (int i = chain.getBestChainHeight() + 1; i <= height; i++) {
+            assertTrue(chain.add(blocks.get(i)));
+        }
+    }
+
+    @Test
+    public void shouldAttachCreatedWallet() throws Exception {
+        mineTo(2);
+        final Wallet wallet = pool.create("alice").get();
+
+        mineTo(3);
+
+        assertTrue(pool.isLoaded("alice"));
+        assertEquals(1, pool.getLoadedCount());
+        assertEquals(3, wallet.getLastBlockSeenHeight());
+        assertTrue(new File(folder.getRoot(), PREFIX + "_alice.wallet").exists());
+        assertEquals(1, pool.list().size());
+    }
+
+    @Test
+    public void shouldDetachAndSaveUnloadedWallet() throws Exception {
+        final Wallet wallet = pool.create("alice").get();
+        mineTo(2);
+
+        pool.unload("alice").get();
+        mineTo(4);
+
+        assertFalse(pool.isLoaded("alice"));
+        assertEquals(2, wallet.getLastBlockSeenHeight());
+        final Wallet saved = Wallet.loadFromFile(new File(folder.getRoot(), PREFIX + "_alice.wallet"));
+        assertEquals(2, saved.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void shouldFailToOpenMissingWallet() throws Exception {
+        try {
+            pool.open("nobody").get();
+            fail("Expected open to fail");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    /**
+     * Reopening a wallet behind the chain rolls the chain back, and the main
+     * wallet sits out the replay until it reaches the block it last saw.
+     */
+    @Test
+    public void shouldReplayForWalletBehindChain() throws Exception {
+        pool.create("alice").get();
+        mineTo(2);
+        pool.unload("alice").get();
+        mineTo(5);
+
+        final Wallet alice = pool.open("alice").get();
+
+        assertEquals(2, chain.getBestChainHeight());
+        assertEquals(1, pool.getDetachedCount());
+        replayTo(4);
+        assertEquals(4, alice.getLastBlockSeenHeight());
+        assertEquals(5, mainWallet.getLastBlockSeenHeight());
+        replayTo(5);
+        assertEquals(0, pool.getDetachedCount());
+        assertEquals(5, alice.getLastBlockSeenHeight());
+
+        mineTo(6);
+        assertEquals(6, alice.getLastBlockSeenHeight());
+        assertEquals(6, mainWallet.getLastBlockSeenHeight());
+    }
+
+    /**
+     * A wallet opened while the chain is replaying for another, which has
+     * already seen some of the replayed blocks, waits for the replay to reach
+     * it rather than seeing those blocks twice.
+     */
+    @Test
+    public void shouldHoldBackWalletOpenedDuringReplay() throws Exception {
+        pool.create("alice").get();
+        pool.create("bob").get();
+        mineTo(2);
+        pool.unload("alice").get();
+        mineTo(4);
+        pool.unload("bob").get();
+        mineTo(5);
+
+        pool.open("alice").get();
+        final Wallet bob = pool.open("bob").get();
+
+        assertEquals(2, chain.getBestChainHeight());
+        assertEquals(2, pool.getDetachedCount());
+        replayTo(3);
+        assertEquals(4, bob.getLastBlockSeenHeight());
+        replayTo(4);
+        assertEquals(1, pool.getDetachedCount());
+        replayTo(5);
+        assertEquals(0, pool.getDetachedCount());
+        assertEquals(5, bob.getLastBlockSeenHeight());
+    }
+
+    /**
+     * A wallet which missed blocks no longer in the store is refused, rather
+     * than moved up to the chain head with transactions missing.
+     */
+    @Test
+    public void shouldRefuseWalletBehindBlockStore() throws Exception {
+        pool.create("alice").get();
+        mineTo(2);
+        pool.unload("alice").get();
+        mineTo(4);
+        // Lose the block the wallet last saw, as a pruned store would
+        final Wallet saved = Wallet.loadFromFile(new File(folder.getRoot(), PREFIX + "_alice.wallet"));
+        saved.setLastBlockSeenHash(blocks.get(4).getHash());
+        saved.saveToFile(new File(folder.getRoot(), PREFIX + "_alice.wallet"));
+
+        try {
+            pool.open("alice").get();
+            fail("Expected open to fail");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(pool.isLoaded("alice"));
+        assertEquals(4, chain.getBestChainHeight());
+        assertEquals(0, pool.getDetachedCount());
+    }
+
+    /**
+     * The main wallet saved while waiting on a replay is ahead of the chain
+     * at next startup, so is held back until the chain reaches it.
+     */
+    @Test
+    public void shouldHoldBackMainWalletAheadOfChain() throws Exception {
+        pool.create("alice").get();
+        mineTo(2);
+        pool.unload("alice").get();
+        mineTo(4);
+        pool.open("alice").get();
+        pool.close();
+
+        pool = newPool(0);
+
+        assertEquals(1, pool.getDetachedCount());
+        replayTo(3);
+        assertEquals(4, mainWallet.getLastBlockSeenHeight());
+        replayTo(4);
+        assertEquals(0, pool.getDetachedCount());
+    }
+
+    @Test
+    public void shouldUnloadIdleWallets() throws Exception {
+        pool.close();
+        pool = newPool(50);
+        pool.create("alice").get();
+        Thread.sleep(100);
+        pool.create("bob").get();
+
+        pool.unloadIdle();
+
+        assertFalse(pool.isLoaded("alice"));
+        assertTrue(pool.isLoaded("bob"));
+        // Opening again reloads it from disk
+        pool.open("alice").get();
+        assertTrue(pool.isLoaded("alice"));
+    }
+}
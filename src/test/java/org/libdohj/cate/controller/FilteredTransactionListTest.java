@@ -0,0 +1,301 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import org.bitcoinj.core.Sha256Hash;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for FilteredTransactionList.
+ *
+ * @author Ross Nicoll
+ */
+public class FilteredTransactionListTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private WalletFixture fixture;
+    private final ObservableList<WalletTransaction> source = FXCollections.observableArrayList();
+    private FilteredTransactionList filtered;
+    private int nextId = 0;
+    /**
+     * Each change to the view, as "+index" or "-index", or "rebuild" where
+     * the whole view was replaced.
+     */
+    private final List<String> reported = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        fixture = new WalletFixture(folder.getRoot());
+    }
+
+    private void start(final WalletTransaction... initial) {
+        add(initial);
+        filtered = new FilteredTransactionList(source);
+        filtered.getVisible().addListener((ListChangeListener<WalletTransaction>) change -> {
+            while (change.next()) {
+                if (change.getRemovedSize() > 1 || change.getAddedSize() > 1
+                        || (change.wasRemoved() && change.wasAdded())) {
+                    reported.add("rebuild");
+                } else if (change.wasRemoved()) {
+                    reported.add("-" + change.getFrom());
+                } else if (change.wasAdded()) {
+                    reported.add("+" + change.getFrom());
+                }
+            }
+        });
+    }
+
+    private WalletTransaction transaction(final long updateTime, final long amount, final String memo) {
+        final Sha256Hash txId = Sha256Hash.of(ByteBuffer.allocate(4).putInt(nextId++).array());
+        return new WalletTransaction(fixture.network, txId, updateTime, amount, memo);
+    }
+
+    /**
+     * Add transactions to the source, keeping it newest first as the merged
+     * list does.
+     */
+    private void add(final WalletTransaction... wtxs) {
+        for (WalletTransaction wtx : wtxs) {
+            final int idx = Collections.binarySearch(source, wtx, TransactionIndex.NEWEST_FIRST);
+            source.add(-idx - 1, wtx);
+        }
+    }
+
+    /**
+     * The source transactions which pass the query, sorted as the view
+     * should be.
+     */
+    private List<WalletTransaction> expected(final FilteredTransactionList.SortKey sortKey,
+            final boolean ascending) {
+        final List<WalletTransaction> result = new ArrayList<>();
+        for (WalletTransaction wtx : source) {
+            if (filtered.getQuery().matches(wtx)) {
+                result.add(wtx);
+            }
+        }
+        result.sort(sortKey.getComparator(ascending));
+        return result;
+    }
+
+    @Test
+    public void shouldStartNewestFirst() {
+        final WalletTransaction t1 = transaction(1000, 300, null);
+        final WalletTransaction t2 = transaction(2000, 100, null);
+        final WalletTransaction t3 = transaction(3000, 200, null);
+
+        start(t1, t3, t2);
+
+        assertEquals(Arrays.asList(t3, t2, t1), filtered.getVisible());
+    }
+
+    /**
+     * A transaction added to the source is placed in the view where it
+     * belongs, rather than the view being rebuilt.
+     */
+    @Test
+    public void shouldInsertInPlace() {
+        final WalletTransaction t1 = transaction(1000, 300, null);
+        final WalletTransaction t2 = transaction(2000, 100, null);
+        final WalletTransaction t3 = transaction(3000, 200, null);
+        start(t1, t2, t3);
+        filtered.sortBy(FilteredTransactionList.SortKey.AMOUNT, false);
+        reported.clear();
+
+        final WalletTransaction t4 = transaction(4000, 250, null);
+        add(t4);
+
+        assertEquals(Collections.singletonList("+1"), reported);
+        assertEquals(Arrays.asList(t1, t4, t3, t2), filtered.getVisible());
+
+        // Ties on amount are broken by time
+        final WalletTransaction t5 = transaction(500, 250, null);
+        add(t5);
+
+        assertEquals(Arrays.asList("+1", "+2"), reported);
+        assertEquals(Arrays.asList(t1, t4, t5, t3, t2), filtered.getVisible());
+    }
+
+    @Test
+    public void shouldInsertInPlaceOldestFirst() {
+        final WalletTransaction t1 = transaction(1000, 100, null);
+        final WalletTransaction t3 = transaction(3000, 100, null);
+        start(t1, t3);
+        filtered.sortBy(FilteredTransactionList.SortKey.DATE, true);
+        reported.clear();
+
+        final WalletTransaction t2 = transaction(2000, 100, null);
+        add(t2);
+
+        assertEquals(Collections.singletonList("+1"), reported);
+        assertEquals(Arrays.asList(t1, t2, t3), filtered.getVisible());
+    }
+
+    @Test
+    public void shouldRemoveInPlace() {
+        final WalletTransaction t1 = transaction(1000, 300, null);
+        final WalletTransaction t2 = transaction(2000, 100, null);
+        final WalletTransaction t3 = transaction(3000, 200, null);
+        start(t1, t2, t3);
+        filtered.sortBy(FilteredTransactionList.SortKey.AMOUNT, true);
+        reported.clear();
+
+        source.remove(t3);
+
+        assertEquals(Collections.singletonList("-1"), reported);
+        assertEquals(Arrays.asList(t2, t1), filtered.getVisible());
+    }
+
+    /**
+     * The view stays in order through every sort order, both when first
+     * sorted and as transactions are added and removed afterwards.
+     */
+    @Test
+    public void shouldKeepOrderAcrossSortChanges() {
+        start(transaction(1000, 300, "Rent"),
+                transaction(2000, -100, "coffee"),
+                transaction(3000, 200, null),
+                transaction(3000, 200, "Books"),
+                transaction(4000, 0, "apples"));
+
+        // Unit test parameters have no network name, so NETWORK is left out
+        for (FilteredTransactionList.SortKey sortKey : Arrays.asList(FilteredTransactionList.SortKey.DATE,
+                FilteredTransactionList.SortKey.AMOUNT, FilteredTransactionList.SortKey.MEMO)) {
+            for (boolean ascending : new boolean[] {false, true}) {
+                filtered.sortBy(sortKey, ascending);
+                assertEquals(sortKey + " " + ascending, expected(sortKey, ascending), filtered.getVisible());
+
+                add(transaction(2500, 150, "Bread"));
+                source.remove(0);
+                assertEquals(sortKey + " " + ascending, expected(sortKey, ascending), filtered.getVisible());
+            }
+        }
+    }
+
+    /**
+     * More changes at once than are worth placing one by one rebuild the
+     * view instead, with the same result.
+     */
+    @Test
+    public void shouldRebuildForBulkChanges() {
+        start(transaction(1000, 100, null));
+        filtered.sortBy(FilteredTransactionList.SortKey.AMOUNT, false);
+        reported.clear();
+
+        final List<WalletTransaction> merged = new ArrayList<>(source);
+        for (int i = 0; i < 100; i++) {
+            merged.add(transaction(2000 + i, (i * 37) % 100, null));
+        }
+        merged.sort(TransactionIndex.NEWEST_FIRST);
+        source.setAll(merged);
+
+        assertEquals(Collections.singletonList("rebuild"), reported);
+        assertEquals(expected(FilteredTransactionList.SortKey.AMOUNT, false), filtered.getVisible());
+    }
+
+    @Test
+    public void shouldShowOnlyTransactionsMatchingQuery() {
+        final WalletTransaction small = transaction(1000, 50, "Rent for May");
+        final WalletTransaction rent = transaction(2000, 500, "Rent for June");
+        final WalletTransaction other = transaction(3000, 500, "Coffee");
+        start(small, rent, other);
+
+        filtered.setQuery(new TransactionQuery(null, Long.MIN_VALUE, Long.MAX_VALUE, 100, Long.MAX_VALUE, " RENT "));
+
+        assertEquals(Collections.singletonList(rent), filtered.getVisible());
+
+        final WalletTransaction later = transaction(4000, 200, "rent for July");
+        add(later, transaction(5000, 200, null), transaction(6000, 20, "rent"));
+
+        assertEquals(Arrays.asList(later, rent), filtered.getVisible());
+
+        filtered.setQuery(TransactionQuery.ALL);
+
+        assertEquals(source, filtered.getVisible());
+    }
+
+    /**
+     * Transactions added while searching are checked against the search as
+     * they arrive, rather than the search being repeated.
+     */
+    @Test
+    public void shouldUpdateSearchAsSourceChanges() {
+        final WalletTransaction rent = transaction(1000, 100, "Rent");
+        final WalletTransaction coffee = transaction(2000, 100, "Coffee");
+        start(rent, coffee);
+        final List<WalletTransaction> checked = new ArrayList<>();
+
+        filtered.setSearch(Collections.singletonList(rent), wtx -> {
+            checked.add(wtx);
+            return wtx.getMemo() != null && wtx.getMemo().startsWith("Rent");
+        });
+
+        assertEquals(Collections.singletonList(rent), filtered.getVisible());
+
+        final WalletTransaction moreRent = transaction(3000, 100, "Rent again");
+        final WalletTransaction tea = transaction(4000, 100, "Tea");
+        add(moreRent, tea);
+
+        assertEquals(Arrays.asList(moreRent, tea), checked);
+        assertEquals(Arrays.asList(moreRent, rent), filtered.getVisible());
+
+        // An updated transaction is replaced in the source, and checked again
+        final WalletTransaction updated = new WalletTransaction(fixture.network, rent.getTxId(),
+                5000, 100, "Rent");
+        source.remove(rent);
+        add(updated);
+
+        assertEquals(Arrays.asList(updated, moreRent), filtered.getVisible());
+
+        filtered.setSearch(null, null);
+
+        assertEquals(source, filtered.getVisible());
+    }
+
+    @Test
+    public void shouldUpdateSearchThroughBulkChanges() {
+        start(transaction(1000, 101, null));
+        filtered.setSearch(Collections.emptyList(), wtx -> wtx.getBalanceChangeValue() % 2 == 0);
+
+        final List<WalletTransaction> merged = new ArrayList<>(source);
+        final List<WalletTransaction> even = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final WalletTransaction wtx = transaction(2000 + i, i, null);
+            merged.add(wtx);
+            if (i % 2 == 0) {
+                even.add(wtx);
+            }
+        }
+        merged.sort(TransactionIndex.NEWEST_FIRST);
+        source.setAll(merged);
+
+        even.sort(TransactionIndex.NEWEST_FIRST);
+        assertEquals(even, filtered.getVisible());
+    }
+}
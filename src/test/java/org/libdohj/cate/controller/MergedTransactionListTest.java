@@ -0,0 +1,105 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javafx.collections.ListChangeListener;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for MergedTransactionList.
+ *
+ * @author Ross Nicoll
+ */
+public class MergedTransactionListTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private WalletFixture fixture;
+    private MergedTransactionList merged;
+    /**
+     * Each change reported, as "+from-to" or "-from:count".
+     */
+    private final List<String> reported = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        fixture = new WalletFixture(folder.getRoot());
+        merged = new MergedTransactionList();
+        merged.getTransactions().addListener((ListChangeListener<WalletTransaction>) change -> {
+            while (change.next()) {
+                assertFalse(change.wasPermutated());
+                if (change.wasRemoved()) {
+                    reported.add("-" + change.getFrom() + ":" + change.getRemovedSize());
+                }
+                if (change.wasAdded()) {
+                    reported.add("+" + change.getFrom() + "-" + change.getTo());
+                }
+            }
+        });
+    }
+
+    private WalletTransaction transaction(final long updateTime) {
+        return new WalletTransaction(fixture.network, fixture.receive(Coin.COIN.value, updateTime).getTxId(),
+                updateTime, Coin.COIN.value, null);
+    }
+
+    /**
+     * Merging a network in reports only the rows added, not a replacement
+     * of the whole list.
+     */
+    @Test
+    public void shouldMergeAsAdditions() {
+        final WalletTransaction t1 = transaction(1000);
+        final WalletTransaction t2 = transaction(2000);
+        final WalletTransaction t3 = transaction(3000);
+        final WalletTransaction t4 = transaction(4000);
+
+        merged.merge(Arrays.asList(t3, t1));
+        merged.merge(Arrays.asList(t4, t2));
+
+        assertEquals(Arrays.asList(t4, t3, t2, t1), merged.getTransactions());
+        assertEquals(Arrays.asList("+0-2", "+0-1", "+2-3"), reported);
+    }
+
+    @Test
+    public void shouldApplyChangesAsAdditionsAndRemovals() {
+        fixture.receive(Coin.COIN.value, 1000);
+        final Transaction dying = fixture.receive(Coin.COIN.value, 2000);
+        fixture.receive(Coin.COIN.value, 3000);
+        final TransactionIndex index = new TransactionIndex(fixture.network);
+        index.rebuild(fixture.wallet);
+        merged.merge(index.snapshot());
+        reported.clear();
+
+        fixture.kill(dying);
+        fixture.receive(Coin.COIN.value, 4000);
+        merged.apply(index.reconcile(fixture.wallet));
+
+        assertEquals(index.snapshot(), merged.getTransactions());
+        assertEquals(Arrays.asList("-1:1", "+0-1"), reported);
+    }
+}
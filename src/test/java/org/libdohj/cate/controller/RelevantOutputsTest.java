@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.wallet.Wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for RelevantOutputs.
+ *
+ * @author Ross Nicoll
+ */
+public class RelevantOutputsTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private Wallet wallet;
+    private Address mine;
+    private Address theirs;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        wallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+        mine = wallet.currentReceiveAddress();
+        theirs = LegacyAddress.fromKey(params, new ECKey());
+    }
+
+    /**
+     * A transaction paying someone else, with change back to the wallet and
+     * a data output.
+     */
+    private Transaction payment() {
+        final Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0],
+                new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] {1}))));
+        tx.addOutput(Coin.CENT, mine);
+        tx.addOutput(Coin.ZERO, ScriptBuilder.createOpReturnScript(new byte[] {1, 2, 3}));
+        tx.addOutput(Coin.COIN, theirs);
+        return tx;
+    }
+
+    @Test
+    public void shouldTakeOutputsPayingWalletWhenReceived() {
+        final Transaction tx = payment();
+
+        final RelevantOutputs relevant = RelevantOutputs.of(tx, wallet, true);
+
+        assertEquals(Collections.singletonList(tx.getOutput(0)), relevant.getOutputs(tx));
+        assertEquals(Collections.singletonList(mine.toString()), relevant.getAddresses());
+        assertEquals(mine.toString(), relevant.getFirstAddress());
+    }
+
+    /**
+     * For a payment, change back to the wallet is left out, and outputs which
+     * pay no address are kept as outputs but have no address.
+     */
+    @Test
+    public void shouldLeaveOutChangeWhenSent() {
+        final Transaction tx = payment();
+
+        final RelevantOutputs relevant = RelevantOutputs.of(tx, wallet, false);
+
+        assertEquals(Arrays.asList(tx.getOutput(1), tx.getOutput(2)), relevant.getOutputs(tx));
+        assertEquals(Collections.singletonList(theirs.toString()), relevant.getAddresses());
+        assertEquals(theirs.toString(), relevant.getFirstAddress());
+        assertEquals(theirs.toString(), relevant.join(", "));
+    }
+
+    /**
+     * With no relevant output paying an address, there is no first address;
+     * callers copying it must check for this.
+     */
+    @Test
+    public void shouldHaveNoFirstAddressWithoutAddressOutputs() {
+        final Transaction tx = new Transaction(params);
+        tx.addOutput(Coin.ZERO, ScriptBuilder.createOpReturnScript(new byte[] {1, 2, 3}));
+
+        final RelevantOutputs relevant = RelevantOutputs.of(tx, wallet, false);
+
+        assertEquals(1, relevant.getOutputs(tx).size());
+        assertNull(relevant.getFirstAddress());
+        assertEquals("", relevant.join(", "));
+        assertNull(RelevantOutputs.NONE.getFirstAddress());
+        assertEquals(0, RelevantOutputs.NONE.getAddresses().size());
+    }
+
+    @Test
+    public void shouldShareEmptyInstance() {
+        // Only change back to the wallet
+        final Transaction tx = new Transaction(params);
+        tx.addOutput(Coin.CENT, mine);
+
+        assertSame(RelevantOutputs.NONE, RelevantOutputs.of(tx, wallet, false));
+        assertSame(RelevantOutputs.NONE, new RelevantOutputs.Builder().build());
+    }
+
+    /**
+     * The builder grows past its initial capacity, keeping outputs in order.
+     */
+    @Test
+    public void shouldBuildManyOutputsInOrder() {
+        final RelevantOutputs.Builder builder = new RelevantOutputs.Builder();
+        for (int i = 0; i < 5; i++) {
+            builder.add(i * 2, i == 0 ? null : "address" + i);
+        }
+
+        final RelevantOutputs relevant = builder.build();
+
+        assertEquals(Arrays.asList("address1", "address2", "address3", "address4"), relevant.getAddresses());
+        assertEquals("address1", relevant.getFirstAddress());
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for TransactionIndexFile.
+ *
+ * @author Ross Nicoll
+ */
+public class TransactionIndexFileTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private final LegacyAddress miner = LegacyAddress.fromKey(params, new ECKey());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MemoryBlockStore store;
+    private Wallet wallet;
+
+    @Before
+    public void setUp() throws BlockStoreException {
+        Context.propagate(new Context(params));
+        store = new MemoryBlockStore(params);
+        wallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+    }
+
+    /**
+     * Build blocks on top of the given block, putting them in the store.
+     *
+     * @return the last block built.
+     */
+    private StoredBlock extend(final StoredBlock from, final int count) throws BlockStoreException {
+        StoredBlock prev = from;
+        for (int i = 0; i < count; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(miner).cloneAsHeader());
+            store.put(prev);
+        }
+        return prev;
+    }
+
+    private void seen(final StoredBlock block) {
+        wallet.setLastBlockSeenHash(block.getHeader().getHash());
+        wallet.setLastBlockSeenHeight(block.getHeight());
+    }
+
+    private static TransactionIndexFile writtenAt(final StoredBlock block) {
+        return new TransactionIndexFile(block.getHeader().getHash(), block.getHeight(), Collections.emptyList());
+    }
+
+    @Test
+    public void shouldRoundTrip() throws IOException {
+        final File file = new File(folder.getRoot(), "test.txindex");
+        final Sha256Hash block = Sha256Hash.of(new byte[] {1});
+        final List<TransactionIndexFile.Entry> entries = Arrays.asList(
+                new TransactionIndexFile.Entry(Sha256Hash.of(new byte[] {2}), 2000L, -150L),
+                new TransactionIndexFile.Entry(Sha256Hash.of(new byte[] {3}), 1000L, 500L));
+
+        new TransactionIndexFile(block, 42, entries).write(file);
+        final TransactionIndexFile read = TransactionIndexFile.read(file);
+
+        assertEquals(block, read.getLastBlockSeenHash());
+        assertEquals(42, read.getLastBlockSeenHeight());
+        assertEquals(2, read.getEntries().size());
+        for (int i = 0; i < entries.size(); i++) {
+            final TransactionIndexFile.Entry expected = entries.get(i);
+            final TransactionIndexFile.Entry actual = read.getEntries().get(i);
+            assertEquals(expected.getTxId(), actual.getTxId());
+            assertEquals(expected.getUpdateTime(), actual.getUpdateTime());
+            assertEquals(expected.getBalanceChange(), actual.getBalanceChange());
+        }
+        assertFalse(new File(folder.getRoot(), "test.txindex.tmp").exists());
+    }
+
+    /**
+     * A wallet which has not yet seen a block has no hash to record.
+     */
+    @Test
+    public void shouldRoundTripWithoutBlock() throws IOException {
+        final File file = new File(folder.getRoot(), "test.txindex");
+
+        new TransactionIndexFile(null, -1, Collections.emptyList()).write(file);
+        final TransactionIndexFile read = TransactionIndexFile.read(file);
+
+        assertNull(read.getLastBlockSeenHash());
+        assertEquals(-1, read.getLastBlockSeenHeight());
+        assertEquals(0, read.getEntries().size());
+    }
+
+    @Test
+    public void shouldRejectTruncatedFile() throws IOException {
+        final File file = new File(folder.getRoot(), "test.txindex");
+        final List<TransactionIndexFile.Entry> entries = Collections.singletonList(
+                new TransactionIndexFile.Entry(Sha256Hash.of(new byte[] {2}), 2000L, -150L));
+
+        new TransactionIndexFile(Sha256Hash.of(new byte[] {1}), 42, entries).write(file);
+        final byte[] data = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(data, data.length - 10));
+
+        try {
+            TransactionIndexFile.read(file);
+            fail("Expected truncated file to be rejected");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void shouldBeValidAtSameBlock() throws BlockStoreException {
+        final StoredBlock block = extend(store.getChainHead(), 3);
+        seen(block);
+
+        assertTrue(writtenAt(block).isValidFor(wallet, store));
+    }
+
+    @Test
+    public void shouldBeValidOnceWalletMovesOn() throws BlockStoreException {
+        final StoredBlock written = extend(store.getChainHead(), 3);
+        seen(extend(written, 4));
+
+        assertTrue(writtenAt(written).isValidFor(wallet, store));
+    }
+
+    @Test
+    public void shouldBeInvalidOnceWalletGoesBack() throws BlockStoreException {
+        final StoredBlock earlier = extend(store.getChainHead(), 2);
+        final StoredBlock written = extend(earlier, 2);
+        seen(earlier);
+
+        assertFalse(writtenAt(written).isValidFor(wallet, store));
+    }
+
+    /**
+     * A file written on a branch since reorganised away is stale, even though
+     * the wallet is now higher than the file.
+     */
+    @Test
+    public void shouldBeInvalidAfterReorganisation() throws BlockStoreException {
+        final StoredBlock fork = extend(store.getChainHead(), 2);
+        final StoredBlock written = extend(fork, 1);
+        final StoredBlock other = fork.build(fork.getHeader().createNextBlock(
+                LegacyAddress.fromKey(params, new ECKey())).cloneAsHeader());
+        store.put(other);
+        seen(extend(other, 3));
+
+        assertFalse(writtenAt(written).isValidFor(wallet, store));
+    }
+
+    /**
+     * If the store no longer holds the wallet's chain back to the file, its
+     * ancestry cannot be checked, so it is not trusted.
+     */
+    @Test
+    public void shouldBeInvalidIfStoreDoesNotReach() throws BlockStoreException {
+        final StoredBlock written = extend(store.getChainHead(), 2);
+        final MemoryBlockStore otherStore = new MemoryBlockStore(params);
+        seen(extend(written, 2));
+
+        assertFalse(writtenAt(written).isValidFor(wallet, otherStore));
+    }
+
+    @Test
+    public void shouldBeInvalidIfWalletHasSeenNoBlock() throws BlockStoreException {
+        final StoredBlock written = extend(store.getChainHead(), 2);
+
+        assertFalse(writtenAt(written).isValidFor(wallet, store));
+        assertTrue(new TransactionIndexFile(null, -1, Collections.emptyList()).isValidFor(wallet, store));
+    }
+}
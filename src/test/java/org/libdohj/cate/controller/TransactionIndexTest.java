@@ -0,0 +1,332 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for TransactionIndex.
+ *
+ * @author Ross Nicoll
+ */
+public class TransactionIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private WalletFixture fixture;
+    private TransactionIndex index;
+
+    @Before
+    public void setUp() {
+        fixture = new WalletFixture(folder.getRoot());
+        index = new TransactionIndex(fixture.network);
+    }
+
+    @Test
+    public void shouldRebuildNewestFirstWithBalanceChanges() {
+        final Transaction received = fixture.receive(Coin.COIN.value, 1000);
+        final Transaction sent = fixture.spend(received, Coin.CENT.value, 2000);
+
+        index.rebuild(fixture.wallet);
+
+        final List<WalletTransaction> snapshot = index.snapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(sent.getTxId(), snapshot.get(0).getTxId());
+        assertEquals(-Coin.COIN.value, snapshot.get(0).getBalanceChangeValue());
+        assertEquals(received.getTxId(), snapshot.get(1).getTxId());
+        assertEquals(Coin.COIN.value, snapshot.get(1).getBalanceChangeValue());
+        assertEquals(Coin.ZERO, index.getBalance());
+    }
+
+    @Test
+    public void shouldApplyAdditionsAndUpdates() {
+        final Transaction tx = fixture.receive(Coin.COIN.value, 1000);
+
+        TransactionIndex.Changes changes = index.apply(fixture.wallet, Collections.singleton(tx));
+        assertEquals(1, changes.getAdded().size());
+        assertEquals(Coin.COIN, index.getBalance());
+
+        // Unchanged, so nothing to do
+        assertTrue(index.apply(fixture.wallet, Collections.singleton(tx)).isEmpty());
+
+        tx.setUpdateTime(new Date(3000));
+        changes = index.apply(fixture.wallet, Collections.singleton(tx));
+        assertEquals(1, changes.getUpdatedTo().size());
+        assertEquals(3000, changes.getUpdatedTo().get(0).getUpdateTime());
+        assertEquals(1000, changes.getUpdatedFrom().get(0).getUpdateTime());
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void shouldReconcileNewTransactions() {
+        fixture.receive(Coin.COIN.value, 1000);
+        index.rebuild(fixture.wallet);
+        fixture.receive(Coin.CENT.value, 2000);
+
+        final TransactionIndex.Changes changes = index.reconcile(fixture.wallet);
+        assertEquals(1, changes.getAdded().size());
+        assertEquals(2, index.size());
+        assertEquals(Coin.COIN.add(Coin.CENT), index.getBalance());
+        assertTrue(index.reconcile(fixture.wallet).isEmpty());
+    }
+
+    /**
+     * Dead transactions stay in the wallet, but must be left out of the index
+     * whichever path (apply, reconcile or rebuild) last saw them.
+     */
+    @Test
+    public void shouldLeaveOutDeadTransactionsOnEveryPath() {
+        final Transaction live = fixture.receive(Coin.COIN.value, 1000);
+        final Transaction dead = fixture.receive(Coin.CENT.value, 2000);
+        index.rebuild(fixture.wallet);
+        assertEquals(2, index.size());
+
+        fixture.kill(dead);
+        final TransactionIndex.Changes changes = index.apply(fixture.wallet, Collections.singleton(dead));
+        assertEquals(1, changes.getRemoved().size());
+        assertEquals(dead.getTxId(), changes.getRemoved().get(0).getTxId());
+
+        assertTrue(index.reconcile(fixture.wallet).isEmpty());
+        assertEquals(1, index.size());
+        assertEquals(Coin.COIN, index.getBalance());
+
+        final TransactionIndex rebuilt = new TransactionIndex(fixture.network);
+        rebuilt.rebuild(fixture.wallet);
+        assertEquals(1, rebuilt.size());
+        assertEquals(live.getTxId(), rebuilt.snapshot().get(0).getTxId());
+
+        final TransactionIndex reconciled = new TransactionIndex(fixture.network);
+        reconciled.reconcile(fixture.wallet);
+        assertEquals(1, reconciled.size());
+    }
+
+    /**
+     * Rebuilding and reconciling calculate balance changes the same way, so
+     * a transaction shows the same amount whichever path indexed it.
+     */
+    @Test
+    public void shouldCalculateSameAmountsOnEveryPath() {
+        final Transaction received = fixture.receive(Coin.COIN.value, 1000);
+        fixture.spend(received, Coin.CENT.value, 2000);
+        index.rebuild(fixture.wallet);
+
+        final TransactionIndex reconciled = new TransactionIndex(fixture.network);
+        reconciled.reconcile(fixture.wallet);
+
+        final List<WalletTransaction> expected = index.snapshot();
+        final List<WalletTransaction> actual = reconciled.snapshot();
+        assertEquals(2, actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getTxId(), actual.get(i).getTxId());
+            assertEquals(expected.get(i).getBalanceChangeValue(), actual.get(i).getBalanceChangeValue());
+        }
+        assertEquals(index.getBalance(), reconciled.getBalance());
+    }
+
+    /**
+     * A transaction which dies after indexing, without an event for it, is
+     * removed on the next reconcile.
+     */
+    @Test
+    public void shouldRemoveDeadTransactionsOnReconcile() {
+        fixture.receive(Coin.COIN.value, 1000);
+        final Transaction dead = fixture.receive(Coin.CENT.value, 2000);
+        index.rebuild(fixture.wallet);
+
+        fixture.kill(dead);
+        final TransactionIndex.Changes changes = index.reconcile(fixture.wallet);
+        assertEquals(1, changes.getRemoved().size());
+        assertEquals(Coin.COIN, index.getBalance());
+    }
+
+    /**
+     * Restoring takes update times and balance changes from the file, but
+     * memos from the wallet, which may have been edited since.
+     */
+    @Test
+    public void shouldRestoreFromFile() throws BlockStoreException {
+        final MemoryBlockStore store = new MemoryBlockStore(fixture.params);
+        final StoredBlock head = store.getChainHead();
+        fixture.wallet.setLastBlockSeenHash(head.getHeader().getHash());
+        fixture.wallet.setLastBlockSeenHeight(head.getHeight());
+        final Transaction received = fixture.receive(Coin.COIN.value, 1000);
+        final Transaction sent = fixture.spend(received, Coin.CENT.value, 2000);
+        index.rebuild(fixture.wallet);
+        final TransactionIndexFile file = TransactionIndexFile.of(head.getHeader().getHash(), head.getHeight(),
+                index.snapshot());
+        sent.setMemo("Rent");
+
+        final TransactionIndex restored = new TransactionIndex(fixture.network);
+        assertTrue(restored.restore(fixture.wallet, store, file));
+
+        final List<WalletTransaction> snapshot = restored.snapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(sent.getTxId(), snapshot.get(0).getTxId());
+        assertEquals(-Coin.COIN.value, snapshot.get(0).getBalanceChangeValue());
+        assertEquals("Rent", snapshot.get(0).getMemo());
+        assertEquals(received.getTxId(), snapshot.get(1).getTxId());
+        assertEquals(Coin.ZERO, restored.getBalance());
+        assertTrue(restored.reconcile(fixture.wallet).isEmpty());
+    }
+
+    /**
+     * Transactions no longer listed by the wallet are left out, and a file the
+     * wallet has gone back before is rejected without touching the index.
+     */
+    @Test
+    public void shouldRestoreOnlyListedTransactionsFromValidFile() throws BlockStoreException {
+        final MemoryBlockStore store = new MemoryBlockStore(fixture.params);
+        final StoredBlock head = store.getChainHead();
+        fixture.wallet.setLastBlockSeenHash(head.getHeader().getHash());
+        fixture.wallet.setLastBlockSeenHeight(head.getHeight());
+        fixture.receive(Coin.COIN.value, 1000);
+        final Transaction dead = fixture.receive(Coin.CENT.value, 2000);
+        index.rebuild(fixture.wallet);
+        final TransactionIndexFile file = TransactionIndexFile.of(head.getHeader().getHash(), head.getHeight(),
+                index.snapshot());
+        fixture.kill(dead);
+
+        final TransactionIndex restored = new TransactionIndex(fixture.network);
+        assertTrue(restored.restore(fixture.wallet, store, file));
+        assertEquals(1, restored.size());
+        assertEquals(Coin.COIN, restored.getBalance());
+
+        final TransactionIndexFile later = new TransactionIndexFile(Sha256Hash.of(new byte[] {1}), head.getHeight() + 5,
+                file.getEntries());
+        final TransactionIndex rejected = new TransactionIndex(fixture.network);
+        assertFalse(rejected.restore(fixture.wallet, store, later));
+        assertEquals(0, rejected.size());
+    }
+
+    /**
+     * Iteration oldest first sees the index as it was when it started, so
+     * transactions added or moved during it are neither repeated nor missed.
+     */
+    @Test
+    public void shouldIterateOldestFirstOverSnapshot() {
+        final Transaction first = fixture.receive(Coin.COIN.value, 1000);
+        final Transaction second = fixture.receive(Coin.CENT.value, 2000);
+        final Transaction third = fixture.receive(Coin.CENT.value, 3000);
+        index.rebuild(fixture.wallet);
+
+        final Iterator<WalletTransaction> oldestFirst = index.oldestFirst();
+        assertEquals(first.getTxId(), oldestFirst.next().getTxId());
+        // Move the next transaction ahead of the last, and add a new one
+        second.setUpdateTime(new Date(4000));
+        index.apply(fixture.wallet, Collections.singleton(second));
+        index.apply(fixture.wallet, Collections.singleton(fixture.receive(Coin.CENT.value, 5000)));
+
+        assertEquals(second.getTxId(), oldestFirst.next().getTxId());
+        assertEquals(third.getTxId(), oldestFirst.next().getTxId());
+        assertFalse(oldestFirst.hasNext());
+        assertEquals(4, index.size());
+    }
+
+    /**
+     * Rebuilding only orders the transactions; they are added to the search
+     * index a batch at a time afterwards.
+     */
+    @Test
+    public void shouldFillSearchIndexInBatchesAfterReset() {
+        final Transaction received = fixture.receive(Coin.COIN.value, 1000);
+        final Transaction sent = fixture.spend(received, Coin.CENT.value, 2000);
+        fixture.receive(Coin.CENT.value, 3000);
+        index.rebuild(fixture.wallet);
+
+        assertTrue(index.indexPending(2));
+        assertFalse(index.indexPending(2));
+        assertFalse(index.indexPending(2));
+        // Found by the address paid, and by the spend from it
+        final List<WalletTransaction> results = index.search(addressOf(received));
+        assertEquals(2, results.size());
+        assertEquals(sent.getTxId(), results.get(0).getTxId());
+        assertEquals(received.getTxId(), results.get(1).getTxId());
+        assertEquals(addressOf(received), results.get(1).getRelevantOutputs().getFirstAddress());
+    }
+
+    /**
+     * A search before the background pass has finished finds only the
+     * transactions indexed so far, rather than finishing the index on the
+     * caller's thread.
+     */
+    @Test
+    public void shouldSearchOnlyIndexedTransactionsUntilComplete() {
+        final Transaction first = fixture.receive(Coin.COIN.value, 1000);
+        final Transaction second = fixture.receive(Coin.CENT.value, 2000);
+        index.rebuild(fixture.wallet);
+        // Replaced while waiting to be indexed, so indexed once as updated
+        first.setUpdateTime(new Date(3000));
+        index.apply(fixture.wallet, Collections.singleton(first));
+
+        final List<WalletTransaction> results = index.search(addressOf(first));
+        assertEquals(1, results.size());
+        assertEquals(3000, results.get(0).getUpdateTime());
+        final WalletTransaction pending = index.snapshot().stream()
+                .filter(wtx -> wtx.getTxId().equals(second.getTxId())).findFirst().get();
+        assertTrue(index.search(addressOf(second)).isEmpty());
+        assertFalse(index.matches(addressOf(second), pending));
+
+        assertFalse(index.indexPending(Integer.MAX_VALUE));
+        assertEquals(Collections.singletonList(pending), index.search(addressOf(second)));
+        assertTrue(index.matches(addressOf(second), pending));
+    }
+
+    /**
+     * A memo change replaces the row with one built from the wallet's copy,
+     * so a row rebuilt from the wallet before the memo was set is superseded,
+     * and the memo and relevant outputs arrive together.
+     */
+    @Test
+    public void shouldReplaceRowWhenMemoChanges() {
+        final Transaction received = fixture.receive(Coin.COIN.value, 1000);
+        index.rebuild(fixture.wallet);
+        // Updated from the wallet while the memo edit waits to be applied
+        received.setUpdateTime(new Date(2000));
+        final WalletTransaction stale = index.apply(fixture.wallet, Collections.singleton(received))
+                .getUpdatedTo().get(0);
+
+        received.setMemo("Rent");
+        final TransactionIndex.Changes changes = index.updateMemo(fixture.wallet, received);
+
+        assertEquals(Collections.singletonList(stale), changes.getUpdatedFrom());
+        final WalletTransaction updated = changes.getUpdatedTo().get(0);
+        assertEquals("Rent", updated.getMemo());
+        assertEquals(addressOf(received), updated.getRelevantOutputs().getFirstAddress());
+        assertEquals(Collections.singletonList(updated), index.search("rent"));
+        assertTrue(index.updateMemo(fixture.wallet, received).isEmpty());
+    }
+
+    private String addressOf(final Transaction tx) {
+        return tx.getOutput(0).getScriptPubKey().getToAddress(fixture.params).toString();
+    }
+}
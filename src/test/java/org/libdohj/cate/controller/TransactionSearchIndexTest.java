@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.bitcoinj.core.Sha256Hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Unit tests for TransactionSearchIndex.
+ *
+ * @author Ross Nicoll
+ */
+public class TransactionSearchIndexTest {
+    private static final Sha256Hash TX_A = Sha256Hash.wrap(
+            "ab01000000000000000000000000000000000000000000000000000000000000");
+    private static final Sha256Hash TX_B = Sha256Hash.wrap(
+            "ab02000000000000000000000000000000000000000000000000000000000000");
+    private static final Sha256Hash TX_C = Sha256Hash.wrap(
+            "cd00000000000000000000000000000000000000000000000000000000000000");
+
+    private TransactionSearchIndex build() {
+        final TransactionSearchIndex index = new TransactionSearchIndex();
+        index.put(TX_A, Arrays.asList("DAddressOne", "DAddressTwo"), "Rent for May");
+        index.put(TX_B, Collections.singletonList("DAddressTwo"), "Coffee");
+        index.put(TX_C, Collections.singletonList("DAddressThree"), null);
+        return index;
+    }
+
+    @Test
+    public void shouldFindByAddress() {
+        final TransactionSearchIndex index = build();
+        assertEquals(Collections.singleton(TX_A), index.search("DAddressOne"));
+        assertEquals(new HashSet<>(Arrays.asList(TX_A, TX_B)), index.search(" DAddressTwo "));
+        assertTrue(index.search("DAddress").isEmpty());
+    }
+
+    @Test
+    public void shouldFindByTxIdPrefix() {
+        final TransactionSearchIndex index = build();
+        assertEquals(new HashSet<>(Arrays.asList(TX_A, TX_B)), index.search("ab"));
+        assertEquals(Collections.singleton(TX_B), index.search("AB02"));
+        assertEquals(Collections.singleton(TX_C), index.search(TX_C.toString()));
+        assertTrue(index.search("ef").isEmpty());
+    }
+
+    /**
+     * Every word in the query must prefix a word in the memo.
+     */
+    @Test
+    public void shouldFindByMemoWords() {
+        final TransactionSearchIndex index = build();
+        assertEquals(Collections.singleton(TX_A), index.search("rent"));
+        assertEquals(Collections.singleton(TX_A), index.search("ma ren"));
+        assertEquals(Collections.singleton(TX_B), index.search("COF"));
+        assertTrue(index.search("rent coffee").isEmpty());
+    }
+
+    @Test
+    public void shouldUpdateAndRemove() {
+        final TransactionSearchIndex index = build();
+        index.updateMemo(TX_C, "Coffee beans");
+        assertEquals(new HashSet<>(Arrays.asList(TX_B, TX_C)), index.search("coffee"));
+        assertEquals(Collections.singleton(TX_C), index.search("DAddressThree"));
+
+        index.remove(TX_B);
+        assertEquals(Collections.singleton(TX_C), index.search("coffee"));
+        assertEquals(Collections.singleton(TX_A), index.search("DAddressTwo"));
+        assertEquals(Collections.singleton(TX_A), index.search("ab"));
+        assertEquals(2, index.size());
+    }
+
+    /**
+     * Checking a single transaction agrees with what a search finds.
+     */
+    @Test
+    public void shouldMatchAsSearchFinds() {
+        final TransactionSearchIndex index = build();
+        for (String query : Arrays.asList("DAddressOne", " DAddressTwo ", "DAddress", "ab", "AB02",
+                TX_C.toString(), "ef", "rent", "ma ren", "COF", "rent coffee", " ")) {
+            for (Sha256Hash txId : Arrays.asList(TX_A, TX_B, TX_C)) {
+                assertEquals(query + " " + txId, index.search(query).contains(txId), index.matches(txId, query));
+            }
+        }
+        index.remove(TX_A);
+        assertFalse(index.matches(TX_A, "rent"));
+    }
+}
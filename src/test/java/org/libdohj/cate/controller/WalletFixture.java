@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.util.concurrent.Service;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.Wallet;
+import org.libdohj.cate.Network;
+import org.libdohj.cate.NetworkListener;
+import org.libdohj.cate.util.UiUpdateDispatcher;
+
+/**
+ * A network (never started) and a wallet on the unit test network, with
+ * helpers to add transactions to the wallet as bitcoinj would on receiving
+ * them from peers.
+ *
+ * @author Ross Nicoll
+ */
+public class WalletFixture {
+    private static final NetworkListener NO_LISTENER = new NetworkListener() {
+        @Override
+        public void onWalletRegistered(final Network network, final Wallet wallet) {
+        }
+
+        @Override
+        public void onTransactionsChanged(final Network network, final TransactionIndex.Changes changes) {
+        }
+
+        @Override
+        public void onSearchIndexComplete(final Network network) {
+        }
+
+        @Override
+        public void onNetworkFailed(final Network network, final Service.State from, final Throwable failure) {
+        }
+    };
+
+    public final NetworkParameters params = UnitTestParams.get();
+    public final Network network;
+    public final Wallet wallet;
+    private final AtomicInteger nextOutPoint = new AtomicInteger();
+
+    public WalletFixture(final File directory) {
+        network = new Network(params, directory, Runnable::run,
+                new UiUpdateDispatcher(Runnable::run).newQueue("test"), NO_LISTENER);
+        Context.propagate(new Context(params));
+        wallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+        wallet.setAcceptRiskyTransactions(true);
+    }
+
+    /**
+     * Receive a payment to the wallet, from an output the wallet knows
+     * nothing about.
+     */
+    public Transaction receive(final long value, final long updateTime) {
+        final Transaction tx = new Transaction(params);
+        final byte[] funding = new byte[4];
+        final int n = nextOutPoint.incrementAndGet();
+        funding[0] = (byte) n;
+        funding[1] = (byte) (n >> 8);
+        funding[2] = (byte) (n >> 16);
+        funding[3] = (byte) (n >> 24);
+        tx.addInput(new TransactionInput(params, tx, new byte[0],
+                new TransactionOutPoint(params, 0, Sha256Hash.of(funding))));
+        tx.addOutput(Coin.valueOf(value), wallet.currentReceiveAddress());
+        return commit(tx, updateTime);
+    }
+
+    /**
+     * Spend the first output of a transaction to an address outside the
+     * wallet.
+     */
+    public Transaction spend(final Transaction from, final long value, final long updateTime) {
+        final Transaction tx = new Transaction(params);
+        tx.addInput(from.getOutput(0));
+        tx.addOutput(Coin.valueOf(value), LegacyAddress.fromKey(params, new ECKey()));
+        return commit(tx, updateTime);
+    }
+
+    /**
+     * Mark a transaction as dead, as bitcoinj does when it is double spent.
+     */
+    public void kill(final Transaction tx) {
+        tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.DEAD);
+    }
+
+    private Transaction commit(final Transaction tx, final long updateTime) {
+        wallet.receivePending(tx, null);
+        // Set afterwards, as committing the transaction stamps it with now
+        tx.setUpdateTime(new Date(updateTime));
+        return tx;
+    }
+}
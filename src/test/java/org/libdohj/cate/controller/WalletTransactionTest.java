@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.controller;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for WalletTransaction.
+ *
+ * @author Ross Nicoll
+ */
+public class WalletTransactionTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRoundTripTxId() {
+        final WalletFixture fixture = new WalletFixture(folder.getRoot());
+        final Sha256Hash txId = Sha256Hash.wrap("ff00000000000000000000000000000000000000000000000000000000000080");
+        final WalletTransaction wtx = new WalletTransaction(fixture.network, txId, 1000L, -150L, "Rent");
+
+        assertEquals(txId, wtx.getTxId());
+        assertEquals(1000L, wtx.getUpdateTime());
+        assertEquals(-150L, wtx.getBalanceChangeValue());
+        assertEquals("Rent", wtx.getMemo());
+    }
+
+    /**
+     * IDs are compared as unsigned values, so bytes with the top bit set sort
+     * after those without.
+     */
+    @Test
+    public void shouldCompareTxIdsUnsigned() {
+        final WalletFixture fixture = new WalletFixture(folder.getRoot());
+        final WalletTransaction low = new WalletTransaction(fixture.network,
+                Sha256Hash.wrap("7f00000000000000000000000000000000000000000000000000000000000000"), 0L, 0L, null);
+        final WalletTransaction high = new WalletTransaction(fixture.network,
+                Sha256Hash.wrap("8000000000000000000000000000000000000000000000000000000000000000"), 0L, 0L, null);
+        final WalletTransaction last = new WalletTransaction(fixture.network,
+                Sha256Hash.wrap("8000000000000000000000000000000000000000000000000000000000000001"), 0L, 0L, null);
+
+        assertTrue(WalletTransaction.compareTxIds(low, high) < 0);
+        assertTrue(WalletTransaction.compareTxIds(high, last) < 0);
+        assertEquals(0, WalletTransaction.compareTxIds(high, high));
+        assertTrue(TransactionIndex.NEWEST_FIRST.compare(last, low) > 0);
+    }
+}
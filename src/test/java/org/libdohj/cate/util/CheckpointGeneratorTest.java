@@ -0,0 +1,128 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.bitcoinj.core.CheckpointManager;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for CheckpointGenerator and CheckpointResources.
+ *
+ * @author Ross Nicoll
+ */
+public class CheckpointGeneratorTest {
+    private final NetworkParameters params = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MappedBlockStore store;
+
+    @Before
+    public void setUp() throws BlockStoreException {
+        Context.propagate(new Context(params));
+        store = new MappedBlockStore(params, new File(folder.getRoot(), "test.spvchain"), 100);
+        StoredBlock prev = store.getChainHead();
+        final LegacyAddress address = LegacyAddress.fromKey(params, new ECKey());
+        for (int i = 0; i < params.getInterval() * 3 + 5; i++) {
+            final StoredBlock next = prev.build(prev.getHeader().createNextBlock(address).cloneAsHeader());
+            store.put(next);
+            store.setChainHead(next);
+            prev = next;
+        }
+    }
+
+    /**
+     * Checkpoints written by the generator load in bitcoinj, and are only
+     * taken at retarget heights no newer than the given time.
+     */
+    @Test
+    public void shouldWriteCheckpointsBitcoinjCanRead() throws BlockStoreException, IOException {
+        final int interval = params.getInterval();
+        final long cutoff = store.getByHeight(interval * 2).getHeader().getTimeSeconds();
+
+        final List<StoredBlock> checkpoints = new CheckpointGenerator(params).collect(store, cutoff);
+        assertEquals(3, checkpoints.size());
+        assertEquals(0, checkpoints.get(0).getHeight());
+        assertEquals(interval, checkpoints.get(1).getHeight());
+        assertEquals(interval * 2, checkpoints.get(2).getHeight());
+
+        final StringWriter text = new StringWriter();
+        try (PrintWriter out = new PrintWriter(text)) {
+            CheckpointGenerator.write(checkpoints, out);
+        }
+        final CheckpointManager manager = new CheckpointManager(params,
+                new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(3, manager.numCheckpoints());
+        assertEquals(checkpoints.get(2), manager.getCheckpointBefore(Long.MAX_VALUE / 1000));
+        store.close();
+    }
+
+    /**
+     * Checkpoints can only come from headers the store still holds.
+     */
+    @Test
+    public void shouldStopAtOldestStoredHeader() throws BlockStoreException {
+        final MappedBlockStore small = new MappedBlockStore(params, new File(folder.getRoot(), "small.spvchain"),
+                params.getInterval() - 1);
+        StoredBlock prev = small.getChainHead();
+        final LegacyAddress address = LegacyAddress.fromKey(params, new ECKey());
+        for (int i = 0; i < params.getInterval() * 3; i++) {
+            final StoredBlock next = prev.build(prev.getHeader().createNextBlock(address).cloneAsHeader());
+            small.put(next);
+            small.setChainHead(next);
+            prev = next;
+        }
+
+        final List<StoredBlock> checkpoints = new CheckpointGenerator(params).collect(small, Long.MAX_VALUE);
+        assertEquals(1, checkpoints.size());
+        assertEquals(params.getInterval() * 3, checkpoints.get(0).getHeight());
+        small.close();
+        store.close();
+    }
+
+    /**
+     * Networks without bundled checkpoints, or unknown to the resolver, get
+     * nothing, leaving bitcoinj's defaults in place.
+     */
+    @Test
+    public void shouldFallBackWhereNothingIsBundled() throws BlockStoreException {
+        assertNull(CheckpointResources.open(MainNetParams.get()));
+        assertNull(CheckpointResources.open(params));
+        store.close();
+    }
+}
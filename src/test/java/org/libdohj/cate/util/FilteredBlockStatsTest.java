@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Unit tests for FilteredBlockStats.
+ *
+ * @author Ross Nicoll
+ */
+public class FilteredBlockStatsTest {
+    @Test
+    public void shouldAccumulateBlocks() {
+        final FilteredBlockStats stats = new FilteredBlockStats();
+
+        stats.recordBlock(1000, 3, 1);
+        stats.recordBlock(500, 2, 2);
+
+        assertEquals(2, stats.getBlockCount());
+        assertEquals(1500, stats.getBytes());
+        assertEquals(5, stats.getMatchedTransactionCount());
+        assertEquals(3, stats.getFalsePositiveCount());
+        assertEquals(0, stats.getRecalculationCount());
+    }
+
+    /**
+     * Only the first of two callers which saw the same last recalculation
+     * records a new one.
+     */
+    @Test
+    public void shouldRecordEachRecalculationOnce() {
+        final FilteredBlockStats stats = new FilteredBlockStats();
+        stats.recordBlock(100, 1, 0);
+        stats.recordBlock(100, 1, 0);
+
+        final long seen = stats.getBlocksAtLastRecalculation();
+        assertEquals(0, seen);
+        assertTrue(stats.recordRecalculation(seen));
+        assertFalse(stats.recordRecalculation(seen));
+
+        assertEquals(1, stats.getRecalculationCount());
+        assertEquals(2, stats.getBlocksAtLastRecalculation());
+    }
+}
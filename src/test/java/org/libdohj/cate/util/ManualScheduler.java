@@ -0,0 +1,162 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler for tests whose clock only moves when the test advances it.
+ * Tasks run on the test's thread, from {@link #advance(long, TimeUnit)}, so
+ * tests of timed behaviour do not depend on how loaded the machine is.
+ * Repeating tasks are not supported.
+ *
+ * @author Ross Nicoll
+ */
+public class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+    private long nowNanos = 0;
+    private long nextSequence = 0;
+    private boolean shutdown = false;
+
+    /**
+     * @return the current time on this scheduler's clock, in nanoseconds.
+     */
+    public long nanoTime() {
+        return nowNanos;
+    }
+
+    /**
+     * Move the clock forward, running each task which falls due in the order
+     * they fall due.
+     */
+    public void advance(final long delay, final TimeUnit unit) {
+        final long until = nowNanos + unit.toNanos(delay);
+        while (!queue.isEmpty() && queue.peek().dueNanos <= until) {
+            final Task<?> next = queue.poll();
+            nowNanos = Math.max(nowNanos, next.dueNanos);
+            next.run();
+        }
+        nowNanos = until;
+    }
+
+    /**
+     * @return the number of tasks waiting to run.
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
+        return schedule(() -> {
+            command.run();
+            return null;
+        }, delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit) {
+        final Task<V> task = new Task<>(callable, nowNanos + Math.max(0, unit.toNanos(delay)), nextSequence++);
+        queue.add(task);
+        return task;
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay,
+            final long period, final TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay,
+            final long delay, final TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        final List<Runnable> pending = new ArrayList<>(queue);
+        queue.clear();
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && queue.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private final long dueNanos;
+        private final long sequence;
+
+        private Task(final Callable<V> callable, final long dueNanos, final long sequence) {
+            super(callable);
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(dueNanos - nowNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            queue.remove(this);
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            if (other instanceof Task) {
+                final Task<?> task = (Task<?>) other;
+                final int result = Long.compare(dueNanos, task.dueNanos);
+                return result != 0 ? result : Long.compare(sequence, task.sequence);
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
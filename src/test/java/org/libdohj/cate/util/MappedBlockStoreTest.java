@@ -0,0 +1,214 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for MappedBlockStore.
+ *
+ * @author Ross Nicoll
+ */
+public class MappedBlockStoreTest {
+    private static final int CAPACITY = 20;
+
+    private final NetworkParameters params = UnitTestParams.get();
+    private final Address address = LegacyAddress.fromKey(params, new ECKey());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Extend the store's chain head by the given number of blocks.
+     */
+    private List<StoredBlock> extend(final MappedBlockStore store, final int count)
+            throws BlockStoreException {
+        final List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < count; i++) {
+            final StoredBlock next = prev.build(prev.getHeader().createNextBlock(address).cloneAsHeader());
+            store.put(next);
+            store.setChainHead(next);
+            blocks.add(next);
+            prev = next;
+        }
+        return blocks;
+    }
+
+    @Test
+    public void shouldLookUpByHashAndHeight() throws IOException, BlockStoreException {
+        final File file = new File(folder.getRoot(), "test.spvchain");
+        final MappedBlockStore store = new MappedBlockStore(params, file, CAPACITY);
+        final List<StoredBlock> blocks = extend(store, 10);
+
+        assertEquals(params.getGenesisBlock().getHash(), store.getByHeight(0).getHeader().getHash());
+        for (StoredBlock block : blocks) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+            assertEquals(block, store.getByHeight(block.getHeight()));
+        }
+        assertNull(store.getByHeight(11));
+        store.close();
+    }
+
+    @Test
+    public void shouldDropOldestBlocks() throws IOException, BlockStoreException {
+        final File file = new File(folder.getRoot(), "test.spvchain");
+        final MappedBlockStore store = new MappedBlockStore(params, file, CAPACITY);
+        final List<StoredBlock> blocks = extend(store, CAPACITY * 2);
+
+        // Only the most recent CAPACITY blocks are kept
+        assertNull(store.getByHeight(0));
+        assertNull(store.get(blocks.get(0).getHeader().getHash()));
+        final StoredBlock oldest = blocks.get(CAPACITY);
+        assertEquals(oldest, store.get(oldest.getHeader().getHash()));
+        assertEquals(oldest, store.getByHeight(oldest.getHeight()));
+        store.close();
+    }
+
+    @Test
+    public void shouldReopen() throws IOException, BlockStoreException {
+        final File file = new File(folder.getRoot(), "test.spvchain");
+        final MappedBlockStore store = new MappedBlockStore(params, file, CAPACITY);
+        final List<StoredBlock> blocks = extend(store, 5);
+        store.close();
+
+        final MappedBlockStore reopened = new MappedBlockStore(params, file, CAPACITY);
+        final StoredBlock head = blocks.get(blocks.size() - 1);
+        assertEquals(head, reopened.getChainHead());
+        assertEquals(blocks.get(2), reopened.getByHeight(3));
+        reopened.close();
+    }
+
+    /**
+     * Real block hashes start with zero bytes, from proof of work, so keys
+     * must come from the rest of the hash or every block shares a bucket.
+     */
+    @Test
+    public void shouldSpreadHashesWithLeadingZeros() {
+        final int buckets = 2048;
+        final Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < buckets / 2; i++) {
+            final byte[] hash = Sha256Hash.of(Integer.toString(i).getBytes()).getBytes();
+            // Mainnet hashes have at least eight leading zero bytes
+            Arrays.fill(hash, 0, 8, (byte) 0);
+            used.add(MappedBlockStore.bucket(MappedBlockStore.keyOf(hash), buckets - 1));
+        }
+        // A uniform spread of 1024 keys into 2048 buckets fills about 810
+        assertTrue("Only " + used.size() + " buckets used", used.size() > 700);
+
+        final byte[] genesis = MainNetParams.get().getGenesisBlock().getHash().getBytes();
+        assertEquals(0, genesis[0]);
+        assertTrue(MappedBlockStore.keyOf(genesis) != 0);
+    }
+
+    /**
+     * Switching to a longer fork re-points the height index at the fork, and
+     * switching back (as when the fork is itself reorganised out) restores
+     * the original chain, while blocks from both stay available by hash.
+     */
+    @Test
+    public void shouldFollowReorganisations() throws IOException, BlockStoreException {
+        final File file = new File(folder.getRoot(), "test.spvchain");
+        final MappedBlockStore store = new MappedBlockStore(params, file, CAPACITY);
+        final List<StoredBlock> main = extend(store, 10);
+        final StoredBlock mainHead = store.getChainHead();
+
+        // Fork from height 5, overtaking the main chain at height 12
+        store.setChainHead(main.get(4));
+        final List<StoredBlock> fork = extend(store, 7);
+        assertEquals(12, store.getChainHead().getHeight());
+        for (int height = 1; height <= 5; height++) {
+            assertEquals(main.get(height - 1), store.getByHeight(height));
+        }
+        for (int height = 6; height <= 12; height++) {
+            assertEquals(fork.get(height - 6), store.getByHeight(height));
+        }
+        for (StoredBlock block : main) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+
+        // Roll back to the original chain
+        store.setChainHead(mainHead);
+        for (int height = 6; height <= 10; height++) {
+            assertEquals(main.get(height - 1), store.getByHeight(height));
+        }
+        assertNull(store.getByHeight(11));
+
+        // And the rolled back state survives reopening
+        store.close();
+        final MappedBlockStore reopened = new MappedBlockStore(params, file, CAPACITY);
+        assertEquals(mainHead, reopened.getChainHead());
+        assertEquals(main.get(7), reopened.getByHeight(8));
+        assertEquals(fork.get(6), reopened.get(fork.get(6).getHeader().getHash()));
+        reopened.close();
+    }
+
+    @Test
+    public void shouldReadCapacity() throws IOException, BlockStoreException {
+        final File file = new File(folder.getRoot(), "test.spvchain");
+        new MappedBlockStore(params, file, CAPACITY).close();
+
+        assertEquals(CAPACITY, MappedBlockStore.readCapacity(file));
+        assertEquals(-1, MappedBlockStore.readCapacity(new File(folder.getRoot(), "missing.spvchain")));
+    }
+
+    /**
+     * Default capacity covers the retention period at the network's block
+     * interval, so faster chains hold more headers.
+     */
+    @Test
+    public void shouldSizeDefaultCapacityForBlockInterval() {
+        assertEquals(MappedBlockStore.MINIMUM_DEFAULT_CAPACITY, MappedBlockStore.defaultCapacity(MainNetParams.get()));
+        // One minute blocks, as Dogecoin
+        final NetworkParameters oneMinute = new UnitTestParams() {
+            {
+                interval = 240;
+                targetTimespan = 240 * 60;
+            }
+        };
+        assertEquals(43200, MappedBlockStore.defaultCapacity(oneMinute));
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void shouldRejectOtherFiles() throws IOException, BlockStoreException {
+        final File file = folder.newFile("other.spvchain");
+        Files.write(file.toPath(), new byte[] {'S', 'P', 'V', 'B'});
+        new MappedBlockStore(params, file, CAPACITY);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+/**
+ * Unit tests for MergingIterator.
+ *
+ * @author Ross Nicoll
+ */
+public class MergingIteratorTest {
+    /**
+     * Merge three sorted sources, including an empty one, and confirm the
+     * output is in order and complete.
+     */
+    @Test
+    public void shouldMergeInOrder() {
+        final List<Iterator<Integer>> sources = Arrays.asList(
+                Arrays.asList(1, 4, 7, 10).iterator(),
+                Collections.<Integer>emptyList().iterator(),
+                Arrays.asList(2, 3, 8).iterator(),
+                Arrays.asList(5, 6, 9, 11, 12).iterator());
+        final MergingIterator<Integer> merged = new MergingIterator<>(sources, Comparator.naturalOrder());
+        final List<Integer> actual = new ArrayList<>();
+
+        merged.forEachRemaining(actual::add);
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12), actual);
+        assertFalse(merged.hasNext());
+    }
+
+    /**
+     * Merging in descending order is used for newest-first transaction lists.
+     */
+    @Test
+    public void shouldMergeInReverseOrder() {
+        final List<Iterator<Integer>> sources = Arrays.asList(
+                Arrays.asList(9, 5, 1).iterator(),
+                Arrays.asList(8, 5, 2).iterator());
+        final MergingIterator<Integer> merged = new MergingIterator<>(sources, Comparator.reverseOrder());
+        final List<Integer> actual = new ArrayList<>();
+
+        merged.forEachRemaining(actual::add);
+
+        assertEquals(Arrays.asList(9, 8, 5, 5, 2, 1), actual);
+    }
+}
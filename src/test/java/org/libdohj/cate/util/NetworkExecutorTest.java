@@ -0,0 +1,206 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Unit tests for NetworkExecutor.
+ *
+ * @author Ross Nicoll
+ */
+public class NetworkExecutorTest {
+    private NetworkExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Occupy the executor's thread until the returned latch is released, and
+     * wait for it to start so later tasks are queued behind it.
+     */
+    private CountDownLatch block() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    /**
+     * Queued tasks should run highest priority first, then in order of
+     * submission.
+     */
+    @Test
+    public void shouldRunByPriority() throws InterruptedException {
+        executor = new NetworkExecutor(Executors.defaultThreadFactory(), 10, NetworkExecutor.BackPressure.BLOCK);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = block();
+
+        executor.execute(() -> order.add("low"), NetworkExecutor.Priority.LOW);
+        executor.execute(() -> order.add("normal 1"));
+        executor.execute(() -> order.add("high"), NetworkExecutor.Priority.HIGH);
+        executor.execute(() -> order.add("normal 2"));
+        assertEquals(4, executor.getQueueDepth());
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("high", "normal 1", "normal 2", "low"), order);
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(5, executor.getRunTimer().snapshot().getCount());
+    }
+
+    /**
+     * Once the queue is full, the abort policy should reject further tasks
+     * from other threads, but still accept tasks from the executor itself.
+     */
+    @Test
+    public void shouldAbortWhenFull() throws InterruptedException {
+        executor = new NetworkExecutor(Executors.defaultThreadFactory(), 2, NetworkExecutor.BackPressure.ABORT);
+        final CountDownLatch ran = new CountDownLatch(4);
+        final CountDownLatch release = block();
+
+        executor.execute(() -> {
+            // Comes from the executor thread, so needs no space reserved
+            executor.execute(ran::countDown);
+            ran.countDown();
+        });
+        executor.execute(ran::countDown);
+        try {
+            executor.execute(ran::countDown);
+            fail("Expected task to be rejected");
+        } catch (RejectedExecutionException expected) {
+            // Expected
+        }
+        assertEquals(1, executor.getRejectedCount());
+
+        release.countDown();
+        // Space should be freed as tasks start
+        assertTrue(waitForDepth(0));
+        executor.execute(ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A submitter which must not block, such as the UI thread, should have
+     * its tasks accepted over capacity rather than wait for space.
+     */
+    @Test
+    public void shouldNotBlockSubmitterWhichMustNotBlock() throws InterruptedException {
+        final ThreadLocal<Boolean> ui = ThreadLocal.withInitial(() -> false);
+        executor = new NetworkExecutor(Executors.defaultThreadFactory(), 1, NetworkExecutor.BackPressure.BLOCK,
+                ui::get);
+        final CountDownLatch ran = new CountDownLatch(3);
+        final CountDownLatch release = block();
+
+        executor.execute(ran::countDown);
+        ui.set(true);
+        executor.execute(ran::countDown);
+        executor.execute(ran::countDown);
+        ui.set(false);
+        assertEquals(3, executor.getQueueDepth());
+        assertEquals(2, executor.getOverflowedCount());
+
+        release.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        // Overflowed tasks hold no space, so the queue is back to capacity
+        assertTrue(waitForDepth(0));
+        final CountDownLatch blocked = block();
+        executor.execute(() -> { });
+        assertEquals(2, executor.getOverflowedCount());
+        blocked.countDown();
+    }
+
+    /**
+     * Listener events should be accepted over capacity even under the abort
+     * policy, as the thread firing them may hold locks tasks need.
+     */
+    @Test
+    public void shouldAcceptEventsWhenFull() throws InterruptedException {
+        executor = new NetworkExecutor(Executors.defaultThreadFactory(), 1, NetworkExecutor.BackPressure.ABORT);
+        final Executor events = NetworkExecutor.forEvents(executor, NetworkExecutor.Priority.NORMAL);
+        final CountDownLatch ran = new CountDownLatch(3);
+        final CountDownLatch release = block();
+
+        executor.execute(ran::countDown);
+        events.execute(ran::countDown);
+        events.execute(ran::countDown);
+        assertEquals(0, executor.getRejectedCount());
+        assertEquals(2, executor.getOverflowedCount());
+
+        release.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A mistyped policy falls back to the default rather than failing class
+     * initialisation, and names are read the same under any default locale.
+     */
+    @Test
+    public void shouldParseBackPressureLeniently() {
+        final Locale original = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertEquals(NetworkExecutor.BackPressure.BLOCK,
+                    NetworkExecutor.BackPressure.parse("block", NetworkExecutor.BackPressure.ABORT));
+            assertEquals(NetworkExecutor.BackPressure.ABORT,
+                    NetworkExecutor.BackPressure.parse(" Abort ", NetworkExecutor.BackPressure.BLOCK));
+            assertEquals(NetworkExecutor.BackPressure.BLOCK,
+                    NetworkExecutor.BackPressure.parse("blok", NetworkExecutor.BackPressure.BLOCK));
+            assertEquals(NetworkExecutor.BackPressure.BLOCK,
+                    NetworkExecutor.BackPressure.parse(null, NetworkExecutor.BackPressure.BLOCK));
+        } finally {
+            Locale.setDefault(original);
+        }
+    }
+
+    private boolean waitForDepth(final int depth) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.getQueueDepth() != depth) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
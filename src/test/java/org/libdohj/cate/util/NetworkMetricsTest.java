@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for NetworkMetrics.
+ *
+ * @author Ross Nicoll
+ */
+public class NetworkMetricsTest {
+    private static final double DELTA = 0.0001;
+
+    private final AtomicLong nanos = new AtomicLong();
+    private NetworkMetrics metrics;
+
+    @Before
+    public void setUp() {
+        // Start at a negative time, as nanoTime() may
+        nanos.set(-TimeUnit.MILLISECONDS.toNanos(500));
+        metrics = new NetworkMetrics(nanos::get, 4);
+    }
+
+    private void advanceSeconds(final long seconds) {
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    /**
+     * Before the window has filled, the rate should be over the time the
+     * meter has existed rather than the whole window.
+     */
+    @Test
+    public void shouldRateOverElapsedTimeUntilWindowFills() {
+        final NetworkMetrics.Meter meter = metrics.meter(NetworkMetrics.BLOCKS);
+        meter.mark(10);
+        assertEquals(10.0, meter.getRatePerSecond(), DELTA);
+        advanceSeconds(1);
+        meter.mark(10);
+        assertEquals(10.0, meter.getRatePerSecond(), DELTA);
+        assertEquals(20, meter.getCount());
+    }
+
+    /**
+     * Events older than the window should no longer count towards the rate,
+     * but should still count towards the total.
+     */
+    @Test
+    public void shouldExpireEventsOutsideWindow() {
+        final NetworkMetrics.Meter meter = metrics.meter(NetworkMetrics.BLOCKS);
+        meter.mark(100);
+        advanceSeconds(3);
+        meter.mark(4);
+        assertEquals(26.0, meter.getRatePerSecond(), DELTA);
+        advanceSeconds(1);
+        assertEquals(1.0, meter.getRatePerSecond(), DELTA);
+        advanceSeconds(10);
+        assertEquals(0.0, meter.getRatePerSecond(), DELTA);
+        assertEquals(104, meter.getCount());
+    }
+
+    @Test
+    public void shouldTrackTimerMeanAndMax() {
+        final NetworkMetrics.Timer timer = metrics.timer(NetworkMetrics.LISTENER_DISPATCH);
+        timer.record(TimeUnit.MILLISECONDS.toNanos(1));
+        timer.record(TimeUnit.MILLISECONDS.toNanos(5));
+        final NetworkMetrics.Timer.Snapshot snapshot = timer.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(3.0, snapshot.getMeanMillis(), DELTA);
+        assertEquals(5.0, snapshot.getMaxMillis(), DELTA);
+    }
+
+    @Test
+    public void shouldFlattenSnapshot() {
+        final AtomicLong depth = new AtomicLong(3);
+        metrics.meter(NetworkMetrics.HEADER_BYTES).mark(80);
+        metrics.timer(NetworkMetrics.LISTENER_DISPATCH);
+        metrics.gauge(NetworkMetrics.EXECUTOR_QUEUE_DEPTH, depth::get);
+        depth.set(7);
+
+        final Map<String, Number> snapshot = metrics.snapshot();
+        assertEquals(6, snapshot.size());
+        assertEquals(80L, snapshot.get("header_bytes_total"));
+        assertEquals(0L, snapshot.get("listener_dispatch_count"));
+        assertEquals(7L, snapshot.get("executor_queue_depth"));
+    }
+}
@@ -49,6 +49,28 @@ public class NetworkThreadFactoryTest {
         assertEquals(expected, monitor.actual);
     }
 
+    /**
+     * Requesting virtual threads should give virtual threads where the JVM
+     * supports them, and platform threads otherwise, with the context and
+     * uncaught exception handler set either way.
+     */
+    @Test
+    public void shouldSetContextOnVirtualThread() throws InterruptedException {
+        final Context expected = new Context(TestNet3Params.get());
+        final NetworkThreadFactory factory = new NetworkThreadFactory(expected, true);
+        final Thread.UncaughtExceptionHandler handler = (thread, thrwbl) -> { };
+        factory.setUncaughtExceptionHandler(handler);
+        assertEquals(NetworkThreadFactory.isVirtualThreadSupported(), factory.isVirtual());
+
+        final ThreadMonitor monitor = new ThreadMonitor();
+        final Thread thread = factory.newThread(monitor);
+        assertEquals(handler, thread.getUncaughtExceptionHandler());
+        thread.start();
+        thread.join();
+
+        assertEquals(expected, monitor.actual);
+    }
+
     public static class ThreadMonitor implements Runnable {
         Context actual = null;
         public void run() {
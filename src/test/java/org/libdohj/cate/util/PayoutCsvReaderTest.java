@@ -0,0 +1,73 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.UnitTestParams;
+import org.libdohj.cate.Payout;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Unit tests for PayoutCsvReader.
+ *
+ * @author Ross Nicoll
+ */
+public class PayoutCsvReaderTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private final String first = LegacyAddress.fromKey(params, new ECKey()).toString();
+    private final String second = LegacyAddress.fromKey(params, new ECKey()).toString();
+
+    @Test
+    public void shouldReadPayouts() throws IOException, PayoutCsvReader.PayoutFormatException {
+        final String csv = "address,amount\n"
+                + first + ",1.5\n"
+                + "\n"
+                + "# Comment\n"
+                + second + " , 0.001\n";
+        final List<Payout> payouts = new PayoutCsvReader(params).read(new StringReader(csv));
+
+        assertEquals(2, payouts.size());
+        assertEquals(first, payouts.get(0).getAddress().toString());
+        assertEquals(Coin.parseCoin("1.5"), payouts.get(0).getAmount());
+        assertEquals(second, payouts.get(1).getAddress().toString());
+        assertEquals(Coin.parseCoin("0.001"), payouts.get(1).getAmount());
+    }
+
+    @Test
+    public void shouldReportLineOfInvalidAmount() throws IOException {
+        final String csv = first + ",1\n"
+                + second + ",-1\n";
+        try {
+            new PayoutCsvReader(params).read(new StringReader(csv));
+            throw new AssertionError("Expected negative amount to be rejected");
+        } catch (PayoutCsvReader.PayoutFormatException ex) {
+            assertEquals(2, ex.getLineNumber());
+        }
+    }
+
+    @Test(expected = PayoutCsvReader.PayoutFormatException.class)
+    public void shouldRejectInvalidAddress() throws IOException, PayoutCsvReader.PayoutFormatException {
+        new PayoutCsvReader(params).read(new StringReader("notanaddress,1\n"));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Unit tests for PrometheusFormat.
+ *
+ * @author Ross Nicoll
+ */
+public class PrometheusFormatTest {
+    /**
+     * Samples from different networks should be grouped by metric, each
+     * metric typed once.
+     */
+    @Test
+    public void shouldGroupSamplesByFamily() {
+        final PrometheusFormat page = new PrometheusFormat("cate_");
+        final Map<String, Number> doge = new LinkedHashMap<>();
+        doge.put("blocks_total", 10L);
+        doge.put("peers", 4L);
+        page.addAll("org.dogecoin.production", doge);
+        page.addAll("org.litecoin.production", Collections.singletonMap("blocks_total", 5L));
+
+        assertEquals("# TYPE cate_blocks_total counter\n"
+                + "cate_blocks_total{network=\"org.dogecoin.production\"} 10\n"
+                + "cate_blocks_total{network=\"org.litecoin.production\"} 5\n"
+                + "# TYPE cate_peers gauge\n"
+                + "cate_peers{network=\"org.dogecoin.production\"} 4\n", page.toString());
+    }
+
+    @Test
+    public void shouldEscapeLabelsAndSanitiseNames() {
+        final PrometheusFormat page = new PrometheusFormat("cate_");
+        page.add("ping-millis", Collections.singletonMap("network", "a\"b\\c"), 1.5);
+        page.add("rate", Collections.emptyMap(), Double.NaN);
+
+        assertEquals("# TYPE cate_ping_millis gauge\n"
+                + "cate_ping_millis{network=\"a\\\"b\\\\c\"} 1.5\n"
+                + "# TYPE cate_rate gauge\n"
+                + "cate_rate NaN\n", page.toString());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for RateLimitedTask. The timer and clock are driven by hand,
+ * and the task runs on the calling thread.
+ *
+ * @author Ross Nicoll
+ */
+public class RateLimitedTaskTest {
+    private ManualScheduler timer;
+    private final AtomicInteger count = new AtomicInteger(0);
+    private RateLimitedTask task;
+
+    @Before
+    public void setUp() {
+        timer = new ManualScheduler();
+        task = new RateLimitedTask(count::incrementAndGet, Runnable::run, 200, timer, timer::nanoTime);
+    }
+
+    /**
+     * A burst of requests should run the task once straight away, and once
+     * more after the interval for everything that arrived in between.
+     */
+    @Test
+    public void shouldCoalesceBurst() {
+        task.request();
+        assertEquals(1, count.get());
+
+        timer.advance(50, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 99; i++) {
+            task.request();
+        }
+        assertEquals(1, count.get());
+        assertEquals(1, timer.getPendingCount());
+
+        timer.advance(149, TimeUnit.MILLISECONDS);
+        assertEquals(1, count.get());
+        timer.advance(1, TimeUnit.MILLISECONDS);
+
+        assertEquals(2, count.get());
+        assertEquals(100, task.getRequestCount());
+        assertEquals(2, task.getRunCount());
+        assertEquals(98, task.getCoalescedCount());
+    }
+
+    /**
+     * A request after the interval has already passed runs straight away,
+     * without waiting on the timer.
+     */
+    @Test
+    public void shouldRunImmediatelyOnceIntervalPassed() {
+        task.request();
+        timer.advance(500, TimeUnit.MILLISECONDS);
+
+        task.request();
+
+        assertEquals(2, count.get());
+        assertEquals(0, timer.getPendingCount());
+        assertEquals(0, task.getCoalescedCount());
+    }
+
+    @Test
+    public void shouldApplyChangedInterval() {
+        task.request();
+        task.setInterval(1, TimeUnit.SECONDS);
+
+        task.request();
+        timer.advance(999, TimeUnit.MILLISECONDS);
+        assertEquals(1, count.get());
+        timer.advance(1, TimeUnit.MILLISECONDS);
+
+        assertEquals(2, count.get());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Unit tests for Sha256HashSet.
+ *
+ * @author Ross Nicoll
+ */
+public class Sha256HashSetTest {
+    /**
+     * Add enough hashes to force the table to grow several times, and confirm
+     * they are all still found.
+     */
+    @Test
+    public void shouldAddAndGrow() {
+        final Sha256HashSet set = new Sha256HashSet();
+        final List<Sha256Hash> hashes = generate(1000);
+
+        for (Sha256Hash hash : hashes) {
+            assertTrue(set.add(hash));
+        }
+        for (Sha256Hash hash : hashes) {
+            assertFalse(set.add(hash));
+            assertTrue(set.contains(hash));
+        }
+        assertEquals(hashes.size(), set.size());
+        assertFalse(set.contains(Sha256Hash.of(new byte[] { 1, 2, 3 })));
+    }
+
+    /**
+     * Removed hashes must not be found, must not hide hashes further along
+     * the same probe sequence, and must be able to be re-added (i.e. a
+     * transaction seen again after a reorganisation).
+     */
+    @Test
+    public void shouldRemoveAndReAdd() {
+        final Sha256HashSet set = new Sha256HashSet();
+        final List<Sha256Hash> hashes = generate(500);
+
+        hashes.forEach(set::add);
+        for (int i = 0; i < hashes.size(); i += 2) {
+            assertTrue(set.remove(hashes.get(i)));
+        }
+        for (int i = 0; i < hashes.size(); i++) {
+            assertEquals(i % 2 == 1, set.contains(hashes.get(i)));
+        }
+        assertEquals(hashes.size() / 2, set.size());
+        assertFalse(set.remove(hashes.get(0)));
+        assertTrue(set.add(hashes.get(0)));
+        assertTrue(set.contains(hashes.get(0)));
+    }
+
+    /**
+     * Repeatedly adding and removing must not grow the table without bound.
+     */
+    @Test
+    public void shouldNotGrowWithChurn() {
+        final Sha256HashSet set = new Sha256HashSet();
+        final List<Sha256Hash> hashes = generate(10000);
+
+        for (Sha256Hash hash : hashes) {
+            set.add(hash);
+            set.remove(hash);
+        }
+        assertTrue(set.isEmpty());
+        assertEquals(new Sha256HashSet().getMemoryFootprint(), set.getMemoryFootprint());
+    }
+
+    private static List<Sha256Hash> generate(final int count) {
+        final List<Sha256Hash> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            hashes.add(Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array()));
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.libdohj.cate.controller.WalletFixture;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for TransactionExporter.
+ *
+ * @author Ross Nicoll
+ */
+public class TransactionExporterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String csv(final String value) {
+        final StringBuilder row = new StringBuilder();
+        TransactionExporter.appendCsvValue(row, value);
+        return row.toString();
+    }
+
+    private static String json(final String value) {
+        final StringBuilder row = new StringBuilder();
+        TransactionExporter.appendJsonString(row, value);
+        return row.toString();
+    }
+
+    @Test
+    public void shouldQuoteCsvOnlyWhenNeeded() {
+        assertEquals("", csv(null));
+        assertEquals("Rent", csv("Rent"));
+        assertEquals("\"Rent, May\"", csv("Rent, May"));
+        assertEquals("\"The \"\"big\"\" one\"", csv("The \"big\" one"));
+        assertEquals("\"two\nlines\"", csv("two\nlines"));
+    }
+
+    @Test
+    public void shouldEscapeJson() {
+        assertEquals("\"Rent\"", json("Rent"));
+        assertEquals("\"The \\\"big\\\" one\"", json("The \"big\" one"));
+        assertEquals("\"C:\\\\wallet\"", json("C:\\wallet"));
+        assertEquals("\"two\\nlines\\tand\\u0001\"", json("two\nlines\tand\u0001"));
+    }
+
+    @Test
+    public void shouldChooseFormatByExtension() {
+        assertEquals(TransactionExporter.Format.JSON_LINES, TransactionExporter.Format.forFileName("history.JSONL"));
+        assertEquals(TransactionExporter.Format.CSV, TransactionExporter.Format.forFileName("history.csv"));
+        assertEquals(TransactionExporter.Format.CSV, TransactionExporter.Format.forFileName("history"));
+    }
+
+    /**
+     * Transactions from several networks are merged into a single history,
+     * oldest first.
+     */
+    @Test
+    public void shouldMergeNetworksOldestFirst() throws IOException {
+        final WalletFixture first = new WalletFixture(folder.newFolder());
+        final WalletFixture second = new WalletFixture(folder.newFolder());
+        final Transaction a = first.receive(Coin.COIN.value, 1000);
+        final Transaction b = second.receive(Coin.CENT.value, 2000);
+        final Transaction c = first.receive(Coin.COIN.value, 3000);
+        final Transaction d = second.receive(Coin.CENT.value, 4000);
+        first.network.getTransactionIndex().rebuild(first.wallet);
+        second.network.getTransactionIndex().rebuild(second.wallet);
+        first.network.getTransactionIndex().indexPending(Integer.MAX_VALUE);
+        second.network.getTransactionIndex().indexPending(Integer.MAX_VALUE);
+        final StringWriter out = new StringWriter();
+
+        final TransactionExporter.Report report = new TransactionExporter(TransactionExporter.Format.CSV)
+                .export(Arrays.asList(first.network, second.network), out);
+
+        final String[] lines = out.toString().split("\n");
+        assertEquals(5, lines.length);
+        assertEquals("network,date,txid,amount,memo,addresses", lines[0]);
+        assertEquals(a.getTxId().toString(), lines[1].split(",")[2]);
+        assertEquals(b.getTxId().toString(), lines[2].split(",")[2]);
+        assertEquals(c.getTxId().toString(), lines[3].split(",")[2]);
+        assertEquals(d.getTxId().toString(), lines[4].split(",")[2]);
+        assertEquals("1970-01-01T00:00:01Z", lines[1].split(",")[1]);
+        assertEquals(4, report.getTransactionCount());
+    }
+
+    /**
+     * A transaction updated while the export is being written moves in the
+     * index, but is still written exactly once.
+     */
+    @Test
+    public void shouldWriteTransactionUpdatedMidExportOnce() throws IOException {
+        final WalletFixture fixture = new WalletFixture(folder.newFolder());
+        final Transaction first = fixture.receive(Coin.COIN.value, 1000);
+        fixture.receive(Coin.CENT.value, 2000);
+        fixture.network.getTransactionIndex().rebuild(fixture.wallet);
+        fixture.network.getTransactionIndex().indexPending(Integer.MAX_VALUE);
+        final StringWriter out = new StringWriter() {
+            private int rows = 0;
+
+            @Override
+            public void write(final String str) {
+                super.write(str);
+                if (++rows == 1) {
+                    // Move the first transaction, already written, to the end
+                    first.setUpdateTime(new Date(5000));
+                    fixture.network.getTransactionIndex().apply(fixture.wallet, Collections.singleton(first));
+                }
+            }
+        };
+
+        final TransactionExporter.Report report = new TransactionExporter(TransactionExporter.Format.JSON_LINES)
+                .export(Collections.singletonList(fixture.network), out);
+
+        assertEquals(2, report.getTransactionCount());
+        assertEquals(2, out.toString().split("\n").length);
+        assertEquals(2, fixture.network.getTransactionIndex().size());
+        assertEquals(5000, fixture.network.getTransactionIndex().snapshot().get(0).getUpdateTime());
+    }
+}
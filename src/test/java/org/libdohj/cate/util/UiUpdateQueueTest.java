@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleStringProperty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for UiUpdateQueue and UiUpdateDispatcher. The UI thread is
+ * stood in for by a queue of pending drains, run by the test.
+ *
+ * @author Ross Nicoll
+ */
+public class UiUpdateQueueTest {
+    private final Queue<Runnable> uiThread = new ConcurrentLinkedQueue<>();
+    private UiUpdateDispatcher dispatcher;
+    private UiUpdateQueue queue;
+
+    @Before
+    public void setUp() {
+        dispatcher = new UiUpdateDispatcher(uiThread::add);
+        queue = dispatcher.newQueue("test");
+    }
+
+    private void runUiThread() {
+        Runnable task;
+        while ((task = uiThread.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void shouldCollapsePropertyValues() {
+        final SimpleIntegerProperty blocks = new SimpleIntegerProperty(0);
+        final List<Number> seen = new ArrayList<>();
+        blocks.addListener((observable, oldValue, newValue) -> seen.add(newValue));
+
+        for (int i = 1; i <= 100; i++) {
+            queue.set(blocks, i);
+        }
+        runUiThread();
+
+        assertEquals(Arrays.asList(100), seen);
+        assertEquals(100, queue.getQueuedCount());
+        assertEquals(99, queue.getCollapsedCount());
+        assertEquals(1, dispatcher.getDrainCount());
+    }
+
+    /**
+     * A task queued after a value is set must see that value (or a later
+     * one) applied, and a task queued before any value is set sees none.
+     */
+    @Test
+    public void shouldApplyInSubmissionOrder() {
+        final SimpleStringProperty balance = new SimpleStringProperty("0");
+        final List<String> seen = new ArrayList<>();
+
+        queue.run(() -> seen.add("task 1 sees " + balance.get()));
+        queue.set(balance, "1");
+        queue.run(() -> seen.add("task 2 sees " + balance.get()));
+        queue.set(balance, "2");
+        queue.set(balance, "3");
+        queue.run(() -> seen.add("task 3 sees " + balance.get()));
+        runUiThread();
+
+        assertEquals(Arrays.asList("task 1 sees 0", "task 2 sees 3", "task 3 sees 3"), seen);
+    }
+
+    @Test
+    public void shouldApplyNullValues() {
+        final SimpleStringProperty memo = new SimpleStringProperty("memo");
+
+        queue.set(memo, null);
+        runUiThread();
+
+        assertNull(memo.get());
+    }
+
+    /**
+     * Updates queued during a drain get a drain of their own, rather than
+     * being lost.
+     */
+    @Test
+    public void shouldDrainUpdatesQueuedWhileDraining() {
+        final SimpleIntegerProperty peers = new SimpleIntegerProperty(0);
+
+        queue.run(() -> queue.set(peers, 8));
+        runUiThread();
+
+        assertEquals(8, peers.get());
+        assertEquals(2, dispatcher.getDrainCount());
+    }
+}
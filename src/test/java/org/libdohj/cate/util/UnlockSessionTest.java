@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Ross Nicoll.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.cate.util;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for UnlockSession.
+ *
+ * @author Ross Nicoll
+ */
+public class UnlockSessionTest {
+    private static final byte[] KEY = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    private ScheduledExecutorService timer;
+
+    @Before
+    public void setUp() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Keys handed out are copies, so wiping them (as sendCoins does) must not
+     * affect the key held by the session, nor the key it was unlocked with.
+     */
+    @Test
+    public void shouldHandOutCopies() {
+        final UnlockSession session = new UnlockSession(60000, timer);
+        final KeyParameter original = new KeyParameter(KEY);
+
+        session.unlock(original);
+        final KeyParameter first = session.getKey();
+        Arrays.fill(first.getKey(), (byte) 0);
+
+        assertArrayEquals(KEY, original.getKey());
+        assertArrayEquals(KEY, session.getKey().getKey());
+    }
+
+    @Test
+    public void shouldLockExplicitly() {
+        final UnlockSession session = new UnlockSession(60000, timer);
+
+        session.unlock(new KeyParameter(KEY));
+        assertTrue(session.isUnlocked());
+        session.lock();
+        assertFalse(session.isUnlocked());
+        assertNull(session.getKey());
+    }
+
+    @Test
+    public void shouldExpire() throws InterruptedException {
+        final UnlockSession session = new UnlockSession(50, timer);
+
+        session.unlock(new KeyParameter(KEY));
+        assertTrue(session.isUnlocked());
+        Thread.sleep(150);
+        assertFalse(session.isUnlocked());
+        assertNull(session.getKey());
+    }
+
+    @Test
+    public void shouldNotHoldKeyWithZeroTimeout() {
+        final UnlockSession session = new UnlockSession(0, timer);
+
+        session.unlock(new KeyParameter(KEY));
+        assertFalse(session.isUnlocked());
+    }
+}